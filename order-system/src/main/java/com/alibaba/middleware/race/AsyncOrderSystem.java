@@ -0,0 +1,172 @@
+package com.alibaba.middleware.race;
+
+import com.alibaba.middleware.race.OrderSystem.KeyValue;
+import com.alibaba.middleware.race.OrderSystem.Result;
+import com.alibaba.middleware.race.model.OrderKey;
+import com.alibaba.middleware.race.model.ProjectionPlan;
+import com.alibaba.middleware.race.store.DiskLimiter;
+import com.alibaba.middleware.race.store.StoreConfig;
+
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Created by liuzhendong on 16/8/5.
+ * OrderSystemImpl的异步门面,调用方不需要为每个在途查询占一个线程
+ * 约定1: 查询线程负责查索引、拆分读请求和拼结果,读原始记录交给io线程,同一个查询里订单、商品、买家并发读
+ * 约定2: 每块盘同时在读的请求数由DiskLimiter限制,队列满了由提交方自己执行
+ * 约定3: 结果和同步接口一致,buyer范围查询同样走结果缓存;异常通过Future.get抛出,不再吞掉
+ */
+public class AsyncOrderSystem {
+
+    private final OrderSystemImpl system;
+    private final ExecutorService queryExecutor;
+    private final ExecutorService ioExecutor;
+    private final DiskLimiter diskLimiter;
+
+    public AsyncOrderSystem(OrderSystemImpl system){
+        this(system, StoreConfig.ASYNC_QUERY_THREAD_NUM, StoreConfig.ASYNC_IO_THREAD_NUM, StoreConfig.MAX_IN_FLIGHT_READ_PER_DISK);
+    }
+
+    public AsyncOrderSystem(OrderSystemImpl system, int queryThreadNum, int ioThreadNum, int maxInFlightPerDisk){
+        this.system = system;
+        this.queryExecutor = newExecutor("async-query-", queryThreadNum);
+        this.ioExecutor = newExecutor("async-io-", ioThreadNum);
+        this.diskLimiter = new DiskLimiter(maxInFlightPerDisk);
+    }
+
+    private static ExecutorService newExecutor(final String name, int threadNum){
+        final AtomicInteger threadId = new AtomicInteger(0);
+        return new ThreadPoolExecutor(threadNum, threadNum, 0L, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<Runnable>(StoreConfig.ASYNC_QUEUE_LEN), new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, name + threadId.getAndIncrement());
+                thread.setDaemon(true);
+                return thread;
+            }
+        }, new ThreadPoolExecutor.CallerRunsPolicy());
+    }
+
+    public Future<Result> queryOrder(final long orderId, final Collection<String> keys){
+        return queryExecutor.submit(new Callable<Result>() {
+            @Override
+            public Result call() throws Exception {
+                OrderKey orderKey = system.orderTable.getOrderKey(orderId);
+                if(orderKey == null) return null;
+                ProjectionPlan plan = keys == null ? null : ProjectionPlan.of(ProjectionPlan.IndexKind.ORDER_INDEX, keys);
+                //三张表并发读,只读计划里用到的
+                Future<Map<String,String>> order = plan == null || plan.needOrder ? fetchOrder(orderKey) : null;
+                Future<Map<String,String>> good = plan == null || plan.needGood ? fetchGood(orderKey.goodId) : null;
+                Future<Map<String,String>> buyer = plan == null || plan.needBuyer ? fetchBuyer(orderKey.buyerId) : null;
+                return system.joinFetched(orderId, orderKey, plan, get(order), get(good), get(buyer));
+            }
+        });
+    }
+
+    public Future<Iterator<Result>> queryOrdersByBuyer(final long startTime, final long endTime, final String buyerid){
+        return queryExecutor.submit(new Callable<Iterator<Result>>() {
+            @Override
+            public Iterator<Result> call() throws Exception {
+                return system.queryBuyerRange(buyerid, startTime, endTime, new OrderSystemImpl.BuyerRangeReader() {
+                    private Future<Map<String,String>> buyer;
+
+                    @Override
+                    public List<Map<String, String>> orders(final long from, final long to) throws Exception {
+                        //买家和订单并发读
+                        buyer = fetchBuyer(buyerid);
+                        return diskLimiter.call(system.orderTable.diskPathOfBuyer(buyerid), new Callable<List<Map<String, String>>>() {
+                            @Override
+                            public List<Map<String, String>> call() throws Exception {
+                                return system.orderTable.getOrdersByBuyer(buyerid, from, to);
+                            }
+                        });
+                    }
+
+                    @Override
+                    public Map<String, String> buyer() throws Exception {
+                        return buyer.get();
+                    }
+
+                    @Override
+                    public Map<String, Map<String, String>> goods(Collection<String> goodIds) throws Exception {
+                        //不同商品并发读
+                        Map<String,Future<Map<String,String>>> futures = new HashMap<String, Future<Map<String, String>>>();
+                        for (String goodId : goodIds){
+                            futures.put(goodId, fetchGood(goodId));
+                        }
+                        Map<String,Map<String,String>> goods = new HashMap<String, Map<String, String>>();
+                        for (Map.Entry<String,Future<Map<String,String>>> entry : futures.entrySet()){
+                            goods.put(entry.getKey(), entry.getValue().get());
+                        }
+                        return goods;
+                    }
+                }).iterator();
+            }
+        });
+    }
+
+    public Future<Iterator<Result>> queryOrdersBySaler(final String salerid, final String goodid, final Collection<String> keys){
+        return queryExecutor.submit(new Callable<Iterator<Result>>() {
+            @Override
+            public Iterator<Result> call() throws Exception {
+                return system.queryOrdersBySaler(salerid, goodid, keys);
+            }
+        });
+    }
+
+    public Future<KeyValue> sumOrdersByGood(final String goodid, final String key){
+        return queryExecutor.submit(new Callable<KeyValue>() {
+            @Override
+            public KeyValue call() throws Exception {
+                return system.sumOrdersByGood(goodid, key);
+            }
+        });
+    }
+
+    public void shutdown(){
+        queryExecutor.shutdown();
+        ioExecutor.shutdown();
+    }
+
+    private Future<Map<String,String>> fetchOrder(final OrderKey orderKey){
+        return fetch(system.orderTable.diskPathOf(orderKey), new Callable<Map<String, String>>() {
+            @Override
+            public Map<String, String> call() throws Exception {
+                return system.orderTable.getOrderByKey(orderKey);
+            }
+        });
+    }
+
+    private Future<Map<String,String>> fetchGood(final String goodId){
+        return fetch(system.goodTable.diskPathOf(goodId), new Callable<Map<String, String>>() {
+            @Override
+            public Map<String, String> call() throws Exception {
+                return system.goodTable.getGoodById(goodId);
+            }
+        });
+    }
+
+    private Future<Map<String,String>> fetchBuyer(final String buyerId){
+        return fetch(system.buyerTable.diskPathOf(buyerId), new Callable<Map<String, String>>() {
+            @Override
+            public Map<String, String> call() throws Exception {
+                return system.buyerTable.getBuyerById(buyerId);
+            }
+        });
+    }
+
+    private <V> Future<V> fetch(final String diskPath, final Callable<V> read){
+        return ioExecutor.submit(new Callable<V>() {
+            @Override
+            public V call() throws Exception {
+                return diskLimiter.call(diskPath, read);
+            }
+        });
+    }
+
+    private static <V> V get(Future<V> future)throws Exception{
+        return future == null ? null : future.get();
+    }
+}
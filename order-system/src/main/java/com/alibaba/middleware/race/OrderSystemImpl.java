@@ -1,8 +1,18 @@
 package com.alibaba.middleware.race;
 
+import com.alibaba.middleware.race.model.AttrPredicate;
 import com.alibaba.middleware.race.model.Constant;
 import com.alibaba.middleware.race.model.GoodOrderKey;
 import com.alibaba.middleware.race.model.OrderKey;
+import com.alibaba.middleware.race.model.ProjectionPlan;
+import com.alibaba.middleware.race.store.AccessLog;
+import com.alibaba.middleware.race.store.BuildStats;
+import com.alibaba.middleware.race.store.IdDict;
+import com.alibaba.middleware.race.store.ResultCache;
+import com.alibaba.middleware.race.store.SimpleBTree;
+import com.alibaba.middleware.race.store.StoreConfig;
+import com.alibaba.middleware.race.store.Warmup;
+import com.alibaba.middleware.race.table.AttrIndex;
 import com.alibaba.middleware.race.table.BuyerTable;
 import com.alibaba.middleware.race.table.GoodTable;
 import com.alibaba.middleware.race.table.OrderTable;
@@ -12,6 +22,9 @@ import com.alibaba.middleware.race.util.PrintUtil;
 import java.io.IOException;
 import java.io.StringReader;
 import java.util.*;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
 
 /**
  *  交易订单系统接口
@@ -28,6 +41,27 @@ public class OrderSystemImpl implements OrderSystem{
     public BuyerTable buyerTable;
 
     public final boolean debug = false;
+    //要建的属性索引,construct之前可以用indexAttrs改
+    String attrIndexKeys = StoreConfig.ATTR_INDEX_KEYS;
+    List<AttrIndex.Spec> attrSpecs = new ArrayList<AttrIndex.Spec>();
+    //buyer范围查询和商品查询的结果缓存,存编码后的字节
+    public Warmup warmup;
+    public ResultCache resultCache = new ResultCache("query", StoreConfig.RESULT_CACHE_MAX_BYTES, StoreConfig.RESULT_CACHE_MAX_ENTRY_BYTES);
+    //增量层的后台合并,一次只合并一个
+    final ExecutorService compactExecutor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+        @Override
+        public Thread newThread(Runnable r) {
+            Thread thread = new Thread(r, "compact");
+            thread.setDaemon(true);
+            return thread;
+        }
+    });
+    //逗号分隔的key:type,比如 a_o_0:long,a_g_2:string,在construct之前调用
+    public OrderSystemImpl indexAttrs(String attrIndexKeys){
+        this.attrIndexKeys = attrIndexKeys;
+        return this;
+    }
+
     /**
     * 测试程序调用此接口构建交易订单记录查询系统
     *
@@ -47,12 +81,83 @@ public class OrderSystemImpl implements OrderSystem{
                         Collection<String> buyerFiles, Collection<String> goodFiles,
                         Collection<String> storeFolders) throws IOException, InterruptedException{
 
-        orderTable = new OrderTable(orderFiles,storeFolders);
+        BuildStats.reset();
+        //先给buyerid/goodid编号,订单索引里只存编号
+        BuildStats.Phase phase = BuildStats.begin("dict");
+        IdDict buyerDict = IdDict.build("buyer", buyerFiles, Constant.BUYER_ID, 20);
+        IdDict goodDict = IdDict.build("good", goodFiles, Constant.GOOD_ID, 21);
+        BuildStats.end(phase);
+        attrSpecs = AttrIndex.parseSpecs(attrIndexKeys);
+        orderTable = new OrderTable(orderFiles,storeFolders, buyerDict, goodDict).indexAttrs(attrSpecs);
         orderTable.buildIndex();
-        goodTable = new GoodTable(goodFiles, storeFolders);
+        goodTable = new GoodTable(goodFiles, storeFolders).indexAttrs(attrSpecs);
         goodTable.buildIndex();
-        buyerTable = new BuyerTable(buyerFiles, storeFolders);
+        buyerTable = new BuyerTable(buyerFiles, storeFolders).indexAttrs(attrSpecs);
         buyerTable.buildIndex();
+        //构建统计写成JSON,写不了不影响查询
+        String buildReportFile = storeFolders.iterator().next() + "/" + StoreConfig.BUILD_REPORT_FILE;
+        try {
+            BuildStats.save(buildReportFile);
+            PrintUtil.print("build report %s", buildReportFile);
+        }catch (IOException e){
+            PrintUtil.print("save build report failed %s %s", buildReportFile, e.getMessage());
+        }
+
+        //按上次的访问记录在后台预热,之后的访问记录定期存回去
+        String accessLogFile = storeFolders.iterator().next() + "/" + StoreConfig.ACCESS_LOG_FILE;
+        warmup = new Warmup(AccessLog.load(accessLogFile), treesByPath());
+        warmup.start();
+        AccessLog.startSaving(accessLogFile);
+    }
+
+    //基础层的所有索引,按文件路径
+    Map<String,SimpleBTree> treesByPath(){
+        Map<String,SimpleBTree> trees = new HashMap<String, SimpleBTree>();
+        List<SimpleBTree> all = new ArrayList<SimpleBTree>();
+        all.addAll(orderTable.bTreesById);
+        all.addAll(orderTable.bTreesByBuyer);
+        all.addAll(orderTable.bTreesByGood);
+        all.addAll(goodTable.bTreesById);
+        all.addAll(buyerTable.bTreesById);
+        for (SimpleBTree tree : all){
+            trees.put(tree.filePath, tree);
+        }
+        return trees;
+    }
+
+    /**
+     * 追加新的订单、买家、商品文件,只给新文件建增量层,已有的索引和原始记录不动
+     * 先扩字典,再建商品和买家,最后建订单,返回之后新数据就能查到
+     * 增量层到了DELTA_COMPACT_THRESHOLD个就在后台合并进基础分区,合并前后查询结果一样
+     */
+    public void append(Collection<String> orderFiles,
+                       Collection<String> buyerFiles, Collection<String> goodFiles) throws IOException, InterruptedException{
+        orderTable.buyerDict.extend(buyerFiles, Constant.BUYER_ID);
+        orderTable.goodDict.extend(goodFiles, Constant.GOOD_ID);
+        if(goodFiles.size() > 0) goodTable.append(goodFiles);
+        if(buyerFiles.size() > 0) buyerTable.append(buyerFiles);
+        if(orderFiles.size() > 0) orderTable.append(orderFiles);
+        //旧数据算出来的结果不能再用了
+        resultCache.clear();
+        if(orderTable.deltaNum() >= StoreConfig.DELTA_COMPACT_THRESHOLD){
+            compactExecutor.submit(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        compact();
+                    }catch (IOException e){
+                        e.printStackTrace();
+                    }
+                }
+            });
+        }
+    }
+
+    //把所有增量层合并进基础分区,可以和查询、追加并发
+    public void compact()throws IOException{
+        goodTable.compact();
+        buyerTable.compact();
+        orderTable.compact();
     }
 
     public static class BaseKeyValue implements KeyValue{
@@ -196,40 +301,14 @@ public class OrderSystemImpl implements OrderSystem{
             OrderKey orderKey = orderTable.getOrderKey(orderId);
             if(orderKey == null) return null;
 
-            if(keys != null){
-                if(OrderKey.onlyInIndex(keys)){
-                    long end = System.currentTimeMillis();
-                    if(debug) PrintUtil.print("QUERY_ORDER %d %s %d onlyInIndex", orderId, keys, end-start);
-                    return new BaseResult(orderId, orderKey.filterFieldsInIndex(keys));
-                }
-                if(OrderKey.onlyInGoodIndex(keys)){
-                    Map<String,String> good = goodTable.getGoodById(orderKey.goodId);
-                    long end = System.currentTimeMillis();
-                    if(debug) PrintUtil.print("QUERY_ORDER %d %s %d onlyInGoodIndex", orderId, keys, end-start);
-                    return new BaseResult(orderId, orderKey.filterFieldsInIndexAndGoodOrBuyer(keys,good));
-                }
-                if(OrderKey.onlyInIndexAndBuyer(keys)){
-                    Map<String,String> buyer = buyerTable.getBuyerById(orderKey.buyerId);
-                    long end = System.currentTimeMillis();
-                    if(debug) PrintUtil.print("QUERY_ORDER %d %s %d onlyInBuyerIndex", orderId, keys, end-start);
-                    return new BaseResult(orderId, orderKey.filterFieldsInIndexAndGoodOrBuyer(keys, buyer));
-                }
-                if(OrderKey.onlyInIndexAndGoodAndBuyer(keys)){
-                    Map<String,String> good = goodTable.getGoodById(orderKey.goodId);
-                    Map<String,String> buyer = buyerTable.getBuyerById(orderKey.buyerId);
-                    long end = System.currentTimeMillis();
-                    if(debug) PrintUtil.print("QUERY_ORDER %d %s %d onlyInGoodAndBuyerIndex", orderId, keys, end-start);
-                    return new BaseResult(orderId, orderKey.filterFieldsInIndexAndGoodAndBuyer(keys, good,buyer));
-                }
-            }
-            Map<String,String>  order = orderTable.getOrderByKey(orderKey);
-            if(keys!= null && keys.size() == 0){
-                return new BaseResult(orderId,new HashMap<String, String>(4));
-            }
-            Result result= joinOrder(orderId, order,keys,null,null);
+            //只取计划里用到的表
+            ProjectionPlan plan = keys == null ? null : ProjectionPlan.of(ProjectionPlan.IndexKind.ORDER_INDEX, keys);
+            Map<String,String> order = plan == null || plan.needOrder ? orderTable.getOrderByKey(orderKey) : null;
+            Map<String,String> good = plan == null || plan.needGood ? goodTable.getGoodById(orderKey.goodId) : null;
+            Map<String,String> buyer = plan == null || plan.needBuyer ? buyerTable.getBuyerById(orderKey.buyerId) : null;
             long end = System.currentTimeMillis();
-            if(debug) PrintUtil.print("QUERY_ORDER %d %s %d", orderId, keys, end-start);
-            return result;
+            if(debug) PrintUtil.print("QUERY_ORDER %d %s %d order:%s good:%s buyer:%s", orderId, keys, end-start, order != null, good != null, buyer != null);
+            return joinFetched(orderId, orderKey, plan, order, good, buyer);
 
         }catch (Exception e){
             e.printStackTrace();
@@ -239,6 +318,55 @@ public class OrderSystemImpl implements OrderSystem{
         return null;
     }
 
+    /**
+    * 批量查询多个订单号的指定字段,同queryOrder,但同一分区的订单号一起查索引,原始订单按文件位置合并读,
+    * 商品和买家每个只查一次
+    *
+    * @param orderIds 订单号
+    * @param keys 待查询的字段,含义同queryOrder
+    * @return 和orderIds一一对应,订单不存在的位置为null
+    */
+    public List<Result> queryOrders(long[] orderIds, Collection<String> keys){
+        long start = System.currentTimeMillis();
+        List<Result> results = new ArrayList<Result>(orderIds.length);
+        try {
+            OrderKey[] orderKeys = orderTable.getOrderKeys(orderIds);
+            ProjectionPlan plan = keys == null ? null : ProjectionPlan.of(ProjectionPlan.IndexKind.ORDER_INDEX, keys);
+            List<Map<String,String>> orders = plan == null || plan.needOrder ? orderTable.getOrdersByKeys(orderKeys) : null;
+            Map<String,Map<String,String>> goods = new HashMap<String, Map<String, String>>();
+            Map<String,Map<String,String>> buyers = new HashMap<String, Map<String, String>>();
+            for (int i = 0; i < orderKeys.length; i++) {
+                OrderKey orderKey = orderKeys[i];
+                if(orderKey == null){
+                    results.add(null);
+                    continue;
+                }
+                Map<String,String> good = null, buyer = null;
+                if(plan == null || plan.needGood){
+                    good = goods.get(orderKey.goodId);
+                    if(good == null){
+                        good = goodTable.getGoodById(orderKey.goodId);
+                        goods.put(orderKey.goodId, good);
+                    }
+                }
+                if(plan == null || plan.needBuyer){
+                    buyer = buyers.get(orderKey.buyerId);
+                    if(buyer == null){
+                        buyer = buyerTable.getBuyerById(orderKey.buyerId);
+                        buyers.put(orderKey.buyerId, buyer);
+                    }
+                }
+                results.add(joinFetched(orderKey.orderId, orderKey, plan, orders != null ? orders.get(i) : null, good, buyer));
+            }
+            long end = System.currentTimeMillis();
+            if(debug) PrintUtil.print("QUERY_ORDERS %d %s %d", orderIds.length, keys, end-start);
+            return results;
+        }catch (Exception e){
+            e.printStackTrace();
+        }
+        return new ArrayList<Result>(Collections.<Result>nCopies(orderIds.length, null));
+    }
+
     /**
     * 查询某位买家createtime字段从[startTime, endTime) 时间范围内发生的所有订单的所有信息
     *
@@ -249,31 +377,66 @@ public class OrderSystemImpl implements OrderSystem{
     * @return 符合条件的订单集合，按照createtime大到小排列
     */
     public Iterator<Result> queryOrdersByBuyer(long startTime, long endTime,
-                                      String buyerid){
+                                      final String buyerid){
         long start = System.currentTimeMillis();
+        try {
+            List<Result> results = queryBuyerRange(buyerid, startTime, endTime, new BuyerRangeReader() {
+                @Override
+                public List<Map<String, String>> orders(long from, long to) throws Exception {
+                    return orderTable.getOrdersByBuyer(buyerid, from, to);
+                }
+
+                @Override
+                public Map<String, String> buyer() throws Exception {
+                    return buyerTable.getBuyerById(buyerid);
+                }
+
+                @Override
+                public Map<String, Map<String, String>> goods(Collection<String> goodIds) throws Exception {
+                    Map<String,Map<String,String>> goods = new HashMap<String, Map<String, String>>();
+                    for (String goodId : goodIds){
+                        goods.put(goodId, goodTable.getGoodById(goodId));
+                    }
+                    return goods;
+                }
+            });
+            long end = System.currentTimeMillis();
+            if(debug) PrintUtil.print("QUERY_BUYER_TSRANGE %s %d %d %d ms",buyerid, startTime, endTime, end - start);
+            return results.iterator();
+        }catch (Exception e){
+            e.printStackTrace();
+
+        }
+
+
+        return new ArrayList<Result>().iterator();
+    }
+
+    /**
+    * 同queryOrdersByBuyer,但只要createtime最大的limit条,索引倒着走,够数就停,不会取出全部订单
+    */
+    public Iterator<Result> queryOrdersByBuyer(long startTime, long endTime,
+                                      String buyerid, int limit){
         try {
             if(startTime<0) startTime = 0;
             if(endTime < 0) endTime = 0;
-            List<Map<String, String>> orders = orderTable.getOrdersByBuyer(buyerid,startTime,endTime);
-            //System.out.println("orders:" + orders.size());
-            if(orders == null || orders.size() == 0){
+            List<Result> cached = getCachedBuyerResults(buyerid, startTime, endTime, limit);
+            if(cached != null){
+                return cached.iterator();
+            }
+            List<Map<String, String>> orders = orderTable.getOrdersByBuyer(buyerid,startTime,endTime,limit);
+            if(orders.size() == 0){
                 return new ArrayList<Result>().iterator();
             }
             Map<String,String> buyer = buyerTable.getBuyerById(buyerid);
             List<Result>  results = new ArrayList<Result>(orders.size());
-            for (int i = orders.size()-1; i >= 0; i--) {
-                Map<String,String> order = orders.get(i);
+            for (Map<String,String> order : orders) {
                 results.add(joinOrder(Long.valueOf(order.get(Constant.ORDER_ID)),order,null,null,buyer));
             }
-            long end = System.currentTimeMillis();
-            if(debug) PrintUtil.print("QUERY_BUYER_TSRANGE %s %d %d %d ms",buyerid, startTime, endTime, end - start);
             return results.iterator();
         }catch (Exception e){
             e.printStackTrace();
-
         }
-
-
         return new ArrayList<Result>().iterator();
     }
 
@@ -292,72 +455,111 @@ public class OrderSystemImpl implements OrderSystem{
 
     public List<Result> _queryOrdersBySaler(String salerid, String goodid,
                                                Collection<String> keys, String sign){
-        long start = System.currentTimeMillis();
-
+        //salerid只有在要求返回salerid字段时才会影响结果
+        String cacheKey = "G|" + goodid + "|" + OrderUtil.canonicalKeys(keys)
+                + (keys != null && keys.contains(Constant.SALER_ID) ? salerid : "");
         try {
-            List<GoodOrderKey> goodKeys = orderTable.getGoodKeysByGood(goodid);
-            if(goodKeys == null || goodKeys.size() == 0){
-                return new ArrayList<Result>();
+            long generation = resultCache.generation();
+            byte[] cached = resultCache.get(cacheKey);
+            if(cached != null){
+                return ResultCodec.decode(cached);
             }
+            List<Result> results = loadOrdersBySaler(salerid, goodid, keys, sign);
+            cacheResults(cacheKey, results, 0, 0, null, generation);
+            return results;
+        }catch (Exception e){
+            e.printStackTrace();
+        }
+        return new ArrayList<Result>();
+    }
 
-            Map<String,String> good = null;
-            if(keys != null){
-                if(GoodOrderKey.onlyInIndex(keys)){
-                    List<Result>  results = new ArrayList<Result>(goodKeys.size());
-                    for (int i = 0; i < goodKeys.size(); i++) {
-                        GoodOrderKey tmp = goodKeys.get(i);
-                        //TODO 延迟加载
-                        results.add(new BaseResult(tmp.orderId, tmp.filterFieldsInIndex(keys,goodid,salerid)));
-                    }
-                    long end = System.currentTimeMillis();
-                    if(debug) PrintUtil.print("%s %s %s %s %d ms only_in_index",sign,salerid, goodid, keys, end - start);
-                    return results;
-                }
-                good = goodTable.getGoodById(goodid);
-                if(GoodOrderKey.onlyInGoodIndex(keys)){
-                    List<Result>  results = new ArrayList<Result>(goodKeys.size());
-                    for (int i = 0; i < goodKeys.size(); i++) {
-                        GoodOrderKey tmp = goodKeys.get(i);
-                        results.add(new BaseResult(tmp.orderId, tmp.filterFieldsInIndexAndGoodOrBuyer(keys,goodid,salerid,good)));
-                    }
-                    long end = System.currentTimeMillis();
-                    if(debug) PrintUtil.print("%s %s %s %s %d ms only_in_good_index",sign,salerid, goodid, keys, end - start);
-                    return results;
-                }
+    //buyer范围查询怎么读原始记录,同步接口直接读,异步接口交给io线程并发读
+    interface BuyerRangeReader{
+        List<Map<String,String>> orders(long from, long to)throws Exception;
+        Map<String,String> buyer()throws Exception;
+        Map<String,Map<String,String>> goods(Collection<String> goodIds)throws Exception;
+    }
 
-                if(GoodOrderKey.onlyInIndexAndBuyer(keys)){
-                    List<Result>  results = new ArrayList<Result>(goodKeys.size());
-                    for (int i = 0; i < goodKeys.size(); i++) {
-                        GoodOrderKey tmp = goodKeys.get(i);
-                        Map<String,String> buyer = buyerTable.getBuyerById(tmp.buyerId);
-                        results.add(new BaseResult(tmp.orderId, tmp.filterFieldsInIndexAndGoodOrBuyer(keys,goodid,salerid,buyer)));
-                    }
-                    long end = System.currentTimeMillis();
-                    if(debug) PrintUtil.print("%s %s %s %s %d ms only_in_buyer_index",sign,salerid, goodid, keys, end - start);
-                    return results;
-                }
-                if(GoodOrderKey.onlyInIndexAndGoodAndBuyer(keys)){
-                    List<Result>  results = new ArrayList<Result>(goodKeys.size());
-                    for (int i = 0; i < goodKeys.size(); i++) {
-                        GoodOrderKey tmp = goodKeys.get(i);
-                        Map<String,String> buyer = buyerTable.getBuyerById(tmp.buyerId);
-                        results.add(new BaseResult(tmp.orderId, tmp.filterFieldsInIndexAndGoodAndBuyer(keys,goodid,salerid,good,buyer)));
-                    }
-                    long end = System.currentTimeMillis();
-                    if(debug) PrintUtil.print("%s %s %s %s %d ms only_in_buyer_and_good_index",sign,salerid, goodid, keys, end - start);
-                    return results;
-                }
+    //buyer范围查询的公共流程: 查缓存,没命中读订单、买家和用到的商品,拼好放进缓存;generation在读之前取
+    List<Result> queryBuyerRange(String buyerid, long startTime, long endTime, BuyerRangeReader reader)throws Exception{
+        long from = Math.max(startTime, 0), to = Math.max(endTime, 0);
+        long generation = resultCache.generation();
+        List<Result> cached = getCachedBuyerResults(buyerid, from, to, Integer.MAX_VALUE);
+        if(cached != null){
+            return cached;
+        }
+        List<Map<String, String>> orders = reader.orders(from, to);
+        List<Result> results = new ArrayList<Result>(orders == null ? 0 : orders.size());
+        if(orders != null && orders.size() > 0){
+            Set<String> goodIds = new HashSet<String>();
+            for (Map<String,String> order : orders){
+                goodIds.add(order.get(Constant.GOOD_ID));
+            }
+            Map<String,Map<String,String>> goods = reader.goods(goodIds);
+            Map<String,String> buyer = reader.buyer();
+            for (Map<String,String> order : orders) {
+                results.add(joinFetched(Long.valueOf(order.get(Constant.ORDER_ID)), null, null, order, goods.get(order.get(Constant.GOOD_ID)), buyer));
+            }
+        }
+        cacheResults(buyerCacheKey(buyerid), results, from, to, Constant.CTIME, generation);
+        return results;
+    }
+
+    String buyerCacheKey(String buyerid){
+        return "B|" + buyerid;
+    }
+
+    //缓存的是某个时间范围的结果,查询的范围落在里面就直接从缓存里过滤出来
+    List<Result> getCachedBuyerResults(String buyerid, long startTime, long endTime, int limit)throws IOException{
+        byte[] cached = resultCache.get(buyerCacheKey(buyerid));
+        if(cached == null || !ResultCodec.covers(cached, startTime, endTime)){
+            return null;
+        }
+        return ResultCodec.decode(cached, startTime, endTime, limit);
+    }
+
+    //generation是查询开始时缓存的代数,中间追加过数据就不缓存;按范围缓存的,已有的结果覆盖了这个范围就不换,免得把大范围换成小范围
+    void cacheResults(String cacheKey, List<Result> results, long rangeStart, long rangeEnd, String rangeKey, long generation){
+        if(rangeKey != null){
+            byte[] old = resultCache.peek(cacheKey);
+            if(old != null && ResultCodec.covers(old, rangeStart, rangeEnd)) return;
+        }
+        try {
+            resultCache.put(cacheKey, ResultCodec.encode(results, rangeStart, rangeEnd, rangeKey), generation);
+        }catch (IOException e){
+            //编码不了(比如字段过长)就不缓存
+        }
+    }
+
+    private List<Result> loadOrdersBySaler(String salerid, String goodid,
+                                               Collection<String> keys, String sign)throws Exception{
+        long start = System.currentTimeMillis();
+        List<GoodOrderKey> goodKeys = orderTable.getGoodKeysByGood(goodid);
+        if(goodKeys == null || goodKeys.size() == 0){
+            return new ArrayList<Result>();
+        }
+
+        if(keys != null){
+            ProjectionPlan plan = ProjectionPlan.of(ProjectionPlan.IndexKind.GOOD_INDEX, keys);
+            Map<String,String> good = plan.needGood ? goodTable.getGoodById(goodid) : null;
+            List<Map<String, String>> orders = plan.needOrder ? orderTable.getOrderByKeys(goodKeys) : null;
+            List<Result>  results = new ArrayList<Result>(goodKeys.size());
+            for (int i = 0; i < goodKeys.size(); i++) {
+                GoodOrderKey tmp = goodKeys.get(i);
+                tmp.goodId = goodid;
+                tmp.salerId = salerid;
+                Map<String,String> buyer = plan.needBuyer ? buyerTable.getBuyerById(tmp.buyerId) : null;
+                results.add(new BaseResult(tmp.orderId, plan.project(tmp, orders != null ? orders.get(i) : null, good, buyer)));
             }
-            List<Map<String, String>> orders = orderTable.getOrderByKeys(goodKeys);
-            List<Result>  results = joinOrders(orders, keys, good, null);
             long end = System.currentTimeMillis();
-            if(debug) PrintUtil.print("%s %s %s %s %d ms",sign,salerid, goodid, keys, end - start);
+            if(debug) PrintUtil.print("%s %s %s %s %d ms order:%s good:%s buyer:%s",sign,salerid, goodid, keys, end - start, plan.needOrder, plan.needGood, plan.needBuyer);
             return results;
-        }catch (Exception e){
-            e.printStackTrace();
         }
-
-        return new ArrayList<Result>();
+        List<Map<String, String>> orders = orderTable.getOrderByKeys(goodKeys);
+        List<Result>  results = joinOrders(orders, null, goodTable.getGoodById(goodid), null);
+        long end = System.currentTimeMillis();
+        if(debug) PrintUtil.print("%s %s %s %s %d ms",sign,salerid, goodid, keys, end - start);
+        return results;
     }
     /**
     * 对某件商品的某个字段求和，只允许对long和double类型的KV求和 如果字段中既有long又有double，则使用double
@@ -426,200 +628,203 @@ public class OrderSystemImpl implements OrderSystem{
         return null;
     }
 
-
-    private HashSet<String>  orderKeys = new HashSet<String>();
-    {
-        orderKeys.add("orderid");
-        orderKeys.add("createtime");
-        orderKeys.add("buyerid");
-        orderKeys.add("goodid");
-        orderKeys.add("amount");
-        orderKeys.add("done");
-        orderKeys.add("remark");
-    }
-
-    private HashSet<String>  goodKeys = new HashSet<String>();
-    {
-        goodKeys.add("goodid");
-        goodKeys.add("salerid");
-        goodKeys.add("good_name");
-        goodKeys.add("description");
-        goodKeys.add("price");
-        goodKeys.add("offprice");
-    }
-
-    private HashSet<String>  buyerKeys = new HashSet<String>();
-    {
-        buyerKeys.add("buyerid");
-        buyerKeys.add("contactphone");
-        buyerKeys.add("address");
-        buyerKeys.add("buyername");
-    }
-    public boolean onlyInOrders(Collection<String> keys){
-        for (String key : keys){
-            if(orderKeys.contains(key) || key.startsWith("a_o_")){
-
+    /**
+    * 按扩展属性的条件查订单,属性要在indexAttrs里配置过,否则抛IllegalArgumentException
+    * a_o_属性直接查订单的属性索引;a_g_、a_b_属性先查出命中的商品或买家,再取它们的订单
+    *
+    * @param predicate 属性条件
+    * @param buyerid 不为null时只要这个买家的订单
+    * @param goodid 不为null时只要这个商品的订单
+    * @param keys 待查询的字段,含义同queryOrder
+    * @return 符合条件的订单集合,按照订单id从小至大排序
+    */
+    public Iterator<Result> queryOrdersByAttr(AttrPredicate predicate, String buyerid, String goodid, Collection<String> keys){
+        long start = System.currentTimeMillis();
+        boolean indexed = false;
+        for (AttrIndex.Spec spec : attrSpecs){
+            if(spec.key.equals(predicate.key)) indexed = true;
+        }
+        if(!indexed) throw new IllegalArgumentException("属性没有索引:" + predicate.key);
+        try {
+            List<Result> results;
+            if(predicate.key.startsWith("a_o_")){
+                results = loadOrdersByOrderAttr(predicate, buyerid, goodid, keys);
+            }else if(predicate.key.startsWith("a_g_")){
+                results = loadOrdersByGoodAttr(predicate, buyerid, goodid, keys);
             }else {
-                return false;
+                results = loadOrdersByBuyerAttr(predicate, buyerid, goodid, keys);
             }
+            long end = System.currentTimeMillis();
+            if(debug) PrintUtil.print("QUERY_ATTR %s %s %s %s %d %d ms", predicate, buyerid, goodid, keys, results.size(), end - start);
+            return results.iterator();
+        }catch (IllegalArgumentException e){
+            throw e;
+        }catch (Exception e){
+            e.printStackTrace();
         }
-        return true;
+        return new ArrayList<Result>().iterator();
     }
 
-    public boolean onlyInGoods(Collection<String> keys){
-        for (String key : keys){
-            if(goodKeys.contains(key) || key.startsWith("a_g_")){
-
-            }else {
-                return false;
+    //string属性索引只给出候选,用订单里的值再判断一次,不要的字段判断完去掉
+    private List<Result> loadOrdersByOrderAttr(AttrPredicate predicate, String buyerid, String goodid, Collection<String> keys)throws Exception{
+        long[] orderIds = orderTable.getOrderIdsByAttr(predicate, buyerid, goodid);
+        AttrIndex attrIndex = orderTable.attrIndex(predicate.key);
+        if(attrIndex.exact()) return loadOrders(orderIds, keys);
+        boolean extra = keys != null && !keys.contains(predicate.key);
+        Collection<String> fetchKeys = keys;
+        if(extra){
+            fetchKeys = new ArrayList<String>(keys);
+            fetchKeys.add(predicate.key);
+        }
+        List<Result> results = new ArrayList<Result>();
+        for (Result result : loadOrders(orderIds, fetchKeys)){
+            KeyValue kv = result.get(predicate.key);
+            if(!attrIndex.matches(predicate, kv == null ? null : kv.valueAsString())) continue;
+            if(extra){
+                //投影出来的行是只读的,拷一份再去掉
+                Map<String,String> fields = new HashMap<String, String>(((BaseResult) result).fields);
+                fields.remove(predicate.key);
+                result = new BaseResult(result.orderId(), fields);
             }
+            results.add(result);
         }
-        return true;
+        return results;
     }
-    public boolean onlyInBuyers(Collection<String> keys){
-        for (String key : keys){
-            if(buyerKeys.contains(key) || key.startsWith("a_b_")){
 
-            }else {
-                return false;
+    //指定了买家时用商品索引里的buyerId过滤,不读这个买家的原始订单;命中的商品记录直接拿来join
+    private List<Result> loadOrdersByGoodAttr(AttrPredicate predicate, String buyerid, String goodid, Collection<String> keys)throws Exception{
+        Map<String,Map<String,String>> goods = new HashMap<String, Map<String, String>>();
+        for (Map<String,String> good : goodTable.getGoodsByAttr(predicate)){
+            if(goodid == null || goodid.equals(good.get(Constant.GOOD_ID))) goods.put(good.get(Constant.GOOD_ID), good);
+        }
+        List<GoodOrderKey> goodKeys = new ArrayList<GoodOrderKey>();
+        for (String id : goods.keySet()){
+            for (GoodOrderKey goodOrderKey : orderTable.getGoodKeysByGood(id)){
+                if(buyerid == null || buyerid.equals(goodOrderKey.buyerId)) goodKeys.add(goodOrderKey);
             }
         }
-        return true;
+        return sortByOrderId(loadByGoodKeys(goodKeys, keys, goods, new HashMap<String, Map<String, String>>()));
     }
 
-    public boolean onlyInOrderGoods(Collection<String> keys){
-        for (String key : keys){
-            if(goodKeys.contains(key) || key.startsWith("a_g_") || orderKeys.contains(key) || key.startsWith("a_o_")){
-
-            }else {
-                return false;
+    //指定了商品时用商品索引里的buyerId过滤,否则取每个命中买家的订单;读出来的订单和买家记录直接join,不再按orderid读一遍
+    private List<Result> loadOrdersByBuyerAttr(AttrPredicate predicate, String buyerid, String goodid, Collection<String> keys)throws Exception{
+        Map<String,Map<String,String>> buyers = new HashMap<String, Map<String, String>>();
+        for (Map<String,String> buyer : buyerTable.getBuyersByAttr(predicate)){
+            if(buyerid == null || buyerid.equals(buyer.get(Constant.BUYER_ID))) buyers.put(buyer.get(Constant.BUYER_ID), buyer);
+        }
+        Map<String,Map<String,String>> goods = new HashMap<String, Map<String, String>>();
+        if(buyers.size() == 0) return new ArrayList<Result>();
+        if(goodid != null){
+            List<GoodOrderKey> goodKeys = new ArrayList<GoodOrderKey>();
+            for (GoodOrderKey goodOrderKey : orderTable.getGoodKeysByGood(goodid)){
+                if(buyers.containsKey(goodOrderKey.buyerId)) goodKeys.add(goodOrderKey);
+            }
+            return loadByGoodKeys(goodKeys, keys, goods, buyers);
+        }
+        ProjectionPlan plan = keys == null ? null : ProjectionPlan.of(ProjectionPlan.IndexKind.NONE, keys);
+        List<Result> results = new ArrayList<Result>();
+        for (Map.Entry<String,Map<String,String>> entry : buyers.entrySet()){
+            for (Map<String,String> order : orderTable.getOrdersByBuyer(entry.getKey(), 0, Long.MAX_VALUE)){
+                Map<String,String> good = plan == null || plan.needGood ? goodOf(order.get(Constant.GOOD_ID), goods) : null;
+                results.add(joinOrder(Long.valueOf(order.get(Constant.ORDER_ID)), order, plan, good, entry.getValue()));
             }
         }
-        return true;
+        return sortByOrderId(results);
     }
 
-    public boolean onlyInOrderBuyer(Collection<String> keys){
-        for (String key : keys){
-            if(buyerKeys.contains(key) || key.startsWith("a_b_") || orderKeys.contains(key) || key.startsWith("a_o_")){
-
-            }else {
-                return false;
+    //商品索引命中的订单,按goodKeys的顺序;商品、买家记录先从goods、buyers里找,没有再查并放进去
+    private List<Result> loadByGoodKeys(List<GoodOrderKey> goodKeys, Collection<String> keys,
+                                        Map<String,Map<String,String>> goods, Map<String,Map<String,String>> buyers)throws Exception{
+        ProjectionPlan plan = keys == null ? null : ProjectionPlan.of(ProjectionPlan.IndexKind.GOOD_INDEX, keys);
+        //salerid在商品索引的计划里算索引字段,要从商品记录里填上
+        boolean needSaler = plan != null && keys.contains(Constant.SALER_ID);
+        List<Map<String,String>> orders = plan == null || plan.needOrder ? orderTable.getOrderByKeys(goodKeys) : null;
+        List<Result> results = new ArrayList<Result>(goodKeys.size());
+        for (int i = 0; i < goodKeys.size(); i++) {
+            GoodOrderKey goodOrderKey = goodKeys.get(i);
+            Map<String,String> good = plan == null || plan.needGood || needSaler ? goodOf(goodOrderKey.goodId, goods) : null;
+            Map<String,String> buyer = plan == null || plan.needBuyer ? buyerOf(goodOrderKey.buyerId, buyers) : null;
+            if(plan == null){
+                results.add(joinOrder(goodOrderKey.orderId, orders.get(i), null, good, buyer));
+                continue;
             }
+            if(needSaler) goodOrderKey.salerId = good.get(Constant.SALER_ID);
+            results.add(new BaseResult(goodOrderKey.orderId, plan.project(goodOrderKey, orders != null ? orders.get(i) : null, good, buyer)));
         }
-        return true;
+        return results;
     }
-    private List<Result> joinOrders(List<Map<String,String>> orders, Collection<String> keys, Map<String,String> good,Map<String,String> buyer)throws Exception{
-        //优化的基本思路就是提前确定 keys多落在哪些表里面
-        if(keys == null){
-            List<Result>  results = new ArrayList<Result>();
-            for (Map<String, String> order : orders){
-                results.add(joinOrder(Long.valueOf(order.get(Constant.ORDER_ID)),order,keys,good,buyer));
-            }
-            return results;
-        }
 
-        if(onlyInOrders(keys)){
-            List<Result>  results = new ArrayList<Result>();
-            for (Map<String, String> order : orders){
-                Map<String,String> fields = new HashMap<String, String>(keys.size());
-                OrderUtil.filter(fields,order,keys);
-                results.add(new BaseResult(Long.valueOf(order.get(Constant.ORDER_ID)),fields));
-            }
-            return results;
+    private Map<String,String> goodOf(String goodId, Map<String,Map<String,String>> goods)throws Exception{
+        Map<String,String> good = goods.get(goodId);
+        if(good == null){
+            good = goodTable.getGoodById(goodId);
+            goods.put(goodId, good);
         }
+        return good;
+    }
 
-        if(onlyInGoods(keys)){
-            List<Result>  results = new ArrayList<Result>();
-            for (Map<String, String> order : orders){
-                Map<String,String> fields = new HashMap<String, String>(keys.size());
-                OrderUtil.filter(fields, good != null ? good : goodTable.getGoodById(order.get(Constant.GOOD_ID)),keys);
-                results.add(new BaseResult(Long.valueOf(order.get(Constant.ORDER_ID)),fields));
-            }
-            return results;
-        }
-        if(onlyInBuyers(keys)){
-            List<Result>  results = new ArrayList<Result>();
-            for (Map<String, String> order : orders){
-                Map<String,String> fields = new HashMap<String, String>(keys.size());
-                OrderUtil.filter(fields, buyer != null ? buyer : buyerTable.getBuyerById(order.get(Constant.BUYER_ID)),keys);
-                results.add(new BaseResult(Long.valueOf(order.get(Constant.ORDER_ID)),fields));
-            }
-            return results;
+    private Map<String,String> buyerOf(String buyerId, Map<String,Map<String,String>> buyers)throws Exception{
+        Map<String,String> buyer = buyers.get(buyerId);
+        if(buyer == null){
+            buyer = buyerTable.getBuyerById(buyerId);
+            buyers.put(buyerId, buyer);
         }
+        return buyer;
+    }
 
-        if(onlyInOrderGoods(keys)){
-            List<Result>  results = new ArrayList<Result>();
-            for (Map<String, String> order : orders){
-                results.add(joinOrderWithGood(Long.valueOf(order.get(Constant.ORDER_ID)),order,keys,good));
+    private static List<Result> sortByOrderId(List<Result> results){
+        Collections.sort(results, new Comparator<Result>() {
+            @Override
+            public int compare(Result o1, Result o2) {
+                return o1.orderId() < o2.orderId() ? -1 : (o1.orderId() == o2.orderId() ? 0 : 1);
             }
-            return results;
-        }
-        if(onlyInOrderBuyer(keys)){
-            List<Result>  results = new ArrayList<Result>();
-            for (Map<String, String> order : orders){
-                results.add(joinOrderWithBuyer(Long.valueOf(order.get(Constant.ORDER_ID)),order,keys,buyer));
-            }
-            return results;
-        }
-        List<Result>  results = new ArrayList<Result>();
-        for (Map<String, String> order : orders){
-            results.add(joinOrder(Long.valueOf(order.get(Constant.ORDER_ID)),order,keys,good,null));
-        }
+        });
         return results;
-
     }
 
+    //批量取订单,不存在的去掉
+    private List<Result> loadOrders(long[] orderIds, Collection<String> keys){
+        List<Result> results = new ArrayList<Result>(orderIds.length);
+        for (Result result : queryOrders(orderIds, keys)){
+            if(result != null) results.add(result);
+        }
+        return results;
+    }
 
-    private Result joinOrder(long orderId,Map<String,String> order, Collection<String> keys,Map<String,String> good,Map<String,String> buyer)throws Exception{
 
-        if(keys == null){
-            Map<String,String> fields = new HashMap<String, String>(32);
-            fields.putAll(order);
-            fields.putAll(good != null ? good : goodTable.getGoodById(order.get(Constant.GOOD_ID)));
-            fields.putAll(buyer != null ? buyer :buyerTable.getBuyerById(order.get(Constant.BUYER_ID)));
-            return new BaseResult(orderId, fields);
-        }
-        if(onlyInOrders(keys)){
-            Map<String,String> fields = new HashMap<String, String>(keys.size());
-            OrderUtil.filter(fields,order,keys);
-            return new BaseResult(orderId,fields);
-        }
-        Map<String,String> fields = new HashMap<String, String>(keys.size());
-        OrderUtil.filter(fields,order,keys);
-        if(fields.size() == keys.size()){
-            return new BaseResult(orderId,fields);
-        }
-        OrderUtil.filter(fields, good != null ? good : goodTable.getGoodById(order.get(Constant.GOOD_ID)),keys);
-        if(fields.size() == keys.size()){
-            return new BaseResult(orderId,fields);
+    private List<Result> joinOrders(List<Map<String,String>> orders, Collection<String> keys, Map<String,String> good,Map<String,String> buyer)throws Exception{
+        //字段集合只分析一次,每一行按计划取
+        ProjectionPlan plan = keys == null ? null : ProjectionPlan.of(ProjectionPlan.IndexKind.NONE, keys);
+        List<Result>  results = new ArrayList<Result>(orders.size());
+        for (Map<String, String> order : orders){
+            results.add(joinOrder(Long.valueOf(order.get(Constant.ORDER_ID)),order,plan,good,buyer));
         }
-        OrderUtil.filter(fields, buyer != null ? buyer : buyerTable.getBuyerById(order.get(Constant.BUYER_ID)),keys);
-        return new BaseResult(orderId,fields);
+        return results;
     }
 
 
-    private Result joinOrderWithGood(long orderId,Map<String,String> order, Collection<String> keys,Map<String,String> good)throws Exception{
-
-        Map<String,String> fields = new HashMap<String, String>(keys.size());
-        OrderUtil.filter(fields,order,keys);
-        if(fields.size() == keys.size()){
-            return new BaseResult(orderId,fields);
+    //plan为null表示取全部字段;没给的商品、买家按订单里的id查
+    private Result joinOrder(long orderId,Map<String,String> order, ProjectionPlan plan,Map<String,String> good,Map<String,String> buyer)throws Exception{
+        if((plan == null || plan.needGood) && good == null){
+            good = goodTable.getGoodById(order.get(Constant.GOOD_ID));
         }
-        OrderUtil.filter(fields, good != null ? good : goodTable.getGoodById(order.get(Constant.GOOD_ID)),keys);
-        if(fields.size() == keys.size()){
-            return new BaseResult(orderId,fields);
+        if((plan == null || plan.needBuyer) && buyer == null){
+            buyer = buyerTable.getBuyerById(order.get(Constant.BUYER_ID));
         }
-        return new BaseResult(orderId,fields);
+        return joinFetched(orderId, null, plan, order, good, buyer);
     }
-    private Result joinOrderWithBuyer(long orderId,Map<String,String> order, Collection<String> keys, Map<String,String> buyer)throws Exception{
 
-        Map<String,String> fields = new HashMap<String, String>(keys.size());
-        OrderUtil.filter(fields,order,keys);
-        if(fields.size() == keys.size()){
-            return new BaseResult(orderId,fields);
+    //已经读好的订单、商品、买家拼成一行,同步和异步接口共用;plan为null表示取全部字段,否则按计划投影,row是索引里的行
+    Result joinFetched(long orderId, ProjectionPlan.IndexRow row, ProjectionPlan plan,
+                       Map<String,String> order, Map<String,String> good, Map<String,String> buyer){
+        if(plan == null){
+            Map<String,String> fields = new HashMap<String, String>(32);
+            fields.putAll(order);
+            fields.putAll(good);
+            fields.putAll(buyer);
+            return new BaseResult(orderId, fields);
         }
-        OrderUtil.filter(fields, buyer != null ? buyer : buyerTable.getBuyerById(order.get(Constant.BUYER_ID)),keys);
-        return new BaseResult(orderId,fields);
+        return new BaseResult(orderId, plan.project(row, order, good, buyer));
     }
 
 }
@@ -0,0 +1,101 @@
+package com.alibaba.middleware.race;
+
+import com.alibaba.middleware.race.OrderSystem.KeyValue;
+import com.alibaba.middleware.race.OrderSystem.Result;
+import com.alibaba.middleware.race.OrderSystemImpl.BaseResult;
+
+import java.io.*;
+import java.util.*;
+
+/**
+ * Created by liuzhendong on 16/8/5.
+ * 查询结果的紧凑编码,给结果缓存用,不缓存HashMap对象
+ * 格式: rangeStart(long) rangeEnd(long) 字段名个数(short) 字段名... 结果数(int)
+ *      每条结果: orderId(long) 排序值(long) 字段数(short) [字段名下标(short) 值]...
+ * 约定1: 字段名只存一次,每条结果只存下标
+ * 约定2: 排序值用来按范围过滤,比如buyer查询的createtime,这样可以用缓存的大范围回答其中的小范围
+ */
+public class ResultCodec {
+
+    public static byte[] encode(List<Result> results, long rangeStart, long rangeEnd, String rangeKey)throws IOException{
+        Map<String,Integer> names = new LinkedHashMap<String, Integer>();
+        for (Result result : results){
+            for (KeyValue kv : result.getAll()){
+                if(!names.containsKey(kv.key())) names.put(kv.key(), names.size());
+            }
+        }
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(64 + results.size() * 64);
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeLong(rangeStart);
+        out.writeLong(rangeEnd);
+        out.writeShort(names.size());
+        for (String name : names.keySet()){
+            out.writeUTF(name);
+        }
+        out.writeInt(results.size());
+        for (Result result : results){
+            KeyValue[] all = result.getAll();
+            out.writeLong(result.orderId());
+            out.writeLong(rangeValue(result, rangeKey));
+            out.writeShort(all.length);
+            for (KeyValue kv : all){
+                out.writeShort(names.get(kv.key()));
+                out.writeUTF(kv.valueAsString());
+            }
+        }
+        out.flush();
+        return bytes.toByteArray();
+    }
+
+    //缓存的范围是否包含[start,end)
+    public static boolean covers(byte[] data, long start, long end){
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(data));
+        try {
+            return in.readLong() <= start && end <= in.readLong();
+        }catch (IOException e){
+            return false;
+        }
+    }
+
+    public static List<Result> decode(byte[] data)throws IOException{
+        return decode(data, Long.MIN_VALUE, Long.MAX_VALUE, Integer.MAX_VALUE);
+    }
+
+    //只取排序值在[start,end)之间的,最多limit条,顺序与编码时一致
+    public static List<Result> decode(byte[] data, long start, long end, int limit)throws IOException{
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(data));
+        in.readLong();
+        in.readLong();
+        String[] names = new String[in.readShort()];
+        for (int i = 0; i < names.length; i++) {
+            names[i] = in.readUTF();
+        }
+        int num = in.readInt();
+        List<Result> results = new ArrayList<Result>(Math.min(num, limit));
+        for (int i = 0; i < num && results.size() < limit; i++) {
+            long orderId = in.readLong();
+            long value = in.readLong();
+            int fieldNum = in.readShort();
+            boolean hit = start <= value && value < end;
+            Map<String,String> fields = hit ? new HashMap<String, String>(fieldNum * 2) : null;
+            for (int j = 0; j < fieldNum; j++) {
+                String name = names[in.readShort()];
+                String fieldValue = in.readUTF();
+                if(hit) fields.put(name, fieldValue);
+            }
+            if(hit) results.add(new BaseResult(orderId, fields));
+        }
+        return results;
+    }
+
+    private static long rangeValue(Result result, String rangeKey){
+        if(rangeKey == null) return 0;
+        KeyValue kv = result.get(rangeKey);
+        if(kv == null) return 0;
+        try {
+            return Long.valueOf(kv.valueAsString());
+        }catch (NumberFormatException e){
+            return 0;
+        }
+    }
+}
@@ -13,8 +13,12 @@ import java.util.*;
  */
 public class Tester {
 
-    public static void test(OrderSystem orderSystem)throws Exception{
-        String file = "/Users/liuzhendong/Source/middleware-race/data/prerun_data/case.0";
+    public static int test(OrderSystem orderSystem)throws Exception{
+        return test(orderSystem, "/Users/liuzhendong/Source/middleware-race/data/prerun_data/case.0");
+    }
+
+    //返回失败的case数
+    public static int test(OrderSystem orderSystem, String file)throws Exception{
         BufferedReader br = new BufferedReader(new InputStreamReader(new FileInputStream(file)));
         String line = null;
         int i = 0,max =10000;
@@ -29,7 +33,7 @@ public class Tester {
                 if(parseSalerGood(br, orderSystem)){
                     salerSuccNum++;
                 }else {
-                    salerSuccNum++;
+                    salerFailNum++;
                 }
                 if(++i >= max){
                     break;
@@ -89,8 +93,9 @@ public class Tester {
             System.out.println(String.format("QUERY_SALER_GOOD succNum:%d failNum:%d cost:%d", salerSuccNum, salerFailNum, end -  start));
             System.out.println(String.format("QUERY_GOOD_SUM succNum:%d failNum:%d cost:%d", goodSumSucc, goodSumFail, end -  start));
             System.out.println(Thread.currentThread().getId()+"-end=======================================================");
-            PrintUtil.print("rank cost:" + ((OrderSystemImpl)orderSystem).orderTable.rankCost);
         }
+        br.close();
+        return queryOrderFail + buyerTsFail + salerFailNum + goodSumFail;
     }
 
 
@@ -215,15 +220,15 @@ public class Tester {
         int num = 0;
         if(result.equals("null") && realRes == null){
             succ = true;
+        }else if(result.equals("null") || realRes == null){
+            succ = false;
         }else {
             try {
                 Long expect = Long.valueOf(result);
-                return expect.equals(realRes.valueAsLong());
+                succ = expect.equals(realRes.valueAsLong());
             }catch (Exception e){
                 Double expect = Double.valueOf(result);
-                if(expect - realRes.valueAsDouble() < 0.0001){
-                    succ = true;
-                }
+                succ = Math.abs(expect - realRes.valueAsDouble()) < 0.0001;
             }
         }
         if(succ){
@@ -0,0 +1,73 @@
+package com.alibaba.middleware.race.model;
+
+/**
+ * Created by liuzhendong on 16/8/5.
+ * 属性条件: 字段 op 值,字段是a_o_/a_g_/a_b_开头的扩展属性
+ * 约定1: 值按属性索引配置的类型比较,long和double按数值,string按UTF-8字节序;记录里的值转不成这个类型的不算命中
+ * 约定2: BETWEEN两头都包含
+ */
+public class AttrPredicate {
+
+    public enum Op{
+        EQ, LT, LE, GT, GE, BETWEEN
+    }
+
+    public final String key;
+    public final Op op;
+    public final String value;
+    public final String to; //只有BETWEEN用,上界
+
+    private AttrPredicate(String key, Op op, String value, String to){
+        this.key = key;
+        this.op = op;
+        this.value = value;
+        this.to = to;
+    }
+
+    public static AttrPredicate eq(String key, String value){
+        return new AttrPredicate(key, Op.EQ, value, null);
+    }
+
+    public static AttrPredicate lt(String key, String value){
+        return new AttrPredicate(key, Op.LT, value, null);
+    }
+
+    public static AttrPredicate le(String key, String value){
+        return new AttrPredicate(key, Op.LE, value, null);
+    }
+
+    public static AttrPredicate gt(String key, String value){
+        return new AttrPredicate(key, Op.GT, value, null);
+    }
+
+    public static AttrPredicate ge(String key, String value){
+        return new AttrPredicate(key, Op.GE, value, null);
+    }
+
+    public static AttrPredicate between(String key, String from, String to){
+        return new AttrPredicate(key, Op.BETWEEN, from, to);
+    }
+
+    //cmp是记录的值和value比较的结果,cmpTo是和to比较的结果
+    public boolean accept(int cmp, int cmpTo){
+        switch (op){
+            case EQ:
+                return cmp == 0;
+            case LT:
+                return cmp < 0;
+            case LE:
+                return cmp <= 0;
+            case GT:
+                return cmp > 0;
+            case GE:
+                return cmp >= 0;
+            default:
+                return cmp >= 0 && cmpTo <= 0;
+        }
+    }
+
+    @Override
+    public String toString(){
+        return op == Op.BETWEEN ? key + " BETWEEN " + value + " AND " + to : key + " " + op + " " + value;
+    }
+}
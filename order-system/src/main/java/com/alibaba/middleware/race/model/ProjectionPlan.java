@@ -0,0 +1,243 @@
+package com.alibaba.middleware.race.model;
+
+import com.alibaba.middleware.race.util.OrderUtil;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Created by liuzhendong on 16/8/5.
+ * 字段集合的投影计划
+ * 约定1: 分析时就确定每个字段从哪里取: 索引、订单原始记录、商品表、买家表,不认识的字段依次从订单、商品、买家里找
+ * 约定2: 按(索引类型,规范化后的字段集合)缓存,同一个字段集合只分析一次
+ * 约定3: 分析时给每个字段分一个槽位,按来源分组记下槽位;执行时每一行按组填一个数组,不再做HashSet、前缀判断,也不再每行建HashMap
+ * 约定4: 结果行是数组加上计划里共用的字段名到槽位的表,按Map读
+ */
+public class ProjectionPlan {
+
+    //结果行的索引来源
+    public enum IndexKind{
+        NONE,        //没有索引,所有字段都从原始记录和商品、买家表取
+        ORDER_INDEX, //orderid索引,即OrderKey
+        GOOD_INDEX   //goodid索引,即GoodOrderKey,比orderid索引多一个salerid
+    }
+
+    //索引行,按字段编号取值
+    public interface IndexRow{
+        String indexField(byte field);
+    }
+
+    //索引中的字段编号
+    public static final byte F_ORDERID = 0;
+    public static final byte F_CTIME = 1;
+    public static final byte F_AMOUNT = 2;
+    public static final byte F_DONE = 3;
+    public static final byte F_BUYERID = 4;
+    public static final byte F_GOODID = 5;
+    public static final byte F_SALERID = 6;
+
+    public static final int MAX_PLAN_NUM = 10 * 1000; //缓存的计划数上限,超过了就不再缓存
+
+    private static final Map<String,Byte> indexFieldIds = new HashMap<String, Byte>();
+    private static final Set<String> orderKeys = new HashSet<String>();
+    private static final Set<String> goodKeys = new HashSet<String>();
+    private static final Set<String> buyerKeys = new HashSet<String>();
+    static {
+        indexFieldIds.put("orderid", F_ORDERID);
+        indexFieldIds.put("createtime", F_CTIME);
+        indexFieldIds.put("amount", F_AMOUNT);
+        indexFieldIds.put("done", F_DONE);
+        indexFieldIds.put("buyerid", F_BUYERID);
+        indexFieldIds.put("goodid", F_GOODID);
+        indexFieldIds.put("salerid", F_SALERID);
+
+        orderKeys.addAll(Arrays.asList("orderid", "createtime", "buyerid", "goodid", "amount", "done", "remark"));
+        goodKeys.addAll(Arrays.asList("goodid", "salerid", "good_name", "description", "price", "offprice"));
+        buyerKeys.addAll(Arrays.asList("buyerid", "contactphone", "address", "buyername"));
+    }
+
+    private static final ConcurrentHashMap<String,ProjectionPlan> plans = new ConcurrentHashMap<String, ProjectionPlan>();
+
+    public final String[] keys;
+    private final Map<String,Integer> slots; //字段名到槽位,所有行共用
+    private final int[] indexSlots;
+    private final byte[] indexFields; //和indexSlots一一对应
+    private final int[] orderSlots;
+    private final int[] goodSlots;
+    private final int[] buyerSlots;
+    private final int[] anySlots; //不认识的字段,依次从订单、商品、买家里找
+    public final boolean needOrder;
+    public final boolean needGood;
+    public final boolean needBuyer;
+
+    public static ProjectionPlan of(IndexKind kind, Collection<String> keys){
+        String planKey = kind.name() + "|" + OrderUtil.canonicalKeys(keys);
+        ProjectionPlan plan = plans.get(planKey);
+        if(plan != null) return plan;
+        plan = new ProjectionPlan(kind, new TreeSet<String>(keys));
+        if(plans.size() < MAX_PLAN_NUM){
+            ProjectionPlan old = plans.putIfAbsent(planKey, plan);
+            if(old != null) plan = old;
+        }
+        return plan;
+    }
+
+    private ProjectionPlan(IndexKind kind, Collection<String> keys){
+        this.keys = keys.toArray(new String[keys.size()]);
+        Map<String,Integer> slots = new HashMap<String, Integer>(this.keys.length * 2);
+        List<Integer> index = new ArrayList<Integer>(), order = new ArrayList<Integer>(), good = new ArrayList<Integer>(),
+                buyer = new ArrayList<Integer>(), any = new ArrayList<Integer>();
+        List<Byte> fields = new ArrayList<Byte>();
+        for (int i = 0; i < this.keys.length; i++) {
+            String key = this.keys[i];
+            slots.put(key, i);
+            Byte field = indexFieldIds.get(key);
+            if(field != null && inIndex(kind, field)){
+                index.add(i);
+                fields.add(field);
+            }else if(orderKeys.contains(key) || key.startsWith("a_o_")){
+                order.add(i);
+            }else if(goodKeys.contains(key) || key.startsWith("a_g_")){
+                good.add(i);
+            }else if(buyerKeys.contains(key) || key.startsWith("a_b_")){
+                buyer.add(i);
+            }else {
+                any.add(i);
+            }
+        }
+        this.slots = Collections.unmodifiableMap(slots);
+        this.indexSlots = toArray(index);
+        this.indexFields = new byte[fields.size()];
+        for (int i = 0; i < indexFields.length; i++) {
+            indexFields[i] = fields.get(i);
+        }
+        this.orderSlots = toArray(order);
+        this.goodSlots = toArray(good);
+        this.buyerSlots = toArray(buyer);
+        this.anySlots = toArray(any);
+        this.needOrder = orderSlots.length > 0 || anySlots.length > 0;
+        this.needGood = goodSlots.length > 0 || anySlots.length > 0;
+        this.needBuyer = buyerSlots.length > 0 || anySlots.length > 0;
+    }
+
+    private static int[] toArray(List<Integer> list){
+        int[] array = new int[list.size()];
+        for (int i = 0; i < array.length; i++) {
+            array[i] = list.get(i);
+        }
+        return array;
+    }
+
+    private static boolean inIndex(IndexKind kind, byte field){
+        switch (kind){
+            case ORDER_INDEX:
+                return field != F_SALERID;
+            case GOOD_INDEX:
+                return true;
+            default:
+                return false;
+        }
+    }
+
+    //按计划取字段,不需要的来源可以传null
+    public Map<String,String> project(IndexRow row, Map<String,String> order, Map<String,String> good, Map<String,String> buyer){
+        String[] values = new String[keys.length];
+        for (int i = 0; i < indexSlots.length; i++) {
+            values[indexSlots[i]] = row.indexField(indexFields[i]);
+        }
+        fill(values, orderSlots, order);
+        fill(values, goodSlots, good);
+        fill(values, buyerSlots, buyer);
+        for (int slot : anySlots) {
+            String value = get(order, keys[slot]);
+            if(value == null) value = get(good, keys[slot]);
+            if(value == null) value = get(buyer, keys[slot]);
+            values[slot] = value;
+        }
+        return new Row(this, values);
+    }
+
+    private void fill(String[] values, int[] slotsOfSource, Map<String,String> src){
+        if(src == null) return;
+        for (int slot : slotsOfSource) {
+            values[slot] = src.get(keys[slot]);
+        }
+    }
+
+    private static String get(Map<String,String> src, String key){
+        return src == null ? null : src.get(key);
+    }
+
+    //一行结果: 按槽位排的值,取不到的是null,不算在Map里
+    static final class Row extends AbstractMap<String,String>{
+        private final ProjectionPlan plan;
+        private final String[] values;
+        private final int size;
+
+        Row(ProjectionPlan plan, String[] values){
+            this.plan = plan;
+            this.values = values;
+            int size = 0;
+            for (String value : values) {
+                if(value != null) size++;
+            }
+            this.size = size;
+        }
+
+        @Override
+        public String get(Object key){
+            Integer slot = plan.slots.get(key);
+            return slot == null ? null : values[slot];
+        }
+
+        @Override
+        public boolean containsKey(Object key){
+            return get(key) != null;
+        }
+
+        @Override
+        public int size(){
+            return size;
+        }
+
+        @Override
+        public Set<Entry<String, String>> entrySet(){
+            return new AbstractSet<Entry<String, String>>() {
+                @Override
+                public Iterator<Entry<String, String>> iterator() {
+                    return new Iterator<Entry<String, String>>() {
+                        int next = skipNull(0);
+
+                        private int skipNull(int slot){
+                            while (slot < values.length && values[slot] == null) slot++;
+                            return slot;
+                        }
+
+                        @Override
+                        public boolean hasNext() {
+                            return next < values.length;
+                        }
+
+                        @Override
+                        public Entry<String, String> next() {
+                            if(!hasNext()) throw new NoSuchElementException();
+                            Entry<String,String> entry = new SimpleImmutableEntry<String, String>(plan.keys[next], values[next]);
+                            next = skipNull(next + 1);
+                            return entry;
+                        }
+
+                        @Override
+                        public void remove() {
+                            throw new UnsupportedOperationException();
+                        }
+                    };
+                }
+
+                @Override
+                public int size() {
+                    return size;
+                }
+            };
+        }
+    }
+}
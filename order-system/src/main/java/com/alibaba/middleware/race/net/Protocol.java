@@ -0,0 +1,133 @@
+package com.alibaba.middleware.race.net;
+
+import com.alibaba.middleware.race.OrderSystem.KeyValue;
+import com.alibaba.middleware.race.OrderSystem.Result;
+import com.alibaba.middleware.race.OrderSystemImpl.BaseResult;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.util.*;
+
+/**
+ * Created by liuzhendong on 16/8/5.
+ * 查询服务的二进制协议,客户端和服务端共用
+ * 帧格式: 长度(int,不含自己) 请求号(int) 操作码或状态(byte) 内容
+ * 约定1: 请求号由客户端分配,同一个连接上可以连续发很多请求不等回复,回复带着请求号回来,顺序不保证
+ * 约定2: 一个请求的回复可以分成多帧,前面的帧状态是MORE,最后一帧是OK或ERROR;同一个请求的帧按顺序到达
+ * 约定3: 字符串用writeUTF,字段列表null写-1;结果先写一个字节表示有没有,再写orderId、字段数(无符号short)和字段,
+ *        字段值可能超过writeUTF的64K上限(原始记录可以很长),写成长度(int)加UTF-8字节
+ * 约定4: ACK和CANCEL是客户端发的控制帧,请求号是要控制的请求,没有回复;ACK带一个int,表示这个请求又消费了多少字节的回复,
+ *        服务端每个流式请求没确认的字节数不超过STREAM_WINDOW_BYTES;CANCEL之后服务端不再发这个请求的结果
+ */
+public class Protocol {
+
+    //操作码
+    public static final byte QUERY_ORDER = 1;
+    public static final byte QUERY_ORDERS = 2;
+    public static final byte QUERY_BUYER = 3;
+    public static final byte QUERY_SALER = 4;
+    public static final byte SUM_GOOD = 5;
+    public static final byte ACK = 6;
+    public static final byte CANCEL = 7;
+
+    //回复状态
+    public static final byte OK = 0;
+    public static final byte MORE = 1;
+    public static final byte ERROR = 2;
+
+    public static final int HEADER_LEN = 9;
+
+    //先占住帧头,写完内容再补长度
+    public static class FrameOut extends ByteArrayOutputStream{
+        public final DataOutputStream out = new DataOutputStream(this);
+
+        public FrameOut(int requestId, byte code){
+            super(256);
+            try {
+                out.writeInt(0);
+                out.writeInt(requestId);
+                out.writeByte(code);
+            }catch (IOException e){
+                throw new RuntimeException(e);
+            }
+        }
+
+        public void setCode(byte code){
+            buf[8] = code;
+        }
+
+        //内容的字节数,不含帧头
+        public int bodyLen(){
+            return count - HEADER_LEN;
+        }
+
+        public ByteBuffer finish(){
+            int len = count - 4;
+            buf[0] = (byte) (len >>> 24);
+            buf[1] = (byte) (len >>> 16);
+            buf[2] = (byte) (len >>> 8);
+            buf[3] = (byte) len;
+            return ByteBuffer.wrap(buf, 0, count);
+        }
+    }
+
+    public static void writeKeys(DataOutputStream out, Collection<String> keys)throws IOException{
+        if(keys == null){
+            out.writeInt(-1);
+            return;
+        }
+        out.writeInt(keys.size());
+        for (String key : keys){
+            out.writeUTF(key);
+        }
+    }
+
+    public static List<String> readKeys(DataInputStream in)throws IOException{
+        int num = in.readInt();
+        if(num < 0) return null;
+        List<String> keys = new ArrayList<String>(num);
+        for (int i = 0; i < num; i++) {
+            keys.add(in.readUTF());
+        }
+        return keys;
+    }
+
+    public static void writeResult(DataOutputStream out, Result result)throws IOException{
+        if(result == null){
+            out.writeByte(0);
+            return;
+        }
+        out.writeByte(1);
+        KeyValue[] all = result.getAll();
+        out.writeLong(result.orderId());
+        out.writeShort(all.length);
+        for (KeyValue kv : all){
+            out.writeUTF(kv.key());
+            writeLongString(out, kv.valueAsString());
+        }
+    }
+
+    public static Result readResult(DataInputStream in)throws IOException{
+        if(in.readByte() == 0) return null;
+        long orderId = in.readLong();
+        int num = in.readUnsignedShort();
+        Map<String,String> fields = new HashMap<String, String>(num * 2);
+        for (int i = 0; i < num; i++) {
+            String key = in.readUTF();
+            fields.put(key, readLongString(in));
+        }
+        return new BaseResult(orderId, fields);
+    }
+
+    static void writeLongString(DataOutputStream out, String value)throws IOException{
+        byte[] bytes = value.getBytes("UTF-8");
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    static String readLongString(DataInputStream in)throws IOException{
+        byte[] bytes = new byte[in.readInt()];
+        in.readFully(bytes);
+        return new String(bytes, "UTF-8");
+    }
+}
@@ -0,0 +1,426 @@
+package com.alibaba.middleware.race.net;
+
+import com.alibaba.middleware.race.OrderSystem;
+import com.alibaba.middleware.race.OrderSystemImpl.BaseKeyValue;
+
+import java.io.*;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Created by liuzhendong on 16/8/5.
+ * QueryServer的客户端,一个连接可以给多个线程共用
+ * 约定1: 异步接口只把请求写进发送缓冲,不等回复,连续调用就是流水线;flush或者第一次get时才真正发出去,多个请求合在一次写里
+ * 约定2: 一个后台线程读回复,按请求号放进对应请求的队列,读线程从不等某个请求;范围查询返回的迭代器边读帧边解码,不用等全部结果到齐
+ *        每消费一帧就给服务端回ACK,服务端每个请求最多发STREAM_WINDOW_BYTES没确认的字节,一个请求堆在内存里的结果有上限,也不影响别的请求
+ * 约定4: 回复还没收完的请求都可以cancel,包括已经拿到迭代器的流式结果,之后的帧直接丢掉;get带超时的超时了不影响之后再get
+ * 约定3: 同步接口和OrderSystem一致,出错抛RuntimeException;连接断开后所有在途请求都以失败结束
+ */
+public class QueryClient implements OrderSystem, Closeable {
+
+    static class Frame{
+        final byte status;
+        final byte[] body;
+
+        Frame(byte status, byte[] body){
+            this.status = status;
+            this.body = body;
+        }
+    }
+
+    private final Socket socket;
+    private final DataOutputStream out;
+    private final DataInputStream in;
+    private final Thread reader;
+    private final AtomicInteger nextId = new AtomicInteger(0);
+    private final ConcurrentHashMap<Integer,Call<?>> calls = new ConcurrentHashMap<Integer, Call<?>>();
+    private volatile boolean dirty = false; //有没flush的请求
+    private volatile IOException failure = null;
+
+    public QueryClient(String host, int port)throws IOException{
+        this.socket = new Socket();
+        socket.setTcpNoDelay(true);
+        socket.connect(new InetSocketAddress(host, port));
+        this.out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream(), 64 * 1024));
+        this.in = new DataInputStream(new BufferedInputStream(socket.getInputStream(), 64 * 1024));
+        this.reader = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                readLoop();
+            }
+        }, "query-client-reader");
+        reader.setDaemon(true);
+        reader.start();
+    }
+
+    //一个请求的回复,按帧解码;get时没发出去的请求先flush
+    public abstract class Call<V> implements Future<V>{
+        final int id;
+        final LinkedBlockingQueue<Frame> frames = new LinkedBlockingQueue<Frame>();
+        private volatile boolean timed = false; //get带超时的时候,等帧最多等到deadline
+        private volatile long deadline;
+        private volatile boolean cancelled = false;
+        private volatile boolean done = false;
+        private V value;
+        private ExecutionException error;
+
+        Call(){
+            this.id = nextId.incrementAndGet();
+        }
+
+        abstract V decode()throws IOException;
+
+        //ERROR帧转成异常;MORE帧取走就给服务端回ACK;超时了抛FrameTimeout,帧没有被取走
+        Frame nextFrame()throws IOException{
+            if(dirty) flush();
+            Frame frame;
+            try {
+                if(timed){
+                    frame = frames.poll(deadline - System.nanoTime(), TimeUnit.NANOSECONDS);
+                    if(frame == null) throw new FrameTimeout();
+                }else {
+                    frame = frames.take();
+                }
+            }catch (InterruptedException e){
+                Thread.currentThread().interrupt();
+                throw new IOException("interrupted");
+            }
+            if(frame.status == Protocol.ERROR){
+                throw new IOException(new DataInputStream(new ByteArrayInputStream(frame.body)).readUTF());
+            }
+            if(frame.status == Protocol.MORE) control(Protocol.ACK, id, frame.body.length);
+            return frame;
+        }
+
+        @Override
+        public synchronized V get() throws InterruptedException, ExecutionException {
+            if(cancelled) throw new CancellationException();
+            if(!done){
+                try {
+                    value = decode();
+                }catch (IOException e){
+                    error = new ExecutionException(e);
+                }
+                done = true;
+            }
+            if(cancelled) throw new CancellationException();
+            if(error != null) throw error;
+            return value;
+        }
+
+        //超时的时候已经解码的部分留在call里,下次get接着解码
+        @Override
+        public synchronized V get(long timeout, TimeUnit unit) throws InterruptedException, ExecutionException, TimeoutException {
+            if(!done && !cancelled){
+                deadline = System.nanoTime() + unit.toNanos(timeout);
+                timed = true;
+                try {
+                    value = decode();
+                }catch (FrameTimeout e){
+                    throw new TimeoutException("no reply in " + timeout + " " + unit);
+                }catch (IOException e){
+                    error = new ExecutionException(e);
+                }finally {
+                    timed = false;
+                }
+                done = true;
+            }
+            return get();
+        }
+
+        //回复收完之前都能取消,和读线程谁先从calls里拿掉谁算数
+        @Override
+        public boolean cancel(boolean mayInterruptIfRunning) {
+            if(calls.remove(id) == null) return false;
+            cancelled = true;
+            frames.clear();
+            frames.add(errorFrame("cancelled"));
+            try {
+                control(Protocol.CANCEL, id, 0);
+            }catch (IOException e){
+                //连接断了,服务端也不会再发
+            }
+            return true;
+        }
+
+        @Override
+        public boolean isCancelled() {
+            return cancelled;
+        }
+
+        @Override
+        public boolean isDone() {
+            return done || cancelled || !frames.isEmpty();
+        }
+    }
+
+    //get带超时的时候等帧超时
+    static class FrameTimeout extends IOException{
+    }
+
+    //结果帧边读边解码
+    class ResultIterator implements Iterator<Result>{
+        private final Call<?> call;
+        private DataInputStream frameIn;
+        private int left = 0;
+        private boolean last = false;
+        private boolean ready = false; //next已经读好,批量查询里next可以是null
+        private Result next;
+
+        ResultIterator(Call<?> call){
+            this.call = call;
+        }
+
+        @Override
+        public boolean hasNext() {
+            if(ready) return true;
+            try {
+                while (left == 0){
+                    if(last) return false;
+                    Frame frame = call.nextFrame();
+                    last = frame.status == Protocol.OK;
+                    frameIn = new DataInputStream(new ByteArrayInputStream(frame.body));
+                    left = frameIn.readInt();
+                }
+                left--;
+                next = Protocol.readResult(frameIn);
+                ready = true;
+                return true;
+            }catch (IOException e){
+                throw new RuntimeException(e);
+            }
+        }
+
+        @Override
+        public Result next() {
+            if(!hasNext()) throw new NoSuchElementException();
+            ready = false;
+            return next;
+        }
+
+        @Override
+        public void remove() {
+            throw new UnsupportedOperationException();
+        }
+    }
+
+    // ---------------- 异步接口 ----------------
+
+    public Call<Result> queryOrderAsync(long orderId, Collection<String> keys)throws IOException{
+        Call<Result> call = new Call<Result>() {
+            @Override
+            Result decode() throws IOException {
+                return Protocol.readResult(new DataInputStream(new ByteArrayInputStream(nextFrame().body)));
+            }
+        };
+        Protocol.FrameOut frame = new Protocol.FrameOut(call.id, Protocol.QUERY_ORDER);
+        frame.out.writeLong(orderId);
+        Protocol.writeKeys(frame.out, keys);
+        return send(call, frame);
+    }
+
+    //一个请求查多个订单,结果和orderIds一一对应,不存在的是null
+    public Call<List<Result>> queryOrdersAsync(long[] orderIds, Collection<String> keys)throws IOException{
+        final int num = orderIds.length;
+        final Call<List<Result>> call = new Call<List<Result>>() {
+            //get超时之后接着用
+            final List<Result> results = new ArrayList<Result>(num);
+            final Iterator<Result> iterator = new ResultIterator(this);
+
+            @Override
+            List<Result> decode() throws IOException {
+                try {
+                    while (iterator.hasNext()){
+                        results.add(iterator.next());
+                    }
+                }catch (RuntimeException e){
+                    if(e.getCause() instanceof IOException) throw (IOException) e.getCause();
+                    throw e;
+                }
+                return results;
+            }
+        };
+        Protocol.FrameOut frame = new Protocol.FrameOut(call.id, Protocol.QUERY_ORDERS);
+        frame.out.writeInt(num);
+        for (long orderId : orderIds){
+            frame.out.writeLong(orderId);
+        }
+        Protocol.writeKeys(frame.out, keys);
+        return send(call, frame);
+    }
+
+    public Call<Iterator<Result>> queryOrdersByBuyerAsync(long startTime, long endTime, String buyerid)throws IOException{
+        Call<Iterator<Result>> call = streamCall();
+        Protocol.FrameOut frame = new Protocol.FrameOut(call.id, Protocol.QUERY_BUYER);
+        frame.out.writeLong(startTime);
+        frame.out.writeLong(endTime);
+        frame.out.writeUTF(buyerid);
+        return send(call, frame);
+    }
+
+    public Call<Iterator<Result>> queryOrdersBySalerAsync(String salerid, String goodid, Collection<String> keys)throws IOException{
+        Call<Iterator<Result>> call = streamCall();
+        Protocol.FrameOut frame = new Protocol.FrameOut(call.id, Protocol.QUERY_SALER);
+        frame.out.writeUTF(salerid);
+        frame.out.writeUTF(goodid);
+        Protocol.writeKeys(frame.out, keys);
+        return send(call, frame);
+    }
+
+    public Call<KeyValue> sumOrdersByGoodAsync(String goodid, String key)throws IOException{
+        Call<KeyValue> call = new Call<KeyValue>() {
+            @Override
+            KeyValue decode() throws IOException {
+                DataInputStream frameIn = new DataInputStream(new ByteArrayInputStream(nextFrame().body));
+                if(frameIn.readByte() == 0) return null;
+                return new BaseKeyValue(frameIn.readUTF(), frameIn.readUTF());
+            }
+        };
+        Protocol.FrameOut frame = new Protocol.FrameOut(call.id, Protocol.SUM_GOOD);
+        frame.out.writeUTF(goodid);
+        frame.out.writeUTF(key);
+        return send(call, frame);
+    }
+
+    //迭代器在第一帧到了之后就返回
+    private Call<Iterator<Result>> streamCall(){
+        return new Call<Iterator<Result>>() {
+            @Override
+            Iterator<Result> decode() throws IOException {
+                ResultIterator iterator = new ResultIterator(this);
+                try {
+                    iterator.hasNext();
+                }catch (RuntimeException e){
+                    if(e.getCause() instanceof IOException) throw (IOException) e.getCause();
+                    throw e;
+                }
+                return iterator;
+            }
+        };
+    }
+
+    private <V> Call<V> send(Call<V> call, Protocol.FrameOut frame)throws IOException{
+        if(failure != null) throw failure;
+        calls.put(call.id, call);
+        synchronized (out){
+            frame.finish();
+            frame.writeTo(out);
+            dirty = true;
+        }
+        //reader线程在注册之前已经失败了,这个请求不会有回复
+        if(failure != null && calls.remove(call.id) != null) throw failure;
+        return call;
+    }
+
+    //控制帧立即发出去,顺带把没flush的请求也发了
+    private void control(byte op, int requestId, int value)throws IOException{
+        Protocol.FrameOut frame = new Protocol.FrameOut(requestId, op);
+        frame.out.writeInt(value);
+        synchronized (out){
+            frame.finish();
+            frame.writeTo(out);
+            dirty = false;
+            out.flush();
+        }
+    }
+
+    public void flush()throws IOException{
+        synchronized (out){
+            if(!dirty) return;
+            dirty = false;
+            out.flush();
+        }
+    }
+
+    private void readLoop(){
+        try {
+            while (true){
+                int len = in.readInt();
+                int requestId = in.readInt();
+                byte status = in.readByte();
+                byte[] body = new byte[len - (Protocol.HEADER_LEN - 4)];
+                in.readFully(body);
+                //最后一帧到了请求就结束了;取消了的请求找不到,帧直接丢掉
+                Call<?> call = status == Protocol.MORE ? calls.get(requestId) : calls.remove(requestId);
+                if(call != null) call.frames.add(new Frame(status, body));
+            }
+        }catch (IOException e){
+            failure = e instanceof EOFException ? new IOException("connection closed") : e;
+        }
+        //在途请求都以失败结束
+        for (Call<?> call : calls.values()){
+            call.frames.add(errorFrame(String.valueOf(failure)));
+        }
+        calls.clear();
+    }
+
+    private static Frame errorFrame(String message){
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try {
+            new DataOutputStream(bytes).writeUTF(message);
+        }catch (IOException e){
+            //ignore
+        }
+        return new Frame(Protocol.ERROR, bytes.toByteArray());
+    }
+
+    @Override
+    public void close()throws IOException{
+        socket.close();
+    }
+
+    // ---------------- 同步接口 ----------------
+
+    @Override
+    public void construct(Collection<String> orderFiles, Collection<String> buyerFiles, Collection<String> goodFiles,
+                          Collection<String> storeFolders) throws IOException, InterruptedException {
+        throw new UnsupportedOperationException("construct on the server side");
+    }
+
+    @Override
+    public Result queryOrder(long orderId, Collection<String> keys) {
+        try {
+            return queryOrderAsync(orderId, keys).get();
+        }catch (Exception e){
+            throw new RuntimeException(e);
+        }
+    }
+
+    public List<Result> queryOrders(long[] orderIds, Collection<String> keys){
+        try {
+            return queryOrdersAsync(orderIds, keys).get();
+        }catch (Exception e){
+            throw new RuntimeException(e);
+        }
+    }
+
+    @Override
+    public Iterator<Result> queryOrdersByBuyer(long startTime, long endTime, String buyerid) {
+        try {
+            return queryOrdersByBuyerAsync(startTime, endTime, buyerid).get();
+        }catch (Exception e){
+            throw new RuntimeException(e);
+        }
+    }
+
+    @Override
+    public Iterator<Result> queryOrdersBySaler(String salerid, String goodid, Collection<String> keys) {
+        try {
+            return queryOrdersBySalerAsync(salerid, goodid, keys).get();
+        }catch (Exception e){
+            throw new RuntimeException(e);
+        }
+    }
+
+    @Override
+    public KeyValue sumOrdersByGood(String goodid, String key) {
+        try {
+            return sumOrdersByGoodAsync(goodid, key).get();
+        }catch (Exception e){
+            throw new RuntimeException(e);
+        }
+    }
+}
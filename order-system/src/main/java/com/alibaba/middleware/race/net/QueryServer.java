@@ -0,0 +1,506 @@
+package com.alibaba.middleware.race.net;
+
+import com.alibaba.middleware.race.OrderSystem;
+import com.alibaba.middleware.race.OrderSystem.KeyValue;
+import com.alibaba.middleware.race.OrderSystem.Result;
+import com.alibaba.middleware.race.OrderSystemImpl;
+import com.alibaba.middleware.race.store.StoreConfig;
+import com.alibaba.middleware.race.util.PrintUtil;
+
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Created by liuzhendong on 16/8/5.
+ * OrderSystem的网络服务,协议见Protocol
+ * 约定1: 少量io线程各跑一个selector,只做收发和拆帧;查询交给查询线程池,查询线程把回复帧放进连接的发送队列,由io线程一次写出
+ * 约定2: 一个连接在途的请求数到了SERVER_MAX_IN_FLIGHT就先不读这个连接,处理完再读,靠TCP窗口把压力传回客户端
+ * 约定3: 范围查询的结果每SERVER_RESULTS_PER_FRAME条发一帧;连接待发送的字节数超过SERVER_MAX_PENDING_BYTES,查询线程等着发完再继续
+ * 约定4: 查询出错回ERROR帧,连接不断;帧长度不合法直接断开连接
+ * 约定5: 流式结果按请求做流控,没确认的字节数到了STREAM_WINDOW_BYTES查询线程就等ACK,等的时候不算在途请求,不会因为在途满了读不到ACK;
+ *        ACK和CANCEL在io线程里直接处理;超过SERVER_STREAM_ACK_TIMEOUT_MS没有确认就回ERROR结束这个请求,查询线程不会被扔掉的结果一直占着
+ */
+public class QueryServer {
+
+    private final OrderSystem system;
+    private final ServerSocketChannel serverChannel;
+    private final IoLoop[] loops;
+    private final ExecutorService workers;
+    private final AtomicInteger nextLoop = new AtomicInteger(0);
+    private volatile boolean running = true;
+
+    public QueryServer(OrderSystem system, int port)throws IOException{
+        this(system, new InetSocketAddress("127.0.0.1", port), StoreConfig.SERVER_IO_THREAD_NUM, StoreConfig.SERVER_WORKER_THREAD_NUM);
+    }
+
+    public QueryServer(OrderSystem system, InetSocketAddress address, int ioThreadNum, int workerThreadNum)throws IOException{
+        this.system = system;
+        this.serverChannel = ServerSocketChannel.open();
+        serverChannel.socket().setReuseAddress(true);
+        serverChannel.socket().bind(address);
+        serverChannel.configureBlocking(false);
+        final AtomicInteger threadId = new AtomicInteger(0);
+        this.workers = Executors.newFixedThreadPool(workerThreadNum, new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "query-worker-" + threadId.getAndIncrement());
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        this.loops = new IoLoop[ioThreadNum];
+        for (int i = 0; i < loops.length; i++) {
+            loops[i] = new IoLoop("query-io-" + i);
+        }
+        //第一个io线程兼管accept
+        serverChannel.register(loops[0].selector, SelectionKey.OP_ACCEPT);
+        for (IoLoop loop : loops){
+            loop.thread.start();
+        }
+        PrintUtil.print("query server listen on %s io:%d worker:%d", serverChannel.socket().getLocalSocketAddress(), ioThreadNum, workerThreadNum);
+    }
+
+    //绑定0端口时实际的端口
+    public int getPort(){
+        return serverChannel.socket().getLocalPort();
+    }
+
+    public void shutdown(){
+        running = false;
+        for (IoLoop loop : loops){
+            loop.selector.wakeup();
+        }
+        for (IoLoop loop : loops){
+            try {
+                loop.thread.join();
+            }catch (InterruptedException e){
+                Thread.currentThread().interrupt();
+            }
+        }
+        workers.shutdown();
+        try {
+            serverChannel.close();
+        }catch (IOException e){
+            //ignore
+        }
+    }
+
+    class Connection{
+        final SocketChannel channel;
+        final IoLoop loop;
+        SelectionKey key;
+        ByteBuffer readBuff = ByteBuffer.allocate(StoreConfig.SERVER_READ_BUFF_LEN);
+        //以下由this保护
+        final ArrayDeque<ByteBuffer> outQueue = new ArrayDeque<ByteBuffer>();
+        long pendingBytes = 0;
+        boolean writeScheduled = false;
+        int inFlight = 0;
+        boolean readPaused = false;
+        boolean closed = false;
+        final Map<Integer,StreamState> streams = new HashMap<Integer, StreamState>(); //在途请求的流控状态
+
+        Connection(SocketChannel channel, IoLoop loop){
+            this.channel = channel;
+            this.loop = loop;
+        }
+
+        //查询线程调用,发送队列太长就等
+        void send(ByteBuffer frame)throws IOException{
+            boolean schedule = false;
+            synchronized (this){
+                while (pendingBytes > StoreConfig.SERVER_MAX_PENDING_BYTES && !closed){
+                    try {
+                        wait();
+                    }catch (InterruptedException e){
+                        Thread.currentThread().interrupt();
+                        throw new IOException("interrupted");
+                    }
+                }
+                if(closed) throw new IOException("connection closed");
+                outQueue.add(frame);
+                pendingBytes += frame.remaining();
+                if(!writeScheduled){
+                    writeScheduled = true;
+                    schedule = true;
+                }
+            }
+            if(schedule){
+                loop.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        if(key.isValid()) key.interestOps(key.interestOps() | SelectionKey.OP_WRITE);
+                    }
+                });
+            }
+        }
+
+        void requestDone(){
+            boolean resume = false;
+            synchronized (this){
+                inFlight--;
+                if(readPaused && inFlight < StoreConfig.SERVER_MAX_IN_FLIGHT){
+                    readPaused = false;
+                    resume = true;
+                }
+            }
+            if(resume){
+                loop.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        if(!key.isValid()) return;
+                        key.interestOps(key.interestOps() | SelectionKey.OP_READ);
+                        //暂停时缓冲区里可能已经有完整的帧
+                        try {
+                            dispatch(Connection.this);
+                        }catch (IOException e){
+                            close(Connection.this);
+                        }
+                    }
+                });
+            }
+        }
+    }
+
+    //一个在途请求的流控状态,由所在的Connection保护
+    static class StreamState{
+        long unacked = 0;
+        boolean cancelled = false;
+    }
+
+    class IoLoop implements Runnable{
+        final Selector selector;
+        final Thread thread;
+        final ConcurrentLinkedQueue<Runnable> tasks = new ConcurrentLinkedQueue<Runnable>();
+
+        IoLoop(String name)throws IOException{
+            this.selector = Selector.open();
+            this.thread = new Thread(this, name);
+            thread.setDaemon(true);
+        }
+
+        //别的线程要改selector上的东西,都放到io线程里做
+        void execute(Runnable task){
+            tasks.add(task);
+            selector.wakeup();
+        }
+
+        @Override
+        public void run() {
+            while (running){
+                try {
+                    selector.select();
+                    Runnable task;
+                    while ((task = tasks.poll()) != null){
+                        task.run();
+                    }
+                    Iterator<SelectionKey> iterator = selector.selectedKeys().iterator();
+                    while (iterator.hasNext()){
+                        SelectionKey key = iterator.next();
+                        iterator.remove();
+                        handle(key);
+                    }
+                }catch (IOException e){
+                    PrintUtil.print("query server select error %s", e);
+                }
+            }
+            for (SelectionKey key : selector.keys()){
+                if(key.attachment() instanceof Connection) close((Connection) key.attachment());
+            }
+            try {
+                selector.close();
+            }catch (IOException e){
+                //ignore
+            }
+        }
+
+        private void handle(SelectionKey key){
+            if(!key.isValid()) return;
+            if(key.isAcceptable()){
+                accept();
+                return;
+            }
+            Connection conn = (Connection) key.attachment();
+            try {
+                if(key.isReadable()) read(conn);
+                if(key.isValid() && key.isWritable()) write(conn);
+            }catch (IOException e){
+                close(conn);
+            }
+        }
+
+        private void accept(){
+            try {
+                SocketChannel channel;
+                while ((channel = serverChannel.accept()) != null){
+                    channel.configureBlocking(false);
+                    channel.socket().setTcpNoDelay(true);
+                    final IoLoop loop = loops[(nextLoop.getAndIncrement() & Integer.MAX_VALUE) % loops.length];
+                    final Connection conn = new Connection(channel, loop);
+                    loop.execute(new Runnable() {
+                        @Override
+                        public void run() {
+                            try {
+                                conn.key = conn.channel.register(loop.selector, SelectionKey.OP_READ, conn);
+                            }catch (IOException e){
+                                close(conn);
+                            }
+                        }
+                    });
+                }
+            }catch (IOException e){
+                PrintUtil.print("query server accept error %s", e);
+            }
+        }
+    }
+
+    private void read(Connection conn)throws IOException{
+        int readNum = conn.channel.read(conn.readBuff);
+        if(readNum < 0) throw new IOException("closed by peer");
+        dispatch(conn);
+    }
+
+    //拆出缓冲区里所有完整的帧交给查询线程,在途请求太多就停下来
+    private void dispatch(Connection conn)throws IOException{
+        ByteBuffer buff = conn.readBuff;
+        buff.flip();
+        try {
+            while (buff.remaining() >= 4){
+                int len = buff.getInt(buff.position());
+                if(len < Protocol.HEADER_LEN - 4 || len > StoreConfig.SERVER_MAX_FRAME_BYTES) throw new IOException("bad frame length " + len);
+                if(buff.remaining() < 4 + len){
+                    if(buff.capacity() < 4 + len){
+                        ByteBuffer bigger = ByteBuffer.allocate(4 + len);
+                        bigger.put(buff);
+                        conn.readBuff = buff = bigger;
+                        buff.flip();
+                    }
+                    break;
+                }
+                byte op = buff.get(buff.position() + 8);
+                boolean control = op == Protocol.ACK || op == Protocol.CANCEL;
+                if(!control){
+                    synchronized (conn){
+                        if(conn.inFlight >= StoreConfig.SERVER_MAX_IN_FLIGHT){
+                            conn.readPaused = true;
+                            conn.key.interestOps(conn.key.interestOps() & ~SelectionKey.OP_READ);
+                            break;
+                        }
+                        conn.inFlight++;
+                    }
+                }
+                buff.getInt();
+                int requestId = buff.getInt();
+                buff.get();
+                byte[] body = new byte[len - (Protocol.HEADER_LEN - 4)];
+                buff.get(body);
+                if(control){
+                    control(conn, requestId, op, body);
+                }else {
+                    synchronized (conn){
+                        conn.streams.put(requestId, new StreamState());
+                    }
+                    submit(conn, requestId, op, body);
+                }
+            }
+        }finally {
+            buff.compact();
+        }
+    }
+
+    private void write(Connection conn)throws IOException{
+        synchronized (conn){
+            ByteBuffer[] buffs = conn.outQueue.toArray(new ByteBuffer[conn.outQueue.size()]);
+            long written = conn.channel.write(buffs);
+            conn.pendingBytes -= written;
+            while (!conn.outQueue.isEmpty() && !conn.outQueue.peek().hasRemaining()){
+                conn.outQueue.poll();
+            }
+            if(conn.outQueue.isEmpty()){
+                conn.writeScheduled = false;
+                conn.key.interestOps(conn.key.interestOps() & ~SelectionKey.OP_WRITE);
+            }
+            conn.notifyAll();
+        }
+    }
+
+    //已经结束的请求的ACK、CANCEL直接忽略
+    private void control(Connection conn, int requestId, byte op, byte[] body)throws IOException{
+        synchronized (conn){
+            StreamState state = conn.streams.get(requestId);
+            if(state == null) return;
+            if(op == Protocol.ACK){
+                state.unacked -= new DataInputStream(new ByteArrayInputStream(body)).readInt();
+            }else {
+                state.cancelled = true;
+            }
+            conn.notifyAll();
+        }
+    }
+
+    //等到窗口有空余,返回false表示请求已经取消;等的时候不算在途请求
+    private boolean awaitWindow(Connection conn, StreamState state)throws IOException{
+        synchronized (conn){
+            if(state.cancelled) return false;
+            if(state.unacked < StoreConfig.STREAM_WINDOW_BYTES) return true;
+        }
+        conn.requestDone();
+        try {
+            synchronized (conn){
+                long deadline = System.currentTimeMillis() + StoreConfig.SERVER_STREAM_ACK_TIMEOUT_MS;
+                while (state.unacked >= StoreConfig.STREAM_WINDOW_BYTES && !state.cancelled && !conn.closed){
+                    long left = deadline - System.currentTimeMillis();
+                    if(left <= 0) throw new IOException("stream not consumed in " + StoreConfig.SERVER_STREAM_ACK_TIMEOUT_MS + " ms");
+                    conn.wait(left);
+                }
+                if(conn.closed) throw new IOException("connection closed");
+                return !state.cancelled;
+            }
+        }catch (InterruptedException e){
+            Thread.currentThread().interrupt();
+            throw new IOException("interrupted");
+        }finally {
+            synchronized (conn){
+                conn.inFlight++;
+            }
+        }
+    }
+
+    private void close(Connection conn){
+        synchronized (conn){
+            conn.closed = true;
+            conn.outQueue.clear();
+            conn.notifyAll();
+        }
+        if(conn.key != null) conn.key.cancel();
+        try {
+            conn.channel.close();
+        }catch (IOException e){
+            //ignore
+        }
+    }
+
+    private void submit(final Connection conn, final int requestId, final byte op, final byte[] body){
+        try {
+            workers.execute(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        process(conn, requestId, op, new DataInputStream(new ByteArrayInputStream(body)));
+                    }catch (Exception e){
+                        sendError(conn, requestId, e);
+                    }finally {
+                        synchronized (conn){
+                            conn.streams.remove(requestId);
+                        }
+                        conn.requestDone();
+                    }
+                }
+            });
+        }catch (RejectedExecutionException e){
+            sendError(conn, requestId, e);
+            synchronized (conn){
+                conn.streams.remove(requestId);
+            }
+            conn.requestDone();
+        }
+    }
+
+    private void sendError(Connection conn, int requestId, Exception e){
+        try {
+            Protocol.FrameOut frame = new Protocol.FrameOut(requestId, Protocol.ERROR);
+            frame.out.writeUTF(String.valueOf(e));
+            conn.send(frame.finish());
+        }catch (IOException ioe){
+            //连接已经断了
+        }
+    }
+
+    private void process(Connection conn, int requestId, byte op, DataInputStream in)throws IOException{
+        Protocol.FrameOut frame = new Protocol.FrameOut(requestId, Protocol.OK);
+        switch (op){
+            case Protocol.QUERY_ORDER: {
+                long orderId = in.readLong();
+                Protocol.writeResult(frame.out, system.queryOrder(orderId, Protocol.readKeys(in)));
+                break;
+            }
+            case Protocol.QUERY_ORDERS: {
+                long[] orderIds = new long[in.readInt()];
+                for (int i = 0; i < orderIds.length; i++) {
+                    orderIds[i] = in.readLong();
+                }
+                List<String> keys = Protocol.readKeys(in);
+                List<Result> results;
+                if(system instanceof OrderSystemImpl){
+                    results = ((OrderSystemImpl) system).queryOrders(orderIds, keys);
+                }else {
+                    results = new ArrayList<Result>(orderIds.length);
+                    for (long orderId : orderIds){
+                        results.add(system.queryOrder(orderId, keys));
+                    }
+                }
+                stream(conn, requestId, frame, results.iterator());
+                return;
+            }
+            case Protocol.QUERY_BUYER: {
+                long startTime = in.readLong();
+                long endTime = in.readLong();
+                stream(conn, requestId, frame, system.queryOrdersByBuyer(startTime, endTime, in.readUTF()));
+                return;
+            }
+            case Protocol.QUERY_SALER: {
+                String salerId = in.readUTF();
+                String goodId = in.readUTF();
+                stream(conn, requestId, frame, system.queryOrdersBySaler(salerId, goodId, Protocol.readKeys(in)));
+                return;
+            }
+            case Protocol.SUM_GOOD: {
+                String goodId = in.readUTF();
+                KeyValue kv = system.sumOrdersByGood(goodId, in.readUTF());
+                frame.out.writeByte(kv == null ? 0 : 1);
+                if(kv != null){
+                    frame.out.writeUTF(kv.key());
+                    frame.out.writeUTF(kv.valueAsString());
+                }
+                break;
+            }
+            default:
+                throw new IOException("unknown op " + op);
+        }
+        conn.send(frame.finish());
+    }
+
+    //每帧: 条数(int) 结果...,最后一帧状态是OK,条数可以是0;取消了就不再发
+    private void stream(Connection conn, int requestId, Protocol.FrameOut frame, Iterator<Result> results)throws IOException{
+        ArrayList<Result> batch = new ArrayList<Result>(StoreConfig.SERVER_RESULTS_PER_FRAME);
+        StreamState state;
+        synchronized (conn){
+            state = conn.streams.get(requestId);
+        }
+        while (true){
+            if(!awaitWindow(conn, state)) return;
+            batch.clear();
+            while (results.hasNext() && batch.size() < StoreConfig.SERVER_RESULTS_PER_FRAME){
+                batch.add(results.next());
+            }
+            boolean last = !results.hasNext();
+            frame.setCode(last ? Protocol.OK : Protocol.MORE);
+            frame.out.writeInt(batch.size());
+            for (Result result : batch){
+                Protocol.writeResult(frame.out, result);
+            }
+            synchronized (conn){
+                state.unacked += frame.bodyLen();
+            }
+            conn.send(frame.finish());
+            if(last) return;
+            frame = new Protocol.FrameOut(requestId, Protocol.MORE);
+        }
+    }
+}
@@ -0,0 +1,170 @@
+package com.alibaba.middleware.race.store;
+
+import com.alibaba.middleware.race.util.PrintUtil;
+
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Created by liuzhendong on 16/8/5.
+ * 采样的访问记录,记下哪些B树叶子、哪些原始记录区间被读得多,下次启动时用来预热
+ * 约定1: 每个线程每ACCESS_LOG_SAMPLE_RATE次访问记一次,计数各线程自己的,不共享;原始记录按ACCESS_LOG_REGION_SIZE对齐成区间,条目数有上限,满了不再加新的
+ * 约定2: 后台线程定期写到storeFolders的第一个目录下,先写临时文件再改名,格式每行: 类型 次数 路径 起始 结束
+ * 约定3: 启动时读回上次的记录,次数减半后接着累计,越久没访问的越靠后
+ * 约定4: 只有采样到的访问才更新最近访问时间,预热线程据此判断有没有在线查询,在线查询时采样足够密
+ */
+public class AccessLog {
+
+    public static final char LEAF = 'L';   //B树叶子,[start,end)是叶子在索引文件中的位置
+    public static final char REGION = 'R'; //原始记录区间
+
+    public static class Entry{
+        public final char kind;
+        public final String path;
+        public final long start;
+        public final long end;
+        public int count;
+
+        public Entry(char kind, String path, long start, long end, int count){
+            this.kind = kind;
+            this.path = path;
+            this.start = start;
+            this.end = end;
+            this.count = count;
+        }
+
+        String key(){
+            return kind + "\t" + path + "\t" + start + "\t" + end;
+        }
+    }
+
+    //每个线程自己的访问计数,不争同一个计数器
+    private static final ThreadLocal<int[]> accessNums = new ThreadLocal<int[]>(){
+        @Override
+        protected int[] initialValue() {
+            return new int[1];
+        }
+    };
+    private static volatile long lastAccessTime = 0;
+    private static final ConcurrentHashMap<String,Entry> entries = new ConcurrentHashMap<String, Entry>();
+    private static final AtomicInteger entryNum = new AtomicInteger(0);
+    private static volatile String saveFile;
+    private static Thread saver;
+
+    public static void leaf(String path, long start, long end){
+        if(!sampled()) return;
+        add(new Entry(LEAF, path, start, end, 1));
+    }
+
+    public static void region(String path, long pos){
+        if(!sampled()) return;
+        long start = pos - pos % StoreConfig.ACCESS_LOG_REGION_SIZE;
+        add(new Entry(REGION, path, start, start + StoreConfig.ACCESS_LOG_REGION_SIZE, 1));
+    }
+
+    //采样到的访问才去读时钟、写volatile
+    private static boolean sampled(){
+        int[] accessNum = accessNums.get();
+        if(++accessNum[0] < StoreConfig.ACCESS_LOG_SAMPLE_RATE) return false;
+        accessNum[0] = 0;
+        lastAccessTime = System.currentTimeMillis();
+        return true;
+    }
+
+    public static long lastAccessTime(){
+        return lastAccessTime;
+    }
+
+    private static void add(Entry entry){
+        String key = entry.key();
+        Entry old = entries.get(key);
+        if(old == null){
+            if(entryNum.get() >= StoreConfig.ACCESS_LOG_MAX_ENTRIES) return;
+            old = entries.putIfAbsent(key, entry);
+            if(old == null){
+                entryNum.incrementAndGet();
+                return;
+            }
+        }
+        synchronized (old){
+            old.count += entry.count;
+        }
+    }
+
+    //按次数从多到少
+    public static List<Entry> snapshot(){
+        List<Entry> result = new ArrayList<Entry>(entries.values());
+        Collections.sort(result, new Comparator<Entry>() {
+            @Override
+            public int compare(Entry o1, Entry o2) {
+                return o1.count > o2.count ? -1 : (o1.count == o2.count ? 0 : 1);
+            }
+        });
+        return result;
+    }
+
+    public static void save(String file)throws IOException{
+        File tmp = new File(file + ".tmp");
+        PrintWriter writer = new PrintWriter(new OutputStreamWriter(new FileOutputStream(tmp), "UTF-8"));
+        try {
+            for (Entry entry : snapshot()){
+                writer.print(entry.kind + "\t" + entry.count + "\t" + entry.path + "\t" + entry.start + "\t" + entry.end + "\n");
+            }
+        }finally {
+            writer.close();
+        }
+        if(!tmp.renameTo(new File(file))) throw new IOException("rename access log failed " + file);
+    }
+
+    //读回上次的记录,次数减半后并入当前的记录,返回读到的条目,按次数从多到少;文件不存在或者坏了返回空
+    public static List<Entry> load(String file){
+        List<Entry> result = new ArrayList<Entry>();
+        if(!new File(file).exists()) return result;
+        try {
+            BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(file), "UTF-8"));
+            try {
+                String line;
+                while ((line = reader.readLine()) != null){
+                    String[] splits = line.split("\t");
+                    if(splits.length != 5 || splits[0].length() != 1) continue;
+                    result.add(new Entry(splits[0].charAt(0), splits[2], Long.valueOf(splits[3]), Long.valueOf(splits[4]), Integer.valueOf(splits[1])));
+                }
+            }finally {
+                reader.close();
+            }
+        }catch (Exception e){
+            PrintUtil.print("load access log failed %s %s", file, e.getMessage());
+            return new ArrayList<Entry>();
+        }
+        for (Entry entry : result){
+            if(entry.count / 2 > 0) add(new Entry(entry.kind, entry.path, entry.start, entry.end, entry.count / 2));
+        }
+        PrintUtil.print("load access log %s entries:%d", file, result.size());
+        return result;
+    }
+
+    //后台定期保存,只起一个线程,多次调用只换保存的文件
+    public static synchronized void startSaving(String file){
+        saveFile = file;
+        if(saver != null) return;
+        saver = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                while (true){
+                    try {
+                        Thread.sleep(StoreConfig.ACCESS_LOG_SAVE_INTERVAL_MS);
+                        if(entryNum.get() > 0) save(saveFile);
+                    }catch (InterruptedException e){
+                        return;
+                    }catch (IOException e){
+                        PrintUtil.print("save access log failed %s %s", saveFile, e.getMessage());
+                    }
+                }
+            }
+        }, "access-log-saver");
+        saver.setDaemon(true);
+        saver.start();
+    }
+}
@@ -0,0 +1,125 @@
+package com.alibaba.middleware.race.store;
+
+import com.alibaba.middleware.race.util.PrintUtil;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Created by liuzhendong on 16/8/5.
+ * 后台刷盘线程,每块磁盘一个
+ * 解析线程把写满的buff丢进来就继续解析,这里攒一批后按文件和位置排序再顺序写入,写完把buff还给对应的WriteBuffPool
+ */
+public class AsyncFlusher {
+
+    static class FlushTask{
+        String path;
+        FileChannel fileChannel;
+        ByteBuffer buff;
+        long pos;
+        WriteBuffPool buffPool;
+        public FlushTask(String path, FileChannel fileChannel, ByteBuffer buff, long pos, WriteBuffPool buffPool){
+            this.path = path;
+            this.fileChannel = fileChannel;
+            this.buff = buff;
+            this.pos = pos;
+            this.buffPool = buffPool;
+        }
+    }
+
+    private static final FlushTask STOP = new FlushTask(null, null, null, 0, null);
+    private static final Comparator<FlushTask> TASK_ORDER = new Comparator<FlushTask>() {
+        @Override
+        public int compare(FlushTask o1, FlushTask o2) {
+            int res = o1.path.compareTo(o2.path);
+            if(res != 0) return res;
+            return o1.pos < o2.pos ? -1 : (o1.pos == o2.pos ? 0 : 1);
+        }
+    };
+
+    public final String name;
+    private final LinkedBlockingQueue<FlushTask> taskQueue = new LinkedBlockingQueue<FlushTask>();
+    private final AtomicInteger pendingNum = new AtomicInteger(0);
+    private volatile IOException error;
+    private Thread thread;
+
+    public AsyncFlusher(String name){
+        this.name = name;
+    }
+
+    public AsyncFlusher start(){
+        thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                loop();
+            }
+        }, "flusher-" + name);
+        thread.setDaemon(true);
+        thread.start();
+        return this;
+    }
+
+    //buff需要已经flip过, 写完之后会归还给buffPool
+    public void submit(String path, FileChannel fileChannel, ByteBuffer buff, long pos, WriteBuffPool buffPool){
+        pendingNum.incrementAndGet();
+        taskQueue.add(new FlushTask(path, fileChannel, buff, pos, buffPool));
+    }
+
+    private void loop(){
+        List<FlushTask> batch = new ArrayList<FlushTask>(64);
+        while (true){
+            try {
+                batch.add(taskQueue.take());
+                taskQueue.drainTo(batch, 255);
+                boolean stop = batch.remove(STOP);
+                Collections.sort(batch, TASK_ORDER);
+                for (FlushTask task : batch){
+                    try {
+                        BuildStats.written(task.path, task.buff.remaining());
+                        while (task.buff.hasRemaining()){
+                            task.pos += task.fileChannel.write(task.buff, task.pos);
+                        }
+                    }catch (IOException e){
+                        e.printStackTrace();
+                        error = e;
+                    }
+                    if(task.buffPool != null) task.buffPool.release(task.buff);
+                }
+                int done = batch.size();
+                batch.clear();
+                if(pendingNum.addAndGet(-done) == 0){
+                    synchronized (this){
+                        this.notifyAll();
+                    }
+                }
+                if(stop) return;
+            }catch (InterruptedException e){
+                PrintUtil.print("flusher %s interrupted", name);
+                return;
+            }
+        }
+    }
+
+    //等待已提交的buff全部落盘
+    public void awaitFlush()throws IOException,InterruptedException{
+        synchronized (this){
+            while (pendingNum.get() > 0){
+                this.wait(100);
+            }
+        }
+        if(error != null) throw error;
+    }
+
+    public void stop()throws IOException,InterruptedException{
+        awaitFlush();
+        taskQueue.add(STOP);
+        thread.join();
+    }
+}
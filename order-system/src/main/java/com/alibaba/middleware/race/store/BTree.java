@@ -106,6 +106,7 @@ public class BTree {
                 for (int i = 0; i < currNode.childs.size(); i++) {
                     BNode tmp = bTree.loadBnodeFromDisk((Long) currNode.childs.get(i));
                     tmp.parent = currNode;
+                    currNode.childs.set(i, tmp);
                     if(!tmp.childIsLeaf) nodeStack.push(tmp);
                 }
             }
@@ -173,7 +174,7 @@ public class BTree {
         print("getResultByKey originSize:%d index:%d",leaf.keyvalues.size(),index);
         List<byte[]> result = new ArrayList<byte[]>();
         //考虑到key会重复,所以往前往后找
-        for (int i = index; i < leaf.keyvalues.size()-1; i++) {
+        for (int i = index; i < leaf.keyvalues.size(); i++) {
             if(compare(leaf.keyvalues.get(i),key,key.length) == 0){
                 result.add(leaf.keyvalues.get(i));
             }else {
@@ -449,6 +450,57 @@ public class BTree {
 
 
 
+    //批量构建,输入必须按key有序,只能在空树上调用
+    public void bulkLoad(Iterator<byte[]> keyvalues, byte keySize, byte dataSize)throws IOException{
+        bulkLoad(keyvalues, keySize, dataSize, StoreConfig.BULK_LOAD_FILL_FACTOR);
+    }
+
+    //自底向上构建,切分和分层在BulkLoader里,这里只管节点的生成和写盘
+    public void bulkLoad(Iterator<byte[]> keyvalues, final byte keySize, final byte dataSize, float fillFactor)throws IOException{
+        if(root != null){
+            throw new RuntimeException("批量构建只能在空树上进行");
+        }
+        BNode newRoot = new BulkLoader<BNode>(keySize, dataSize) {
+            @Override
+            int compare(byte[] key1, byte[] key2, int len) {
+                return BTree.this.compare(key1, key2, len);
+            }
+
+            //有磁盘时直接写入,page是顺序分配的,脏页合并后即为顺序写
+            @Override
+            BNode leaf(List<byte[]> kvs) throws IOException {
+                BNode leaf = createLeafNode(keySize, dataSize, kvs);
+                if(pageMgr != null){
+                    flushBnodeIntoDisk(leaf);
+                }else {
+                    leafCache.put(leaf.page.getStartIndex(), leaf);
+                }
+                return leaf;
+            }
+
+            @Override
+            Object pointerOf(BNode leaf) {
+                return leaf.page.getStartIndex();
+            }
+
+            @Override
+            BNode inner(List<byte[]> keys, List<Object> childs, boolean childIsLeaf) throws IOException {
+                BNode inner = createInnerBnode(keySize, keys, childs);
+                inner.childIsLeaf = childIsLeaf;
+                if(!childIsLeaf){
+                    for (Object child : childs){
+                        ((BNode) child).parent = inner;
+                    }
+                }
+                return inner;
+            }
+        }.load(keyvalues, fillFactor);
+        if(newRoot == null) return;
+        root = newRoot;
+        //内节点常驻内存,这里只把它们和firstPage落盘
+        if(pageMgr != null) flushBTree();
+    }
+
     //磁盘交互部分
     private BNode loadBnodeFromDisk(Long pointer)throws IOException{
         if(pageMgr == null) return null;
@@ -529,6 +581,8 @@ public class BTree {
         for (BNode leaf : leafCache.values()){
             flushBnodeIntoDisk(leaf);
         }
+        //持久化屏障
+        pageMgr.sync();
     }
 
     //tools
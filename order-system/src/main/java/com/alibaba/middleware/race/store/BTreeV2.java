@@ -64,7 +64,8 @@ public class BTreeV2 {
         LEFT,MID,RIGHT;
     }
     public enum Mode{
-        WRITE,READ //要么读 要么写 读写一起实现较为复杂
+        WRITE,READ, //要么读 要么写 读写一起实现较为复杂
+        CONCURRENT_READ //只读,内节点不可变并常驻内存,叶子走并发page缓存,多个线程可以同时查
     }
     public boolean debug = false;
     //内存中的
@@ -74,6 +75,8 @@ public class BTreeV2 {
 
 
     public Map<Long,BNode>  leafNodeMap = new ConcurrentHashMap<Long, BNode>(1024*1024);
+    //并发读模式下的叶子缓存,叶子只读,每个page一个latch
+    private ConcurrentPageCache<BNode> leafPageCache;
     BlockingQueue<Long>     mergeSignQueue = new ArrayBlockingQueue<Long>(10);
 
     //B树节点,尤其是叶子节点,大部分都放在磁盘中, 这里保存映射关系,如果不停地刷新磁盘,则效率会比较低
@@ -144,6 +147,7 @@ public class BTreeV2 {
                 for (int i = 0; i < currNode.childs.size(); i++) {
                     BNode tmp = bTree.loadBnodeFromDisk((Long) currNode.childs.get(i));
                     tmp.parent = currNode;
+                    currNode.childs.set(i, tmp);
                     if(!tmp.childIsLeaf) nodeStack.push(tmp);
                 }
             }
@@ -211,7 +215,7 @@ public class BTreeV2 {
         print("getResultByKey originSize:%d index:%d",leaf.keyvalues.size(),index);
         List<byte[]> result = new ArrayList<byte[]>();
         //考虑到key会重复,所以往前往后找
-        for (int i = index; i < leaf.keyvalues.size()-1; i++) {
+        for (int i = index; i < leaf.keyvalues.size(); i++) {
             if(compare(leaf.keyvalues.get(i),key,key.length) == 0){
                 result.add(leaf.keyvalues.get(i));
             }else {
@@ -293,6 +297,14 @@ public class BTreeV2 {
 
 
     public BNode getLeafNode(long pos){
+        if(mode == Mode.CONCURRENT_READ){
+            try {
+                return leafPageCache.get(pos);
+            }catch (IOException e){
+                e.printStackTrace();
+            }
+            return null;
+        }
         if(mode == Mode.READ){
             return leafCache.get(pos);
         }else {
@@ -301,6 +313,7 @@ public class BTreeV2 {
     }
 
     public BNode putLeafNode(long pos,BNode leaf){
+        checkWritable();
         if(mode == Mode.READ){
             //TODO 做成线程安全 注意读写锁
             return leafCache.put(pos,leaf);
@@ -374,7 +387,8 @@ public class BTreeV2 {
                 continue;
             }
             BNode leaf = getLeafNode((Long) child);
-            if(leaf != null){
+            //并发读模式下叶子是共享的,不能改
+            if(leaf != null && mode != Mode.CONCURRENT_READ){
                 leaf.parent = currNode;
             }
             return leaf;
@@ -386,6 +400,7 @@ public class BTreeV2 {
         byte[] keyvalue = new byte[key.length+data.length];
         System.arraycopy(key,0,keyvalue,0,key.length);
         System.arraycopy(data,0,keyvalue,key.length,data.length);
+        checkWritable();
         if(root == null){
             root = createLeafNode((byte)(key.length),(byte)data.length,null);
             root.keyvalues.add(keyvalue);
@@ -398,6 +413,7 @@ public class BTreeV2 {
 
     //插入一条数据
     public void insert(byte[] keyvalue, byte keySize)throws IOException,InterruptedException{
+        checkWritable();
         if(root == null){
             root = createLeafNode(keySize,(byte) (keyvalue.length - keySize),null);
             root.keyvalues.add(keyvalue);
@@ -629,7 +645,15 @@ public class BTreeV2 {
 
 
     public void finishContructBTree()throws IOException{
-        if(mode != Mode.WRITE) return;
+        finishContructBTree(false);
+    }
+
+    //pin为true时建完直接切到并发读模式,只给建完就只读的基础层用;增量、重建的树之后还要写,不pin
+    public void finishContructBTree(boolean pin)throws IOException{
+        if(mode != Mode.WRITE){
+            if(pin) pinForConcurrentRead();
+            return;
+        }
         mode = Mode.READ;
         mergeSignQueue.clear();
         while (leafNodeMap.size() > 0){
@@ -641,7 +665,110 @@ public class BTreeV2 {
             }
         }
         kvNum.set(0);
+        //持久化屏障
+        if(pageMgr != null) pageMgr.sync();
+        if(pin) pinForConcurrentRead();
+    }
+
+    //切换到并发读模式:内节点变成不可变的并常驻内存,叶子交给并发page缓存,之后不允许再写入
+    public void pinForConcurrentRead()throws IOException{
+        if(mode == Mode.CONCURRENT_READ) return;
+        if(mode == Mode.WRITE){
+            finishContructBTree(true);
+            return;
+        }
+        final boolean inMemory = pageMgr == null;
+        leafPageCache = new ConcurrentPageCache<BNode>(inMemory ? 0 : maxLeafNode, new ConcurrentPageCache.Loader<BNode>() {
+            @Override
+            public BNode load(long pos) throws IOException {
+                BNode leaf = loadBnodeFromDisk(pos);
+                if(leaf != null) leaf.keyvalues = Collections.unmodifiableList(leaf.keyvalues);
+                return leaf;
+            }
+        });
+        //读缓存里的叶子可能还没落盘,先写进脏页表,有盘的话以后按需从page加载
+        for (BNode leaf : leafCache.values()){
+            if(inMemory){
+                leaf.keyvalues = Collections.unmodifiableList(leaf.keyvalues);
+                leafPageCache.put(leaf.page.getStartIndex(), leaf);
+            }else {
+                flushBnodeIntoDisk(leaf);
+            }
+        }
+        leafCache.clear();
+        if(root != null){
+            ArrayDeque<BNode> nodeStack = new ArrayDeque<BNode>(1024);
+            nodeStack.push(root);
+            while (nodeStack.size() > 0){
+                BNode curr = nodeStack.pop();
+                curr.keyvalues = Collections.unmodifiableList(new ArrayList<byte[]>(curr.keyvalues));
+                if(curr.childs == null) continue;
+                curr.childs = Collections.unmodifiableList(new ArrayList<Object>(curr.childs));
+                for (Object child : curr.childs){
+                    if(child instanceof BNode) nodeStack.push((BNode) child);
+                }
+            }
+        }
+        mode = Mode.CONCURRENT_READ;
     }
+
+    private void checkWritable(){
+        if(mode == Mode.CONCURRENT_READ){
+            throw new RuntimeException("并发读模式下不允许写入");
+        }
+    }
+    //批量构建,输入必须按key有序,只能在空树上调用
+    public void bulkLoad(Iterator<byte[]> keyvalues, byte keySize, byte dataSize)throws IOException{
+        bulkLoad(keyvalues, keySize, dataSize, StoreConfig.BULK_LOAD_FILL_FACTOR);
+    }
+
+    //自底向上构建,切分和分层在BulkLoader里,这里只管节点的生成和写盘
+    public void bulkLoad(Iterator<byte[]> keyvalues, final byte keySize, final byte dataSize, float fillFactor)throws IOException{
+        if(root != null){
+            throw new RuntimeException("批量构建只能在空树上进行");
+        }
+        mode = Mode.READ;
+        BNode newRoot = new BulkLoader<BNode>(keySize, dataSize) {
+            @Override
+            int compare(byte[] key1, byte[] key2, int len) {
+                return BTreeV2.this.compare(key1, key2, len);
+            }
+
+            //有磁盘时直接写入,page是顺序分配的,脏页合并后即为顺序写
+            @Override
+            BNode leaf(List<byte[]> kvs) throws IOException {
+                BNode leaf = createLeafNode(keySize, dataSize, kvs);
+                if(pageMgr != null){
+                    flushBnodeIntoDisk(leaf);
+                }else {
+                    leafCache.put(leaf.page.getStartIndex(), leaf);
+                }
+                return leaf;
+            }
+
+            @Override
+            Object pointerOf(BNode leaf) {
+                return leaf.page.getStartIndex();
+            }
+
+            @Override
+            BNode inner(List<byte[]> keys, List<Object> childs, boolean childIsLeaf) throws IOException {
+                BNode inner = createInnerBnode(keySize, keys, childs);
+                inner.childIsLeaf = childIsLeaf;
+                if(!childIsLeaf){
+                    for (Object child : childs){
+                        ((BNode) child).parent = inner;
+                    }
+                }
+                return inner;
+            }
+        }.load(keyvalues, fillFactor);
+        if(newRoot == null) return;
+        root = newRoot;
+        //内节点常驻内存,这里只把它们和firstPage落盘
+        if(pageMgr != null) flushBTree();
+    }
+
     //磁盘交互部分
     private BNode loadBnodeFromDisk(Long pointer)throws IOException{
         if(pageMgr == null) return null;
@@ -723,6 +850,8 @@ public class BTreeV2 {
         for (BNode leaf : leafCache.values()){
             flushBnodeIntoDisk(leaf);
         }
+        //持久化屏障
+        pageMgr.sync();
     }
 
     //tools
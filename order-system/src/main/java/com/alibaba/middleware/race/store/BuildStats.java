@@ -0,0 +1,241 @@
+package com.alibaba.middleware.race.store;
+
+import com.alibaba.middleware.race.util.PrintUtil;
+
+import java.io.*;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.lang.management.ThreadMXBean;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Created by liuzhendong on 16/8/5.
+ * 构建过程的统计,construct结束时输出一份JSON报告,用来判断慢在读文件、解析、写索引、刷盘还是排序
+ * 约定1: 阶段记墙钟时间、进程CPU时间和阶段结束时的堆峰值;读写字节数按文件所在目录(也就是磁盘)累计
+ * 约定2: 解析线程结束时记自己处理的记录数、耗时和线程CPU时间;写路径上记OriginStore的锁等待和写缓冲池的等待;解析时跳过的坏记录单独计数
+ * 约定3: 每个分区rerank时记条数、排序时间、写回时间和估算的内存占用
+ * 约定4: 计数都是原子操作或者并发容器,不影响写路径;报告先写临时文件再改名
+ */
+public class BuildStats {
+
+    public static class Phase{
+        public final String name;
+        final long startNanos;
+        final long startCpu;
+        long wallMs;
+        long cpuMs;
+        long heapPeak;
+
+        Phase(String name){
+            this.name = name;
+            this.startNanos = System.nanoTime();
+            this.startCpu = processCpuNanos();
+        }
+    }
+
+    static class ThreadStat{
+        String name;
+        long records;
+        long wallMs;
+        long cpuMs;
+    }
+
+    static class PartitionStat{
+        String path;
+        int kvNum;
+        long sortMs;
+        long writeMs;
+        long memBytes;
+    }
+
+    private static final long LOCK_WAIT_MIN_NANOS = 1000;
+    private static final ThreadMXBean threadBean = ManagementFactory.getThreadMXBean();
+    private static volatile long startNanos = System.nanoTime();
+    private static final ConcurrentLinkedQueue<Phase> phases = new ConcurrentLinkedQueue<Phase>();
+    private static final ConcurrentLinkedQueue<ThreadStat> threads = new ConcurrentLinkedQueue<ThreadStat>();
+    private static final ConcurrentLinkedQueue<PartitionStat> partitions = new ConcurrentLinkedQueue<PartitionStat>();
+    //文件路径 -> 所在目录的[读字节数,写字节数]
+    private static final ConcurrentHashMap<String,AtomicLong[]> diskOfPath = new ConcurrentHashMap<String, AtomicLong[]>();
+    private static final ConcurrentHashMap<String,AtomicLong[]> disks = new ConcurrentHashMap<String, AtomicLong[]>();
+    private static final AtomicLong lockWaitNanos = new AtomicLong(0);
+    private static final AtomicLong lockWaitNum = new AtomicLong(0);
+    private static final AtomicLong buffWaitNanos = new AtomicLong(0);
+    private static final AtomicLong buffWaitNum = new AtomicLong(0);
+    private static final AtomicLong skippedRecords = new AtomicLong(0);
+
+    public static void reset(){
+        startNanos = System.nanoTime();
+        phases.clear();
+        threads.clear();
+        partitions.clear();
+        disks.clear();
+        diskOfPath.clear();
+        lockWaitNanos.set(0);
+        lockWaitNum.set(0);
+        buffWaitNanos.set(0);
+        buffWaitNum.set(0);
+        skippedRecords.set(0);
+        for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()){
+            if(pool.getType() == MemoryType.HEAP) pool.resetPeakUsage();
+        }
+    }
+
+    public static Phase begin(String name){
+        return new Phase(name);
+    }
+
+    public static void end(Phase phase){
+        phase.wallMs = (System.nanoTime() - phase.startNanos) / 1000000;
+        long cpu = processCpuNanos();
+        phase.cpuMs = cpu < 0 || phase.startCpu < 0 ? -1 : (cpu - phase.startCpu) / 1000000;
+        phase.heapPeak = heapPeak();
+        phases.add(phase);
+        PrintUtil.print("BUILD PHASE %s wall:%d ms cpu:%d ms heapPeak:%d", phase.name, phase.wallMs, phase.cpuMs, phase.heapPeak);
+    }
+
+    public static void read(String path, long bytes){
+        if(bytes > 0) diskOf(path)[0].addAndGet(bytes);
+    }
+
+    public static void written(String path, long bytes){
+        if(bytes > 0) diskOf(path)[1].addAndGet(bytes);
+    }
+
+    private static AtomicLong[] diskOf(String path){
+        AtomicLong[] counter = diskOfPath.get(path);
+        if(counter != null) return counter;
+        String disk = new File(path).getAbsoluteFile().getParent();
+        counter = disks.get(disk);
+        if(counter == null){
+            disks.putIfAbsent(disk, new AtomicLong[]{new AtomicLong(0), new AtomicLong(0)});
+            counter = disks.get(disk);
+        }
+        diskOfPath.put(path, counter);
+        return counter;
+    }
+
+    //解析线程开始时取,结束时传回thread
+    public static long threadCpuNanos(){
+        return threadBean.isCurrentThreadCpuTimeSupported() ? threadBean.getCurrentThreadCpuTime() : -1;
+    }
+
+    public static void thread(String name, long records, long startNanos, long startCpu){
+        ThreadStat stat = new ThreadStat();
+        stat.name = name;
+        stat.records = records;
+        stat.wallMs = (System.nanoTime() - startNanos) / 1000000;
+        long cpu = threadCpuNanos();
+        stat.cpuMs = cpu < 0 || startCpu < 0 ? -1 : (cpu - startCpu) / 1000000;
+        threads.add(stat);
+    }
+
+    //没有真正阻塞的加锁不记,免得每条记录都去改共享的计数
+    public static void lockWait(long nanos){
+        if(nanos < LOCK_WAIT_MIN_NANOS) return;
+        lockWaitNanos.addAndGet(nanos);
+        lockWaitNum.incrementAndGet();
+    }
+
+    public static void buffWait(long nanos){
+        buffWaitNanos.addAndGet(nanos);
+        buffWaitNum.incrementAndGet();
+    }
+
+    //解析时丢掉的记录,比如订单的买家或商品不在字典里
+    public static void skipped(long records){
+        if(records > 0) skippedRecords.addAndGet(records);
+    }
+
+    public static long skippedRecords(){
+        return skippedRecords.get();
+    }
+
+    public static void partition(String path, int kvNum, long sortNanos, long writeNanos, long memBytes){
+        PartitionStat stat = new PartitionStat();
+        stat.path = path;
+        stat.kvNum = kvNum;
+        stat.sortMs = sortNanos / 1000000;
+        stat.writeMs = writeNanos / 1000000;
+        stat.memBytes = memBytes;
+        partitions.add(stat);
+    }
+
+    //进程CPU时间,拿不到返回-1
+    static long processCpuNanos(){
+        java.lang.management.OperatingSystemMXBean os = ManagementFactory.getOperatingSystemMXBean();
+        if(os instanceof com.sun.management.OperatingSystemMXBean){
+            return ((com.sun.management.OperatingSystemMXBean) os).getProcessCpuTime();
+        }
+        return -1;
+    }
+
+    //reset之后堆的峰值,各个堆内存池峰值之和
+    static long heapPeak(){
+        long peak = 0;
+        for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()){
+            if(pool.getType() == MemoryType.HEAP && pool.getPeakUsage() != null) peak += pool.getPeakUsage().getUsed();
+        }
+        return peak;
+    }
+
+    public static String report(){
+        StringBuilder sb = new StringBuilder(4096);
+        sb.append("{\"wallMs\":").append((System.nanoTime() - startNanos) / 1000000);
+        sb.append(",\"heapPeak\":").append(heapPeak());
+        sb.append(",\"lockWaitMs\":").append(lockWaitNanos.get() / 1000000).append(",\"lockWaitNum\":").append(lockWaitNum.get());
+        sb.append(",\"buffWaitMs\":").append(buffWaitNanos.get() / 1000000).append(",\"buffWaitNum\":").append(buffWaitNum.get());
+        sb.append(",\"skippedRecords\":").append(skippedRecords.get());
+        sb.append(",\n\"phases\":[");
+        String sep = "";
+        for (Phase phase : phases){
+            sb.append(sep).append("\n{\"name\":").append(quote(phase.name)).append(",\"wallMs\":").append(phase.wallMs)
+                    .append(",\"cpuMs\":").append(phase.cpuMs).append(",\"heapPeak\":").append(phase.heapPeak).append("}");
+            sep = ",";
+        }
+        sb.append("],\n\"disks\":[");
+        sep = "";
+        for (Map.Entry<String,AtomicLong[]> entry : new TreeMap<String, AtomicLong[]>(disks).entrySet()){
+            sb.append(sep).append("\n{\"disk\":").append(quote(entry.getKey())).append(",\"readBytes\":").append(entry.getValue()[0].get())
+                    .append(",\"writtenBytes\":").append(entry.getValue()[1].get()).append("}");
+            sep = ",";
+        }
+        sb.append("],\n\"threads\":[");
+        sep = "";
+        for (ThreadStat stat : threads){
+            sb.append(sep).append("\n{\"name\":").append(quote(stat.name)).append(",\"records\":").append(stat.records)
+                    .append(",\"wallMs\":").append(stat.wallMs).append(",\"cpuMs\":").append(stat.cpuMs)
+                    .append(",\"recordsPerSec\":").append(stat.records * 1000 / Math.max(stat.wallMs, 1)).append("}");
+            sep = ",";
+        }
+        sb.append("],\n\"partitions\":[");
+        sep = "";
+        for (PartitionStat stat : partitions){
+            sb.append(sep).append("\n{\"path\":").append(quote(stat.path)).append(",\"kvNum\":").append(stat.kvNum)
+                    .append(",\"sortMs\":").append(stat.sortMs).append(",\"writeMs\":").append(stat.writeMs)
+                    .append(",\"memBytes\":").append(stat.memBytes).append("}");
+            sep = ",";
+        }
+        sb.append("]}\n");
+        return sb.toString();
+    }
+
+    private static String quote(String str){
+        return "\"" + str.replace("\\", "\\\\").replace("\"", "\\\"") + "\"";
+    }
+
+    public static void save(String file)throws IOException{
+        File tmp = new File(file + ".tmp");
+        Writer writer = new OutputStreamWriter(new FileOutputStream(tmp), "UTF-8");
+        try {
+            writer.write(report());
+        }finally {
+            writer.close();
+        }
+        if(!tmp.renameTo(new File(file))) throw new IOException("rename build report failed " + file);
+    }
+}
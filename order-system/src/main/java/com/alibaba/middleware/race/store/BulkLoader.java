@@ -0,0 +1,106 @@
+package com.alibaba.middleware.race.store;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+
+/**
+ * Created by liuzhendong on 16/8/5.
+ * BTree和BTreeV2共用的批量构建: 叶子按填充率装满后交给树写盘,再逐层往上生成内节点,不走逐条插入和分裂
+ * 约定1: 输入必须按key有序,长度都是keySize+dataSize;相同的key尽量放在同一个叶子里,getResultByKey只查一个叶子
+ * 约定2: 叶子和内节点的容量与splitLeaf/splitInnerNode的阈值一致,内节点至少3个孩子,最后一个节点不会只剩一个孩子
+ * 约定3: 节点怎么建、怎么写盘由树自己实现,这里只负责切分和分层
+ */
+abstract class BulkLoader<N> {
+
+    final byte keySize;
+    final byte dataSize;
+
+    BulkLoader(byte keySize, byte dataSize){
+        this.keySize = keySize;
+        this.dataSize = dataSize;
+    }
+
+    abstract int compare(byte[] key1, byte[] key2, int len);
+
+    //生成一个叶子并写盘或者放进缓存
+    abstract N leaf(List<byte[]> kvs)throws IOException;
+
+    //叶子在内节点里的指针,即page的起始位置
+    abstract Object pointerOf(N leaf);
+
+    //childs是叶子指针或者下一层的内节点,下一层是内节点时要设置它们的parent
+    abstract N inner(List<byte[]> keys, List<Object> childs, boolean childIsLeaf)throws IOException;
+
+    //返回根节点,没有数据返回null;只有一个叶子时根就是这个叶子
+    @SuppressWarnings("unchecked")
+    N load(Iterator<byte[]> keyvalues, float fillFactor)throws IOException{
+        if(fillFactor <= 0 || fillFactor > 1){
+            throw new RuntimeException(String.format("填充率不合法 %.2f", fillFactor));
+        }
+        int kvSize = keySize + dataSize;
+        int pageSize = StoreConfig.DEFAULT_PAGE_SIZE;
+        //6是节点头
+        int maxLeafKv = (pageSize - BTree.NODE_RESERVE_LEN - 6) / kvSize;
+        int maxInnerChild = (pageSize - BTree.NODE_RESERVE_LEN - 6 + keySize) / (keySize + 8);
+        int leafKvNum = Math.max(1, (int) (maxLeafKv * fillFactor));
+        int innerChildNum = Math.max(3, (int) (maxInnerChild * fillFactor));
+
+        //当前层的孩子以及每个孩子的最大key
+        List<Object> level = new ArrayList<Object>(1024);
+        List<byte[]> levelMaxKeys = new ArrayList<byte[]>(1024);
+        N lastLeaf = null;
+        List<byte[]> currKvs = new ArrayList<byte[]>(leafKvNum);
+        byte[] prev = null;
+        while (keyvalues.hasNext()){
+            byte[] keyvalue = keyvalues.next();
+            if(keyvalue.length != kvSize){
+                throw new RuntimeException(String.format("批量构建的数据长度不一致 %d != %d", keyvalue.length, kvSize));
+            }
+            int res = prev == null ? -1 : compare(prev, keyvalue, keySize);
+            if(res > 0){
+                throw new RuntimeException("批量构建的数据必须按key有序");
+            }
+            if(currKvs.size() >= maxLeafKv || (currKvs.size() >= leafKvNum && res != 0)){
+                lastLeaf = addLeaf(currKvs, level, levelMaxKeys);
+                currKvs = new ArrayList<byte[]>(leafKvNum);
+            }
+            currKvs.add(keyvalue);
+            prev = keyvalue;
+        }
+        if(currKvs.size() > 0){
+            lastLeaf = addLeaf(currKvs, level, levelMaxKeys);
+        }
+        if(level.size() == 0) return null;
+        if(level.size() == 1) return lastLeaf;
+
+        boolean childIsLeaf = true;
+        while (level.size() > 1){
+            List<Object> upper = new ArrayList<Object>(level.size() / innerChildNum + 1);
+            List<byte[]> upperMaxKeys = new ArrayList<byte[]>(level.size() / innerChildNum + 1);
+            int i = 0;
+            while (i < level.size()){
+                int num = Math.min(innerChildNum, level.size() - i);
+                if(level.size() - i - num == 1) num--;
+                List<byte[]> keys = new ArrayList<byte[]>(levelMaxKeys.subList(i, i + num - 1));
+                List<Object> childs = new ArrayList<Object>(level.subList(i, i + num));
+                upper.add(inner(keys, childs, childIsLeaf));
+                upperMaxKeys.add(levelMaxKeys.get(i + num - 1));
+                i += num;
+            }
+            level = upper;
+            levelMaxKeys = upperMaxKeys;
+            childIsLeaf = false;
+        }
+        return (N) level.get(0);
+    }
+
+    private N addLeaf(List<byte[]> kvs, List<Object> level, List<byte[]> levelMaxKeys)throws IOException{
+        N leaf = leaf(kvs);
+        level.add(pointerOf(leaf));
+        levelMaxKeys.add(Arrays.copyOfRange(kvs.get(kvs.size() - 1), 0, keySize));
+        return leaf;
+    }
+}
@@ -0,0 +1,102 @@
+package com.alibaba.middleware.race.store;
+
+import java.io.IOException;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Created by liuzhendong on 16/8/5.
+ * 只读场景下的并发page缓存,key是page的起始位置
+ * 约定1: 缓存的内容只读,淘汰时直接丢弃,不需要回写
+ * 约定2: 每个page一个latch,同一个page只由一个线程加载,其它线程等它加载完,不同page互不影响
+ * 约定3: 淘汰用clock近似lru,命中时只置标记位,不像LinkedHashMap那样改动链表
+ */
+public class ConcurrentPageCache<V> {
+
+    public interface Loader<V>{
+        V load(long pos)throws IOException;
+    }
+
+    private static class Slot<V>{
+        volatile V value;
+        volatile boolean referenced = true;
+    }
+
+    private final ConcurrentHashMap<Long,Slot<V>> slots;
+    private final int maxNum; //小于等于0表示不淘汰
+    private final Loader<V> loader;
+    private final AtomicBoolean evicting = new AtomicBoolean(false);
+
+    public ConcurrentPageCache(int maxNum, Loader<V> loader){
+        this.maxNum = maxNum;
+        this.loader = loader;
+        this.slots = new ConcurrentHashMap<Long, Slot<V>>(maxNum > 0 ? maxNum * 2 : 1024);
+    }
+
+    public V get(long pos)throws IOException{
+        Slot<V> slot = slots.get(pos);
+        if(slot == null){
+            Slot<V> tmp = new Slot<V>();
+            slot = slots.putIfAbsent(pos, tmp);
+            if(slot == null) slot = tmp;
+        }
+        V value = slot.value;
+        if(value == null){
+            //page级别的latch
+            synchronized (slot){
+                value = slot.value;
+                if(value == null){
+                    value = loader.load(pos);
+                    if(value == null){
+                        slots.remove(pos, slot);
+                        return null;
+                    }
+                    slot.value = value;
+                }
+            }
+            evictIfNeed();
+        }
+        slot.referenced = true;
+        return value;
+    }
+
+    public void put(long pos, V value){
+        Slot<V> slot = new Slot<V>();
+        slot.value = value;
+        slots.put(pos, slot);
+        evictIfNeed();
+    }
+
+    public int size(){
+        return slots.size();
+    }
+
+    public void clear(){
+        slots.clear();
+    }
+
+    private void evictIfNeed(){
+        if(maxNum <= 0 || slots.size() <= maxNum) return;
+        //同一时间只有一个线程做淘汰,其它线程直接返回
+        if(!evicting.compareAndSet(false, true)) return;
+        try {
+            //最多扫两圈,第一圈清标记,第二圈一定能淘汰掉
+            for (int round = 0; round < 2 && slots.size() > maxNum; round++) {
+                Iterator<Map.Entry<Long,Slot<V>>> iterator = slots.entrySet().iterator();
+                while (iterator.hasNext() && slots.size() > maxNum){
+                    Slot<V> slot = iterator.next().getValue();
+                    if(slot.value == null) continue; //正在加载
+                    if(slot.referenced){
+                        slot.referenced = false;
+                    }else {
+                        iterator.remove();
+                    }
+                }
+            }
+        }finally {
+            evicting.set(false);
+        }
+    }
+}
@@ -0,0 +1,62 @@
+package com.alibaba.middleware.race.store;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Semaphore;
+
+/**
+ * Created by liuzhendong on 16/8/5.
+ * 按磁盘限制同时在读的请求数,查询的吞吐由磁盘决定,而不是由线程数决定
+ * 约定1: 路径属于哪块盘用FileStore区分,同一个挂载点下的路径共用一个信号量
+ * 约定2: 拿不到FileStore的路径就把路径本身当成一块盘
+ */
+public class DiskLimiter {
+
+    private final int maxInFlightPerDisk;
+    private final ConcurrentHashMap<String,String> diskOfPath = new ConcurrentHashMap<String, String>();
+    private final ConcurrentHashMap<String,Semaphore> permits = new ConcurrentHashMap<String, Semaphore>();
+
+    public DiskLimiter(int maxInFlightPerDisk){
+        this.maxInFlightPerDisk = maxInFlightPerDisk;
+    }
+
+    public <V> V call(String path, Callable<V> read)throws Exception{
+        Semaphore semaphore = semaphoreOf(path);
+        semaphore.acquire();
+        try {
+            return read.call();
+        }finally {
+            semaphore.release();
+        }
+    }
+
+    public int inFlight(String path){
+        return maxInFlightPerDisk - semaphoreOf(path).availablePermits();
+    }
+
+    private Semaphore semaphoreOf(String path){
+        String disk = diskOf(path);
+        Semaphore semaphore = permits.get(disk);
+        if(semaphore == null){
+            Semaphore tmp = new Semaphore(maxInFlightPerDisk);
+            semaphore = permits.putIfAbsent(disk, tmp);
+            if(semaphore == null) semaphore = tmp;
+        }
+        return semaphore;
+    }
+
+    private String diskOf(String path){
+        String disk = diskOfPath.get(path);
+        if(disk != null) return disk;
+        try {
+            disk = Files.getFileStore(Paths.get(path)).toString();
+        }catch (IOException e){
+            disk = path;
+        }
+        diskOfPath.putIfAbsent(path, disk);
+        return disk;
+    }
+}
@@ -0,0 +1,181 @@
+package com.alibaba.middleware.race.store;
+
+import com.alibaba.middleware.race.util.PrintUtil;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Created by liuzhendong on 16/8/5.
+ * id字典,把buyerid/goodid映射成连续的int,订单索引里只存int
+ * 约定1: 构建时扫一遍买家/商品文件,id排序去重后的下标就是编号,所以编号的大小顺序和字符串顺序一致
+ * 约定2: 所有id补空格到定长后连续存在一个byte数组里,字符串查编号用二分,编号查字符串直接按下标取
+ * 约定3: 构建完之后只读,多线程查询不需要加锁
+ * 约定4: 追加数据时新出现的id接着往后编号,放在appended里,不影响已有的编号
+ */
+public class IdDict {
+
+    public final String name;
+    public final int idLen;
+    private final byte[] ids;
+    private final int size;
+    //追加的id,先放数组再放map,查到编号时一定能按编号取到字符串
+    private volatile String[] appended = new String[0];
+    private final ConcurrentHashMap<String,Integer> appendedIndex = new ConcurrentHashMap<String, Integer>();
+
+    private IdDict(String name, int idLen, byte[] ids, int size){
+        this.name = name;
+        this.idLen = idLen;
+        this.ids = ids;
+        this.size = size;
+    }
+
+    //扫描文件里的key字段,每个文件一个线程
+    public static IdDict build(String name, Collection<String> files, final String key, int idLen)throws IOException, InterruptedException{
+        long start = System.currentTimeMillis();
+        final List<String> fileList = new ArrayList<String>(files);
+        final List<List<String>> idsByFile = new ArrayList<List<String>>(fileList.size());
+        final IOException[] errors = new IOException[fileList.size()];
+        Thread[] ts = new Thread[fileList.size()];
+        for (int i = 0; i < ts.length; i++) {
+            final int fileIndex = i;
+            idsByFile.add(new ArrayList<String>(1024));
+            ts[i] = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        scan(fileList.get(fileIndex), key + ":", idsByFile.get(fileIndex));
+                    }catch (IOException e){
+                        errors[fileIndex] = e;
+                    }
+                }
+            });
+            ts[i].start();
+        }
+        for (int i = 0; i < ts.length; i++) {
+            ts[i].join();
+            if(errors[i] != null) throw errors[i];
+        }
+
+        int num = 0;
+        for (List<String> tmp : idsByFile){
+            num += tmp.size();
+        }
+        String[] all = new String[num];
+        int index = 0;
+        for (List<String> tmp : idsByFile){
+            for (String id : tmp){
+                all[index++] = id;
+            }
+            tmp.clear();
+        }
+        //id都是ascii,字符串顺序和字节顺序一致
+        Arrays.sort(all);
+        byte[] ids = new byte[num * idLen];
+        int size = 0;
+        for (int i = 0; i < all.length; i++) {
+            if(i > 0 && all[i].equals(all[i-1])) continue;
+            byte[] bytes = all[i].getBytes();
+            if(bytes.length > idLen) throw new RuntimeException(String.format("%s id超出预期 %s", name, all[i]));
+            System.arraycopy(bytes, 0, ids, size * idLen, bytes.length);
+            Arrays.fill(ids, size * idLen + bytes.length, (size + 1) * idLen, (byte) ' ');
+            size++;
+        }
+        PrintUtil.print("id dict %s size:%d cost:%d ms", name, size, System.currentTimeMillis() - start);
+        return new IdDict(name, idLen, Arrays.copyOf(ids, size * idLen), size);
+    }
+
+    private static void scan(String file, String prefix, List<String> ids)throws IOException{
+        BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(file)), 1024 * 1024);
+        try {
+            String line;
+            while ((line = reader.readLine()) != null){
+                int from = line.startsWith(prefix) ? 0 : line.indexOf("\t" + prefix);
+                if(from < 0) continue;
+                if(from > 0) from++;
+                int to = line.indexOf('\t', from);
+                ids.add(line.substring(from + prefix.length(), to < 0 ? line.length() : to));
+            }
+        }finally {
+            reader.close();
+        }
+        BuildStats.read(file, new File(file).length());
+    }
+
+    //追加文件里新出现的id,返回新增的个数
+    public synchronized int extend(Collection<String> files, String key)throws IOException{
+        List<String> ids = new ArrayList<String>(1024);
+        for (String file : files){
+            scan(file, key + ":", ids);
+        }
+        List<String> added = new ArrayList<String>();
+        Set<String> seen = new HashSet<String>();
+        for (String id : ids){
+            if(indexOf(id) < 0 && seen.add(id)) added.add(id);
+        }
+        if(added.size() == 0) return 0;
+        String[] old = appended;
+        String[] tmp = Arrays.copyOf(old, old.length + added.size());
+        for (int i = 0; i < added.size(); i++) {
+            tmp[old.length + i] = added.get(i);
+        }
+        appended = tmp;
+        for (int i = 0; i < added.size(); i++) {
+            appendedIndex.put(added.get(i), size + old.length + i);
+        }
+        PrintUtil.print("id dict %s extend:%d size:%d", name, added.size(), size());
+        return added.size();
+    }
+
+    //不存在返回-1
+    public int indexOf(String id){
+        int index = indexOfBase(id);
+        if(index >= 0 || appendedIndex.isEmpty()) return index;
+        Integer tmp = appendedIndex.get(id);
+        return tmp == null ? -1 : tmp;
+    }
+
+    private int indexOfBase(String id){
+        byte[] key = id.getBytes();
+        if(key.length > idLen) return -1;
+        int start = 0, end = size - 1;
+        while (start <= end){
+            int mid = (start + end) >>> 1;
+            int res = compare(mid, key);
+            if(res == 0) return mid;
+            if(res < 0){
+                start = mid + 1;
+            }else {
+                end = mid - 1;
+            }
+        }
+        return -1;
+    }
+
+    public String get(int index){
+        if(index >= size) return appended[index - size];
+        int len = idLen;
+        while (len > 0 && ids[index * idLen + len - 1] == ' ') len--;
+        return new String(ids, index * idLen, len);
+    }
+
+    public int size(){
+        return size + appended.length;
+    }
+
+    //第index个id和key比较,key不够长的部分按空格算
+    private int compare(int index, byte[] key){
+        int offset = index * idLen;
+        for (int i = 0; i < idLen; i++) {
+            int a = ids[offset + i] & 0xFF;
+            int b = i < key.length ? key[i] & 0xFF : ' ';
+            if(a != b) return a < b ? -1 : 1;
+        }
+        return 0;
+    }
+}
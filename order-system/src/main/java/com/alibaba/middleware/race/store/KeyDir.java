@@ -0,0 +1,66 @@
+package com.alibaba.middleware.race.store;
+
+import com.alibaba.middleware.race.util.RankUtil;
+
+import java.util.List;
+
+/**
+ * Created by liuzhendong on 16/8/5.
+ * SimpleBTree叶子目录的紧凑版本,只用来找key落在哪个叶子上
+ * 约定1: 每个叶子的最大key按8字节一组转成long,连续放在一个long[]里,不够8字节的补0;long的最高位取反过,有符号比较就是无符号的字节序比较
+ * 约定2: 按Eytzinger顺序存放(下标k的左右孩子是2k和2k+1),二分查找的前几层总在同一片内存里,每一步只算下一个下标,没有别的分支
+ * 约定3: 叶子的key必须严格递增,leaf[k]是下标k对应的叶子序号,文件位置仍在SimpleBTree.Node里
+ */
+public class KeyDir {
+
+    private final int num;
+    private final int words; //每个key占几个long
+    private final long[] keys; //下标0不用
+    private final int[] leaf;
+
+    public KeyDir(List<byte[]> sortedKeys, int keySize){
+        this.num = sortedKeys.size();
+        this.words = (keySize + 7) / 8;
+        this.keys = new long[(num + 1) * words];
+        this.leaf = new int[num + 1];
+        int i = 0;
+        //按中序遍历的顺序填,填出来就是Eytzinger顺序;用栈模拟递归
+        int[] stack = new int[64];
+        int top = 0;
+        int k = 1;
+        while (k <= num || top > 0){
+            while (k <= num){
+                stack[top++] = k;
+                k = 2 * k;
+            }
+            k = stack[--top];
+            RankUtil.packWords(sortedKeys.get(i), keySize, keys, k * words);
+            leaf[k] = i++;
+            k = 2 * k + 1;
+        }
+    }
+
+    public int size(){
+        return num;
+    }
+
+    //第一个不小于key的叶子,都比key小返回size()
+    public int find(byte[] key, int keySize){
+        long[] target = new long[words];
+        RankUtil.packWords(key, keySize, target, 0);
+        int k = 1;
+        if(words == 1){
+            long t = target[0];
+            while (k <= num){
+                k = 2 * k + (keys[k] < t ? 1 : 0);
+            }
+        }else {
+            while (k <= num){
+                k = 2 * k + (RankUtil.compareWords(keys, k * words, target, 0, words) < 0 ? 1 : 0);
+            }
+        }
+        //去掉最后一段向右走的路径,剩下的就是第一个不小于key的节点
+        k >>>= Integer.numberOfTrailingZeros(~k) + 1;
+        return k == 0 ? num : leaf[k];
+    }
+}
@@ -0,0 +1,258 @@
+package com.alibaba.middleware.race.store;
+
+import com.alibaba.middleware.race.util.PrintUtil;
+
+import java.nio.ByteBuffer;
+import java.util.*;
+
+/**
+ * Created by liuzhendong on 16/8/5.
+ * 进程内所有B树共用的叶子缓存,堆外内存按slab分配,总字节数有上限
+ * 约定1: 大小分档,每档间隔不超过1/4,请求的长度向上取整到档位;一个slab固定切成同一档的若干块,空闲块按档位放在各自的栈里,分配和回收都是O(1)
+ * 约定2: 所有树的叶子在一个LRU里竞争,在用字节数超过LEAF_CACHE_MAX_BYTES就从最久没用的开始淘汰;slab总量到了LEAF_SLAB_MAX_BYTES就不再切新的,
+ *        这时某档没有空闲块只淘汰同档位最久没用的叶子,每档另有一个LRU,不会为了一个档位清掉别的档位
+ * 约定3: get/load返回的叶子是pin住的,用完必须release,pin住的叶子不会被淘汰,它的内存也不会被复用
+ * 约定4: 超过最大档位或者实在腾不出内存的叶子不缓存,返回null由调用方自己读
+ * 约定5: 叶子按树实例而不是文件路径区分,同一个路径重新建树不会读到旧树的叶子,旧树没close的叶子等LRU淘汰
+ */
+public class LeafCache {
+
+    public static final LeafCache INSTANCE = new LeafCache(StoreConfig.LEAF_CACHE_MAX_BYTES, StoreConfig.LEAF_SLAB_MAX_BYTES);
+
+    public static class Leaf{
+        final SimpleBTree owner;
+        final String key;
+        final int sizeClass;
+        final ByteBuffer buff;
+        final int len;
+        int pins = 1;
+        boolean published = false;
+
+        Leaf(SimpleBTree owner, String key, int sizeClass, ByteBuffer buff, int len){
+            this.owner = owner;
+            this.key = key;
+            this.sizeClass = sizeClass;
+            this.buff = buff;
+            this.len = len;
+        }
+
+        //独立的position/limit,多个线程同时读互不影响
+        public ByteBuffer data(){
+            ByteBuffer data = buff.duplicate();
+            data.clear();
+            data.limit(len);
+            return data;
+        }
+    }
+
+    private final long maxBytes;
+    private final long maxSlabBytes;
+    private final int[] classSizes;
+    private final List<ArrayDeque<ByteBuffer>> freeBuffs;
+    private long usedBytes = 0;
+    private long slabBytes = 0;
+    private long queryNum = 0;
+    private long hitNum = 0;
+    private final LinkedHashMap<String,Leaf> leaves = new LinkedHashMap<String, Leaf>(16 * 1024, 0.75f, true);
+    private final List<LinkedHashMap<String,Leaf>> leavesByClass; //每档一个LRU,和leaves同步增删
+
+    public LeafCache(long maxBytes, long maxSlabBytes){
+        this.maxBytes = maxBytes;
+        this.maxSlabBytes = maxSlabBytes;
+        List<Integer> sizes = new ArrayList<Integer>();
+        int size = StoreConfig.LEAF_MIN_CLASS_SIZE;
+        while (size <= StoreConfig.LEAF_MAX_CLASS_SIZE){
+            sizes.add(size);
+            size += Math.max(StoreConfig.LEAF_MIN_CLASS_SIZE, Integer.highestOneBit(size) / 4);
+        }
+        classSizes = new int[sizes.size()];
+        freeBuffs = new ArrayList<ArrayDeque<ByteBuffer>>(sizes.size());
+        leavesByClass = new ArrayList<LinkedHashMap<String, Leaf>>(sizes.size());
+        for (int i = 0; i < classSizes.length; i++) {
+            classSizes[i] = sizes.get(i);
+            freeBuffs.add(new ArrayDeque<ByteBuffer>());
+            leavesByClass.add(new LinkedHashMap<String, Leaf>(1024, 0.75f, true));
+        }
+    }
+
+    //放不下的返回-1
+    int classOf(int len){
+        int start = 0, end = classSizes.length - 1;
+        if(len > classSizes[end]) return -1;
+        while (start < end){
+            int mid = (start + end) >>> 1;
+            if(classSizes[mid] < len){
+                start = mid + 1;
+            }else {
+                end = mid;
+            }
+        }
+        return start;
+    }
+
+    //按树实例区分,同一个路径上先后建的两棵树互不影响
+    private static String keyOf(SimpleBTree owner, long posStart, long posEnd){
+        return owner.cacheId + ":" + posStart + ":" + posEnd;
+    }
+
+    //命中就pin住返回
+    public Leaf get(SimpleBTree owner, long posStart, long posEnd){
+        String key = keyOf(owner, posStart, posEnd);
+        Leaf leaf;
+        boolean print;
+        synchronized (leaves){
+            queryNum++;
+            leaf = leaves.get(key);
+            if(leaf != null){
+                hitNum++;
+                leaf.pins++;
+                leavesByClass.get(leaf.sizeClass).get(key);
+            }
+            print = queryNum % 100000 == 0;
+        }
+        if(print) PrintUtil.print("LEAF CACHE %s", report());
+        return leaf;
+    }
+
+    //分配一块还没发布的叶子,调用方把数据读进data()之后publish,失败就release
+    public Leaf allocate(SimpleBTree owner, long posStart, long posEnd){
+        int len = (int) (posEnd - posStart);
+        int sizeClass = classOf(len);
+        if(sizeClass < 0) return null;
+        synchronized (leaves){
+            while (usedBytes + classSizes[sizeClass] > maxBytes){
+                if(!evictOne(leaves)) return null;
+            }
+            ByteBuffer buff = freeBuffs.get(sizeClass).poll();
+            while (buff == null){
+                if(slabBytes + StoreConfig.LEAF_SLAB_SIZE <= maxSlabBytes){
+                    carveSlab(sizeClass);
+                }else if(!evictOne(leavesByClass.get(sizeClass))){
+                    return null;
+                }
+                buff = freeBuffs.get(sizeClass).poll();
+            }
+            usedBytes += classSizes[sizeClass];
+            owner.cachedBytes += classSizes[sizeClass];
+            return new Leaf(owner, keyOf(owner, posStart, posEnd), sizeClass, buff, len);
+        }
+    }
+
+    //发布到缓存里,已经有别的线程发布了同一个叶子就用它的,自己这块还回去
+    public Leaf publish(Leaf leaf){
+        synchronized (leaves){
+            Leaf old = leaves.get(leaf.key);
+            if(old != null){
+                old.pins++;
+                free(leaf);
+                return old;
+            }
+            leaf.published = true;
+            leaves.put(leaf.key, leaf);
+            leavesByClass.get(leaf.sizeClass).put(leaf.key, leaf);
+            return leaf;
+        }
+    }
+
+    public void release(Leaf leaf){
+        synchronized (leaves){
+            leaf.pins--;
+            if(!leaf.published && leaf.pins == 0) free(leaf);
+        }
+    }
+
+    //树被删掉之后把它的叶子都去掉,pin住的等release时再回收
+    public void invalidate(SimpleBTree owner){
+        synchronized (leaves){
+            Iterator<Leaf> iterator = leaves.values().iterator();
+            while (iterator.hasNext()){
+                Leaf leaf = iterator.next();
+                if(leaf.owner != owner) continue;
+                iterator.remove();
+                leavesByClass.get(leaf.sizeClass).remove(leaf.key);
+                leaf.published = false;
+                if(leaf.pins == 0) free(leaf);
+            }
+        }
+    }
+
+    //从lru里淘汰最久没用的一个没pin住的叶子,lru是总的或者某一档的
+    private boolean evictOne(LinkedHashMap<String,Leaf> lru){
+        Iterator<Leaf> iterator = lru.values().iterator();
+        while (iterator.hasNext()){
+            Leaf leaf = iterator.next();
+            if(leaf.pins > 0) continue;
+            iterator.remove();
+            if(lru == leaves){
+                leavesByClass.get(leaf.sizeClass).remove(leaf.key);
+            }else {
+                leaves.remove(leaf.key);
+            }
+            leaf.published = false;
+            free(leaf);
+            return true;
+        }
+        return false;
+    }
+
+    private void free(Leaf leaf){
+        usedBytes -= classSizes[leaf.sizeClass];
+        leaf.owner.cachedBytes -= classSizes[leaf.sizeClass];
+        freeBuffs.get(leaf.sizeClass).push(leaf.buff);
+    }
+
+    //一个slab按档位切成若干块,比slab还大的档位单独分配
+    private void carveSlab(int sizeClass){
+        int size = classSizes[sizeClass];
+        int slabSize = Math.max(StoreConfig.LEAF_SLAB_SIZE, size);
+        ByteBuffer slab = ByteBuffer.allocateDirect(slabSize);
+        slabBytes += slabSize;
+        for (int pos = 0; pos + size <= slabSize; pos += size) {
+            slab.limit(pos + size);
+            slab.position(pos);
+            freeBuffs.get(sizeClass).push(slab.slice());
+        }
+    }
+
+    public long getUsedBytes(){
+        synchronized (leaves){
+            return usedBytes;
+        }
+    }
+
+    public long getSlabBytes(){
+        synchronized (leaves){
+            return slabBytes;
+        }
+    }
+
+    //每棵树占用的字节数,从多到少
+    public List<Map.Entry<String,Long>> usageByTree(){
+        Map<String,Long> usage = new HashMap<String, Long>();
+        synchronized (leaves){
+            for (Leaf leaf : leaves.values()){
+                usage.put(leaf.owner.filePath, leaf.owner.cachedBytes);
+            }
+        }
+        List<Map.Entry<String,Long>> result = new ArrayList<Map.Entry<String, Long>>(usage.entrySet());
+        Collections.sort(result, new Comparator<Map.Entry<String, Long>>() {
+            @Override
+            public int compare(Map.Entry<String, Long> o1, Map.Entry<String, Long> o2) {
+                return o2.getValue().compareTo(o1.getValue());
+            }
+        });
+        return result;
+    }
+
+    public String report(){
+        StringBuilder sb = new StringBuilder();
+        synchronized (leaves){
+            sb.append(String.format("HIT %d %d %.2f USED %d SLAB %d LEAVES %d", queryNum, hitNum, (hitNum+0.1)/Math.max(queryNum, 1), usedBytes, slabBytes, leaves.size()));
+        }
+        List<Map.Entry<String,Long>> usage = usageByTree();
+        for (int i = 0; i < usage.size() && i < 10; i++) {
+            sb.append(String.format(" [%s %d]", usage.get(i).getKey(), usage.get(i).getValue()));
+        }
+        return sb.toString();
+    }
+}
@@ -1,15 +1,18 @@
 package com.alibaba.middleware.race.store;
 
 import com.alibaba.middleware.race.util.OrderUtil;
-import com.alibaba.middleware.race.util.PrintUtil;
-import org.omg.PortableServer.LIFESPAN_POLICY_ID;
 
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.RandomAccessFile;
 import java.nio.ByteBuffer;
 import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
 import java.util.List;
 import java.util.Map;
 import java.util.concurrent.atomic.AtomicLong;
@@ -17,109 +20,253 @@ import java.util.concurrent.atomic.AtomicLong;
 /**
  * Created by liuzhendong on 16/8/2.
  * 存储原始内容,以换行符分割
+ * 约定1: 写入时只在锁内拷贝到写缓冲,写满的缓冲交给flusher异步刷盘
+ * 约定2: 读取时按位置合并成若干读区间,用带位置的读,不加锁;读不到完整记录抛IOException
+ * 约定3: 构建完之后可以按给定的顺序整个重写一遍(writeSorted),比如按(buyer,ctime),一个买家的订单就挨在一起
  */
 public class OriginStore {
 
-    ByteBuffer byteBuffer;
+    ByteBuffer byteBuffer; //当前写缓冲,从buffPool中借用
+    long buffStartPos; //当前写缓冲在文件中的起始位置
     FileChannel fileChannel;
     AtomicLong currWritePos;
     String path;
+    final WriteBuffPool buffPool;
+    final AsyncFlusher flusher;
 
-    public OriginStore(String filePath)throws IOException{
-        byteBuffer = ByteBuffer.allocateDirect(StoreConfig.DEFAULT_ORIGIN_BUFF_LEN);
+    public OriginStore(String filePath, WriteBuffPool buffPool, AsyncFlusher flusher)throws IOException{
         this.path = filePath;
+        this.buffPool = buffPool;
+        this.flusher = flusher;
         fileChannel = new RandomAccessFile(filePath,"rw").getChannel();
         currWritePos = new AtomicLong(0);
     }
 
-    public synchronized long write(String line)throws IOException{
+    //只在锁内做内存拷贝,写满的buff交给flusher异步刷盘
+    public long write(String line)throws IOException{
         byte[] bytes = (line+"\n").getBytes();
-        if(byteBuffer.remaining() < bytes.length){
-            byteBuffer.flip();
-            fileChannel.write(byteBuffer);
-            byteBuffer.clear();
+        ByteBuffer full = null;
+        long fullPos = 0;
+        long pos;
+        try {
+            long waitStart = System.nanoTime();
+            synchronized (this){
+                BuildStats.lockWait(System.nanoTime() - waitStart);
+                if(byteBuffer != null && byteBuffer.remaining() < bytes.length){
+                    full = byteBuffer;
+                    fullPos = buffStartPos;
+                    byteBuffer = null;
+                }
+                pos = currWritePos.getAndAdd(bytes.length);
+                if(bytes.length > buffPool.buffLen){
+                    //超长的记录,直接写
+                    fileChannel.write(ByteBuffer.wrap(bytes), pos);
+                    BuildStats.written(path, bytes.length);
+                }else {
+                    if(byteBuffer == null){
+                        byteBuffer = buffPool.take();
+                        buffStartPos = pos;
+                    }
+                    byteBuffer.put(bytes);
+                }
+            }
+        }catch (InterruptedException e){
+            throw new IOException(e);
+        }
+        if(full != null){
+            full.flip();
+            flusher.submit(path, fileChannel, full, fullPos, buffPool);
         }
-        byteBuffer.put(bytes);
-        return currWritePos.getAndAdd(bytes.length);
+        return pos;
     }
 
-    public void finishWrite()throws IOException{
+    //只负责把剩余的buff提交,真正落盘需要等flusher.awaitFlush
+    public synchronized void finishWrite()throws IOException{
+        if(byteBuffer == null) return;
         byteBuffer.flip();
-        fileChannel.write(byteBuffer);
-        byteBuffer.clear();
-        byteBuffer = null;//gc
+        flusher.submit(path, fileChannel, byteBuffer, buffStartPos, buffPool);
+        byteBuffer = null;
     }
 
 
+    //每个查询线程一个读缓冲,够放下一个合并后的读区间
+    private static final ThreadLocal<byte[]> readBuffs = new ThreadLocal<byte[]>(){
+        @Override
+        protected byte[] initialValue() {
+            return new byte[StoreConfig.BATCH_READ_MAX_SPAN + StoreConfig.BATCH_READ_LINE_TAIL];
+        }
+    };
+
+    //位置排序后按间隔切成若干读区间,相邻位置间隔不超过BATCH_READ_MAX_GAP、跨度不超过BATCH_READ_MAX_SPAN的合成一次读;
+    //用带位置的读,不锁fileChannel,直接在读缓冲里切行解析,结果按位置顺序返回;注意posArray会被原地排序
     public List<Map<String,String>> getObjectsByPosArray(long[] posArray)throws IOException{
         Arrays.sort(posArray);
-        //这里固定一次只读2M,可以考虑切分得更多
-        ByteBuffer byteBuffer = ByteBuffer.allocate(1024 * 1024);
+        //同一个区间只记一次
+        for (int i = 0; i < posArray.length; i++) {
+            if(i == 0 || posArray[i] / StoreConfig.ACCESS_LOG_REGION_SIZE != posArray[i-1] / StoreConfig.ACCESS_LOG_REGION_SIZE){
+                AccessLog.region(path, posArray[i]);
+            }
+        }
         List<Map<String,String>> result = new ArrayList<Map<String, String>>(posArray.length);
-        long start = posArray[0];
-        int index = 0;
-        //循环取数据
-        //System.out.println("getObjectsByPosArray:" + posArray.length);
-        do{
-            int readNum = 0;
-            synchronized (fileChannel){
-                byteBuffer.clear();
-                fileChannel.position(start);
-                readNum = fileChannel.read(byteBuffer);
-                byteBuffer.flip();
+        int from = 0;
+        while (from < posArray.length){
+            int to = from + 1;
+            while (to < posArray.length && posArray[to] - posArray[to-1] <= StoreConfig.BATCH_READ_MAX_GAP
+                    && posArray[to] - posArray[from] <= StoreConfig.BATCH_READ_MAX_SPAN){
+                to++;
             }
-            if(readNum == 0) break;
-            for (;index < posArray.length; index++){
-                if(posArray[index] + 100 < start + readNum){
-                    byteBuffer.position((int) (posArray[index] - start));
-                    if(parseAndAdd(byteBuffer, result)){
-                        //go
-                        //System.out.println(index);
-                    }else {
-                        //实际上不足了
-                        if(start == posArray[index]) PrintUtil.print("parse死循环了 %d %d",start, readNum);
-
-                        start = posArray[index];
-                        break;
-                    }
-                }else {
-                    if(start == posArray[index]) PrintUtil.print("死循环了 %d %d",start, readNum);
-                    start = posArray[index];
-                    break;
+            readRange(posArray, from, to, result);
+            from = to;
+        }
+        return result;
+    }
+
+    //一次读出[第一条的位置,最后一条的位置+TAIL),最后几条切不出完整一行的单独再读
+    private void readRange(long[] posArray, int from, int to, List<Map<String,String>> result)throws IOException{
+        long start = posArray[from];
+        byte[] bytes = readBuffs.get();
+        int readNum = readAt(ByteBuffer.wrap(bytes, 0, (int) (posArray[to-1] - start) + StoreConfig.BATCH_READ_LINE_TAIL), start);
+        for (int i = from; i < to; i++) {
+            int offset = (int) (posArray[i] - start);
+            int end = offset;
+            while (end < readNum && bytes[end] != '\n') end++;
+            if(end < readNum){
+                result.add(OrderUtil.parse(new String(bytes, offset, end - offset)));
+            }else {
+                result.add(OrderUtil.parse(readLine(posArray[i])));
+            }
+        }
+    }
+
+    //超长的记录,一段一段往后读直到换行
+    private String readLine(long pos)throws IOException{
+        ByteArrayOutputStream out = new ByteArrayOutputStream(StoreConfig.BATCH_READ_LINE_TAIL * 2);
+        ByteBuffer buff = ByteBuffer.allocate(StoreConfig.BATCH_READ_LINE_TAIL * 4);
+        while (true){
+            buff.clear();
+            int readNum = readAt(buff, pos);
+            if(readNum == 0) throw new IOException(String.format("record not terminated %s %d", path, pos));
+            byte[] bytes = buff.array();
+            for (int i = 0; i < readNum; i++) {
+                if(bytes[i] == '\n'){
+                    out.write(bytes, 0, i);
+                    return new String(out.toByteArray());
                 }
             }
-        }while (index < posArray.length);
+            out.write(bytes, 0, readNum);
+            pos += readNum;
+        }
+    }
 
-        if(result.size() != posArray.length){
-            PrintUtil.print("UNEXPECT %d != %d", result.size(), posArray.length);
-            System.exit(1);
+    //读到buff满或者文件结束,返回读到的字节数
+    private int readAt(ByteBuffer buff, long pos)throws IOException{
+        int readNum = 0;
+        while (buff.hasRemaining()){
+            int tmp = fileChannel.read(buff, pos + readNum);
+            if(tmp < 0) break;
+            readNum += tmp;
         }
-        return result;
+        return readNum;
     }
 
 
-    public boolean parseAndAdd(ByteBuffer buffer,List<Map<String,String>> result){
-        byte[] bytes = new  byte[32 * 1024];
-        int count = 0;
-        boolean corr = false;
-        int remain = buffer.remaining();
-        for (int i=0;i< remain;i++){
-            byte tmp = buffer.get();
-            if(tmp == (int)'\n'){
-                corr = true;
-                break;
-            }
-            bytes[count++] = tmp;
-            if(count == bytes.length){
-                System.out.println(new String(bytes));
-                break;
+    //按posArray的顺序把记录重写到dstPath,返回每条记录在新文件里的位置;整个文件读进内存,超过ORIGIN_CLUSTER_MAX_SHARD_BYTES的返回null
+    public long[] writeSorted(long[] posArray, String dstPath)throws IOException{
+        long size = fileChannel.size();
+        if(size > StoreConfig.ORIGIN_CLUSTER_MAX_SHARD_BYTES) return null;
+        byte[] data = new byte[(int) size];
+        if(readAt(ByteBuffer.wrap(data), 0) != size) throw new IOException("read origin store failed " + path);
+        BuildStats.read(path, size);
+        long[] newPosArray = new long[posArray.length];
+        FileChannel dst = new RandomAccessFile(dstPath, "rw").getChannel();
+        try {
+            dst.truncate(0);
+            ByteBuffer out = ByteBuffer.allocate(StoreConfig.ORIGIN_CLUSTER_WRITE_BUFF_LEN);
+            long written = 0;
+            for (int i = 0; i < posArray.length; i++) {
+                int start = (int) posArray[i];
+                int end = start;
+                while (end < data.length && data[end] != '\n') end++;
+                if(end >= data.length) throw new IOException(String.format("record not terminated %s %d", path, start));
+                int len = end + 1 - start;
+                if(out.remaining() < len){
+                    out.flip();
+                    written += writeFully(dst, out, written);
+                    out.clear();
+                }
+                newPosArray[i] = written + out.position();
+                if(len > out.capacity()){
+                    written += writeFully(dst, ByteBuffer.wrap(data, start, len), written);
+                }else {
+                    out.put(data, start, len);
+                }
             }
+            out.flip();
+            written += writeFully(dst, out, written);
+            BuildStats.written(dstPath, written);
+        }finally {
+            dst.close();
         }
-        if(corr){
-            String line = new String(bytes,0,count);
-            result.add(OrderUtil.parse(line));
+        return newPosArray;
+    }
+
+    private static int writeFully(FileChannel channel, ByteBuffer buff, long pos)throws IOException{
+        int len = buff.remaining();
+        while (buff.hasRemaining()){
+            pos += channel.write(buff, pos);
         }
-        return corr;
+        return len;
+    }
+
+    public String getPath(){
+        return path;
+    }
+
+    //原子地改名,目标存在就直接覆盖;打开的fileChannel不受影响,失败时文件和path都不变
+    public void moveTo(String target)throws IOException{
+        Files.move(Paths.get(path), Paths.get(target), StandardCopyOption.ATOMIC_MOVE);
+        path = target;
+    }
+
+    public void close()throws IOException{
+        fileChannel.close();
+    }
+
+    //结果按posArray原来的顺序返回,读的时候仍然按位置顺序读
+    //位置左移后低位拼上原来的下标,一起排一次序,读完直接按下标放回去,不用每条再二分查找
+    public List<Map<String,String>> getObjectsInOrder(long[] posArray)throws IOException{
+        int num = posArray.length;
+        int bits = 32 - Integer.numberOfLeadingZeros(Math.max(num - 1, 1));
+        long mask = (1L << bits) - 1;
+        long[] packed = new long[num];
+        for (int i = 0; i < num; i++) {
+            if(posArray[i] >>> (63 - bits) != 0) return getObjectsInOrderBySearch(posArray);
+            packed[i] = posArray[i] << bits | i;
+        }
+        Arrays.sort(packed);
+        long[] sorted = new long[num];
+        for (int i = 0; i < num; i++) {
+            sorted[i] = packed[i] >>> bits;
+        }
+        List<Map<String,String>> sortedResult = getObjectsByPosArray(sorted);
+        List<Map<String,String>> result = new ArrayList<Map<String, String>>(Collections.<Map<String, String>>nCopies(num, null));
+        for (int i = 0; i < num; i++) {
+            result.set((int) (packed[i] & mask), sortedResult.get(i));
+        }
+        return result;
+    }
+
+    //位置太大拼不下下标时用
+    private List<Map<String,String>> getObjectsInOrderBySearch(long[] posArray)throws IOException{
+        long[] sorted = Arrays.copyOf(posArray, posArray.length);
+        //下面要在sorted上二分查找,自己先排好,不依赖getObjectsByPosArray的原地排序
+        Arrays.sort(sorted);
+        List<Map<String,String>> sortedResult = getObjectsByPosArray(sorted);
+        List<Map<String,String>> result = new ArrayList<Map<String, String>>(posArray.length);
+        for (long pos : posArray){
+            result.add(sortedResult.get(Arrays.binarySearch(sorted, pos)));
+        }
+        return result;
     }
 
 }
@@ -2,6 +2,8 @@ package com.alibaba.middleware.race.store;
 
 import java.io.IOException;
 import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 
 /**
  * Created by liuzhendong on 16/7/15.
@@ -9,6 +11,7 @@ import java.io.RandomAccessFile;
  * 内存和磁盘交换的基本单位
  * 约定1: 所有内容采取覆盖制,前面4个字节,表示该page写入的内容的长度
  * 约定2: 调用方自己控制内容的长度,如果这里发现内容超过page的范围,则自动截断,读和写均截断
+ * 约定3: 由PageMgr分配的page,写入先进PageMgr的脏页表,由PageMgr统一按顺序刷盘,读的时候优先读脏页
  */
 public class Page {
 
@@ -17,6 +20,7 @@ public class Page {
     private  long  startIndex;   //在原文件中的初始位置
     private  final int  size = StoreConfig.DEFAULT_PAGE_SIZE; // 默认大小是16K
     private  final int  headSize = 16; //page header,前面四个字节,存储该page写入的内容大小,注意,不包括头部
+    private  PageMgr  pageMgr; //为空则直接读写磁盘
 
 
     public Page randomFile(RandomAccessFile randomFile){
@@ -27,21 +31,35 @@ public class Page {
         this.startIndex = startIndex;
         return this;
     }
+    public Page pageMgr(PageMgr pageMgr){
+        this.pageMgr = pageMgr;
+        return this;
+    }
 
     //从磁盘中读出内容
     public byte[] readFromDisk()throws IOException{
         if(randomFile == null) {
             throw new RuntimeException("random file object is not allocated");
         }
-        synchronized (randomFile){
-            randomFile.seek(startIndex);
-            int bodySize = randomFile.readInt();
-            if(bodySize > size - headSize) bodySize = size - headSize;
-            byte[] body = new byte[bodySize];
-            randomFile.seek(startIndex + headSize);
-            randomFile.read(body);
-            return body;
+        if(pageMgr != null){
+            byte[] dirty = pageMgr.getDirtyBody(startIndex);
+            if(dirty != null) return dirty;
+        }
+        //定位读,不移动文件指针,也就不用锁住共用的句柄,多个线程可以同时读
+        FileChannel channel = randomFile.getChannel();
+        ByteBuffer buff = ByteBuffer.allocate(size);
+        while (buff.hasRemaining()){
+            if(channel.read(buff, startIndex + buff.position()) < 0) break;
         }
+        buff.flip();
+        if(buff.limit() < headSize) return new byte[0];
+        int bodySize = buff.getInt();
+        if(bodySize > size - headSize) bodySize = size - headSize;
+        if(bodySize < 0) bodySize = 0;
+        byte[] body = new byte[bodySize];
+        buff.position(headSize);
+        buff.get(body);
+        return body;
     };
 
     //刷入内容,注意要扣除头部
@@ -49,18 +67,27 @@ public class Page {
         if(randomFile == null){
             throw  new RuntimeException("random file object is not allocated");
         }
+        int bodysize = body.length > size - headSize ? size - headSize : body.length;
+        if(pageMgr != null && pageMgr.syncPolicy != PageMgr.SyncPolicy.EVERY_WRITE){
+            pageMgr.markDirty(startIndex, body, bodysize);
+            return;
+        }
         synchronized (randomFile){
             randomFile.seek(startIndex);
-            int bodysize = body.length > size - headSize ? size - headSize : body.length;
             randomFile.writeInt(bodysize);
             randomFile.seek(startIndex + headSize);
             randomFile.write(body,0, bodysize);
-            randomFile.getFD().sync();
+            if(pageMgr == null || pageMgr.syncPolicy == PageMgr.SyncPolicy.EVERY_WRITE){
+                randomFile.getFD().sync();
+            }
         }
     }
 
 
 
+    public int getHeadSize(){
+        return this.headSize;
+    }
     public int getPageSize(){
         return this.size;
     }
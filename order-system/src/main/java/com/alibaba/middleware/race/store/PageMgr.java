@@ -8,6 +8,9 @@ import java.io.RandomAccessFile;
 import java.util.Arrays;
 import java.util.HashMap;
 import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 
 /**
  * Created by liuzhendong on 16/7/15.
@@ -16,10 +19,19 @@ import java.util.Map;
  * 约定1: 单个对象管理的page都在一个文件中
  * 约定2: 第一个page,用来记录文件的page分配状况,如第一个page在哪个位置,总共分配了多少个page,分配的位置点,删除的page等
  * 约定3: 按顺序依次申请page,但在逻辑上应该理解为page链表,而不是page数组
+ * 约定4: page的写入先记在脏页表里(write-back),脏页过多或者调用sync时按位置排序、合并相邻的page后批量写入,
+ *        只在sync时调用一次fsync,由syncPolicy控制
  *
  */
 public class PageMgr {
 
+    //刷盘策略
+    public enum SyncPolicy{
+        EVERY_WRITE, //每个page写入都直接落盘并fsync,即原来的做法
+        BARRIER,     //写入先进脏页表,只在sync时fsync
+        NONE         //写入先进脏页表,sync时只写入不fsync,交给操作系统
+    }
+
     public final String path;
     public final Page firstPage;
 
@@ -30,10 +42,16 @@ public class PageMgr {
     public final long pageSize = StoreConfig.DEFAULT_PAGE_SIZE;
     public final long areaSize = StoreConfig.DEFAULT_AREA_SIZE;
     //RandomAccessFile 的共用会提高效率,这里把文件划分成多个area,每个area共用一个RandomAccessFile对象,其大小是整数个page的大小
-    public Map<Integer,RandomAccessFile> areaMap = new HashMap<Integer, RandomAccessFile>();
+    public ConcurrentMap<Integer,RandomAccessFile> areaMap = new ConcurrentHashMap<Integer, RandomAccessFile>();
 
     public Map<Long,Page> pageMap = new HashMap<Long, Page>();
 
+    public SyncPolicy syncPolicy = StoreConfig.PAGE_SYNC_POLICY;
+    public int maxDirtyPageNum = StoreConfig.MAX_DIRTY_PAGE_NUM;
+    //脏页表,key为page的起始位置,按位置有序,方便顺序写
+    private final TreeMap<Long,byte[]> dirtyPages = new TreeMap<Long, byte[]>();
+    private RandomAccessFile writeHandler;
+
     private PageMgr(String path,Page firstPage){
         this.path = path;
         this.firstPage = firstPage;
@@ -44,8 +62,8 @@ public class PageMgr {
         PageMgr pageMgr = new PageMgr(oldPath,firstPage);
         pageMgr.readHandler = new RandomAccessFile(pageMgr.path, "rw");
         RandomAccessFile randomAccessFile = new RandomAccessFile(pageMgr.path, "rw");
-        firstPage.randomFile(randomAccessFile);
-        firstPage.startIndex(0);
+        firstPage.randomFile(randomAccessFile).startIndex(0).pageMgr(pageMgr);
+        pageMgr.writeHandler = randomAccessFile;
         //TODO 初始化 allocatedPos
         pageMgr.loadFirstPage();
         return pageMgr;
@@ -59,7 +77,8 @@ public class PageMgr {
         pageMgr.readHandler = new RandomAccessFile(pageMgr.path, "rw");
         RandomAccessFile randomAccessFile = new RandomAccessFile(pageMgr.path, "rw");
         randomAccessFile.setLength(size);
-        firstPage.randomFile(randomAccessFile).startIndex(0);
+        firstPage.randomFile(randomAccessFile).startIndex(0).pageMgr(pageMgr);
+        pageMgr.writeHandler = randomAccessFile;
         pageMgr.allocatedPos = StoreConfig.DEFAULT_PAGE_SIZE;
         pageMgr.firstAllocatedPos = pageMgr.allocatedPos;
         pageMgr.flushFirstPage();
@@ -71,23 +90,29 @@ public class PageMgr {
         if(pos > allocatedPos) {
             throw new RuntimeException(String.format("pos out of range %d < %d", allocatedPos, pos));
         }
-       return new Page().startIndex(pos).randomFile(allocateAccessFile(pos));
+       return new Page().startIndex(pos).randomFile(allocateAccessFile(pos)).pageMgr(this);
     }
 
 
     private RandomAccessFile allocateAccessFile(long pos)throws IOException{
         int areaId = (int) (pos/areaSize);
-        if(areaMap.get(areaId) != null){
-            return areaMap.get(areaId);
+        RandomAccessFile exist = areaMap.get(areaId);
+        if(exist != null){
+            return exist;
         }
+        //并发读的时候可能多个线程同时创建,只留一个
         RandomAccessFile tmp = new RandomAccessFile(this.path,"rw");
-        areaMap.put(areaId,tmp);
+        exist = areaMap.putIfAbsent(areaId,tmp);
+        if(exist != null){
+            tmp.close();
+            return exist;
+        }
         return tmp;
     }
 
 
     public synchronized Page allocateNewPage()throws IOException{
-        Page page = new Page().startIndex(allocatedPos).randomFile(allocateAccessFile(allocatedPos));
+        Page page = new Page().startIndex(allocatedPos).randomFile(allocateAccessFile(allocatedPos)).pageMgr(this);
         pageMap.put(allocatedPos,page);
         allocatedPos += pageSize;
         return page;
@@ -110,4 +135,77 @@ public class PageMgr {
     }
 
 
+    //返回拷贝,调用方改了也不影响脏页表里还没写入的内容
+    public byte[] getDirtyBody(long pos){
+        synchronized (dirtyPages){
+            byte[] body = dirtyPages.get(pos);
+            return body == null ? null : Arrays.copyOf(body, body.length);
+        }
+    }
+
+    //拷贝body的前len个字节,调用方之后还可以继续改body
+    public void markDirty(long pos, byte[] body, int len)throws IOException{
+        byte[] copy = Arrays.copyOf(body, len);
+        boolean full;
+        synchronized (dirtyPages){
+            dirtyPages.put(pos, copy);
+            full = dirtyPages.size() > maxDirtyPageNum;
+        }
+        if(full) flushDirtyPages();
+    }
+
+    //把脏页按位置顺序写入,相邻的page合并成一次写,不做fsync
+    public void flushDirtyPages()throws IOException{
+        synchronized (dirtyPages){
+            if(dirtyPages.size() == 0) return;
+            int headSize = firstPage.getHeadSize();
+            int maxBatchNum = StoreConfig.DIRTY_PAGE_WRITE_BATCH_NUM;
+            byte[] batch = new byte[(int) pageSize * maxBatchNum];
+            long batchStart = -1;
+            int batchNum = 0, batchLen = 0;
+            for (Map.Entry<Long,byte[]> entry : dirtyPages.entrySet()){
+                long pos = entry.getKey();
+                byte[] body = entry.getValue();
+                if(batchNum > 0 && (pos != batchStart + batchNum * pageSize || batchNum >= maxBatchNum)){
+                    //不相邻或者批次满了,先写掉
+                    writeBatch(batchStart, batch, batchLen);
+                    batchNum = 0;
+                    batchLen = 0;
+                }
+                if(batchNum == 0){
+                    batchStart = pos;
+                }
+                int offset = (int) (batchNum * pageSize);
+                //上一个page的剩余部分补零
+                Arrays.fill(batch, batchLen, offset, (byte) 0);
+                System.arraycopy(TypeUtil.intToBytes(body.length), 0, batch, offset, 4);
+                Arrays.fill(batch, offset + 4, offset + headSize, (byte) 0);
+                System.arraycopy(body, 0, batch, offset + headSize, body.length);
+                batchLen = offset + headSize + body.length;
+                batchNum++;
+            }
+            if(batchNum > 0){
+                writeBatch(batchStart, batch, batchLen);
+            }
+            dirtyPages.clear();
+        }
+    }
+
+    private void writeBatch(long pos, byte[] batch, int len)throws IOException{
+        synchronized (writeHandler){
+            writeHandler.seek(pos);
+            writeHandler.write(batch, 0, len);
+        }
+    }
+
+    //持久化屏障:写入所有脏页,按策略fsync一次
+    public void sync()throws IOException{
+        flushDirtyPages();
+        if(syncPolicy != SyncPolicy.NONE){
+            synchronized (writeHandler){
+                writeHandler.getFD().sync();
+            }
+        }
+    }
+
 }
@@ -0,0 +1,220 @@
+package com.alibaba.middleware.race.store;
+
+import com.alibaba.middleware.race.util.TypeUtil;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Created by liuzhendong on 16/8/5.
+ * 热门商品的倒排表,从bTreesByGood的一个分区建出来,订单数不少于GOOD_POSTING_MIN_ORDERS的商品在这里另存一份
+ * 约定1: 输入是good索引的kv(good编号4 orderid8 | ctime8 amount1 buyer编号4 pos8),按(good,orderid)排好序;B树里的数据不删,查不到的商品照常走B树
+ * 约定2: 每个商品的订单按GOOD_POSTING_BLOCK_SIZE条切块,块内orderid和ctime都和前一条做差,变长编码;amount和done一个字节,buyer编号、pos的文件号和偏移也是变长
+ * 约定3: 每块的首个orderid和在文件中的位置放在内存里当跳表,按orderid范围查时只读覆盖范围的那几块,一次连续读出来顺序解码
+ */
+public class PostingStore {
+
+    //一次范围查询的结果,按列存放,不为每条记录建byte[]
+    public static class Postings{
+        public int size;
+        public long[] orderIds;
+        public long[] ctimes;
+        public byte[] amounts; //最高位是done
+        public int[] buyerIdxes;
+        public long[] poses;
+
+        Postings(int capacity){
+            orderIds = new long[capacity];
+            ctimes = new long[capacity];
+            amounts = new byte[capacity];
+            buyerIdxes = new int[capacity];
+            poses = new long[capacity];
+        }
+    }
+
+    //一个商品的跳表: 第i块的首个orderid和起始位置,offsets多放一个结束位置
+    static class Entry{
+        int num;
+        long[] firstIds;
+        long[] offsets;
+    }
+
+    static final int MAX_ENTRY_BYTES = 64; //一条编码后最多的字节数
+
+    final String path;
+    final FileChannel fileChannel;
+    final int blockSize;
+    final Map<Integer,Entry> entries;
+
+    PostingStore(String path, FileChannel fileChannel, int blockSize, Map<Integer,Entry> entries){
+        this.path = path;
+        this.fileChannel = fileChannel;
+        this.blockSize = blockSize;
+        this.entries = entries;
+    }
+
+    //kvs按(good,orderid)有序;没有热门商品时不建文件,返回null
+    public static PostingStore build(String path, List<byte[]> kvs, int minOrders, int blockSize)throws IOException{
+        Map<Integer,Entry> entries = new HashMap<Integer, Entry>();
+        FileChannel channel = null;
+        ByteBuffer out = ByteBuffer.allocate(StoreConfig.GOOD_POSTING_WRITE_BUFF_LEN);
+        long written = 0;
+        int from = 0;
+        while (from < kvs.size()){
+            int goodIdx = (int) TypeUtil.bytesToLong(kvs.get(from), 0, 4);
+            int to = from + 1;
+            while (to < kvs.size() && TypeUtil.bytesToLong(kvs.get(to), 0, 4) == goodIdx) to++;
+            int num = to - from;
+            if(num >= minOrders){
+                if(channel == null){
+                    channel = new RandomAccessFile(path, "rw").getChannel();
+                    channel.truncate(0);
+                }
+                int blockNum = (num + blockSize - 1) / blockSize;
+                Entry entry = new Entry();
+                entry.num = num;
+                entry.firstIds = new long[blockNum];
+                entry.offsets = new long[blockNum + 1];
+                long prevId = 0;
+                long prevCtime = 0;
+                for (int i = 0; i < num; i++) {
+                    byte[] kv = kvs.get(from + i);
+                    long orderId = TypeUtil.bytesToLong(kv, 4, 8);
+                    long ctime = TypeUtil.bytesToLong(kv, 12, 8);
+                    if(i % blockSize == 0){
+                        entry.firstIds[i / blockSize] = orderId;
+                        entry.offsets[i / blockSize] = written + out.position();
+                        prevId = orderId;
+                        prevCtime = 0;
+                    }
+                    if(out.remaining() < MAX_ENTRY_BYTES){
+                        written += flush(channel, out, written);
+                    }
+                    putVarLong(out, orderId - prevId);
+                    putVarLong(out, zigzag(ctime - prevCtime));
+                    out.put(kv[20]);
+                    putVarLong(out, TypeUtil.bytesToLong(kv, 21, 4));
+                    putVarLong(out, TypeUtil.bytesToLong(kv, 25, 2));
+                    putVarLong(out, TypeUtil.bytesToLong(kv, 27, 6));
+                    prevId = orderId;
+                    prevCtime = ctime;
+                }
+                entry.offsets[blockNum] = written + out.position();
+                entries.put(goodIdx, entry);
+            }
+            from = to;
+        }
+        if(channel == null) return null;
+        written += flush(channel, out, written);
+        BuildStats.written(path, written);
+        return new PostingStore(path, channel, blockSize, entries);
+    }
+
+    private static int flush(FileChannel channel, ByteBuffer out, long pos)throws IOException{
+        out.flip();
+        int len = out.remaining();
+        while (out.hasRemaining()){
+            pos += channel.write(out, pos);
+        }
+        out.clear();
+        return len;
+    }
+
+    public boolean contains(int goodIdx){
+        return entries.containsKey(goodIdx);
+    }
+
+    public int goodNum(){
+        return entries.size();
+    }
+
+    //orderid在[fromId,toId]里的订单,按orderid升序;不在这里的商品返回null
+    public Postings query(int goodIdx, long fromId, long toId)throws IOException{
+        Entry entry = entries.get(goodIdx);
+        if(entry == null) return null;
+        //最后一个首id不大于fromId的块开始,最后一个首id不大于toId的块结束
+        int startBlock = Math.max(0, floorBlock(entry.firstIds, fromId));
+        int endBlock = floorBlock(entry.firstIds, toId);
+        if(endBlock < 0 || fromId > toId) return new Postings(0);
+        long start = entry.offsets[startBlock];
+        byte[] bytes = new byte[(int) (entry.offsets[endBlock + 1] - start)];
+        ByteBuffer buff = ByteBuffer.wrap(bytes);
+        while (buff.hasRemaining()){
+            if(fileChannel.read(buff, start + buff.position()) < 0){
+                throw new IOException(String.format("posting truncated %s %d", path, goodIdx));
+            }
+        }
+        int first = startBlock * blockSize;
+        int last = Math.min(entry.num, (endBlock + 1) * blockSize);
+        Postings postings = new Postings(last - first);
+        int[] offset = new int[]{0};
+        long orderId = 0;
+        long ctime = 0;
+        for (int i = first; i < last; i++) {
+            if(i % blockSize == 0){
+                orderId = entry.firstIds[i / blockSize];
+                ctime = 0;
+            }
+            orderId += getVarLong(bytes, offset);
+            ctime += unzigzag(getVarLong(bytes, offset));
+            byte amount = bytes[offset[0]++];
+            int buyerIdx = (int) getVarLong(bytes, offset);
+            long shard = getVarLong(bytes, offset);
+            long pos = getVarLong(bytes, offset);
+            if(orderId > toId) break;
+            if(orderId < fromId) continue;
+            int n = postings.size++;
+            postings.orderIds[n] = orderId;
+            postings.ctimes[n] = ctime;
+            postings.amounts[n] = amount;
+            postings.buyerIdxes[n] = buyerIdx;
+            postings.poses[n] = shard << 48 | pos;
+        }
+        return postings;
+    }
+
+    //最后一个不大于id的下标,都比id大返回-1;同一个商品的orderid不重复,首id严格递增
+    static int floorBlock(long[] firstIds, long id){
+        int index = Arrays.binarySearch(firstIds, id);
+        return index >= 0 ? index : -index - 2;
+    }
+
+    public void close(boolean delete)throws IOException{
+        fileChannel.close();
+        if(delete) new File(path).delete();
+    }
+
+    static void putVarLong(ByteBuffer out, long value){
+        while ((value & ~0x7FL) != 0){
+            out.put((byte) ((value & 0x7F) | 0x80));
+            value >>>= 7;
+        }
+        out.put((byte) value);
+    }
+
+    static long getVarLong(byte[] bytes, int[] offset){
+        long value = 0;
+        int shift = 0;
+        while (true){
+            byte b = bytes[offset[0]++];
+            value |= (long) (b & 0x7F) << shift;
+            if(b >= 0) return value;
+            shift += 7;
+        }
+    }
+
+    static long zigzag(long value){
+        return (value << 1) ^ (value >> 63);
+    }
+
+    static long unzigzag(long value){
+        return (value >>> 1) ^ -(value & 1);
+    }
+}
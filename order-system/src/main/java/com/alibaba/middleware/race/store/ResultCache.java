@@ -0,0 +1,101 @@
+package com.alibaba.middleware.race.store;
+
+import com.alibaba.middleware.race.util.PrintUtil;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Created by liuzhendong on 16/8/5.
+ * 查询结果缓存,数据构建完之后不再变化,所以缓存不需要失效,只需要淘汰
+ * 约定1: value是编码后的字节数组,按字节数计算容量,不按条数
+ * 约定2: 单条超过maxEntryBytes的结果不缓存,避免一个大结果把其它的都挤出去
+ * 约定3: key由调用方规范化,字段集合用OrderUtil.canonicalKeys处理,保证顺序和重复不影响命中
+ * 约定4: 追加数据后clear,代数加一;查询开始时记下代数,放缓存时代数变了就丢掉,避免旧数据算出的结果被放回去
+ */
+public class ResultCache {
+
+    private static final int ENTRY_OVERHEAD = 64; //LinkedHashMap entry和key对象的大概开销
+
+    private final String name;
+    private final long maxBytes;
+    private final long maxEntryBytes;
+    private long usedBytes = 0;
+    private volatile long generation = 0;
+    public final AtomicLong queryNum = new AtomicLong(0);
+    public final AtomicLong hitNum = new AtomicLong(0);
+
+    private final LinkedHashMap<String,byte[]> entries = new LinkedHashMap<String, byte[]>(1024, 0.75f, true);
+
+    public ResultCache(String name, long maxBytes, long maxEntryBytes){
+        this.name = name;
+        this.maxBytes = maxBytes;
+        this.maxEntryBytes = maxEntryBytes;
+    }
+
+    public byte[] get(String key){
+        long qNum = queryNum.incrementAndGet();
+        byte[] value;
+        synchronized (entries){
+            value = entries.get(key);
+        }
+        long hNum = value != null ? hitNum.incrementAndGet() : hitNum.get();
+        if(qNum % 10000 == 0){
+            PrintUtil.print("RESULT CACHE %s HIT %d %d %.2f USED %d", name, qNum, hNum, (hNum+0.1)/qNum, usedBytes);
+        }
+        return value;
+    }
+
+    //不计入命中统计,放缓存之前看看已有的值用
+    public byte[] peek(String key){
+        synchronized (entries){
+            return entries.get(key);
+        }
+    }
+
+    public void put(String key, byte[] value){
+        put(key, value, generation);
+    }
+
+    public void put(String key, byte[] value, long generation){
+        long weight = weight(key, value);
+        if(weight > maxEntryBytes) return;
+        synchronized (entries){
+            if(generation != this.generation) return;
+            byte[] old = entries.put(key, value);
+            if(old != null) usedBytes -= weight(key, old);
+            usedBytes += weight;
+            if(usedBytes <= maxBytes) return;
+            Iterator<Map.Entry<String,byte[]>> iterator = entries.entrySet().iterator();
+            while (usedBytes > maxBytes && iterator.hasNext()){
+                Map.Entry<String,byte[]> eldest = iterator.next();
+                usedBytes -= weight(eldest.getKey(), eldest.getValue());
+                iterator.remove();
+            }
+        }
+    }
+
+    public long generation(){
+        return generation;
+    }
+
+    public void clear(){
+        synchronized (entries){
+            generation++;
+            entries.clear();
+            usedBytes = 0;
+        }
+    }
+
+    public long getUsedBytes(){
+        synchronized (entries){
+            return usedBytes;
+        }
+    }
+
+    private static long weight(String key, byte[] value){
+        return value.length + key.length() * 2 + ENTRY_OVERHEAD;
+    }
+}
@@ -4,12 +4,15 @@ import com.alibaba.middleware.race.util.PrintUtil;
 import com.alibaba.middleware.race.util.RankUtil;
 import com.alibaba.middleware.race.util.TypeUtil;
 
+import java.io.File;
 import java.io.IOException;
 import java.io.RandomAccessFile;
 import java.nio.ByteBuffer;
 import java.nio.channels.FileChannel;
 import java.util.*;
+import java.util.concurrent.ConcurrentLinkedQueue;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * Created by liuzhendong on 16/7/27.
@@ -17,18 +20,33 @@ import java.util.concurrent.atomic.AtomicInteger;
  * 1 每颗B树可以完整加载到内存中
  * 2 每棵B树只能构建一次,中途插入的成本很高
  * 3 先按插入顺序存储到文件中,待插入结束,从文件中读出所有数据在内存中排序后再插入
+ * 4 写入时每个线程有自己的写缓冲,写满后原子地预留文件位置,交给刷盘线程写入,写入路径上没有锁
+ * 5 keyNodes里每个叶子除了最大key,还记录最小key、key中某个long字段的min/max和前缀的位图摘要,
+ *   范围查询据此跳过不可能命中的叶子,count可以只用目录回答
+ * 6 叶子按字节数切: 每个叶子放STREE_LEAF_BYTES能放下的条数,起始位置按STREE_PAGE_SIZE对齐,中间补0;
+ *   相同的key不跨叶子,所以个别叶子会超过一页。点查只读一个叶子,范围查询一次读连续的几个叶子,跳过补的0
+ * 7 找叶子不走keyNodes,走KeyDir: 叶子的最大key按long连续存放、Eytzinger顺序排列,一次比较8个字节
  *
  */
 public class SimpleBTree {
 
     public class Node{
         byte[] key;
-        int pos;
+        int start; //叶子在文件中的起始位置,按页对齐
+        int pos; //叶子的结束位置,不含补齐的部分
+        //叶子的目录信息,rerank时生成
+        byte[] firstKey;
+        long zoneMin = Long.MIN_VALUE, zoneMax = Long.MAX_VALUE;
+        long[] prefixBits;
         public Node(){}
-        public Node(byte[] key,int pos){
+        public Node(byte[] key,int start,int pos){
             this.key = key;
+            this.start = start;
             this.pos = pos;
         }
+        public int getStart(){
+            return start;
+        }
     }
     public boolean cache = false;
     public AtomicInteger queryNum = new AtomicInteger(0);
@@ -39,127 +57,241 @@ public class SimpleBTree {
         return this;
     }
 
-    final DirectBuffMgr  directBuffMgr  = new DirectBuffMgr(400);
-    //TODO 设计一个600大小的缓存,以direct buff 的形式存储
-    LruCache<String,ByteBuffer> buffCache = new LruCache<String, ByteBuffer>(400,400,"stree"){
+    public static final int ZONE_PREFIX_BITS = 256; //每个叶子的前缀摘要位数
+    public int zonePrefixLen = 0;  //key的前多少个字节算一个前缀,比如buyer的suffix+hash,0表示不做前缀摘要
+    public int zoneOffset = -1;    //key中第几个字节开始的long字段做min/max,比如ctime,-1表示不做
+    public SimpleBTree zoneBy(int zonePrefixLen, int zoneOffset){
+        this.zonePrefixLen = zonePrefixLen;
+        this.zoneOffset = zoneOffset;
+        return this;
+    }
 
-        @Override
-        protected boolean removeEldestEntry(Map.Entry<String,ByteBuffer> eldest) {
-            if(super.size() > 400){
-                directBuffMgr.push(eldest.getValue());
-                return true;
-            }
-            return false;
-        }
-    };
+    //叶子缓存用进程内共用的LeafCache,这里只记本树占了多少字节,由LeafCache在锁内维护
+    volatile long cachedBytes = 0;
+    //LeafCache按树区分叶子,同一个路径重新建的树不能读到旧树缓存的内容
+    private static final AtomicLong NEXT_CACHE_ID = new AtomicLong(0);
+    final long cacheId = NEXT_CACHE_ID.getAndIncrement();
+
+    //每个写线程一个的写缓冲
+    class WriteSlot{
+        ByteBuffer buff;
+        int num; //buff中的记录数
+    }
 
     public String filePath;
     public FileChannel fileChannel;
     public int keySize;
     public int dataSize;
-    public ByteBuffer byteBuffer;
     public int kvNum;
+
+    WriteBuffPool writeBuffPool;
+    AsyncFlusher writeFlusher;
+    final AtomicLong writeFilePos = new AtomicLong(0); //下一个写缓冲在文件中的位置
+    final AtomicInteger writeKvNum = new AtomicInteger(0);
+    final ConcurrentLinkedQueue<WriteSlot> writeSlots = new ConcurrentLinkedQueue<WriteSlot>();
+    final ThreadLocal<WriteSlot> localWriteSlot = new ThreadLocal<WriteSlot>(){
+        @Override
+        protected WriteSlot initialValue() {
+            WriteSlot slot = new WriteSlot();
+            writeSlots.add(slot);
+            return slot;
+        }
+    };
     public List<Node>  keyNodes; //类似于B树的内节点
+    volatile KeyDir keyDir; //keyNodes的紧凑目录,rerank之后才有
     public SimpleBTree(String filePath,int keySize,int dataSize,boolean cache)throws IOException{
         this.filePath = filePath;
         this.keySize = keySize;
         this.dataSize = dataSize;
         fileChannel = new RandomAccessFile(filePath,"rw").getChannel();
-        byteBuffer = ByteBuffer.allocate(StoreConfig.DEFAULT_BUFF_LEN);
         keyNodes = new ArrayList<Node>(10 * 1024);
         this.cache = cache;
     }
 
-    public synchronized void write(byte[] keyvalue)throws IOException{
-        if(byteBuffer.remaining() < keyvalue.length){
-            byteBuffer.flip();
-            fileChannel.write(byteBuffer);
-            byteBuffer.clear();
+    //设置了写缓冲池和刷盘线程后,写满的缓冲异步刷盘,否则由写线程自己写入
+    public SimpleBTree writeBy(WriteBuffPool writeBuffPool, AsyncFlusher writeFlusher){
+        this.writeBuffPool = writeBuffPool;
+        this.writeFlusher = writeFlusher;
+        return this;
+    }
+
+    public void write(byte[] keyvalue)throws IOException{
+        WriteSlot slot = localWriteSlot.get();
+        if(slot.buff == null){
+            slot.buff = allocateWriteBuff();
+        }else if(slot.buff.remaining() < keyvalue.length){
+            flushSlot(slot);
+            slot.buff = allocateWriteBuff();
         }
-        byteBuffer.put(keyvalue);
-        kvNum++;
+        slot.buff.put(keyvalue);
+        slot.num++;
     }
 
+    private ByteBuffer allocateWriteBuff()throws IOException{
+        if(writeBuffPool == null){
+            return ByteBuffer.allocate(StoreConfig.STREE_WRITE_BUFF_LEN);
+        }
+        try {
+            return writeBuffPool.take();
+        }catch (InterruptedException e){
+            throw new IOException(e);
+        }
+    }
+
+    //预留文件位置,把slot中的buff交出去
+    private void flushSlot(WriteSlot slot)throws IOException{
+        ByteBuffer buff = slot.buff;
+        slot.buff = null;
+        buff.flip();
+        long pos = writeFilePos.getAndAdd(buff.remaining());
+        writeKvNum.addAndGet(slot.num);
+        slot.num = 0;
+        if(writeFlusher != null){
+            writeFlusher.submit(filePath, fileChannel, buff, pos, writeBuffPool);
+            return;
+        }
+        BuildStats.written(filePath, buff.remaining());
+        while (buff.hasRemaining()){
+            pos += fileChannel.write(buff, pos);
+        }
+        buff.clear();
+    }
+
+    //所有写线程结束后调用,异步刷盘时还需要等刷盘线程结束才能rerank
     public void finishWrite()throws IOException{
-        byteBuffer.flip();
-        fileChannel.write(byteBuffer);
-        byteBuffer.clear();
+        for (WriteSlot slot : writeSlots){
+            if(slot.buff == null) continue;
+            if(slot.num == 0){
+                if(writeBuffPool != null) writeBuffPool.release(slot.buff);
+                slot.buff = null;
+                continue;
+            }
+            flushSlot(slot);
+        }
+        kvNum = writeKvNum.get();
     }
 
-    public List<byte[]> getValuesByPosRange(long posStart, long posEnd)throws IOException{
+    //读[leafFrom, leafTo]这几个连续的叶子,一次读出来,再按每个叶子的位置取数据
+    List<byte[]> getValuesByLeafRange(int leafFrom, int leafTo)throws IOException{
+        long posStart = keyNodes.get(leafFrom).start;
+        long posEnd = keyNodes.get(leafTo).pos;
+        AccessLog.leaf(filePath, posStart, posEnd);
         if(cache){
             //TODO 有bug 大小不一致的
             int qNum = queryNum.addAndGet(1);
             int hNum = hitCacheNum.get();
-            String key = posStart+":" + posEnd;
-            ByteBuffer buff = buffCache.get(key);
-            if(buff == null){
-                synchronized (fileChannel){
-                    buff = directBuffMgr.allocate((int) (posEnd-posStart));
-                    fileChannel.position(posStart);
-                    fileChannel.read(buff);
-                }
-                buff.flip();
-                buffCache.put(key,buff);
+            LeafCache.Leaf leaf = LeafCache.INSTANCE.get(this, posStart, posEnd);
+            if(leaf == null){
+                leaf = loadLeaf(posStart, posEnd);
             }else {
                 hNum = hitCacheNum.addAndGet(1);
             }
             if(qNum % 1000 == 0){
-                PrintUtil.print("SIMTREE %s CACHE HIT %d %d %.2f", this.name, qNum, hNum, (hNum+0.1)/qNum);
+                PrintUtil.print("SIMTREE %s CACHE HIT %d %d %.2f USED %d", this.name, qNum, hNum, (hNum+0.1)/qNum, cachedBytes);
             }
-            synchronized (buff){
-                buff.rewind();
-                return deserialize(buff, buff.remaining());
-            }
-        }else {
-            ByteBuffer buff = ByteBuffer.allocate((int) (posEnd-posStart));
-            synchronized (fileChannel){
-                fileChannel.position(posStart);
-                fileChannel.read(buff);
+            if(leaf != null){
+                try {
+                    return deserialize(leaf.data(), leafFrom, leafTo);
+                }finally {
+                    LeafCache.INSTANCE.release(leaf);
+                }
             }
-            buff.flip();
-            List<byte[]> res = deserialize(buff,buff.remaining());
-            buff.clear();
-            return res;
         }
+        //不带缓存,或者缓存放不下
+        ByteBuffer buff = ByteBuffer.allocate((int) (posEnd-posStart));
+        readFully(buff, posStart);
+        buff.flip();
+        return deserialize(buff, leafFrom, leafTo);
+    }
+
+    private void readFully(ByteBuffer buff, long pos)throws IOException{
+        while (buff.hasRemaining()){
+            int readNum = fileChannel.read(buff, pos);
+            if(readNum < 0) throw new IOException(String.format("read out of file %s %d", filePath, pos));
+            pos += readNum;
+        }
+    }
+
+    //读进LeafCache分配的块里再发布,返回pin住的叶子;缓存放不下返回null
+    private LeafCache.Leaf loadLeaf(long posStart, long posEnd)throws IOException{
+        LeafCache.Leaf leaf = LeafCache.INSTANCE.allocate(this, posStart, posEnd);
+        if(leaf == null) return null;
+        try {
+            readFully(leaf.data(), posStart);
+        }catch (IOException e){
+            LeafCache.INSTANCE.release(leaf);
+            throw e;
+        }
+        return LeafCache.INSTANCE.publish(leaf);
+    }
+
+    //预热一个叶子,带缓存的读进叶子缓存,不带缓存的读一遍进page cache;不记访问记录,位置不对返回false
+    public boolean warm(long posStart, long posEnd)throws IOException{
+        checkReRank();
+        if(keyNodes.size() == 0) return false;
+        if(posStart < 0 || posEnd <= posStart || posEnd > keyNodes.get(keyNodes.size()-1).pos) return false;
+        if(posStart % StoreConfig.STREE_PAGE_SIZE != 0) return false;
+        if(cache){
+            LeafCache.Leaf leaf = LeafCache.INSTANCE.get(this, posStart, posEnd);
+            if(leaf == null) leaf = loadLeaf(posStart, posEnd);
+            if(leaf == null) return false;
+            LeafCache.INSTANCE.release(leaf);
+            return true;
+        }
+        ByteBuffer buff = ByteBuffer.allocate((int) (posEnd-posStart));
+        fileChannel.read(buff, posStart);
+        return true;
     }
 
     public List<byte[]> query(byte[] key)throws IOException{
         checkReRank();
+        if(keyNodes.size() == 0) return new ArrayList<byte[]>(4);
         if(key.length != keySize){
             throw new RuntimeException(String.format("key len is not consistent %d != %d",key.length, keySize));
         }
 
         int leafIndex = findChildIndex(keyNodes,key,keySize);
         if(leafIndex >= keyNodes.size()) return  new ArrayList<byte[]>(4);
-        int posStart = 0,posEnd = keyNodes.get(leafIndex).pos;
-        if(leafIndex -1 >= 0){
-            posStart = keyNodes.get(leafIndex-1).pos;
-        }
-
-        List<byte[]> kvs = getValuesByPosRange(posStart, posEnd);
+        List<byte[]> kvs = getValuesByLeafRange(leafIndex, leafIndex);
         return  RankUtil.getResultByKey(kvs, key);
     }
 
 
+    //多个key一起查,key要先排好序,落在同一个叶子上的key只读一次叶子,结果和key一一对应
+    public List<List<byte[]>> queryBatch(List<byte[]> keys)throws IOException{
+        checkReRank();
+        List<List<byte[]>> result = new ArrayList<List<byte[]>>(keys.size());
+        int lastLeafIndex = -1;
+        List<byte[]> kvs = null;
+        for (byte[] key : keys){
+            if(key.length != keySize){
+                throw new RuntimeException(String.format("key len is not consistent %d != %d",key.length, keySize));
+            }
+            int leafIndex = keyNodes.size() == 0 ? 0 : findChildIndex(keyNodes,key,keySize);
+            if(leafIndex >= keyNodes.size()){
+                result.add(new ArrayList<byte[]>(4));
+                continue;
+            }
+            if(leafIndex != lastLeafIndex){
+                kvs = getValuesByLeafRange(leafIndex, leafIndex);
+                lastLeafIndex = leafIndex;
+            }
+            result.add(RankUtil.getResultByKey(kvs, key));
+        }
+        return result;
+    }
+
     private List<byte[]> _getResultByRange(int index,byte[] from, byte[] to)throws IOException{
         if(index >= keyNodes.size()){
             return new ArrayList<byte[]>(4);
         }
-        int posStart = 0,posEnd = keyNodes.get(index).pos;
-        if(index -1 >= 0){
-            posStart = keyNodes.get(index-1).pos;
-        }
-        return _getResultByRange(posStart, posEnd, from, to);
-    }
-    private List<byte[]> _getResultByRange(int posStart, int posEnd, byte[] from, byte[] to)throws IOException{
-
-        List<byte[]> kvs = getValuesByPosRange(posStart, posEnd);
+        List<byte[]> kvs = getValuesByLeafRange(index, index);
         return  RankUtil.getResultByRange(kvs, from, to);
     }
 
     public List<byte[]> query(byte[] from, byte[] to)throws IOException{
         checkReRank();
+        if(keyNodes.size() == 0) return new ArrayList<byte[]>(4);
         if(from.length != keySize || to.length != keySize){
             throw new RuntimeException(String.format("%d != %d or %d != %d",from.length, keySize, to.length, keySize));
         }
@@ -170,22 +302,130 @@ public class SimpleBTree {
             return new ArrayList<byte[]>(4);
         }
         if(leafStart == leafEnd){
+            if(!mayContain(keyNodes.get(leafStart), from, to)) return new ArrayList<byte[]>(4);
             return _getResultByRange(leafStart, from, to);
         }else {
             List<byte[]> result = new ArrayList<byte[]>(leafStart-leafEnd > 1 ? 2048 : 1024);
-            result.addAll(_getResultByRange(leafStart,from, null));
+            //中间的叶子一定全部命中,只有两头的叶子可能被跳过
+            if(mayContain(keyNodes.get(leafStart), from, to)){
+                result.addAll(_getResultByRange(leafStart,from, null));
+            }
             if(leafEnd - leafStart > 1){
-                int posStart = keyNodes.get(leafStart).pos;
-                int posEnd = keyNodes.get(leafEnd-1).pos;
-                List<byte[]> kvs = getValuesByPosRange(posStart, posEnd);
-                result.addAll(kvs);
+                result.addAll(getValuesByLeafRange(leafStart + 1, leafEnd - 1));
+            }
+            if(leafEnd < keyNodes.size() && mayContain(keyNodes.get(leafEnd), from, to)){
+                result.addAll(_getResultByRange(leafEnd,null, to));
             }
-            result.addAll(_getResultByRange(leafEnd,null, to));
             return result;
         }
     }
+
+    //从to往from倒着找,最多返回limit条,结果按key降序,找够了就不再读前面的叶子
+    public List<byte[]> queryDesc(byte[] from, byte[] to, int limit)throws IOException{
+        checkReRank();
+        if(from.length != keySize || to.length != keySize){
+            throw new RuntimeException(String.format("%d != %d or %d != %d",from.length, keySize, to.length, keySize));
+        }
+        List<byte[]> result = new ArrayList<byte[]>(Math.min(limit, 1024));
+        if(limit <= 0 || keyNodes.size() == 0) return result;
+        int leafStart = findChildIndex(keyNodes, from, from.length);
+        if(leafStart >= keyNodes.size()) return result;
+        int leafEnd = findChildIndex(keyNodes, to, to.length);
+        if(leafEnd >= keyNodes.size()) leafEnd = keyNodes.size() - 1;
+        for (int i = leafEnd; i >= leafStart && result.size() < limit; i--) {
+            if(!mayContain(keyNodes.get(i), from, to)) continue;
+            List<byte[]> kvs = _getResultByRange(i, from, to);
+            for (int j = kvs.size() - 1; j >= 0 && result.size() < limit; j--) {
+                result.add(kvs.get(j));
+            }
+        }
+        return result;
+    }
+
+    //只统计[from,to)的条数,整个落在范围内或者不可能命中的叶子不读盘
+    public int count(byte[] from, byte[] to)throws IOException{
+        checkReRank();
+        if(keyNodes.size() == 0) return 0;
+        if(from.length != keySize || to.length != keySize){
+            throw new RuntimeException(String.format("%d != %d or %d != %d",from.length, keySize, to.length, keySize));
+        }
+        int leafStart = findChildIndex(keyNodes, from, from.length);
+        if(leafStart >= keyNodes.size()) return 0;
+        int leafEnd = findChildIndex(keyNodes, to, to.length);
+        if(leafEnd >= keyNodes.size()) leafEnd = keyNodes.size() - 1;
+        int num = 0;
+        for (int i = leafStart; i <= leafEnd; i++) {
+            Node node = keyNodes.get(i);
+            if(!mayContain(node, from, to)) continue;
+            if(node.firstKey != null && RankUtil.compare(node.firstKey, from, keySize) >= 0
+                    && RankUtil.compare(node.key, to, keySize) < 0){
+                num += (node.pos - node.start) / (keySize + dataSize);
+                continue;
+            }
+            num += _getResultByRange(i, from, to).size();
+        }
+        return num;
+    }
+
+    //根据目录信息判断叶子里是否可能有[from,to)的数据
+    private boolean mayContain(Node node, byte[] from, byte[] to){
+        if(node.firstKey == null) return true;
+        if(RankUtil.compare(node.key, from, keySize) < 0 || RankUtil.compare(node.firstKey, to, keySize) >= 0){
+            return false;
+        }
+        if(zonePrefixLen > 0 && node.prefixBits != null && RankUtil.compare(from, to, zonePrefixLen) == 0){
+            int bit = prefixBit(from);
+            if((node.prefixBits[bit >>> 6] & (1L << (bit & 63))) == 0) return false;
+        }
+        //zone字段前面的部分相同,命中的记录的zone字段一定落在from和to之间
+        if(zoneOffset >= 0 && RankUtil.compare(from, to, zoneOffset) == 0){
+            long zoneFrom = TypeUtil.bytesToLong(from, zoneOffset, 8);
+            long zoneTo = TypeUtil.bytesToLong(to, zoneOffset, 8);
+            if(node.zoneMax < zoneFrom || node.zoneMin > zoneTo) return false;
+        }
+        return true;
+    }
+
+    private int prefixBit(byte[] key){
+        int h = 0;
+        for (int i = 0; i < zonePrefixLen; i++) {
+            h = 31 * h + key[i];
+        }
+        h ^= (h >>> 16);
+        return h & (ZONE_PREFIX_BITS - 1);
+    }
+
+    //按叶子生成目录信息,kvs是排好序的全部数据
+    private void buildZoneMaps(List<Node> nodes, Iterable<byte[]> kvs){
+        Iterator<byte[]> kvIt = kvs.iterator();
+        int kvLen = keySize + dataSize;
+        for (Node node : nodes){
+            int leafNum = (node.pos - node.start) / kvLen;
+            if(zoneOffset >= 0){
+                node.zoneMin = Long.MAX_VALUE;
+                node.zoneMax = Long.MIN_VALUE;
+            }
+            if(zonePrefixLen > 0){
+                node.prefixBits = new long[ZONE_PREFIX_BITS / 64];
+            }
+            for (int num = 0; num < leafNum && kvIt.hasNext(); num++){
+                byte[] kv = kvIt.next();
+                if(node.firstKey == null) node.firstKey = Arrays.copyOf(kv, keySize);
+                if(zoneOffset >= 0){
+                    long value = TypeUtil.bytesToLong(kv, zoneOffset, 8);
+                    if(value < node.zoneMin) node.zoneMin = value;
+                    if(value > node.zoneMax) node.zoneMax = value;
+                }
+                if(zonePrefixLen > 0){
+                    int bit = prefixBit(kv);
+                    node.prefixBits[bit >>> 6] |= 1L << (bit & 63);
+                }
+            }
+        }
+    }
+
     public void checkReRank()throws IOException{
-        if(keyNodes.size() > 0) return;
+        if(keyNodes.size() > 0 || kvNum == 0) return;
         synchronized (keyNodes){
             if(keyNodes.size() > 0) return;
             StoreConfig.STREE_CHECK_SEMAPHORE.acquireUninterruptibly(1);
@@ -196,157 +436,221 @@ public class SimpleBTree {
         }
     }
 
-    private List<byte[]>  deserialize(ByteBuffer buff,int readNum){
-        List<byte[]>  kvs = new ArrayList<byte[]>(1024);
-        for (int i = 0;i< readNum/(dataSize+keySize);i++) {
-            byte[] tmp = new byte[dataSize+keySize];
-            buff.get(tmp);
-            kvs.add(tmp);
+    //buff从第leafFrom个叶子的起始位置开始,跳过叶子之间补齐的部分
+    private List<byte[]>  deserialize(ByteBuffer buff, int leafFrom, int leafTo){
+        int kvLen = dataSize + keySize;
+        int base = keyNodes.get(leafFrom).start;
+        List<byte[]>  kvs = new ArrayList<byte[]>((keyNodes.get(leafTo).pos - base) / kvLen);
+        for (int i = leafFrom; i <= leafTo; i++) {
+            Node node = keyNodes.get(i);
+            buff.position(node.start - base);
+            for (int pos = node.start; pos < node.pos; pos += kvLen) {
+                byte[] tmp = new byte[kvLen];
+                buff.get(tmp);
+                kvs.add(tmp);
+            }
         }
         return kvs;
     }
-    public void reRank()throws IOException{
-        int readKvNum = 0;
-        List<byte[]>  kvs = new ArrayList<byte[]>(kvNum);
-        fileChannel.position(0);
-        ByteBuffer tmpBuffer = ByteBuffer.allocate(1024 * (dataSize + keySize));
-        Loop:
-        for (;;){
-            int readNum = fileChannel.read(tmpBuffer);
-            tmpBuffer.flip();
-            for (int i = 0;i< readNum/(dataSize+keySize);i++) {
-                byte[] tmp = new byte[dataSize+keySize];
-                tmpBuffer.get(tmp);
+
+    //rerank前的数据,按写入顺序紧挨着存放
+    private List<byte[]> readUnranked()throws IOException{
+        int kvLen = keySize + dataSize;
+        List<byte[]> kvs = new ArrayList<byte[]>(kvNum);
+        ByteBuffer buff = ByteBuffer.allocate(1024 * kvLen);
+        long pos = 0, end = (long) kvNum * kvLen;
+        while (pos < end){
+            buff.clear();
+            if(end - pos < buff.capacity()) buff.limit((int) (end - pos));
+            int readNum = fileChannel.read(buff, pos);
+            if(readNum <= 0) break;
+            pos += readNum;
+            buff.flip();
+            while (buff.remaining() >= kvLen){
+                byte[] tmp = new byte[kvLen];
+                buff.get(tmp);
                 kvs.add(tmp);
-                if(kvs.size() == kvNum) break Loop;
-            }
-            tmpBuffer.clear();
-            readKvNum += readNum/(dataSize+keySize);
-            if(readKvNum >= kvNum){
-                break;
             }
+            pos -= buff.remaining();
         }
+        return kvs;
+    }
+
+    public void reRank()throws IOException{
+        List<byte[]>  kvs = readUnranked();
+        long sortStart = System.nanoTime();
         Collections.sort(kvs, new Comparator<byte[]>() {
             @Override
             public int compare(byte[] o1, byte[] o2) {
                 return RankUtil.compare(o1,o2,keySize);
             }
         });
-        for (int i = 1023; i < kvs.size(); i+=1024){
-            int j = i;
-            while (true){
-                j++;
-                if(j >= kvs.size()){
-                    break;
-                }
-                if(RankUtil.compare(kvs.get(j),kvs.get(i),keySize) != 0){
-                    break;
-                }
-            }
-            j--;
-            keyNodes.add(new Node(kvs.get(j),(j+1)*(dataSize+keySize)));
-
-        }
-        //最后一个节点校验
-        if(keyNodes.size() == 0 || RankUtil.compare(kvs.get(kvs.size()-1), keyNodes.get(keyNodes.size()-1).key,keySize) != 0){
-            keyNodes.add(new Node(kvs.get(kvs.size()-1),(kvs.size())*(dataSize+keySize)));
-        }
-        fileChannel.position(0);
-        ByteBuffer flushBuff = ByteBuffer.allocate(kvs.size() * (keySize + dataSize));
-
-        PrintUtil.print("rerank size:%d kvNum:%d keySize:%d dataSize:%d", kvs.size(),kvNum, keySize, dataSize);
-        for (int i = 0; i < kvs.size(); i++) {
-            //System.out.println(TypeUtil.bytesToLong(Arrays.copyOfRange(kvs.get(i),0,4)));
-            flushBuff.put(kvs.get(i));
-
-        }
-        flushBuff.flip();
-        fileChannel.write(flushBuff);
+        if(kvs.size() == 0) return; //空的分区,比如数据很少的增量分区
+        long writeStart = System.nanoTime();
+        layout(kvs);
+        //每条一个byte[]加上ArrayList里的引用
+        BuildStats.partition(filePath, kvs.size(), writeStart - sortStart, System.nanoTime() - writeStart, (long) kvs.size() * (kvArrayBytes() + 8));
+        PrintUtil.print("rerank size:%d kvNum:%d keySize:%d dataSize:%d leaves:%d", kvs.size(),kvNum, keySize, dataSize, keyNodes.size());
         kvs.clear();
     }
 
-
-
-
+    //TreeSet排序,相同的key只留一个
     public void reRankByTree()throws IOException{
-        int readKvNum = 0;
-        TreeSet<byte[]>  kvs = new TreeSet<byte[]>(new Comparator<byte[]>() {
+        TreeSet<byte[]>  sorted = new TreeSet<byte[]>(new Comparator<byte[]>() {
             @Override
             public int compare(byte[] o1, byte[] o2) {
                 return RankUtil.compare(o1,o2, keySize);
             }
         });
-        fileChannel.position(0);
-        ByteBuffer tmpBuffer = ByteBuffer.allocate(1024 * (dataSize + keySize));
-        Loop:
-        for (;;){
-            int readNum = fileChannel.read(tmpBuffer);
-            tmpBuffer.flip();
-            for (int i = 0;i< readNum/(dataSize+keySize);i++) {
-                byte[] tmp = new byte[dataSize+keySize];
-                tmpBuffer.get(tmp);
-                kvs.add(tmp);
-                if(kvs.size() == kvNum) break Loop;
-            }
-            tmpBuffer.clear();
-            readKvNum += readNum/(dataSize+keySize);
-            if(readKvNum >= kvNum){
-                break;
-            }
-        }
+        List<byte[]> unranked = readUnranked();
+        long sortStart = System.nanoTime();
+        sorted.addAll(unranked);
+        if(sorted.size() == 0) return;
+        List<byte[]> kvs = new ArrayList<byte[]>(sorted);
+        sorted.clear();
+        long writeStart = System.nanoTime();
+        layout(kvs);
+        //读出来的列表、TreeMap的节点和排好序的列表同时存在
+        BuildStats.partition(filePath, kvs.size(), writeStart - sortStart, System.nanoTime() - writeStart, (long) unranked.size() * (kvArrayBytes() + 8 + 40 + 8));
+        PrintUtil.print("rerank size:%d kvNum:%d keySize:%d dataSize:%d leaves:%d", kvs.size(),kvNum, keySize, dataSize, keyNodes.size());
+        kvs.clear();
+    }
 
-        fileChannel.position(0);
-        ByteBuffer flushBuff = ByteBuffer.allocateDirect(512 * 1024 * (keySize + dataSize));
-        int i=0;
-        Iterator<byte[]> kvIt = kvs.iterator();
-        byte[] last = null;
-        while (kvIt.hasNext()){
-            last = kvIt.next();
-            if(++i % 1024 == 0){
-                keyNodes.add(new Node(last, i * (dataSize+keySize)));
+    //一条kv的byte[]在堆上占的字节数,16字节对象头,按8字节对齐
+    private int kvArrayBytes(){
+        return (16 + keySize + dataSize + 7) / 8 * 8;
+    }
+
+    //把排好序的数据按叶子写回文件,生成keyNodes、目录信息和KeyDir
+    private void layout(List<byte[]> kvs)throws IOException{
+        int kvLen = keySize + dataSize;
+        int pageSize = StoreConfig.STREE_PAGE_SIZE;
+        int leafKvNum = Math.max(1, StoreConfig.STREE_LEAF_BYTES / kvLen);
+        List<Node> nodes = new ArrayList<Node>(kvs.size() / leafKvNum + 1);
+        ByteBuffer flushBuff = ByteBuffer.allocateDirect(Math.max(512 * 1024, pageSize + leafKvNum * kvLen));
+        byte[] padding = new byte[pageSize];
+        long flushPos = 0;
+        int start = 0;
+        int i = 0;
+        while (i < kvs.size()){
+            int j = Math.min(i + leafKvNum, kvs.size()) - 1;
+            //相同的key放在同一个叶子里
+            while (j + 1 < kvs.size() && RankUtil.compare(kvs.get(j+1), kvs.get(j), keySize) == 0) j++;
+            int end = start + (j - i + 1) * kvLen;
+            nodes.add(new Node(kvs.get(j), start, end));
+            for (int k = i; k <= j; k++) {
+                if(flushBuff.remaining() < kvLen) flushPos = flush(flushBuff, flushPos);
+                flushBuff.put(kvs.get(k));
             }
-            if(flushBuff.remaining() < last.length){
-                flushBuff.flip();
-                fileChannel.write(flushBuff);
-                flushBuff.clear();
+            i = j + 1;
+            int next = (end + pageSize - 1) / pageSize * pageSize;
+            if(i < kvs.size() && next > end){
+                if(flushBuff.remaining() < next - end) flushPos = flush(flushBuff, flushPos);
+                flushBuff.put(padding, 0, next - end);
             }
-            flushBuff.put(last);
+            start = next;
         }
-        //最后一个节点校验
-        if(keyNodes.size() == 0 || RankUtil.compare(last, keyNodes.get(keyNodes.size()-1).key,keySize) != 0){
-            keyNodes.add(new Node(last,(kvs.size())*(dataSize+keySize)));
+        flush(flushBuff, flushPos);
+        buildZoneMaps(nodes, kvs);
+        List<byte[]> leafKeys = new ArrayList<byte[]>(nodes.size());
+        for (Node node : nodes){
+            leafKeys.add(node.key);
         }
-        PrintUtil.print("rerank size:%d kvNum:%d keySize:%d dataSize:%d", kvs.size(),kvNum, keySize, dataSize);
+        keyDir = new KeyDir(leafKeys, keySize);
+        keyNodes.addAll(nodes);
+    }
+
+    private long flush(ByteBuffer flushBuff, long pos)throws IOException{
         flushBuff.flip();
-        fileChannel.write(flushBuff);
+        BuildStats.written(filePath, flushBuff.remaining());
+        while (flushBuff.hasRemaining()){
+            pos += fileChannel.write(flushBuff, pos);
+        }
         flushBuff.clear();
-        kvs.clear();
+        return pos;
     }
 
 
-    public int findChildIndex(List<Node> nodes, byte[] key, int keySize){
-        int start = 0,end = nodes.size()-1;
-        while (true){
-            try {
-                if(start == end){
-                    int res = RankUtil.compare(key,nodes.get(start).key,keySize);
-                    return  res <= 0 ? start : start + 1;
-                }
-                int mid = (start+end)/2;
-                int res = RankUtil.compare(key, nodes.get(mid).key, keySize);
-                if(res == 0) return mid;
-
-                if(res < 0){
-                    end = mid; //注意不是mid -1
-                }else {
-                    start = mid + 1; //注意是mid+1
+    //读出全部数据,不走缓存,给合并用;rerank过的按key顺序
+    public List<byte[]> readAll()throws IOException{
+        checkReRank();
+        if(keyNodes.size() == 0) return readUnranked();
+        List<byte[]> kvs = new ArrayList<byte[]>(kvNum);
+        int batch = Math.max(1, StoreConfig.STREE_READ_ALL_BYTES / StoreConfig.STREE_LEAF_BYTES);
+        for (int i = 0; i < keyNodes.size(); i += batch) {
+            int to = Math.min(i + batch, keyNodes.size()) - 1;
+            ByteBuffer buff = ByteBuffer.allocate(keyNodes.get(to).pos - keyNodes.get(i).start);
+            readFully(buff, keyNodes.get(i).start);
+            buff.flip();
+            kvs.addAll(deserialize(buff, i, to));
+        }
+        return kvs;
+    }
+
+    public void close(boolean delete)throws IOException{
+        LeafCache.INSTANCE.invalidate(this);
+        fileChannel.close();
+        if(delete) new File(filePath).delete();
+    }
+
+    /**
+     * 把增量分区合并进基础分区,返回新的分区列表,没有新数据的分区还是原来那棵树
+     * 增量数据按key中[shardOffset, shardOffset+shardLen)这个整数对基础分区数取模,和写入时的分区规则一致
+     * 新树写在"原文件名.c{gen}"里,调用方换上新树之后再关闭旧树
+     */
+    public static List<SimpleBTree> merge(List<SimpleBTree> base, List<List<SimpleBTree>> deltas, int shardOffset, int shardLen, int gen)throws IOException{
+        List<List<byte[]>> routed = new ArrayList<List<byte[]>>(base.size());
+        for (int i = 0; i < base.size(); i++) {
+            routed.add(new ArrayList<byte[]>());
+        }
+        for (List<SimpleBTree> trees : deltas){
+            for (SimpleBTree tree : trees){
+                for (byte[] kv : tree.readAll()){
+                    routed.get((int) (TypeUtil.bytesToLong(kv, shardOffset, shardLen) % base.size())).add(kv);
                 }
-            }catch (Exception e){
-                PrintUtil.print("start:%d end:%d size:%d", start, end, nodes.size());
-                e.printStackTrace();
-                System.exit(1);
             }
+        }
+        List<SimpleBTree> merged = new ArrayList<SimpleBTree>(base.size());
+        for (int i = 0; i < base.size(); i++) {
+            SimpleBTree old = base.get(i);
+            if(routed.get(i).size() == 0){
+                merged.add(old);
+                continue;
+            }
+            List<byte[]> kvs = old.readAll();
+            kvs.addAll(routed.get(i));
+            merged.add(old.rebuild(kvs, gen));
+        }
+        return merged;
+    }
+
+    //用kvs建一棵同样配置的新树,写在"原文件名.c{gen}"里,旧树不动
+    public SimpleBTree rebuild(List<byte[]> kvs, int gen)throws IOException{
+        String path = filePath.replaceAll("\\.c\\d+$", "") + ".c" + gen;
+        SimpleBTree tree = new SimpleBTree(path, keySize, dataSize, cache).name(name).zoneBy(zonePrefixLen, zoneOffset);
+        for (byte[] kv : kvs){
+            tree.write(kv);
+        }
+        tree.finishWrite();
+        tree.reRank();
+        return tree;
+    }
 
+    //第一个最大key不小于key的叶子,都比key小返回nodes.size()
+    public int findChildIndex(List<Node> nodes, byte[] key, int keySize){
+        KeyDir dir = keyDir;
+        if(dir != null && nodes == keyNodes && dir.size() == nodes.size()){
+            return dir.find(key, keySize);
+        }
+        int start = 0, end = nodes.size();
+        while (start < end){
+            int mid = (start + end) >>> 1;
+            if(RankUtil.compare(nodes.get(mid).key, key, keySize) < 0){
+                start = mid + 1;
+            }else {
+                end = mid;
+            }
         }
+        return start;
     }
 }
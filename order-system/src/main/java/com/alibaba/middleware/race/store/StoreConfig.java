@@ -13,12 +13,86 @@ public class StoreConfig {
     public static final int MAX_KV_IN_MEMORY_PER_BTREE = 1024 * 1024;  //每棵B树允许在内存中的叶子节点数
     public static final int DEFAULT_AREA_SIZE = 64 * 1024 * 1024; //默认的分区大小
     public static final int DEFALT_BTREE_DISK_COST = 1024 * 1024;//默认b树所占磁盘的大小
+    public static final PageMgr.SyncPolicy PAGE_SYNC_POLICY = PageMgr.SyncPolicy.BARRIER; //page的刷盘策略
+    public static final int MAX_DIRTY_PAGE_NUM = 2048; //每个PageMgr最多攒这么多脏页再刷盘
+    public static final int DIRTY_PAGE_WRITE_BATCH_NUM = 64; //相邻脏页合并写入时,一次最多写这么多page
+    public static final float BULK_LOAD_FILL_FACTOR = 0.9f; //批量构建B树时,每个page的填充率,留一点给后续插入
 
 
 
     //simple btree
-    public static final int DEFAULT_BUFF_LEN = 1024 * 1024;
-    public static final int DEFAULT_ORIGIN_BUFF_LEN = 1024 * 1024;
+    public static final int STREE_WRITE_BUFF_LEN = 64 * 1024; //每个写线程在每棵树上的写缓冲
+    public static final int STREE_WRITE_BUFF_EXTRA_NUM = 256; //除去各写线程持有的buff,用于排队刷盘的buff个数
+    public static final int STREE_LEAF_BYTES = 4 * 1024; //每个叶子的目标字节数,可以调成8K、16K
+    public static final int STREE_PAGE_SIZE = 4 * 1024; //叶子起始位置按页对齐
+    public static final int STREE_READ_ALL_BYTES = 4 * 1024 * 1024; //合并时每次读的字节数
+
+    //origin store 共用的写缓冲池, 个数要大于ORDER_ORIGIN_STORE_NUM
+    public static final int ORIGIN_WRITE_BUFF_LEN = 64 * 1024;
+    public static final int ORIGIN_WRITE_BUFF_EXTRA_NUM = 256; //除去每个store持有的一个buff,用于排队刷盘的buff个数
+
+    //查询结果缓存,按编码后的字节数算
+    public static final long RESULT_CACHE_MAX_BYTES = 64L * 1024 * 1024;
+    public static final long RESULT_CACHE_MAX_ENTRY_BYTES = 4L * 1024 * 1024;
+
+    //异步查询: 查询线程负责拆分和拼结果,io线程负责读,每块盘同时在读的请求数有上限
+    public static final int ASYNC_QUERY_THREAD_NUM = 16;
+    public static final int ASYNC_IO_THREAD_NUM = 32;
+    public static final int ASYNC_QUEUE_LEN = 1024; //队列满了由提交方自己执行,形成反压
+    public static final int MAX_IN_FLIGHT_READ_PER_DISK = 8;
+
+    //批量查询时原始记录的合并读: 相邻位置间隔不超过GAP,一次读的跨度不超过SPAN,最后一条多读TAIL字节
+    public static final int BATCH_READ_MAX_GAP = 4 * 1024;
+    public static final int BATCH_READ_MAX_SPAN = 256 * 1024;
+    public static final int BATCH_READ_LINE_TAIL = 1024;
+
+    //所有B树共用的叶子缓存: 在用字节数上限,slab总量上限,slab大小,最小和最大档位
+    public static final long LEAF_CACHE_MAX_BYTES = 512L * 1024 * 1024;
+    public static final long LEAF_SLAB_MAX_BYTES = 640L * 1024 * 1024;
+    public static final int LEAF_SLAB_SIZE = 4 * 1024 * 1024;
+    public static final int LEAF_MIN_CLASS_SIZE = 4 * 1024;
+    public static final int LEAF_MAX_CLASS_SIZE = 4 * 1024 * 1024; //更大的范围读不缓存
+
+    //构建完按(buyer,ctime)重写origin store,一个买家的订单连续存放;每个文件整个读进内存,太大的跳过
+    public static final boolean ORIGIN_CLUSTER_BY_BUYER = true;
+    public static final long ORIGIN_CLUSTER_MAX_SHARD_BYTES = 1024L * 1024 * 1024;
+    public static final int ORIGIN_CLUSTER_WRITE_BUFF_LEN = 4 * 1024 * 1024;
+
+    //热门商品的倒排表: 订单数不少于阈值的商品另存一份按块差分编码的列表,块的首个orderid和位置常驻内存
+    public static final boolean GOOD_POSTING_ENABLE = true;
+    public static final int GOOD_POSTING_MIN_ORDERS = 512;
+    public static final int GOOD_POSTING_BLOCK_SIZE = 128;
+    public static final int GOOD_POSTING_WRITE_BUFF_LEN = 1024 * 1024;
+
+    //属性二级索引: 要建索引的a_o_/a_g_/a_b_字段,逗号分隔的key:type,type是long、double或string,比如 a_o_0:long,a_g_2:string;
+    //默认不建,启动参数-DattrIndexKeys=...或者OrderSystemImpl.indexAttrs指定;每个属性每层的分区数
+    public static final String ATTR_INDEX_KEYS = System.getProperty("attrIndexKeys", "");
+    public static final int ATTR_INDEX_PARTITION_NUM = 8;
+
+    //查询服务: io线程收发和拆帧,查询线程执行查询;结果按条数分帧流式返回;每个连接的在途请求数和待发送字节数有上限
+    public static final int SERVER_IO_THREAD_NUM = 2;
+    public static final int SERVER_WORKER_THREAD_NUM = 16;
+    public static final int SERVER_READ_BUFF_LEN = 64 * 1024;
+    public static final int SERVER_MAX_FRAME_BYTES = 16 * 1024 * 1024;
+    public static final int SERVER_MAX_IN_FLIGHT = 256;
+    public static final int SERVER_RESULTS_PER_FRAME = 256;
+    public static final long SERVER_MAX_PENDING_BYTES = 4L * 1024 * 1024;
+    //流式结果每个请求的发送窗口: 服务端发出去还没被客户端确认消费的字节数到了上限就等确认;等太久当作客户端扔掉了结果,回ERROR结束
+    public static final long STREAM_WINDOW_BYTES = 4L * 1024 * 1024;
+    public static final long SERVER_STREAM_ACK_TIMEOUT_MS = 30 * 1000;
+
+    //构建统计报告,写在storeFolders的第一个目录下
+    public static final String BUILD_REPORT_FILE = "build_report.json";
+
+    //访问记录和启动预热
+    public static final String ACCESS_LOG_FILE = "access.log";
+    public static final int ACCESS_LOG_SAMPLE_RATE = 16; //每多少次访问记一次
+    public static final int ACCESS_LOG_REGION_SIZE = 64 * 1024; //原始记录按这个大小对齐成区间
+    public static final int ACCESS_LOG_MAX_ENTRIES = 64 * 1024;
+    public static final long ACCESS_LOG_SAVE_INTERVAL_MS = 30 * 1000;
+    public static final long WARMUP_MAX_BYTES = 512L * 1024 * 1024;
+    public static final long WARMUP_BYTES_PER_SEC = 32L * 1024 * 1024;
+    public static final long WARMUP_IDLE_MS = 20; //这么久没有查询才算空闲
 
     //分表个数
     public static final int ORDER_PARTITION_NUM = 40; //40
@@ -26,5 +100,10 @@ public class StoreConfig {
 
     public static final int ORDER_ORIGIN_STORE_NUM = 1000; //线上弄到1000
 
+    //追加数据的增量分区,数据量小,分区和origin store都少一些;增量个数到阈值后后台合并进基础分区
+    public static final int DELTA_PARTITION_NUM = 4;
+    public static final int DELTA_ORIGIN_STORE_NUM = 40;
+    public static final int DELTA_COMPACT_THRESHOLD = 4;
+
     public static final Semaphore STREE_CHECK_SEMAPHORE = new Semaphore(4); //4
 }
@@ -0,0 +1,116 @@
+package com.alibaba.middleware.race.store;
+
+import com.alibaba.middleware.race.util.PrintUtil;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Created by liuzhendong on 16/8/5.
+ * 按上次的访问记录预热,construct之后在后台跑
+ * 约定1: 带缓存的B树把叶子读进叶子缓存,其它的叶子和原始记录区间读一遍,让数据进操作系统的page cache
+ * 约定2: 最近WARMUP_IDLE_MS内有查询就先等着,不和在线查询抢磁盘;空闲时也按WARMUP_BYTES_PER_SEC限速
+ * 约定3: 一共最多读WARMUP_MAX_BYTES,找不到的文件、超出范围的位置直接跳过,记录和这次的数据对不上也不影响正确性
+ */
+public class Warmup implements Runnable {
+
+    private final List<AccessLog.Entry> entries;
+    private final Map<String,SimpleBTree> trees;
+    private final Map<String,FileChannel> channels = new HashMap<String, FileChannel>();
+    private final ByteBuffer readBuff = ByteBuffer.allocate(StoreConfig.ACCESS_LOG_REGION_SIZE);
+    public volatile long warmedBytes = 0;
+    public volatile int warmedNum = 0;
+
+    public Warmup(List<AccessLog.Entry> entries, Map<String,SimpleBTree> trees){
+        this.entries = entries;
+        this.trees = trees;
+    }
+
+    public Thread start(){
+        Thread thread = new Thread(this, "warmup");
+        thread.setDaemon(true);
+        thread.setPriority(Thread.MIN_PRIORITY);
+        thread.start();
+        return thread;
+    }
+
+    @Override
+    public void run() {
+        long start = System.currentTimeMillis();
+        try {
+            for (AccessLog.Entry entry : entries){
+                if(warmedBytes >= StoreConfig.WARMUP_MAX_BYTES) break;
+                long len = entry.end - entry.start;
+                if(len <= 0) continue;
+                waitForIdle();
+                throttle(start);
+                if(warm(entry)){
+                    warmedBytes += len;
+                    warmedNum++;
+                }
+            }
+        }catch (InterruptedException e){
+            //被打断就不预热了
+        }finally {
+            for (FileChannel channel : channels.values()){
+                try {
+                    channel.close();
+                }catch (IOException e){
+                    //ignore
+                }
+            }
+        }
+        PrintUtil.print("warmup entries:%d warmed:%d bytes:%d cost:%d ms", entries.size(), warmedNum, warmedBytes, System.currentTimeMillis() - start);
+    }
+
+    private boolean warm(AccessLog.Entry entry){
+        try {
+            SimpleBTree tree = trees.get(entry.path);
+            if(entry.kind == AccessLog.LEAF && tree != null){
+                return tree.warm(entry.start, entry.end);
+            }
+            return readAhead(entry.path, entry.start, entry.end);
+        }catch (IOException e){
+            return false;
+        }
+    }
+
+    //java里没有fadvise,读一遍就能让数据进page cache
+    private boolean readAhead(String path, long from, long to)throws IOException{
+        FileChannel channel = channels.get(path);
+        if(channel == null){
+            if(!new File(path).isFile()) return false;
+            channel = new RandomAccessFile(path, "r").getChannel();
+            channels.put(path, channel);
+        }
+        long end = Math.min(to, channel.size());
+        if(from >= end) return false;
+        long pos = from;
+        while (pos < end){
+            readBuff.clear();
+            if(end - pos < readBuff.capacity()) readBuff.limit((int) (end - pos));
+            int readNum = channel.read(readBuff, pos);
+            if(readNum <= 0) break;
+            pos += readNum;
+        }
+        return true;
+    }
+
+    private void waitForIdle()throws InterruptedException{
+        while (System.currentTimeMillis() - AccessLog.lastAccessTime() < StoreConfig.WARMUP_IDLE_MS){
+            Thread.sleep(StoreConfig.WARMUP_IDLE_MS);
+        }
+    }
+
+    private void throttle(long start)throws InterruptedException{
+        long expectCost = warmedBytes * 1000 / StoreConfig.WARMUP_BYTES_PER_SEC;
+        long cost = System.currentTimeMillis() - start;
+        if(expectCost > cost) Thread.sleep(expectCost - cost);
+    }
+}
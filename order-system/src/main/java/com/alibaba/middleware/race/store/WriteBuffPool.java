@@ -0,0 +1,53 @@
+package com.alibaba.middleware.race.store;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Created by liuzhendong on 16/8/5.
+ * 写缓冲池,所有OriginStore共用一批堆外内存
+ * 约定1: buff按需分配,最多分配maxNum个,用完之后take会阻塞,直到有buff被刷盘后归还
+ * 约定2: maxNum要大于同时持有buff的store个数,否则可能互相等待
+ */
+public class WriteBuffPool {
+
+    public final int buffLen;
+    public final int maxNum;
+    private final AtomicInteger allocatedNum = new AtomicInteger(0);
+    private final LinkedBlockingQueue<ByteBuffer> freeBuffs;
+
+    public WriteBuffPool(int buffLen, int maxNum){
+        this.buffLen = buffLen;
+        this.maxNum = maxNum;
+        this.freeBuffs = new LinkedBlockingQueue<ByteBuffer>(maxNum);
+    }
+
+    public ByteBuffer take()throws InterruptedException{
+        ByteBuffer buff = freeBuffs.poll();
+        if(buff != null) return buff;
+        //还没分配满,直接分配新的
+        if(allocatedNum.incrementAndGet() <= maxNum){
+            return ByteBuffer.allocateDirect(buffLen);
+        }
+        allocatedNum.decrementAndGet();
+        long start = System.nanoTime();
+        buff = freeBuffs.take();
+        BuildStats.buffWait(System.nanoTime() - start);
+        return buff;
+    }
+
+    public void release(ByteBuffer buff){
+        buff.clear();
+        freeBuffs.offer(buff);
+    }
+
+    //构建结束后释放引用,让gc回收堆外内存
+    public void clear(){
+        freeBuffs.clear();
+    }
+
+    public int getAllocatedNum(){
+        return allocatedNum.get();
+    }
+}
@@ -0,0 +1,242 @@
+package com.alibaba.middleware.race.table;
+
+import com.alibaba.middleware.race.model.AttrPredicate;
+import com.alibaba.middleware.race.store.FlushHelper;
+import com.alibaba.middleware.race.store.SimpleBTree;
+import com.alibaba.middleware.race.store.StoreConfig;
+import com.alibaba.middleware.race.util.RankUtil;
+import com.alibaba.middleware.race.util.TypeUtil;
+
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Created by liuzhendong on 16/8/5.
+ * 一个扩展属性的二级索引,订单、商品、买家表的每一层各有一份,和其他索引一样建、一样合并
+ * 约定1: key是 值16字节 + 行号8字节,值按类型编码成无符号字节序和值的顺序一致: long/double翻转符号位,string取UTF-8的前16个字节,不够补0
+ * 约定2: 行号订单是orderid,商品和买家是原始记录的位置(文件号2字节+偏移6字节);按行号对分区数取模分区,合并时也按它路由
+ * 约定3: long和double的编码和值一一对应,按编码过滤就是精确结果;string截断了,只是候选,要用原始记录里的值再判断一次
+ * 约定4: 值为空或者转不成配置的类型的记录不进索引
+ */
+public class AttrIndex {
+
+    public enum Type{
+        LONG, DOUBLE, STRING
+    }
+
+    //配置里的一项,形如 a_o_0:long
+    public static class Spec{
+        public final String key;
+        public final Type type;
+
+        public Spec(String key, Type type){
+            this.key = key;
+            this.type = type;
+        }
+    }
+
+    public static final int VALUE_LEN = 16;
+    public static final int KEY_LEN = VALUE_LEN + 8;
+    static final Charset UTF8 = Charset.forName("UTF-8");
+
+    public final Spec spec;
+    public final int dataSize;
+    public List<SimpleBTree> trees; //合并时整个换掉,查询在表的读锁内
+
+    public AttrIndex(Spec spec, List<String> storeFolders, String prefix, int partitionNum, int dataSize)throws IOException{
+        this.spec = spec;
+        this.dataSize = dataSize;
+        trees = new ArrayList<SimpleBTree>(partitionNum);
+        for (int i = 0; i < partitionNum; i++) {
+            String folder = storeFolders.get(i % storeFolders.size());
+            trees.add(new SimpleBTree(folder + "/" + prefix + "index_attr_" + spec.key + "." + i, KEY_LEN, dataSize, false)
+                    .name(prefix + "attr-" + spec.key + "-" + i));
+        }
+    }
+
+    //逗号分隔的 key:type
+    public static List<Spec> parseSpecs(String specs){
+        List<Spec> result = new ArrayList<Spec>();
+        for (String item : specs.split(",")){
+            item = item.trim();
+            if(item.length() == 0) continue;
+            int split = item.lastIndexOf(':');
+            if(split <= 0) throw new RuntimeException("属性索引配置错误:" + item);
+            result.add(new Spec(item.substring(0, split), Type.valueOf(item.substring(split + 1).toUpperCase())));
+        }
+        return result;
+    }
+
+    //某张表用到的属性索引,按前缀选
+    public static List<AttrIndex> create(List<Spec> specs, String keyPrefix, List<String> storeFolders, String prefix, int dataSize)throws IOException{
+        List<AttrIndex> indexes = new ArrayList<AttrIndex>();
+        for (Spec spec : specs){
+            if(spec.key.startsWith(keyPrefix)){
+                indexes.add(new AttrIndex(spec, storeFolders, prefix, StoreConfig.ATTR_INDEX_PARTITION_NUM, dataSize));
+            }
+        }
+        return indexes;
+    }
+
+    public static AttrIndex find(List<AttrIndex> indexes, String key){
+        for (AttrIndex index : indexes){
+            if(index.spec.key.equals(key)) return index;
+        }
+        return null;
+    }
+
+    //各增量层的同一个属性索引合并进基础层,返回每个属性合并后的树;各层的属性索引由同一份配置建出来,下标一一对应
+    public static List<List<SimpleBTree>> merge(List<AttrIndex> base, List<List<AttrIndex>> deltas, int gen)throws IOException{
+        List<List<SimpleBTree>> merged = new ArrayList<List<SimpleBTree>>(base.size());
+        for (int i = 0; i < base.size(); i++) {
+            List<List<SimpleBTree>> byAttr = new ArrayList<List<SimpleBTree>>(deltas.size());
+            for (List<AttrIndex> delta : deltas){
+                byAttr.add(delta.get(i).trees);
+            }
+            merged.add(SimpleBTree.merge(base.get(i).trees, byAttr, VALUE_LEN, 8, gen));
+        }
+        return merged;
+    }
+
+    //换上合并后的树,返回不再用的树,需要在写锁内调用
+    public static List<SimpleBTree> swap(List<AttrIndex> base, List<List<SimpleBTree>> merged){
+        List<SimpleBTree> old = new ArrayList<SimpleBTree>();
+        for (int i = 0; i < base.size(); i++) {
+            old.addAll(base.get(i).trees);
+            old.removeAll(merged.get(i));
+            base.get(i).trees = merged.get(i);
+        }
+        return old;
+    }
+
+    public void write(String value, long rowKey, byte[] data)throws IOException{
+        if(value == null) return;
+        byte[] encoded;
+        try {
+            encoded = encode(spec.type, value);
+        }catch (NumberFormatException e){
+            return;
+        }
+        byte[] kv = new byte[KEY_LEN + dataSize];
+        System.arraycopy(encoded, 0, kv, 0, VALUE_LEN);
+        System.arraycopy(TypeUtil.longToBytes(rowKey), 0, kv, VALUE_LEN, 8);
+        if(dataSize > 0) System.arraycopy(data, 0, kv, KEY_LEN, dataSize);
+        trees.get((int) (rowKey % trees.size())).write(kv);
+    }
+
+    public void finishWrite()throws IOException{
+        for (SimpleBTree tree : trees){
+            tree.finishWrite();
+        }
+    }
+
+    public void reRank()throws InterruptedException{
+        FlushHelper.flush(trees);
+    }
+
+    //long和double是精确结果,string是候选
+    public boolean exact(){
+        return spec.type != Type.STRING;
+    }
+
+    //所有分区里可能命中的kv,值超出类型范围的条件抛IllegalArgumentException
+    public List<byte[]> query(AttrPredicate predicate)throws IOException{
+        byte[] value, to;
+        try {
+            value = encode(spec.type, predicate.value);
+            to = predicate.op == AttrPredicate.Op.BETWEEN ? encode(spec.type, predicate.to) : null;
+        }catch (NumberFormatException e){
+            throw new IllegalArgumentException("属性条件的值和索引类型不符:" + predicate);
+        }
+        byte[] lower = new byte[VALUE_LEN];
+        byte[] upper = new byte[VALUE_LEN];
+        Arrays.fill(upper, (byte) 0xFF);
+        switch (predicate.op){
+            case EQ:
+                lower = value;
+                upper = value;
+                break;
+            case LT:
+            case LE:
+                upper = value;
+                break;
+            case GT:
+            case GE:
+                lower = value;
+                break;
+            default:
+                lower = value;
+                upper = to;
+        }
+        //行号部分从全0到全FF
+        byte[] from = Arrays.copyOf(lower, KEY_LEN);
+        byte[] end = Arrays.copyOf(upper, KEY_LEN);
+        Arrays.fill(end, VALUE_LEN, KEY_LEN, (byte) 0xFF);
+        List<byte[]> result = new ArrayList<byte[]>();
+        for (SimpleBTree tree : trees){
+            for (byte[] kv : tree.query(from, end)){
+                if(!exact() || predicate.accept(RankUtil.compare(kv, value, VALUE_LEN), to == null ? 0 : RankUtil.compare(kv, to, VALUE_LEN))){
+                    result.add(kv);
+                }
+            }
+        }
+        return result;
+    }
+
+    //用原始记录里的值判断,string的候选要走这一步
+    public boolean matches(AttrPredicate predicate, String raw){
+        if(raw == null) return false;
+        try {
+            int cmp = compare(spec.type, raw, predicate.value);
+            int cmpTo = predicate.op == AttrPredicate.Op.BETWEEN ? compare(spec.type, raw, predicate.to) : 0;
+            return predicate.accept(cmp, cmpTo);
+        }catch (NumberFormatException e){
+            return false;
+        }
+    }
+
+    static int compare(Type type, String a, String b){
+        switch (type){
+            case LONG:
+                return compareLong(Long.parseLong(a), Long.parseLong(b));
+            case DOUBLE:
+                return Double.compare(parseDouble(a), parseDouble(b));
+            default:
+                byte[] x = a.getBytes(UTF8), y = b.getBytes(UTF8);
+                int cmp = RankUtil.compare(x, y, Math.min(x.length, y.length));
+                return cmp != 0 ? cmp : x.length - y.length;
+        }
+    }
+
+    static int compareLong(long a, long b){
+        return a < b ? -1 : (a == b ? 0 : 1);
+    }
+
+    //-0.0和0.0算一个值,NaN不能比较
+    static double parseDouble(String value){
+        double d = Double.parseDouble(value);
+        if(Double.isNaN(d)) throw new NumberFormatException("NaN");
+        return d == 0 ? 0.0 : d;
+    }
+
+    static byte[] encode(Type type, String value){
+        byte[] encoded = new byte[VALUE_LEN];
+        switch (type){
+            case LONG:
+                System.arraycopy(TypeUtil.longToBytes(Long.parseLong(value) ^ Long.MIN_VALUE), 0, encoded, 0, 8);
+                break;
+            case DOUBLE:
+                long bits = Double.doubleToLongBits(parseDouble(value));
+                bits = bits < 0 ? ~bits : bits ^ Long.MIN_VALUE;
+                System.arraycopy(TypeUtil.longToBytes(bits), 0, encoded, 0, 8);
+                break;
+            default:
+                byte[] bytes = value.getBytes(UTF8);
+                System.arraycopy(bytes, 0, encoded, 0, Math.min(bytes.length, VALUE_LEN));
+        }
+        return encoded;
+    }
+}
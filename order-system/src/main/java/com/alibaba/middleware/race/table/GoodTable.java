@@ -1,6 +1,9 @@
 package com.alibaba.middleware.race.table;
 
+import com.alibaba.middleware.race.model.AttrPredicate;
 import com.alibaba.middleware.race.model.Constant;
+import com.alibaba.middleware.race.store.AccessLog;
+import com.alibaba.middleware.race.store.BuildStats;
 import com.alibaba.middleware.race.store.FlushHelper;
 import com.alibaba.middleware.race.store.LruCache;
 import com.alibaba.middleware.race.store.SimpleBTree;
@@ -11,14 +14,22 @@ import com.alibaba.middleware.race.util.TypeUtil;
 import java.io.IOException;
 import java.io.RandomAccessFile;
 import java.util.*;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
 
 /**
  * Created by liuzhendong on 16/7/22.
  * 类似于order table
+ * 追加的文件也和order table一样建增量层,fileId接着往后排,合并时把增量的kv按hash归到基础分区里重写
+ * 配置了a_g_属性索引时,每一层解析时顺带写属性索引,行号是原始记录的位置,合并时和id索引一起合并
  */
 public class GoodTable {
-    final List<RandomAccessFile> originAccesses; //原始文件存储
+    final List<RandomAccessFile> originAccesses; //原始文件存储,基础和增量共用,下标即fileId
+    final List<String> originFiles;
     final List<String> storeFolders; //存储索引
+    final int fileIdStart; //本层自己的文件在originAccesses中的起始下标
+    final int fileNum;
+    final String prefix; //基础层是空串,增量层是deltaN.
 
     public final int indexKeyLen = 8;
 
@@ -28,15 +39,34 @@ public class GoodTable {
 
     //分表的索引
     public List<SimpleBTree>  bTreesById;
+    //属性索引,和bTreesById一起建、一起合并
+    public List<AttrIndex> attrIndexes = new ArrayList<AttrIndex>();
+    List<AttrIndex.Spec> attrSpecs = new ArrayList<AttrIndex.Spec>();
+
+    //增量层,只在基础层上有
+    final List<GoodTable> deltas = new ArrayList<GoodTable>();
+    final ReentrantReadWriteLock deltaLock = new ReentrantReadWriteLock();
+    final Object compactLock = new Object();
+    int deltaSeq = 0;
+    int compactGen = 0;
 
     //LruCache<String,Map<String,String>>  goodCache;
 
     public GoodTable(Collection<String> goodFiles, Collection<String> originStoreFolders)throws IOException{
+        this(new CopyOnWriteArrayList<String>(), new CopyOnWriteArrayList<RandomAccessFile>(), goodFiles, originStoreFolders, "");
+    }
+
+    private GoodTable(List<String> allFiles, List<RandomAccessFile> allAccesses, Collection<String> goodFiles, Collection<String> originStoreFolders, String prefix)throws IOException{
         //TODO 如果超出预期 则需要修改程序
-        if(goodFiles.size() > Short.MAX_VALUE) throw new RuntimeException("订单文件个数超出预期"+ goodFiles.size());
-        originAccesses = new ArrayList<RandomAccessFile>(goodFiles.size());
+        if(allAccesses.size() + goodFiles.size() > Short.MAX_VALUE) throw new RuntimeException("订单文件个数超出预期"+ (allAccesses.size() + goodFiles.size()));
+        originAccesses = allAccesses;
+        originFiles = allFiles;
+        this.prefix = prefix;
+        fileIdStart = originAccesses.size();
+        fileNum = goodFiles.size();
         for (String orderFile: goodFiles){
             originAccesses.add(new RandomAccessFile(orderFile,"r"));
+            originFiles.add(orderFile);
         }
         storeFolders = new ArrayList<String>(originStoreFolders);
         int size = storeFolders.size();
@@ -44,10 +74,17 @@ public class GoodTable {
         //btree 初始化
         for (int i = 0; i < partitionNum; i++) {
             int index = i % size;
-            bTreesById.add(new SimpleBTree(storeFolders.get(index)+"/index_goodid." + i,indexKeyLen,8,false));
+            bTreesById.add(new SimpleBTree(storeFolders.get(index)+"/"+prefix+"index_goodid." + i,indexKeyLen,8,false));
         }
 
     }
+    //建索引之前调用,只建a_g_开头的
+    public GoodTable indexAttrs(List<AttrIndex.Spec> specs)throws IOException{
+        this.attrSpecs = specs;
+        this.attrIndexes = AttrIndex.create(specs, "a_g_", storeFolders, prefix, 0);
+        return this;
+    }
+
     public class BuildTask implements Runnable {
 
         public int id;
@@ -57,8 +94,11 @@ public class GoodTable {
         }
         @Override
         public void run() {
+            long startNanos = System.nanoTime();
+            long startCpu = BuildStats.threadCpuNanos();
+            long records = 0;
             try {
-                for(int i = 0; i < originAccesses.size(); i++) {
+                for(int i = fileIdStart; i < fileIdStart + fileNum; i++) {
                     if(i % buildThreadNum != this.id){
                         continue;
                     }
@@ -71,6 +111,7 @@ public class GoodTable {
                     while (true){
                         int tmpLen = buff.length-offset;
                         int readNum = tmpAccess.read(buff,offset, tmpLen);
+                        BuildStats.read(originFiles.get(i), readNum);
                         if (readNum ==  0){
                             break;
                         }
@@ -80,6 +121,7 @@ public class GoodTable {
                             if(buff[j] == '\n'){
                                 String str = new String(buff,last,j-last);
                                 parseLine(fileId, currPos+last,str);
+                                records++;
                                 last = j + 1;
                             }
                         }
@@ -103,10 +145,12 @@ public class GoodTable {
             }catch (Exception e){
                 e.printStackTrace();
             }
+            BuildStats.thread("good-" + id, records, startNanos, startCpu);
 
         }
     };
     public void buildIndex()throws IOException,InterruptedException{
+        BuildStats.Phase phase = BuildStats.begin(prefix + "good.parse");
         int tsNum = buildThreadNum;
         Thread[] ts = new Thread[tsNum];
         for (int i = 0; i < tsNum; i++) {
@@ -118,15 +162,93 @@ public class GoodTable {
         for (int i = 0; i < tsNum; i++) {
             ts[i].join();
         }
+        BuildStats.end(phase);
+        phase = BuildStats.begin(prefix + "good.rerank");
         for (SimpleBTree stree : bTreesById){
             stree.finishWrite();
         }
         FlushHelper.flush(bTreesById);
+        for (AttrIndex attrIndex : attrIndexes){
+            attrIndex.finishWrite();
+            attrIndex.reRank();
+        }
+        BuildStats.end(phase);
         //Thread.sleep(3000);
         //this.goodCache = new LruCache<String, Map<String, String>>(200 * 1000, 400*1000,"goodCache");
 
     }
 
+    public GoodTable append(Collection<String> goodFiles)throws IOException,InterruptedException{
+        GoodTable delta;
+        synchronized (deltas){
+            deltaSeq++;
+            delta = new GoodTable(originFiles, originAccesses, goodFiles, storeFolders, "delta" + deltaSeq + ".");
+        }
+        delta.indexAttrs(attrSpecs).buildIndex();
+        deltaLock.writeLock().lock();
+        try {
+            deltas.add(delta);
+        }finally {
+            deltaLock.writeLock().unlock();
+        }
+        PrintUtil.print("good append files:%d", goodFiles.size());
+        return delta;
+    }
+
+    //key的第4到8个字节是hash,基础分区按它取模
+    public void compact()throws IOException{
+        synchronized (compactLock){
+            List<GoodTable> merging;
+            deltaLock.readLock().lock();
+            try {
+                merging = new ArrayList<GoodTable>(deltas);
+            }finally {
+                deltaLock.readLock().unlock();
+            }
+            if(merging.size() == 0) return;
+            compactGen++;
+            List<List<SimpleBTree>> byId = new ArrayList<List<SimpleBTree>>();
+            for (GoodTable delta : merging){
+                byId.add(delta.bTreesById);
+            }
+            List<SimpleBTree> newById = SimpleBTree.merge(bTreesById, byId, 4, 4, compactGen);
+            List<List<AttrIndex>> byAttr = new ArrayList<List<AttrIndex>>();
+            for (GoodTable delta : merging){
+                byAttr.add(delta.attrIndexes);
+            }
+            List<List<SimpleBTree>> newAttrs = AttrIndex.merge(attrIndexes, byAttr, compactGen);
+            List<SimpleBTree> old;
+            deltaLock.writeLock().lock();
+            try {
+                old = new ArrayList<SimpleBTree>(bTreesById);
+                bTreesById = newById;
+                old.removeAll(newById);
+                old.addAll(AttrIndex.swap(attrIndexes, newAttrs));
+                deltas.removeAll(merging);
+            }finally {
+                deltaLock.writeLock().unlock();
+            }
+            for (GoodTable delta : merging){
+                old.addAll(delta.bTreesById);
+                for (AttrIndex attrIndex : delta.attrIndexes){
+                    old.addAll(attrIndex.trees);
+                }
+            }
+            for (SimpleBTree tree : old){
+                tree.close(true);
+            }
+        }
+    }
+
+    //基础层加上所有增量层,需要在读锁内调用
+    private List<GoodTable> segments(){
+        if(deltas.size() == 0) return Collections.singletonList(this);
+        List<GoodTable> segments = new ArrayList<GoodTable>(deltas.size() + 1);
+        segments.add(this);
+        segments.addAll(deltas);
+        return segments;
+    }
+
     private void parseLine(byte[] fileId,long pos,String line)throws IOException{
         //System.out.println("parse_line:" + line);
         byte[] posBytes = TypeUtil.longToBytes(pos);
@@ -144,6 +266,10 @@ public class GoodTable {
         int goodShard = shardByGood(goodId_h);
 
         bTreesById.get(goodShard).write(goodNode);
+        long rowKey = TypeUtil.bytesToLong(posBytes);
+        for (AttrIndex attrIndex : attrIndexes){
+            attrIndex.write(fields.get(attrIndex.spec.key), rowKey, null);
+        }
     }
 
 
@@ -152,26 +278,51 @@ public class GoodTable {
         //if(cachedGood != null) return cachedGood;
 
         int good_h = OrderUtil.hash(goodId);
-        byte[] key  = new  byte[8];
-        System.arraycopy(goodId.substring(goodId.length()-4, goodId.length()).getBytes(),0,key,0,4);
-        System.arraycopy(TypeUtil.intToBytes(good_h),0, key, 4, 4);
-        List<byte[]> values = bTreesById.get(shardByGood(good_h)).query(key);
-        if(values.size() == 0){
-            return new HashMap<String, String>(4);
-        }
-        for (byte[] value : values){
-            short fildId = (short) TypeUtil.bytesToLong(Arrays.copyOfRange(value,8,10));
-            long pos = TypeUtil.bytesToLong(Arrays.copyOfRange(value,10,16));
-            Map<String,String>  tmpRes = getGoodByPos(fildId, pos);
-            if(tmpRes.get(Constant.GOOD_ID).equals(goodId)){
-                //goodCache.put(goodId, tmpRes);
-                return tmpRes;
+        byte[] key = idKey(goodId, good_h);
+        deltaLock.readLock().lock();
+        try {
+            //基础层没有再找增量层
+            for (GoodTable segment : segments()){
+                List<byte[]> values = segment.bTreesById.get(segment.shardByGood(good_h)).query(key);
+                for (byte[] value : values){
+                    short fildId = (short) TypeUtil.bytesToLong(Arrays.copyOfRange(value,8,10));
+                    long pos = TypeUtil.bytesToLong(Arrays.copyOfRange(value,10,16));
+                    Map<String,String>  tmpRes = getGoodByPos(fildId, pos);
+                    if(tmpRes.get(Constant.GOOD_ID).equals(goodId)){
+                        //goodCache.put(goodId, tmpRes);
+                        return tmpRes;
+                    }
+                }
             }
+        }finally {
+            deltaLock.readLock().unlock();
         }
         return new HashMap<String, String>(4);
     }
+    //属性条件命中的商品记录,候选都用记录里的值再判断一次;属性没有索引抛IllegalArgumentException
+    public List<Map<String, String>> getGoodsByAttr(AttrPredicate predicate)throws Exception{
+        List<Map<String,String>> result = new ArrayList<Map<String, String>>();
+        deltaLock.readLock().lock();
+        try {
+            for (GoodTable segment : segments()){
+                AttrIndex attrIndex = AttrIndex.find(segment.attrIndexes, predicate.key);
+                if(attrIndex == null) throw new IllegalArgumentException("属性没有索引:" + predicate.key);
+                for (byte[] kv : attrIndex.query(predicate)){
+                    short fileId = (short) TypeUtil.bytesToLong(kv, AttrIndex.VALUE_LEN, 2);
+                    long pos = TypeUtil.bytesToLong(kv, AttrIndex.VALUE_LEN + 2, 6);
+                    Map<String,String> record = getGoodByPos(fileId, pos);
+                    if(attrIndex.matches(predicate, record.get(predicate.key))) result.add(record);
+                }
+            }
+        }finally {
+            deltaLock.readLock().unlock();
+        }
+        return result;
+    }
+
     private Map<String,String> getGoodByPos(short fileId,long pos)throws IOException{
         String line = "";
+        AccessLog.region(originFiles.get(fileId), pos);
         synchronized (originAccesses.get(fileId)){
             line = OrderUtil.readLine(originAccesses.get(fileId), pos, 1024);
         }
@@ -179,6 +330,34 @@ public class GoodTable {
         return OrderUtil.parse(line);
     }
 
+    //查询时读原始记录落在哪个文件上,用来按磁盘限流;先查一次id索引拿到fileId,查不到就不会读原始文件,随便返回一个
+    public String diskPathOf(String goodId){
+        int good_h = OrderUtil.hash(goodId);
+        byte[] key = idKey(goodId, good_h);
+        deltaLock.readLock().lock();
+        try {
+            for (GoodTable segment : segments()){
+                List<byte[]> values = segment.bTreesById.get(segment.shardByGood(good_h)).query(key);
+                if(values.size() > 0){
+                    return originFiles.get((short) TypeUtil.bytesToLong(Arrays.copyOfRange(values.get(0),8,10)));
+                }
+            }
+        }catch (IOException e){
+            //限流用的路径,查不到就退回索引目录
+        }finally {
+            deltaLock.readLock().unlock();
+        }
+        return storeFolders.get(shardByGood(good_h) % storeFolders.size());
+    }
+
+    //id索引的key: id的后4个字节 + hash
+    private static byte[] idKey(String goodId, int good_h){
+        byte[] key  = new  byte[8];
+        System.arraycopy(goodId.substring(goodId.length()-4, goodId.length()).getBytes(),0,key,0,4);
+        System.arraycopy(TypeUtil.intToBytes(good_h),0, key, 4, 4);
+        return key;
+    }
+
     public byte shardByGood(int goodId_h){
         return (byte) (goodId_h % bTreesById.size());
     }
@@ -1,5 +1,6 @@
 package com.alibaba.middleware.race.table;
 
+import com.alibaba.middleware.race.model.AttrPredicate;
 import com.alibaba.middleware.race.model.Constant;
 import com.alibaba.middleware.race.model.GoodOrderKey;
 import com.alibaba.middleware.race.model.OrderKey;
@@ -11,9 +12,15 @@ import com.alibaba.middleware.race.util.TypeUtil;
 import com.sun.glass.ui.SystemClipboard;
 import com.sun.org.apache.xpath.internal.operations.Or;
 
+import java.io.File;
 import java.io.IOException;
 import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
 import java.util.*;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
 
 /**
  * Created by liuzhendong on 16/7/22.
@@ -22,76 +29,153 @@ import java.util.*;
  * 约定2:缓存淘汰策略,LRU
  * 约定3:goodid和buyerid先hash再存储,注意过滤碰撞问题
  * 约定4:注意分表,分开存储索引
+ * 约定5:追加的订单文件单独建一层小的增量分区,和基础分区一起查;增量的fileId、origin store编号接着基础的往后排,
+ *      所以合并时索引的值不用改,直接把增量的kv按基础分区的规则归到基础分区里重写,原始记录留在增量的origin store里
+ * 约定6:基础层建完索引后按(buyer,ctime)重写自己的origin store,同时改buyer索引里的位置,一个买家一段时间的订单是连续的一段;
+ *      origin store个数是buyer分区数的倍数时,一个origin store只属于一个buyer分区,每个分区单独处理,每块盘一个线程;
+ *      新文件和新树都准备好才在写锁里原子改名换上,中途失败整个分区保持原样
+ * 约定7:基础层的每个good分区另建一个PostingStore,订单多的商品查询时读倒排表,不用把B树里的kv一条条拷出来再解析;合并后跟着新树重建
+ * 约定8:配置了a_o_属性索引时,每一层解析时顺带写属性索引,行号是orderid,值带上buyer和good编号,按买家或商品过滤不用读原始记录
  *
  * 先大刀阔斧地写起来,然后再优化
  */
 public class OrderTable {
-    final List<RandomAccessFile> orderAccesses; //原始文件存储
+    final List<RandomAccessFile> orderAccesses; //原始文件存储,基础和增量共用,下标即fileId
+    final List<String> orderFiles;
     final List<String> storeFolders; //存储索引
+    final int fileIdStart; //本层自己的文件在orderAccesses中的起始下标
+    final int fileNum;
+    final String prefix; //基础层是空串,增量层是deltaN.
 
     public final byte orderIdKeyLen = 8;
-    public final byte buyerKeyLen = 16;
-    public final byte goodKeyLen = 16; //12 变成原来的4倍
+    public final byte buyerKeyLen = 12; //buyer编号4 + ctime8
+    public final byte goodKeyLen = 12; //good编号4 + orderid8
+
+    //buyerid/goodid的字典,三个索引里都只存编号
+    public final IdDict buyerDict;
+    public final IdDict goodDict;
 
     //分表的索引
     public List<SimpleBTree>  bTreesById;
     public List<SimpleBTree>  bTreesByBuyer;
     public List<SimpleBTree>  bTreesByGood;
+    //热门商品的倒排表,和bTreesByGood一一对应,没有热门商品的分区是null;只有基础层有
+    public List<PostingStore> goodPostings;
+    //属性索引,和其他索引一起建、一起合并
+    public List<AttrIndex> attrIndexes = new ArrayList<AttrIndex>();
+    List<AttrIndex.Spec> attrSpecs = new ArrayList<AttrIndex.Spec>();
 
 
     //基于buyer id切分存储,把同一个buyer的order切到同一个文件中
-    public List<OriginStore>  originStoresByBuyer;
+    public List<OriginStore>  originStoresByBuyer; //基础和增量共用
+    final int originStart; //本层自己的origin store的起始编号
+    final int originNum;
+    //所有origin store共用的写缓冲池,所有索引共用的写缓冲池,以及每块磁盘一个的刷盘线程
+    WriteBuffPool originBuffPool;
+    WriteBuffPool indexBuffPool;
+    List<AsyncFlusher> diskFlushers;
+
+    //增量层,只在基础层上有;查询持读锁,合并完换分区持写锁
+    final List<OrderTable> deltas = new ArrayList<OrderTable>();
+    final ReentrantReadWriteLock deltaLock = new ReentrantReadWriteLock();
+    final Object compactLock = new Object();
+    int deltaSeq = 0;
+    int compactGen = 0;
 
     //TODO 订单缓存
     //LruCache<String,Map<String,String>> orderCacheByBuyerPos;
     //LruCache<String, List<Map<String,String>>> orderCacheByGood;
 
-    public OrderTable(Collection<String> orderFiles, Collection<String> originStoreFolders)throws IOException{
+    public OrderTable(Collection<String> orderFiles, Collection<String> originStoreFolders, IdDict buyerDict, IdDict goodDict)throws IOException{
+        this(new CopyOnWriteArrayList<String>(), new CopyOnWriteArrayList<RandomAccessFile>(), new CopyOnWriteArrayList<OriginStore>(),
+                orderFiles, originStoreFolders, buyerDict, goodDict, "", StoreConfig.ORDER_PARTITION_NUM, StoreConfig.ORDER_ORIGIN_STORE_NUM);
+    }
+
+    //prefix区分基础层和各个增量层的文件名,共用的列表由基础层传进来
+    private OrderTable(List<String> allFiles, List<RandomAccessFile> allAccesses, List<OriginStore> allOriginStores,
+                       Collection<String> orderFiles, Collection<String> originStoreFolders, IdDict buyerDict, IdDict goodDict,
+                       String prefix, int partitionNum, int originNum)throws IOException{
         //TODO 如果超出预期 则需要修改程序
-        if(orderFiles.size() > Short.MAX_VALUE) throw new RuntimeException("订单文件个数超出预期"+orderFiles.size());
-        orderAccesses = new ArrayList<RandomAccessFile>(orderFiles.size());
+        if(allFiles.size() + orderFiles.size() > Short.MAX_VALUE) throw new RuntimeException("订单文件个数超出预期"+(allFiles.size() + orderFiles.size()));
+        if(allOriginStores.size() + originNum > Short.MAX_VALUE) throw new RuntimeException("origin store个数超出预期"+(allOriginStores.size() + originNum));
+        this.orderFiles = allFiles;
+        this.orderAccesses = allAccesses;
+        this.prefix = prefix;
+        this.fileIdStart = orderAccesses.size();
+        this.fileNum = orderFiles.size();
         for (String orderFile: orderFiles){
             orderAccesses.add(new RandomAccessFile(orderFile,"r"));
+            this.orderFiles.add(orderFile);
         }
+        this.buyerDict = buyerDict;
+        this.goodDict = goodDict;
         storeFolders = new ArrayList<String>(originStoreFolders);
         int size = storeFolders.size();
-        bTreesById = new ArrayList<SimpleBTree>(StoreConfig.ORDER_PARTITION_NUM);
-        bTreesByBuyer = new ArrayList<SimpleBTree>(StoreConfig.ORDER_PARTITION_NUM);
-        bTreesByGood = new ArrayList<SimpleBTree>(StoreConfig.ORDER_PARTITION_NUM);
+        bTreesById = new ArrayList<SimpleBTree>(partitionNum);
+        bTreesByBuyer = new ArrayList<SimpleBTree>(partitionNum);
+        bTreesByGood = new ArrayList<SimpleBTree>(partitionNum);
+
+        originStoresByBuyer = allOriginStores;
+        this.originStart = originStoresByBuyer.size();
+        this.originNum = originNum;
 
-        originStoresByBuyer = new ArrayList<OriginStore>(StoreConfig.ORDER_ORIGIN_STORE_NUM);
+        //写缓冲和刷盘线程
+        originBuffPool = new WriteBuffPool(StoreConfig.ORIGIN_WRITE_BUFF_LEN,
+                originNum + StoreConfig.ORIGIN_WRITE_BUFF_EXTRA_NUM);
+        indexBuffPool = new WriteBuffPool(StoreConfig.STREE_WRITE_BUFF_LEN,
+                StoreConfig.ORDER_BUILD_THREAD_NUM * partitionNum * 3 + StoreConfig.STREE_WRITE_BUFF_EXTRA_NUM);
+        diskFlushers = new ArrayList<AsyncFlusher>(size);
+        for (int i = 0; i < size; i++) {
+            diskFlushers.add(new AsyncFlusher(prefix + "disk-" + i));
+        }
 
         //btree 初始化
-        for (int i = 0; i < StoreConfig.ORDER_PARTITION_NUM; i++) {
+        for (int i = 0; i < partitionNum; i++) {
             int index = i % size;
-            bTreesById.add(new SimpleBTree(storeFolders.get(index)+"/index_orderid." + i,orderIdKeyLen,58,true).name("bTreesById-" + i));
+            bTreesById.add(new SimpleBTree(storeFolders.get(index)+"/"+prefix+"index_orderid." + i,orderIdKeyLen,25,true).name(prefix+"bTreesById-" + i)
+                    .writeBy(indexBuffPool, diskFlushers.get(index)));
         }
-        for (int i = 0; i < StoreConfig.ORDER_PARTITION_NUM; i++) {
+        for (int i = 0; i < partitionNum; i++) {
             int index = i % size;
-            bTreesByBuyer.add(new SimpleBTree(storeFolders.get(index)+"/index_buyer_ctime." + i,buyerKeyLen,8,false));
+            //前4个字节是buyer编号,后8个字节是ctime
+            bTreesByBuyer.add(new SimpleBTree(storeFolders.get(index)+"/"+prefix+"index_buyer_ctime." + i,buyerKeyLen,8,false)
+                    .writeBy(indexBuffPool, diskFlushers.get(index)).zoneBy(4, 4));
         }
-        for (int i = 0; i < StoreConfig.ORDER_PARTITION_NUM; i++) {
+        for (int i = 0; i < partitionNum; i++) {
             int index = i % size;
-            bTreesByGood.add(new SimpleBTree(storeFolders.get(index)+"/index_good_orderid." + i, goodKeyLen,37,true).name("bTreesByGood" + i));
+            bTreesByGood.add(new SimpleBTree(storeFolders.get(index)+"/"+prefix+"index_good_orderid." + i, goodKeyLen,21,true).name(prefix+"bTreesByGood" + i)
+                    .writeBy(indexBuffPool, diskFlushers.get(index)));
         }
 
-        for (int i = 0; i < StoreConfig.ORDER_ORIGIN_STORE_NUM; i++) {
-            int index = i % size;
-            originStoresByBuyer.add(new OriginStore(storeFolders.get(index)+"/origin_buyer_ctime." + i));
+        for (int i = 0; i < originNum; i++) {
+            int index = (originStart + i) % size;
+            originStoresByBuyer.add(new OriginStore(storeFolders.get(index)+"/"+prefix+"origin_buyer_ctime." + i, originBuffPool, diskFlushers.get(index)));
         }
 
     }
+    //建索引之前调用,只建a_o_开头的
+    public OrderTable indexAttrs(List<AttrIndex.Spec> specs)throws IOException{
+        this.attrSpecs = specs;
+        this.attrIndexes = AttrIndex.create(specs, "a_o_", storeFolders, prefix, 8);
+        return this;
+    }
+
     public class BuildTask implements Runnable {
 
         public int id;
+        public Exception error; //解析失败的异常,buildIndex等线程结束后抛出去
         public BuildTask id(int id){
             this.id = id;
             return this;
         }
         @Override
         public void run() {
+            long startNanos = System.nanoTime();
+            long startCpu = BuildStats.threadCpuNanos();
+            long records = 0;
+            long skipped = 0;
             try {
-                for(int i = 0; i < orderAccesses.size(); i++) {
+                for(int i = fileIdStart; i < fileIdStart + fileNum; i++) {
                     if(i % StoreConfig.ORDER_BUILD_THREAD_NUM != this.id){
                         continue;
                     }
@@ -104,6 +188,7 @@ public class OrderTable {
                     while (true){
                         int tmpLen = buff.length-offset;
                         int readNum = tmpAccess.read(buff,offset, tmpLen);
+                        BuildStats.read(orderFiles.get(i), readNum);
                         if (readNum ==  0){
                             break;
                         }
@@ -112,7 +197,11 @@ public class OrderTable {
                         for (; j < readNum + offset; j++) {
                             if(buff[j] == '\n'){
                                 String str = new String(buff,last,j-last);
-                                parseLine(fileId, currPos+last,str);
+                                if(parseLine(fileId, currPos+last,str)){
+                                    records++;
+                                }else {
+                                    skipped++;
+                                }
                                 last = j + 1;
                             }
                         }
@@ -132,15 +221,25 @@ public class OrderTable {
                 }
             }catch (Exception e){
                 e.printStackTrace();
+                error = e;
             }
+            if(skipped > 0) PrintUtil.print("order id:%d skipped %d records with unknown buyer or good", this.id, skipped);
+            BuildStats.skipped(skipped);
+            BuildStats.thread("order-" + id, records, startNanos, startCpu);
 
         }
     };
     public void buildIndex()throws IOException,InterruptedException{
+        for (AsyncFlusher flusher : diskFlushers){
+            flusher.start();
+        }
+        BuildStats.Phase phase = BuildStats.begin(prefix + "order.parse");
         int tsNum = StoreConfig.ORDER_BUILD_THREAD_NUM;
         Thread[] ts = new Thread[tsNum];
+        BuildTask[] tasks = new BuildTask[tsNum];
         for (int i = 0; i < tsNum; i++) {
-            ts[i] = new Thread(new BuildTask().id(i));
+            tasks[i] = new BuildTask().id(i);
+            ts[i] = new Thread(tasks[i]);
         }
         for (int i = 0; i < tsNum; i++) {
             ts[i].start();
@@ -148,6 +247,12 @@ public class OrderTable {
         for (int i = 0; i < tsNum; i++) {
             ts[i].join();
         }
+        BuildStats.end(phase);
+        //某个线程没读完自己的文件,索引缺数据,不能当成功
+        for (BuildTask task : tasks){
+            if(task.error != null) throw new IOException("order build thread " + task.id + " failed", task.error);
+        }
+        phase = BuildStats.begin(prefix + "order.flush");
         for (SimpleBTree stree : bTreesById){
             stree.finishWrite();
         }
@@ -160,16 +265,349 @@ public class OrderTable {
         for (OriginStore originStore : originStoresByBuyer){
             originStore.finishWrite();
         }
+        for (AttrIndex attrIndex : attrIndexes){
+            attrIndex.finishWrite();
+        }
+        for (AsyncFlusher flusher : diskFlushers){
+            flusher.stop();
+        }
+        PrintUtil.print("origin write buff allocated:%d index write buff allocated:%d",
+                originBuffPool.getAllocatedNum(), indexBuffPool.getAllocatedNum());
+        originBuffPool.clear();//gc
+        indexBuffPool.clear();
+        BuildStats.end(phase);
+        phase = BuildStats.begin(prefix + "order.rerank");
         FlushHelper.flush(bTreesById);
         FlushHelper.flush(bTreesByGood);
         FlushHelper.flush(bTreesByBuyer);
+        for (AttrIndex attrIndex : attrIndexes){
+            attrIndex.reRank();
+        }
+        BuildStats.end(phase);
+        if(prefix.length() == 0 && StoreConfig.GOOD_POSTING_ENABLE){
+            phase = BuildStats.begin(prefix + "order.posting");
+            buildGoodPostings();
+            BuildStats.end(phase);
+        }
+        if(prefix.length() == 0 && StoreConfig.ORIGIN_CLUSTER_BY_BUYER){
+            phase = BuildStats.begin(prefix + "order.cluster");
+            clusterByBuyer();
+            BuildStats.end(phase);
+        }
         //Thread.sleep(3000);
         //this.orderCacheByBuyerPos = new LruCache<String, Map<String, String>>(500 * 1000, 1000*1000, "orderCacheByBuyerPos");
         //this.orderCacheByGood = new LruCache<String, List<Map<String, String>>>(10* 1000, 10 * 1000, "orderCacheByGood");
 
     }
 
-    private void parseLine(byte[] fileId,long pos,String line)throws IOException{
+    //只给新文件建增量层,建好之后才能被查到;调用方要先把新的buyerid/goodid加进字典
+    public OrderTable append(Collection<String> orderFiles)throws IOException,InterruptedException{
+        OrderTable delta;
+        synchronized (deltas){
+            deltaSeq++;
+            delta = new OrderTable(this.orderFiles, orderAccesses, originStoresByBuyer, orderFiles, storeFolders, buyerDict, goodDict,
+                    "delta" + deltaSeq + ".", StoreConfig.DELTA_PARTITION_NUM, StoreConfig.DELTA_ORIGIN_STORE_NUM);
+        }
+        delta.indexAttrs(attrSpecs).buildIndex();
+        deltaLock.writeLock().lock();
+        try {
+            deltas.add(delta);
+        }finally {
+            deltaLock.writeLock().unlock();
+        }
+        PrintUtil.print("order append files:%d deltas:%d", orderFiles.size(), deltaNum());
+        return delta;
+    }
+
+    public int deltaNum(){
+        deltaLock.readLock().lock();
+        try {
+            return deltas.size();
+        }finally {
+            deltaLock.readLock().unlock();
+        }
+    }
+
+    //把当前的增量层合并进基础分区,合并期间照常查询和追加,换分区时才短暂持写锁
+    public void compact()throws IOException{
+        synchronized (compactLock){
+            List<OrderTable> merging;
+            deltaLock.readLock().lock();
+            try {
+                merging = new ArrayList<OrderTable>(deltas);
+            }finally {
+                deltaLock.readLock().unlock();
+            }
+            if(merging.size() == 0) return;
+            long start = System.currentTimeMillis();
+            compactGen++;
+            List<List<SimpleBTree>> byId = new ArrayList<List<SimpleBTree>>();
+            List<List<SimpleBTree>> byBuyer = new ArrayList<List<SimpleBTree>>();
+            List<List<SimpleBTree>> byGood = new ArrayList<List<SimpleBTree>>();
+            for (OrderTable delta : merging){
+                byId.add(delta.bTreesById);
+                byBuyer.add(delta.bTreesByBuyer);
+                byGood.add(delta.bTreesByGood);
+            }
+            //key中用来分区的字段: orderid 8字节,buyer编号和good编号都是前4字节
+            List<SimpleBTree> newById = SimpleBTree.merge(bTreesById, byId, 0, 8, compactGen);
+            List<SimpleBTree> newByBuyer = SimpleBTree.merge(bTreesByBuyer, byBuyer, 0, 4, compactGen);
+            List<SimpleBTree> newByGood = SimpleBTree.merge(bTreesByGood, byGood, 0, 4, compactGen);
+            List<List<AttrIndex>> byAttr = new ArrayList<List<AttrIndex>>();
+            for (OrderTable delta : merging){
+                byAttr.add(delta.attrIndexes);
+            }
+            List<List<SimpleBTree>> newAttrs = AttrIndex.merge(attrIndexes, byAttr, compactGen);
+            //换了树的分区跟着重建倒排表
+            List<PostingStore> newPostings = null;
+            List<PostingStore> oldPostings = new ArrayList<PostingStore>();
+            if(goodPostings != null){
+                newPostings = new ArrayList<PostingStore>(goodPostings);
+                for (int i = 0; i < newByGood.size(); i++) {
+                    if(newByGood.get(i) == bTreesByGood.get(i)) continue;
+                    if(goodPostings.get(i) != null) oldPostings.add(goodPostings.get(i));
+                    newPostings.set(i, buildGoodPosting(newByGood.get(i)));
+                }
+            }
+            List<SimpleBTree> old = new ArrayList<SimpleBTree>();
+            deltaLock.writeLock().lock();
+            try {
+                old.addAll(bTreesById);
+                old.addAll(bTreesByBuyer);
+                old.addAll(bTreesByGood);
+                bTreesById = newById;
+                bTreesByBuyer = newByBuyer;
+                bTreesByGood = newByGood;
+                goodPostings = newPostings;
+                old.addAll(AttrIndex.swap(attrIndexes, newAttrs));
+                deltas.removeAll(merging);
+            }finally {
+                deltaLock.writeLock().unlock();
+            }
+            for (PostingStore postings : oldPostings){
+                postings.close(true);
+            }
+            old.removeAll(newById);
+            old.removeAll(newByBuyer);
+            old.removeAll(newByGood);
+            for (OrderTable delta : merging){
+                old.addAll(delta.bTreesById);
+                old.addAll(delta.bTreesByBuyer);
+                old.addAll(delta.bTreesByGood);
+                for (AttrIndex attrIndex : delta.attrIndexes){
+                    old.addAll(attrIndex.trees);
+                }
+            }
+            for (SimpleBTree tree : old){
+                tree.close(true);
+            }
+            PrintUtil.print("order compact deltas:%d gen:%d cost:%d ms", merging.size(), compactGen, System.currentTimeMillis() - start);
+        }
+    }
+
+    //每块盘一个线程,分区p在第p % size块盘上
+    public void buildGoodPostings()throws InterruptedException{
+        final int partitionNum = bTreesByGood.size();
+        final List<PostingStore> postings = new ArrayList<PostingStore>(Collections.<PostingStore>nCopies(partitionNum, null));
+        final AtomicInteger goodNum = new AtomicInteger(0);
+        final int diskNum = storeFolders.size();
+        Thread[] ts = new Thread[Math.min(diskNum, partitionNum)];
+        for (int i = 0; i < ts.length; i++) {
+            final int disk = i;
+            ts[i] = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    for (int p = disk; p < partitionNum; p += diskNum) {
+                        try {
+                            PostingStore store = buildGoodPosting(bTreesByGood.get(p));
+                            if(store != null) goodNum.addAndGet(store.goodNum());
+                            postings.set(p, store);
+                        }catch (Exception e){
+                            e.printStackTrace();
+                        }
+                    }
+                }
+            }, "order-posting-" + i);
+            ts[i].start();
+        }
+        for (Thread t : ts){
+            t.join();
+        }
+        goodPostings = postings;
+        PrintUtil.print("order good postings partitions:%d goods:%d", partitionNum, goodNum.get());
+    }
+
+    //倒排表的文件跟着树的文件名走,合并后的新树对应新的文件
+    private PostingStore buildGoodPosting(SimpleBTree tree)throws IOException{
+        return PostingStore.build(tree.filePath + ".posting", tree.readAll(),
+                StoreConfig.GOOD_POSTING_MIN_ORDERS, StoreConfig.GOOD_POSTING_BLOCK_SIZE);
+    }
+
+    //按(buyer,ctime)重写本层的origin store,只在construct里、开始查询之前调用;某个分区失败就保持原样
+    public void clusterByBuyer()throws InterruptedException{
+        final int partitionNum = bTreesByBuyer.size();
+        if(originNum % partitionNum != 0){
+            PrintUtil.print("order cluster skipped, origin stores:%d buyer partitions:%d", originNum, partitionNum);
+            return;
+        }
+        final int gen;
+        synchronized (compactLock){
+            gen = ++compactGen;
+        }
+        long start = System.currentTimeMillis();
+        //buyer分区p在第p % size块盘上,每块盘一个线程
+        final int diskNum = storeFolders.size();
+        Thread[] ts = new Thread[Math.min(diskNum, partitionNum)];
+        for (int i = 0; i < ts.length; i++) {
+            final int disk = i;
+            ts[i] = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    for (int p = disk; p < partitionNum; p += diskNum) {
+                        try {
+                            clusterPartition(p, gen);
+                        }catch (Exception e){
+                            e.printStackTrace();
+                        }
+                    }
+                }
+            }, "order-cluster-" + i);
+            ts[i].start();
+        }
+        for (Thread t : ts){
+            t.join();
+        }
+        PrintUtil.print("order cluster partitions:%d cost:%d ms", partitionNum, System.currentTimeMillis() - start);
+    }
+
+    //分区里的kv已经按(buyer,ctime)排好,按这个顺序重写属于这个分区的每个origin store,改好位置再建新树
+    //新文件先写在"原文件名.cluster",新树和新的origin store都准备好之后才在写锁里换;任何一步失败,旧文件、旧store、旧树都不动,.cluster都删掉
+    private void clusterPartition(int partition, int gen)throws IOException{
+        SimpleBTree old = bTreesByBuyer.get(partition);
+        List<byte[]> kvs = old.readAll();
+        if(kvs.size() == 0) return;
+        Map<Integer,OriginStore> rewritten = new LinkedHashMap<Integer, OriginStore>();
+        List<OriginStore> clustered = new ArrayList<OriginStore>();
+        SimpleBTree tree = null;
+        boolean swapped = false;
+        int partitionNum = bTreesByBuyer.size();
+        try {
+            for (int shard = originStart + partition; shard < originStart + originNum; shard += partitionNum) {
+                List<byte[]> shardKvs = new ArrayList<byte[]>();
+                for (byte[] kv : kvs){
+                    if(TypeUtil.bytesToLong(kv, 12, 2) == shard) shardKvs.add(kv);
+                }
+                if(shardKvs.size() == 0) continue;
+                long[] posArray = new long[shardKvs.size()];
+                for (int i = 0; i < posArray.length; i++) {
+                    posArray[i] = TypeUtil.bytesToLong(shardKvs.get(i), 14, 6);
+                }
+                OriginStore store = originStoresByBuyer.get(shard);
+                //先登记,writeSorted写到一半抛异常也能删掉
+                rewritten.put(shard, store);
+                long[] newPosArray = store.writeSorted(posArray, store.getPath() + ".cluster");
+                if(newPosArray == null){
+                    PrintUtil.print("order cluster skip large origin store %s", store.getPath());
+                    rewritten.remove(shard);
+                    continue;
+                }
+                //kvs里的位置到换上新树之前都不会被读到,改的是读出来的拷贝
+                for (int i = 0; i < newPosArray.length; i++) {
+                    System.arraycopy(TypeUtil.longToBytes(newPosArray[i]), 2, shardKvs.get(i), 14, 6);
+                }
+            }
+            if(rewritten.size() == 0) return;
+            tree = old.rebuild(kvs, gen);
+            for (Map.Entry<Integer,OriginStore> entry : rewritten.entrySet()){
+                int disk = entry.getKey() % storeFolders.size();
+                clustered.add(new OriginStore(entry.getValue().getPath() + ".cluster", originBuffPool, diskFlushers.get(disk)));
+            }
+            swapped = swapClustered(partition, tree, rewritten, clustered);
+        }finally {
+            if(!swapped){
+                for (OriginStore store : clustered){
+                    store.close();
+                }
+                for (OriginStore store : rewritten.values()){
+                    new File(store.getPath() + ".cluster").delete();
+                }
+                if(tree != null) tree.close(true);
+            }
+        }
+        if(!swapped) throw new IOException("order cluster swap failed, partition " + partition);
+        for (OriginStore store : rewritten.values()){
+            store.close();
+        }
+        old.close(true);
+    }
+
+    //写锁内把.cluster原子地改名成原文件名,换上新store和新树;原文件先硬链接一份,改名中途失败就挪回去,返回false
+    private boolean swapClustered(int partition, SimpleBTree tree, Map<Integer,OriginStore> rewritten, List<OriginStore> clustered)throws IOException{
+        List<OriginStore> olds = new ArrayList<OriginStore>(rewritten.values());
+        List<File> backups = new ArrayList<File>();
+        int moved = 0;
+        boolean keepBackups = false;
+        deltaLock.writeLock().lock();
+        try {
+            for (OriginStore store : olds){
+                File backup = new File(store.getPath() + ".bak");
+                backup.delete();
+                Files.createLink(backup.toPath(), new File(store.getPath()).toPath());
+                backups.add(backup);
+            }
+            for (int i = 0; i < clustered.size(); i++) {
+                clustered.get(i).moveTo(olds.get(i).getPath());
+                moved++;
+            }
+            int i = 0;
+            for (Integer shard : rewritten.keySet()){
+                originStoresByBuyer.set(shard, clustered.get(i++));
+            }
+            bTreesByBuyer.set(partition, tree);
+            return true;
+        }catch (IOException e){
+            e.printStackTrace();
+            //已经改过名的先挪回.cluster,再把硬链接挪回原文件名,新store由调用方关掉删掉;挪回也失败就留着.bak
+            keepBackups = true;
+            for (int i = 0; i < moved; i++) {
+                clustered.get(i).moveTo(olds.get(i).getPath() + ".cluster");
+                Files.move(backups.get(i).toPath(), new File(olds.get(i).getPath()).toPath(), StandardCopyOption.ATOMIC_MOVE);
+            }
+            keepBackups = false;
+            return false;
+        }catch (UnsupportedOperationException e){
+            PrintUtil.print("order cluster needs hard links, partition %d kept: %s", partition, e.getMessage());
+            return false;
+        }finally {
+            deltaLock.writeLock().unlock();
+            for (File backup : backups){
+                if(!keepBackups && backup.exists()) backup.delete();
+            }
+        }
+    }
+
+    //基础层加上所有增量层,需要在读锁内调用
+    private List<OrderTable> segments(){
+        if(deltas.size() == 0) return Collections.singletonList(this);
+        List<OrderTable> segments = new ArrayList<OrderTable>(deltas.size() + 1);
+        segments.add(this);
+        segments.addAll(deltas);
+        return segments;
+    }
+
+    //多个层的结果拼起来之后按key重新排一次,稳定排序,key相同的保持基础层在前
+    private void sortByKey(List<byte[]> values, final int keyLen, final boolean desc){
+        Collections.sort(values, new Comparator<byte[]>() {
+            @Override
+            public int compare(byte[] o1, byte[] o2) {
+                int res = RankUtil.compare(o1, o2, keyLen);
+                return desc ? -res : res;
+            }
+        });
+    }
+
+    //买家或商品不在字典里的订单查不到,跳过,返回false
+    private boolean parseLine(byte[] fileId,long pos,String line)throws IOException{
         //System.out.println("parse_line:" + line);
         byte[] posBytes = TypeUtil.longToBytes(pos);
         posBytes[0] = fileId[0];posBytes[1] = fileId[1];
@@ -182,118 +620,263 @@ public class OrderTable {
         long ctime = Long.valueOf(fields.get(Constant.CTIME));
         byte amount = fields.get(Constant.AMOUNT) == null ? 0 : Byte.valueOf(fields.get(Constant.AMOUNT));
         byte[] orderIdBytes = TypeUtil.longToBytes(orderId);
-        int buyerId_h = OrderUtil.hash(buyerId);
-        int goodId_h = OrderUtil.hash(goodId);
-        byte[] idNode = new byte[66];
+        int buyerIdx = buyerDict.indexOf(buyerId);
+        int goodIdx = goodDict.indexOf(goodId);
+        if(buyerIdx < 0 || goodIdx < 0) return false;
+        byte[] buyerIdxBytes = TypeUtil.intToBytes(buyerIdx);
+        byte[] goodIdxBytes = TypeUtil.intToBytes(goodIdx);
+        byte[] idNode = new byte[33];
         //order key
         System.arraycopy(orderIdBytes,0,idNode,0,8);
         System.arraycopy(TypeUtil.longToBytes(ctime),0,idNode,8,8);
         idNode[16] = done ? (byte) (amount | 0x80) : amount;
-        System.arraycopy(buyerId.getBytes(),0,idNode,17,20);
-        System.arraycopy(OrderUtil.makeGoodId(goodId).getBytes(), 0, idNode, 37, 21);
-        System.arraycopy(posBytes,0,idNode,58,8);
+        System.arraycopy(buyerIdxBytes,0,idNode,17,4);
+        System.arraycopy(goodIdxBytes, 0, idNode, 21, 4);
+        System.arraycopy(posBytes,0,idNode,25,8);
         //buyer
-        byte[] buyerNode = new byte[24];
-        short originShard = shardOriginByBuyer(buyerId_h);
+        byte[] buyerNode = new byte[20];
+        short originShard = shardOriginByBuyer(buyerIdx);
         long originPos = originStoresByBuyer.get(originShard).write(line);
         byte[] buyerPosBytes = TypeUtil.longToBytes(originPos);
         System.arraycopy(TypeUtil.shortToBytes(originShard),0,buyerPosBytes,0,2);
 
-        System.arraycopy(buyerId.substring(buyerId.length()-4, buyerId.length()).getBytes(), 0, buyerNode, 0, 4);
-        System.arraycopy(TypeUtil.intToBytes(buyerId_h),0,buyerNode,4,4);
-        System.arraycopy(TypeUtil.longToBytes(ctime),0,buyerNode,8,8);
-        System.arraycopy(buyerPosBytes,0,buyerNode,16,8);
+        System.arraycopy(buyerIdxBytes, 0, buyerNode, 0, 4);
+        System.arraycopy(TypeUtil.longToBytes(ctime),0,buyerNode,4,8);
+        System.arraycopy(buyerPosBytes,0,buyerNode,12,8);
 
         //good Order
-        byte[] goodBytes = new byte[53];
-        System.arraycopy(goodId.substring(goodId.length() - 4, goodId.length()).getBytes(),0,goodBytes,0,4);
-        System.arraycopy(TypeUtil.intToBytes(goodId_h),0, goodBytes,4,4);
-        System.arraycopy(TypeUtil.longToBytes(orderId), 0 , goodBytes, 8, 8);
-        System.arraycopy(TypeUtil.longToBytes(ctime), 0, goodBytes, 16 , 8);
-        goodBytes[24] = done ? (byte) (amount | 0x80) : amount;
-        System.arraycopy(buyerId.getBytes(),0, goodBytes, 25, 20);
-        System.arraycopy(posBytes, 0, goodBytes,45, 8);
+        byte[] goodBytes = new byte[33];
+        System.arraycopy(goodIdxBytes,0,goodBytes,0,4);
+        System.arraycopy(TypeUtil.longToBytes(orderId), 0 , goodBytes, 4, 8);
+        System.arraycopy(TypeUtil.longToBytes(ctime), 0, goodBytes, 12 , 8);
+        goodBytes[20] = done ? (byte) (amount | 0x80) : amount;
+        System.arraycopy(buyerIdxBytes,0, goodBytes, 21, 4);
+        System.arraycopy(posBytes, 0, goodBytes,25, 8);
 
 
         int orderIdShard = shardByOrderId(orderId);
-        int buyerShard = shardByBuyer(buyerId_h);
-        int goodShard = shardByGood(goodId_h);
+        int buyerShard = shardByBuyer(buyerIdx);
+        int goodShard = shardByGood(goodIdx);
 
         bTreesById.get(orderIdShard).write(idNode);
         bTreesByBuyer.get(buyerShard).write(buyerNode);
         bTreesByGood.get(goodShard).write(goodBytes);
+        if(attrIndexes.size() > 0){
+            byte[] attrData = new byte[8];
+            System.arraycopy(buyerIdxBytes, 0, attrData, 0, 4);
+            System.arraycopy(goodIdxBytes, 0, attrData, 4, 4);
+            for (AttrIndex attrIndex : attrIndexes){
+                attrIndex.write(fields.get(attrIndex.spec.key), orderId, attrData);
+            }
+        }
+        return true;
     }
 
-    public  long rankCost = 0;
+    //buyer索引的key: buyer编号 + ctime
+    private byte[] buyerKey(int buyerIdx, long time){
+        byte[] key = new byte[buyerKeyLen];
+        System.arraycopy(TypeUtil.intToBytes(buyerIdx),0,key,0,4);
+        System.arraycopy(TypeUtil.longToBytes(time),0,key,4,8);
+        return key;
+    }
+
+    //只算条数,尽量只用索引目录回答,不读原始数据
+    public int countOrdersByBuyer(String buyerid, long startTime, long endTime)throws IOException{
+        int buyerIdx = buyerDict.indexOf(buyerid);
+        if(buyerIdx < 0) return 0;
+        int count = 0;
+        deltaLock.readLock().lock();
+        try {
+            for (OrderTable segment : segments()){
+                count += segment.bTreesByBuyer.get(segment.shardByBuyer(buyerIdx)).count(buyerKey(buyerIdx, startTime), buyerKey(buyerIdx, endTime));
+            }
+        }finally {
+            deltaLock.readLock().unlock();
+        }
+        return count;
+    }
+
+    //按ctime从新到旧
     public List<Map<String,String>> getOrdersByBuyer(String buyerid, long startTime, long endTime)throws IOException{
-        int h = OrderUtil.hash(buyerid);
-        byte[] from = new byte[16];
-        byte[] to = new byte[16];
-        System.arraycopy(buyerid.substring(buyerid.length()-4, buyerid.length()).getBytes(),0, from, 0,4);
-        System.arraycopy(TypeUtil.intToBytes(h),0,from,4,4);
-        System.arraycopy(TypeUtil.longToBytes(startTime),0,from,8,8);
-
-        System.arraycopy(buyerid.substring(buyerid.length()-4, buyerid.length()).getBytes(),0, to, 0,4);
-        System.arraycopy(TypeUtil.intToBytes(h),0,to,4,4);
-        System.arraycopy(TypeUtil.longToBytes(endTime),0,to,8,8);
-        List<byte[]> values = bTreesByBuyer.get(shardByBuyer(h)).query(from,to);
+        int buyerIdx = buyerDict.indexOf(buyerid);
+        if(buyerIdx < 0){
+            return new ArrayList<Map<String, String>>(4);
+        }
+        byte[] from = buyerKey(buyerIdx, startTime);
+        byte[] to = buyerKey(buyerIdx, endTime);
+        List<byte[]> values = new ArrayList<byte[]>();
+        deltaLock.readLock().lock();
+        try {
+            List<OrderTable> segments = segments();
+            for (OrderTable segment : segments){
+                values.addAll(segment.bTreesByBuyer.get(segment.shardByBuyer(buyerIdx)).query(from,to));
+            }
+            if(segments.size() > 1){
+                sortByKey(values, buyerKeyLen, true);
+            }else {
+                Collections.reverse(values);
+            }
+        }finally {
+            deltaLock.readLock().unlock();
+        }
         if(values.size() == 0){
             return new ArrayList<Map<String, String>>(4);
         }
 
-        long[] posArray = new long[values.size()];
-        short fileId = (short) TypeUtil.bytesToLong(Arrays.copyOfRange(values.get(0),16,18));
-        for (int i = 0; i < values.size(); i++) {
-            long pos = TypeUtil.bytesToLong(Arrays.copyOfRange(values.get(i),18,24));
-            posArray[i] = pos;
+        //索引本身按ctime升序,反过来就是结果要的从新到旧,按这个顺序取,不用再排序
+        return getOrdersByBuyerValues(values);
+    }
+
+    //按ctime从新到旧,最多返回limit条,倒着走索引,够数就停
+    public List<Map<String,String>> getOrdersByBuyer(String buyerid, long startTime, long endTime, int limit)throws IOException{
+        int buyerIdx = buyerDict.indexOf(buyerid);
+        if(buyerIdx < 0){
+            return new ArrayList<Map<String, String>>(4);
         }
-        List<Map<String,String>> result = originStoresByBuyer.get(fileId).getObjectsByPosArray(posArray);
-        /*
-        {
-            //性能测试
-            long start = System.currentTimeMillis();
-            int num = 10000;
-            for (int i = 0; i < num; i++) {
-                List<Map<String,String>> tmp = originStoresByBuyer.get(fileId).getObjectsByPosArray(posArray);
+        byte[] from = buyerKey(buyerIdx, startTime);
+        byte[] to = buyerKey(buyerIdx, endTime);
+        List<byte[]> values = new ArrayList<byte[]>();
+        deltaLock.readLock().lock();
+        try {
+            List<OrderTable> segments = segments();
+            for (OrderTable segment : segments){
+                values.addAll(segment.bTreesByBuyer.get(segment.shardByBuyer(buyerIdx)).queryDesc(from, to, limit));
+            }
+            if(segments.size() > 1){
+                sortByKey(values, buyerKeyLen, true);
+                if(values.size() > limit) values = new ArrayList<byte[]>(values.subList(0, limit));
             }
-            long end = System.currentTimeMillis();
-            PrintUtil.print("num:%d cost:%d size:%d",num, end - start, result.size());
+        }finally {
+            deltaLock.readLock().unlock();
+        }
+        if(values.size() == 0){
+            return new ArrayList<Map<String, String>>(4);
+        }
+        return getOrdersByBuyerValues(values);
+    }
 
+    //合并过增量之后同一个buyer的订单可能在不同的origin store里,按store分组读,再按索引的顺序放回去
+    private List<Map<String,String>> getOrdersByBuyerValues(List<byte[]> values)throws IOException{
+        Map<Short,List<Integer>> indexesByStore = new HashMap<Short, List<Integer>>(4);
+        for (int i = 0; i < values.size(); i++) {
+            short fileId = (short) TypeUtil.bytesToLong(values.get(i), 12, 2);
+            List<Integer> indexes = indexesByStore.get(fileId);
+            if(indexes == null){
+                indexes = new ArrayList<Integer>(values.size());
+                indexesByStore.put(fileId, indexes);
+            }
+            indexes.add(i);
         }
-        */
-        long start = System.currentTimeMillis();
-        Collections.sort(result, new Comparator<Map<String, String>>() {
-            @Override
-            public int compare(Map<String, String> o1, Map<String, String> o2) {
-                return Long.valueOf(o1.get(Constant.CTIME)).compareTo(Long.valueOf(o2.get(Constant.CTIME)));
+        if(indexesByStore.size() == 1){
+            long[] posArray = new long[values.size()];
+            for (int i = 0; i < values.size(); i++) {
+                posArray[i] = TypeUtil.bytesToLong(values.get(i), 14, 6);
             }
-        });
-        long end = System.currentTimeMillis();
-        rankCost += end-start;
+            return originStoresByBuyer.get(indexesByStore.keySet().iterator().next()).getObjectsInOrder(posArray);
+        }
+        List<Map<String,String>> result = new ArrayList<Map<String, String>>(Collections.<Map<String, String>>nCopies(values.size(), null));
+        for (Map.Entry<Short,List<Integer>> entry : indexesByStore.entrySet()){
+            List<Integer> indexes = entry.getValue();
+            long[] posArray = new long[indexes.size()];
+            for (int i = 0; i < indexes.size(); i++) {
+                posArray[i] = TypeUtil.bytesToLong(values.get(indexes.get(i)), 14, 6);
+            }
+            List<Map<String,String>> objects = originStoresByBuyer.get(entry.getKey()).getObjectsInOrder(posArray);
+            for (int i = 0; i < indexes.size(); i++) {
+                result.set(indexes.get(i), objects.get(i));
+            }
+        }
+        return result;
+    }
+
+
+    //属性条件命中的orderid,升序;buyerId、goodId不为null时按索引里带的编号过滤;string属性返回的是候选
+    public long[] getOrderIdsByAttr(AttrPredicate predicate, String buyerId, String goodId)throws IOException{
+        int buyerIdx = buyerId == null ? -1 : buyerDict.indexOf(buyerId);
+        int goodIdx = goodId == null ? -1 : goodDict.indexOf(goodId);
+        if((buyerId != null && buyerIdx < 0) || (goodId != null && goodIdx < 0)) return new long[0];
+        List<Long> orderIds = new ArrayList<Long>();
+        deltaLock.readLock().lock();
+        try {
+            for (OrderTable segment : segments()){
+                AttrIndex attrIndex = AttrIndex.find(segment.attrIndexes, predicate.key);
+                if(attrIndex == null) throw new IllegalArgumentException("属性没有索引:" + predicate.key);
+                for (byte[] kv : attrIndex.query(predicate)){
+                    if(buyerIdx >= 0 && TypeUtil.bytesToLong(kv, AttrIndex.KEY_LEN, 4) != buyerIdx) continue;
+                    if(goodIdx >= 0 && TypeUtil.bytesToLong(kv, AttrIndex.KEY_LEN + 4, 4) != goodIdx) continue;
+                    orderIds.add(TypeUtil.bytesToLong(kv, AttrIndex.VALUE_LEN, 8));
+                }
+            }
+        }finally {
+            deltaLock.readLock().unlock();
+        }
+        long[] result = new long[orderIds.size()];
+        for (int i = 0; i < result.length; i++) {
+            result[i] = orderIds.get(i);
+        }
+        Arrays.sort(result);
         return result;
     }
 
+    public AttrIndex attrIndex(String key){
+        return AttrIndex.find(attrIndexes, key);
+    }
 
     public List<GoodOrderKey> getGoodKeysByGood(String goodId)throws Exception{
-        int good_h = OrderUtil.hash(goodId);
-        byte[] from = new byte[16];
-        byte[] to = new byte[16];
-        System.arraycopy(goodId.substring(goodId.length()-4,goodId.length()).getBytes(),0,from,0,4);
-        System.arraycopy(TypeUtil.intToBytes(good_h),0,from,4,4);
-        System.arraycopy(TypeUtil.longToBytes(0),0,from,8,8);
-
-        System.arraycopy(goodId.substring(goodId.length()-4,goodId.length()).getBytes(),0,to,0,4);
-        System.arraycopy(TypeUtil.intToBytes(good_h),0,to,4,4);
-        System.arraycopy(TypeUtil.longToBytes(Long.MAX_VALUE),0,to,8,8);
-
-        List<byte[]> values = bTreesByGood.get(shardByGood(good_h)).query(from,to);
-        //PrintUtil.print("getGoodKeysByGoodInner %s %d", good_h, values.size());
-        if(values.size() == 0){
+        return getGoodKeysByGood(goodId, 0, Long.MAX_VALUE);
+    }
+
+    //orderid在[fromId,toId]里的订单,按orderid升序;热门商品读倒排表,只读覆盖这个范围的块
+    public List<GoodOrderKey> getGoodKeysByGood(String goodId, long fromId, long toId)throws Exception{
+        int goodIdx = goodDict.indexOf(goodId);
+        if(goodIdx < 0){
             return new ArrayList<GoodOrderKey>(4);
         }
-        List<GoodOrderKey> goodOrderKeys = new ArrayList<GoodOrderKey>(values.size());
-        for (byte[] bytes : values){
-            goodOrderKeys.add(GoodOrderKey.parse(bytes));
+        byte[] from = new byte[goodKeyLen];
+        byte[] to = new byte[goodKeyLen];
+        System.arraycopy(TypeUtil.intToBytes(goodIdx),0,from,0,4);
+        System.arraycopy(TypeUtil.longToBytes(fromId),0,from,4,8);
+        //B树的query(from,to)不含to,倒排表含toId,上界用toId+1对齐;toId是最大值就用下一个商品的起点
+        if(toId == Long.MAX_VALUE){
+            System.arraycopy(TypeUtil.intToBytes(goodIdx + 1),0,to,0,4);
+        }else {
+            System.arraycopy(TypeUtil.intToBytes(goodIdx),0,to,0,4);
+            System.arraycopy(TypeUtil.longToBytes(toId + 1),0,to,4,8);
+        }
+
+        List<GoodOrderKey> goodOrderKeys = new ArrayList<GoodOrderKey>();
+        int hitSegments = 0;
+        deltaLock.readLock().lock();
+        try {
+            for (OrderTable segment : segments()){
+                int shard = segment.shardByGood(goodIdx);
+                PostingStore postingStore = segment.goodPostings == null ? null : segment.goodPostings.get(shard);
+                PostingStore.Postings postings = postingStore == null ? null : postingStore.query(goodIdx, fromId, toId);
+                int before = goodOrderKeys.size();
+                if(postings != null){
+                    for (int i = 0; i < postings.size; i++) {
+                        goodOrderKeys.add(GoodOrderKey.parse(postings, i, buyerDict));
+                    }
+                }else {
+                    for (byte[] bytes : segment.bTreesByGood.get(shard).query(from,to)){
+                        goodOrderKeys.add(GoodOrderKey.parse(bytes, buyerDict));
+                    }
+                }
+                if(goodOrderKeys.size() > before) hitSegments++;
+            }
+        }finally {
+            deltaLock.readLock().unlock();
+        }
+        if(hitSegments > 1){
+            Collections.sort(goodOrderKeys, new Comparator<GoodOrderKey>() {
+                @Override
+                public int compare(GoodOrderKey o1, GoodOrderKey o2) {
+                    return o1.orderId < o2.orderId ? -1 : (o1.orderId == o2.orderId ? 0 : 1);
+                }
+            });
+        }
+        for (GoodOrderKey goodOrderKey : goodOrderKeys){
+            goodOrderKey.goodId = goodId;
         }
         return goodOrderKeys;
     }
@@ -313,11 +896,18 @@ public class OrderTable {
     }
 
     public OrderKey  getOrderKey(long orderId)throws Exception{
-        List<byte[]> values = bTreesById.get(shardByOrderId(orderId)).query(TypeUtil.longToBytes(orderId));
-        if(values.size() == 0){
-            return null;
+        deltaLock.readLock().lock();
+        try {
+            for (OrderTable segment : segments()){
+                List<byte[]> values = segment.bTreesById.get(segment.shardByOrderId(orderId)).query(TypeUtil.longToBytes(orderId));
+                if(values.size() > 0){
+                    return OrderKey.parse(values.get(0), buyerDict, goodDict);
+                }
+            }
+        }finally {
+            deltaLock.readLock().unlock();
         }
-        return OrderKey.parse(values.get(0));
+        return null;
     }
     public Map<String,String> getOrderByKey(OrderKey orderKey)throws Exception{
         if(orderKey == null) return null;
@@ -325,6 +915,121 @@ public class OrderTable {
         long pos = TypeUtil.bytesToLong(Arrays.copyOfRange(orderKey.pos,2,8));
         return getOrderByPos(fildId,pos,false);
     }
+    //批量取索引: 按分区分组,分区内按orderid排序,同一个叶子只读一次,结果和orderIds一一对应,不存在的为null
+    public OrderKey[] getOrderKeys(final long[] orderIds)throws Exception{
+        OrderKey[] result = new OrderKey[orderIds.length];
+        deltaLock.readLock().lock();
+        try {
+            //基础层没找到的再去增量层找
+            for (OrderTable segment : segments()){
+                segment.fillOrderKeys(orderIds, result);
+            }
+        }finally {
+            deltaLock.readLock().unlock();
+        }
+        return result;
+    }
+
+    private void fillOrderKeys(final long[] orderIds, OrderKey[] result)throws Exception{
+        Map<Byte,List<Integer>> indexesByShard = new HashMap<Byte, List<Integer>>();
+        for (int i = 0; i < orderIds.length; i++) {
+            if(result[i] != null) continue;
+            byte shard = shardByOrderId(orderIds[i]);
+            List<Integer> indexes = indexesByShard.get(shard);
+            if(indexes == null){
+                indexes = new ArrayList<Integer>();
+                indexesByShard.put(shard, indexes);
+            }
+            indexes.add(i);
+        }
+        for (Map.Entry<Byte,List<Integer>> entry : indexesByShard.entrySet()){
+            List<Integer> indexes = entry.getValue();
+            Collections.sort(indexes, new Comparator<Integer>() {
+                @Override
+                public int compare(Integer o1, Integer o2) {
+                    return orderIds[o1] < orderIds[o2] ? -1 : (orderIds[o1] == orderIds[o2] ? 0 : 1);
+                }
+            });
+            List<byte[]> keys = new ArrayList<byte[]>(indexes.size());
+            for (int index : indexes){
+                keys.add(TypeUtil.longToBytes(orderIds[index]));
+            }
+            List<List<byte[]>> values = bTreesById.get(entry.getKey()).queryBatch(keys);
+            for (int i = 0; i < indexes.size(); i++) {
+                if(values.get(i).size() > 0){
+                    result[indexes.get(i)] = OrderKey.parse(values.get(i).get(0), buyerDict, goodDict);
+                }
+            }
+        }
+    }
+
+    //批量取原始订单: 按文件分组,按位置排序,离得近的合并成一次读,结果和orderKeys一一对应,key为null的位置也是null
+    public List<Map<String,String>> getOrdersByKeys(OrderKey[] orderKeys)throws IOException{
+        List<Map<String,String>> result = new ArrayList<Map<String, String>>(Collections.<Map<String, String>>nCopies(orderKeys.length, null));
+        final long[] posArray = new long[orderKeys.length];
+        Map<Short,List<Integer>> indexesByFile = new HashMap<Short, List<Integer>>();
+        for (int i = 0; i < orderKeys.length; i++) {
+            if(orderKeys[i] == null) continue;
+            short fileId = (short) TypeUtil.bytesToLong(Arrays.copyOfRange(orderKeys[i].pos,0,2));
+            posArray[i] = TypeUtil.bytesToLong(Arrays.copyOfRange(orderKeys[i].pos,2,8));
+            List<Integer> indexes = indexesByFile.get(fileId);
+            if(indexes == null){
+                indexes = new ArrayList<Integer>();
+                indexesByFile.put(fileId, indexes);
+            }
+            indexes.add(i);
+        }
+        for (Map.Entry<Short,List<Integer>> entry : indexesByFile.entrySet()){
+            List<Integer> indexes = entry.getValue();
+            Collections.sort(indexes, new Comparator<Integer>() {
+                @Override
+                public int compare(Integer o1, Integer o2) {
+                    return posArray[o1] < posArray[o2] ? -1 : (posArray[o1] == posArray[o2] ? 0 : 1);
+                }
+            });
+            int from = 0;
+            while (from < indexes.size()){
+                int to = from + 1;
+                long start = posArray[indexes.get(from)];
+                while (to < indexes.size()
+                        && posArray[indexes.get(to)] - posArray[indexes.get(to-1)] <= StoreConfig.BATCH_READ_MAX_GAP
+                        && posArray[indexes.get(to)] - start <= StoreConfig.BATCH_READ_MAX_SPAN){
+                    to++;
+                }
+                readOrdersCoalesced(entry.getKey(), indexes.subList(from, to), posArray, result);
+                from = to;
+            }
+        }
+        return result;
+    }
+
+    //一次读出[第一条的位置,最后一条的位置+TAIL),在里面切行,切不出完整一行的单独再读
+    private void readOrdersCoalesced(short fileId, List<Integer> indexes, long[] posArray, List<Map<String,String>> result)throws IOException{
+        long start = posArray[indexes.get(0)];
+        byte[] buff = new byte[(int) (posArray[indexes.get(indexes.size()-1)] - start) + StoreConfig.BATCH_READ_LINE_TAIL];
+        int readNum = 0;
+        RandomAccessFile accessFile = orderAccesses.get(fileId);
+        AccessLog.region(orderFiles.get(fileId), start);
+        synchronized (accessFile){
+            accessFile.seek(start);
+            while (readNum < buff.length){
+                int tmp = accessFile.read(buff, readNum, buff.length - readNum);
+                if(tmp < 0) break;
+                readNum += tmp;
+            }
+        }
+        for (int index : indexes){
+            int offset = (int) (posArray[index] - start);
+            int end = offset;
+            while (end < readNum && buff[end] != '\n') end++;
+            if(end < readNum){
+                result.set(index, OrderUtil.parse(new String(buff, offset, end - offset)));
+            }else {
+                result.set(index, getOrderByPos(fileId, posArray[index], false));
+            }
+        }
+    }
+
     public Map<String,String> getOrderById(long orderId)throws Exception{
         return getOrderByKey(getOrderKey(orderId));
     }
@@ -336,6 +1041,7 @@ public class OrderTable {
         }
         */
         String line = "";
+        AccessLog.region(orderFiles.get(fileId), pos);
         synchronized (orderAccesses.get(fileId)){
             line = OrderUtil.readLine(orderAccesses.get(fileId), pos,250);
         }
@@ -345,6 +1051,17 @@ public class OrderTable {
         return order;
     }
 
+    //查询时读原始订单落在哪个文件上,用来按磁盘限流
+    public String diskPathOf(OrderKey orderKey){
+        short fildId = (short) TypeUtil.bytesToLong(Arrays.copyOfRange(orderKey.pos,0,2));
+        return orderFiles.get(fildId);
+    }
+
+    //buyer范围查询读的origin store所在的目录
+    public String diskPathOfBuyer(String buyerid){
+        return storeFolders.get(shardOriginByBuyer(Math.max(buyerDict.indexOf(buyerid), 0)) % storeFolders.size());
+    }
+
     public byte shardByOrderId(long orderId){
         return (byte) (orderId % bTreesById.size());
     }
@@ -357,7 +1074,7 @@ public class OrderTable {
 
 
     public short shardOriginByBuyer(int buyerId_h){
-        return (short) (buyerId_h % originStoresByBuyer.size());
+        return (short) (originStart + buyerId_h % originNum);
     }
 
 
@@ -0,0 +1,643 @@
+package com.alibaba.middleware.race.util;
+
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ * Created by liuzhendong on 16/8/5.
+ * 造测试数据: 订单、买家、商品文件,格式和比赛数据一样(每行一条记录,key:value用tab分隔,UTF-8),外加一份带答案的case文件
+ * 约定1: 每条记录的每个字段都是(seed,类型,序号,字段)的哈希算出来的,和线程数、文件数无关,同样的参数生成的数据完全一样
+ * 约定2: 订单的买家和商品按Zipf分布抽取,zipf=0就是均匀分布;orderid和createtime都是序号的置换,不会重复
+ * 约定3: attrs>0时每条记录随机带0~3个a_o_/a_g_/a_b_属性,属性值按编号分别是整数、小数和字符串
+ * 约定4: case文件的格式和Tester读的一样;生成前先选好要查的订单、买家和商品,生成时只记下命中订单的序号,写case时再把订单算一遍,
+ *        命中订单超过caseMaxOrders的买家或商品不出case,所以数据再大也只占很少的内存
+ * 约定5: 排序有并列时按orderid从大到小,createtime不重复所以买家查询不会有并列
+ */
+public class DataGenerator {
+
+    static final int BUYER = 1, GOOD = 2, ORDER = 3, SALER = 4, CASE = 5;
+    public static final long CTIME_BASE = 1468000000L;
+    public static final long CTIME_SPAN = 3 * 365 * 24 * 3600L;
+    public static final long ORDER_ID_BASE = 100000000L;
+    public static final int AVG_ORDER_BYTES = 150; //按这个估算给定大小的数据需要多少订单
+    static final String[] BUYER_PREFIX = {"ap", "tb", "wx", "tp"};
+    static final String[] GOOD_PREFIX = {"al", "dd", "aye", "goo", "gd"};
+    public static final long MAX_ORDERS = 3000000000L; //置换里i*mul不能溢出
+    static final char[] HEX = "0123456789abcdef".toCharArray();
+
+    String outDir;
+    long seed = 42;
+    long orderNum = 100000;
+    int buyerNum = 2000;
+    int goodNum = 1000;
+    int orderFileNum = 4;
+    int buyerFileNum = 2;
+    int goodFileNum = 2;
+    int threadNum = 4;
+    double zipf = 1.0;
+    int attrNum = 4;
+    int caseNum = 400;
+    int caseMaxOrders = 20000;
+
+    double[] buyerCdf;
+    double[] goodCdf;
+    long orderIdMul;
+    long createTimeMul;
+
+    public DataGenerator(String outDir){
+        this.outDir = outDir;
+    }
+
+    public DataGenerator seed(long seed){
+        this.seed = seed;
+        return this;
+    }
+
+    public DataGenerator orders(long orderNum){
+        this.orderNum = orderNum;
+        return this;
+    }
+
+    public DataGenerator buyers(int buyerNum){
+        this.buyerNum = buyerNum;
+        return this;
+    }
+
+    public DataGenerator goods(int goodNum){
+        this.goodNum = goodNum;
+        return this;
+    }
+
+    //按订单文件的大小估算规模,买家和商品按订单数的比例来
+    public DataGenerator gigabytes(double gb){
+        this.orderNum = (long) (gb * 1024 * 1024 * 1024 / AVG_ORDER_BYTES);
+        this.buyerNum = (int) Math.max(1, Math.min(Integer.MAX_VALUE, orderNum / 50));
+        this.goodNum = (int) Math.max(1, Math.min(Integer.MAX_VALUE, orderNum / 100));
+        this.orderFileNum = (int) Math.max(orderFileNum, gb);
+        return this;
+    }
+
+    public DataGenerator files(int orderFileNum, int buyerFileNum, int goodFileNum){
+        this.orderFileNum = orderFileNum;
+        this.buyerFileNum = buyerFileNum;
+        this.goodFileNum = goodFileNum;
+        return this;
+    }
+
+    public DataGenerator threads(int threadNum){
+        this.threadNum = threadNum;
+        return this;
+    }
+
+    public DataGenerator zipf(double zipf){
+        this.zipf = zipf;
+        return this;
+    }
+
+    public DataGenerator attrs(int attrNum){
+        this.attrNum = attrNum;
+        return this;
+    }
+
+    public DataGenerator cases(int caseNum, int caseMaxOrders){
+        this.caseNum = caseNum;
+        this.caseMaxOrders = caseMaxOrders;
+        return this;
+    }
+
+    public List<String> orderFiles(){
+        return fileNames("order", orderFileNum);
+    }
+
+    public List<String> buyerFiles(){
+        return fileNames("buyer", buyerFileNum);
+    }
+
+    public List<String> goodFiles(){
+        return fileNames("good", goodFileNum);
+    }
+
+    public String caseFile(){
+        return outDir + "/case.0";
+    }
+
+    private List<String> fileNames(String name, int num){
+        List<String> files = new ArrayList<String>(num);
+        for (int i = 0; i < num; i++) {
+            files.add(outDir + "/" + name + "." + i);
+        }
+        return files;
+    }
+
+    //要出case的买家或商品,生成时记下它的订单序号,订单内容到时候再算一遍
+    static class Target{
+        final List<Long> orders = new ArrayList<Long>();
+        boolean overflow = false;
+
+        synchronized void add(long order, int max){
+            if(overflow) return;
+            if(orders.size() >= max){
+                overflow = true;
+                orders.clear();
+                return;
+            }
+            orders.add(order);
+        }
+    }
+
+    final List<Long> orderTargets = new ArrayList<Long>();
+    final Map<Integer,Target> buyerTargets = new HashMap<Integer, Target>();
+    final Map<Integer,Target> goodTargets = new HashMap<Integer, Target>();
+
+    public void generate()throws IOException, InterruptedException{
+        if(orderNum > MAX_ORDERS) throw new IllegalArgumentException("too many orders " + orderNum);
+        new File(outDir).mkdirs();
+        long start = System.currentTimeMillis();
+        orderIdMul = coprimeNear(orderNum, 0.6180339887);
+        createTimeMul = coprimeNear(orderNum, 0.4142135623);
+        buyerCdf = zipfCdf(buyerNum);
+        goodCdf = zipfCdf(goodNum);
+        pickTargets();
+
+        ExecutorService executor = Executors.newFixedThreadPool(threadNum);
+        List<Future<Long>> futures = new ArrayList<Future<Long>>();
+        for (int i = 0; i < buyerFileNum; i++) {
+            futures.add(executor.submit(recordTask(BUYER, outDir + "/buyer." + i, range(buyerNum, buyerFileNum, i), range(buyerNum, buyerFileNum, i + 1))));
+        }
+        for (int i = 0; i < goodFileNum; i++) {
+            futures.add(executor.submit(recordTask(GOOD, outDir + "/good." + i, range(goodNum, goodFileNum, i), range(goodNum, goodFileNum, i + 1))));
+        }
+        for (int i = 0; i < orderFileNum; i++) {
+            futures.add(executor.submit(recordTask(ORDER, outDir + "/order." + i, range(orderNum, orderFileNum, i), range(orderNum, orderFileNum, i + 1))));
+        }
+        long bytes = 0;
+        try {
+            for (Future<Long> future : futures){
+                bytes += future.get();
+            }
+        }catch (ExecutionException e){
+            throw new IOException(e.getCause());
+        }finally {
+            executor.shutdown();
+        }
+        int written = writeCases();
+        PrintUtil.print("generate orders:%d buyers:%d goods:%d bytes:%d cases:%d cost:%d ms",
+                orderNum, buyerNum, goodNum, bytes, written, System.currentTimeMillis() - start);
+    }
+
+    //第i个文件的起始序号
+    private static long range(long num, int fileNum, int i){
+        return num / fileNum * i + Math.min(i, num % fileNum);
+    }
+
+    private Callable<Long> recordTask(final int kind, final String file, final long from, final long to){
+        return new Callable<Long>() {
+            @Override
+            public Long call() throws Exception {
+                OutputStream out = new BufferedOutputStream(new FileOutputStream(file), 1024 * 1024);
+                long bytes = 0;
+                try {
+                    StringBuilder sb = new StringBuilder(512);
+                    for (long i = from; i < to; i++) {
+                        sb.setLength(0);
+                        if(kind == BUYER){
+                            buyerLine((int) i, sb);
+                        }else if(kind == GOOD){
+                            goodLine((int) i, sb);
+                        }else {
+                            orderLine(i, sb);
+                            collect(i);
+                        }
+                        byte[] line = (sb.append('\n')).toString().getBytes("UTF-8");
+                        out.write(line);
+                        bytes += line.length;
+                    }
+                }finally {
+                    out.close();
+                }
+                return bytes;
+            }
+        };
+    }
+
+    // ---------------- 记录 ----------------
+
+    static long mix(long z){
+        z = (z ^ (z >>> 30)) * 0xbf58476d1ce4e5b9L;
+        z = (z ^ (z >>> 27)) * 0x94d049bb133111ebL;
+        return z ^ (z >>> 31);
+    }
+
+    //不同的序号一定得到不同的值,用来生成id
+    long idHash(int kind, long i){
+        return mix(i + mix(seed * 31 + kind));
+    }
+
+    long hash(int kind, long i, int field){
+        return mix(idHash(kind, i) + field * 0x9e3779b97f4a7c15L);
+    }
+
+    double uniform(int kind, long i, int field){
+        return (hash(kind, i, field) >>> 11) * 0x1.0p-53;
+    }
+
+    int nextInt(int kind, long i, int field, int bound){
+        return (int) ((hash(kind, i, field) >>> 1) % bound);
+    }
+
+    //xx-xxxx-xxxxxxxxxxxx,前缀加上64位的哈希
+    private String makeId(String[] prefixes, int kind, long i){
+        long h = idHash(kind, i);
+        StringBuilder sb = new StringBuilder(24).append(prefixes[(int) ((h >>> 1) % prefixes.length)]).append('-');
+        for (int shift = 60; shift >= 0; shift -= 4) {
+            if(shift == 44) sb.append('-');
+            sb.append(HEX[(int) (h >>> shift) & 15]);
+        }
+        return sb.toString();
+    }
+
+    //左边补0到width位
+    static StringBuilder pad(StringBuilder sb, long value, int width){
+        String str = String.valueOf(value);
+        for (int i = str.length(); i < width; i++) {
+            sb.append('0');
+        }
+        return sb.append(str);
+    }
+
+    public String buyerId(int i){
+        return makeId(BUYER_PREFIX, BUYER, i);
+    }
+
+    public String goodId(int i){
+        return makeId(GOOD_PREFIX, GOOD, i);
+    }
+
+    String salerId(int goodIndex){
+        //几个商品属于同一个卖家
+        return makeId(BUYER_PREFIX, SALER, goodIndex / (1 + nextInt(GOOD, goodIndex / 8, 0, 8)));
+    }
+
+    //[0,n)上的置换
+    static long permute(long i, long n, long mul, long offset){
+        return (i * mul + offset) % n;
+    }
+
+    //n*frac附近和n互质的乘数,相邻的序号会被打散到整个区间;orderid和createtime用不同的frac,两者不相关
+    static long coprimeNear(long n, double frac){
+        long mul = Math.max(1, (long) (n * frac));
+        while (gcd(mul, n) != 1){
+            mul++;
+        }
+        return mul;
+    }
+
+    static long gcd(long a, long b){
+        while (b != 0){
+            long t = a % b;
+            a = b;
+            b = t;
+        }
+        return a;
+    }
+
+    public long orderId(long i){
+        return ORDER_ID_BASE + permute(i, orderNum, orderIdMul, seed & 0xffff) * 2;
+    }
+
+    public long createTime(long i){
+        long step = Math.max(1, CTIME_SPAN / Math.max(orderNum, 1));
+        return CTIME_BASE + permute(i, orderNum, createTimeMul, (seed >>> 16) & 0xffff) * step + nextInt(ORDER, i, 9, (int) step);
+    }
+
+    int buyerOfOrder(long i){
+        return sample(buyerCdf, buyerNum, uniform(ORDER, i, 1));
+    }
+
+    int goodOfOrder(long i){
+        return sample(goodCdf, goodNum, uniform(ORDER, i, 2));
+    }
+
+    void buyerLine(int i, StringBuilder sb){
+        sb.append("buyerid:").append(buyerId(i));
+        pad(sb.append("\tcontactphone:1"), (hash(BUYER, i, 1) >>> 1) % 10000000000L, 10);
+        sb.append("\tbuyername:用户").append(nextInt(BUYER, i, 2, 1000000));
+        if(nextInt(BUYER, i, 3, 3) > 0) sb.append("\taddress:城市").append(nextInt(BUYER, i, 4, 500)).append("路").append(nextInt(BUYER, i, 5, 3000)).append("号");
+        attrs("a_b_", BUYER, i, sb);
+    }
+
+    void goodLine(int i, StringBuilder sb){
+        sb.append("goodid:").append(goodId(i));
+        sb.append("\tsalerid:").append(salerId(i));
+        sb.append("\tgood_name:商品").append(nextInt(GOOD, i, 1, 1000000));
+        long price = 100 + nextInt(GOOD, i, 2, 1000000);
+        pad(sb.append("\tprice:").append(price / 100).append('.'), price % 100, 2);
+        if(nextInt(GOOD, i, 3, 2) == 0) sb.append("\toffprice:").append(nextInt(GOOD, i, 4, 100));
+        if(nextInt(GOOD, i, 5, 4) == 0) sb.append("\tdescription:描述").append(nextInt(GOOD, i, 6, 100000));
+        attrs("a_g_", GOOD, i, sb);
+    }
+
+    void orderLine(long i, StringBuilder sb){
+        sb.append("orderid:").append(orderId(i));
+        sb.append("\tbuyerid:").append(buyerId(buyerOfOrder(i)));
+        sb.append("\tgoodid:").append(goodId(goodOfOrder(i)));
+        sb.append("\tcreatetime:").append(createTime(i));
+        sb.append("\tamount:").append(1 + nextInt(ORDER, i, 3, 100));
+        sb.append("\tdone:").append(nextInt(ORDER, i, 4, 2) == 0);
+        if(nextInt(ORDER, i, 5, 3) == 0) sb.append("\tremark:备注").append(nextInt(ORDER, i, 6, 100000));
+        attrs("a_o_", ORDER, i, sb);
+    }
+
+    //属性编号模3: 0整数 1小数 2字符串
+    void attrs(String prefix, int kind, long i, StringBuilder sb){
+        if(attrNum <= 0) return;
+        int num = nextInt(kind, i, 20, 4);
+        int first = nextInt(kind, i, 21, attrNum);
+        for (int j = 0; j < num && j < attrNum; j++) {
+            int attr = (first + j) % attrNum;
+            sb.append('\t').append(prefix).append(attr).append(':');
+            long value = (hash(kind, i, 30 + attr) >>> 1) % 100000;
+            if(attr % 3 == 0){
+                sb.append(value);
+            }else if(attr % 3 == 1){
+                pad(sb.append(value / 100).append('.'), value % 100, 2);
+            }else {
+                sb.append("v").append(value);
+            }
+        }
+    }
+
+    // ---------------- Zipf ----------------
+
+    double[] zipfCdf(int num){
+        if(zipf <= 0) return null;
+        double[] cdf = new double[num];
+        double sum = 0;
+        for (int k = 0; k < num; k++) {
+            sum += 1.0 / Math.pow(k + 1, zipf);
+            cdf[k] = sum;
+        }
+        for (int k = 0; k < num; k++) {
+            cdf[k] /= sum;
+        }
+        return cdf;
+    }
+
+    //第一个累计概率不小于u的下标,排名靠前的买家和商品被抽到得多
+    static int sample(double[] cdf, int num, double u){
+        if(cdf == null) return (int) (u * num);
+        int start = 0, end = num - 1;
+        while (start < end){
+            int mid = (start + end) >>> 1;
+            if(cdf[mid] < u){
+                start = mid + 1;
+            }else {
+                end = mid;
+            }
+        }
+        return start;
+    }
+
+    // ---------------- case ----------------
+
+    private void pickTargets(){
+        orderTargets.clear();
+        buyerTargets.clear();
+        goodTargets.clear();
+        Random random = new Random(mix(seed * 31 + CASE));
+        int each = Math.max(1, caseNum / 4);
+        for (int i = 0; i < each && orderNum > 0; i++) {
+            orderTargets.add((random.nextLong() >>> 1) % orderNum);
+        }
+        //一半按Zipf抽,能抽到热点,一半均匀抽
+        for (int i = 0; i < each * 2; i++) {
+            int buyer = i % 2 == 0 ? sample(buyerCdf, buyerNum, random.nextDouble()) : random.nextInt(buyerNum);
+            if(!buyerTargets.containsKey(buyer)) buyerTargets.put(buyer, new Target());
+            int good = i % 2 == 0 ? sample(goodCdf, goodNum, random.nextDouble()) : random.nextInt(goodNum);
+            if(!goodTargets.containsKey(good)) goodTargets.put(good, new Target());
+        }
+    }
+
+    private void collect(long i){
+        Target buyer = buyerTargets.get(buyerOfOrder(i));
+        if(buyer != null) buyer.add(i, caseMaxOrders);
+        Target good = goodTargets.get(goodOfOrder(i));
+        if(good != null) good.add(i, caseMaxOrders);
+    }
+
+    private Map<String,String> goodFields(int i){
+        StringBuilder sb = new StringBuilder(256);
+        goodLine(i, sb);
+        return OrderUtil.parse(sb.toString());
+    }
+
+    //第i个订单和对应的商品、买家拼起来
+    private Map<String,String> join(long i){
+        StringBuilder sb = new StringBuilder(512);
+        orderLine(i, sb);
+        Map<String,String> fields = OrderUtil.parse(sb.toString());
+        fields.putAll(goodFields(goodOfOrder(i)));
+        sb.setLength(0);
+        buyerLine(buyerOfOrder(i), sb);
+        fields.putAll(OrderUtil.parse(sb.toString()));
+        return fields;
+    }
+
+    private List<Map<String,String>> joinAll(Target target){
+        List<Map<String,String>> joined = new ArrayList<Map<String, String>>(target.orders.size());
+        for (Long order : target.orders){
+            joined.add(join(order));
+        }
+        return joined;
+    }
+
+    private int writeCases()throws IOException{
+        Random random = new Random(mix(seed * 31 + CASE + 1));
+        List<String> cases = new ArrayList<String>();
+        for (Long order : orderTargets){
+            //orderid都是偶数,加1就是不存在的订单
+            boolean exist = random.nextInt(8) != 0;
+            long orderId = orderId(order) + (exist ? 0 : 1);
+            Map<String,String> fields = exist ? join(order) : null;
+            List<String> keys = pickKeys(random, fields);
+            StringBuilder sb = new StringBuilder("CASE:QUERY_ORDER\n");
+            sb.append("orderid:").append(orderId).append('\n');
+            sb.append("keys:").append(keysLine(keys)).append('\n');
+            sb.append("Result:{\n");
+            if(fields != null) sb.append(resultLine(orderId, fields, keys)).append('\n');
+            sb.append("}\n");
+            cases.add(sb.toString());
+        }
+        for (Map.Entry<Integer,Target> entry : new TreeMap<Integer, Target>(buyerTargets).entrySet()){
+            if(entry.getValue().overflow) continue;
+            List<Map<String,String>> joined = joinAll(entry.getValue());
+            //createtime从大到小
+            Collections.sort(joined, new Comparator<Map<String, String>>() {
+                @Override
+                public int compare(Map<String, String> o1, Map<String, String> o2) {
+                    int res = Long.valueOf(o2.get("createtime")).compareTo(Long.valueOf(o1.get("createtime")));
+                    return res != 0 ? res : Long.valueOf(o2.get("orderid")).compareTo(Long.valueOf(o1.get("orderid")));
+                }
+            });
+            long from = CTIME_BASE + (long) (random.nextDouble() * CTIME_SPAN);
+            long to = random.nextInt(4) == 0 ? Long.MAX_VALUE : from + (long) (random.nextDouble() * CTIME_SPAN / 2);
+            if(random.nextInt(4) == 0) from = 0;
+            StringBuilder sb = new StringBuilder("CASE:QUERY_BUYER_TSRANGE\n");
+            sb.append("buyerid:").append(buyerId(entry.getKey())).append('\n');
+            sb.append("starttime:").append(from).append('\n');
+            sb.append("endtime:").append(to).append('\n');
+            sb.append("Result:{\n");
+            for (Map<String,String> fields : joined){
+                long ctime = Long.valueOf(fields.get("createtime"));
+                if(ctime >= from && ctime < to) sb.append(resultLine(Long.valueOf(fields.get("orderid")), fields, null)).append('\n');
+            }
+            sb.append("}\n");
+            cases.add(sb.toString());
+        }
+        for (Map.Entry<Integer,Target> entry : new TreeMap<Integer, Target>(goodTargets).entrySet()){
+            if(entry.getValue().overflow) continue;
+            List<Map<String,String>> joined = joinAll(entry.getValue());
+            //orderid从小到大
+            Collections.sort(joined, new Comparator<Map<String, String>>() {
+                @Override
+                public int compare(Map<String, String> o1, Map<String, String> o2) {
+                    return Long.valueOf(o1.get("orderid")).compareTo(Long.valueOf(o2.get("orderid")));
+                }
+            });
+            Map<String,String> good = goodFields(entry.getKey());
+            List<String> keys = pickKeys(random, joined.size() > 0 ? joined.get(0) : good);
+            StringBuilder sb = new StringBuilder("CASE:QUERY_SALER_GOOD\n");
+            sb.append("salerid:").append(good.get("salerid")).append('\n');
+            sb.append("goodid:").append(good.get("goodid")).append('\n');
+            sb.append("keys:").append(keysLine(keys)).append('\n');
+            sb.append("Result:{\n");
+            for (Map<String,String> fields : joined){
+                sb.append(resultLine(Long.valueOf(fields.get("orderid")), fields, keys)).append('\n');
+            }
+            sb.append("}\n");
+            cases.add(sb.toString());
+
+            String sumKey = pickSumKey(random);
+            sb = new StringBuilder("CASE:QUERY_GOOD_SUM\n");
+            sb.append("goodid:").append(good.get("goodid")).append('\n');
+            sb.append("keys:[").append(sumKey).append("]\n");
+            sb.append("result:").append(sum(joined, sumKey)).append('\n');
+            cases.add(sb.toString());
+        }
+        Collections.shuffle(cases, random);
+        Writer writer = new OutputStreamWriter(new BufferedOutputStream(new FileOutputStream(caseFile())), "UTF-8");
+        try {
+            for (String c : cases){
+                writer.write(c);
+                writer.write('\n');
+            }
+        }finally {
+            writer.close();
+        }
+        return cases.size();
+    }
+
+    //null表示查全部字段
+    private List<String> pickKeys(Random random, Map<String,String> fields){
+        if(fields == null || random.nextInt(4) == 0) return null;
+        List<String> all = new ArrayList<String>(new TreeSet<String>(fields.keySet()));
+        List<String> keys = new ArrayList<String>();
+        int num = random.nextInt(4);
+        for (int i = 0; i < num; i++) {
+            String key = all.get(random.nextInt(all.size()));
+            if(!keys.contains(key)) keys.add(key);
+        }
+        if(random.nextInt(4) == 0) keys.add("a_x_" + random.nextInt(10)); //不存在的字段
+        return keys;
+    }
+
+    private String pickSumKey(Random random){
+        String[] keys = {"amount", "price", "offprice", "a_o_" + random.nextInt(Math.max(attrNum, 1)),
+                "a_g_" + random.nextInt(Math.max(attrNum, 1)), "a_b_" + random.nextInt(Math.max(attrNum, 1)), "done", "a_x_0"};
+        return keys[random.nextInt(keys.length)];
+    }
+
+    private static String keysLine(List<String> keys){
+        if(keys == null) return "[*]";
+        StringBuilder sb = new StringBuilder("[");
+        for (int i = 0; i < keys.size(); i++) {
+            if(i > 0) sb.append(',');
+            sb.append(keys.get(i));
+        }
+        return sb.append(']').toString();
+    }
+
+    private static String resultLine(long orderId, Map<String,String> fields, List<String> keys){
+        StringBuilder sb = new StringBuilder("{orderid:").append(orderId).append(", KV:[");
+        String sep = "";
+        for (Map.Entry<String,String> entry : new TreeMap<String, String>(fields).entrySet()){
+            if(keys != null && !keys.contains(entry.getKey())) continue;
+            sb.append(sep).append(entry.getKey()).append(':').append(entry.getValue());
+            sep = ",";
+        }
+        return sb.append("]}").toString();
+    }
+
+    //和sumOrdersByGood一样: 都是整数按long加,否则按double加,有不是数字的或者都没有这个字段返回null
+    static String sum(List<Map<String,String>> orders, String key){
+        if(orders.size() == 0) return "null";
+        long longSum = 0;
+        boolean allNull = true;
+        boolean isLong = true;
+        for (Map<String,String> order : orders){
+            String value = order.get(key);
+            if(value == null) continue;
+            allNull = false;
+            try {
+                longSum += Long.valueOf(value);
+            }catch (NumberFormatException e){
+                isLong = false;
+                break;
+            }
+        }
+        if(allNull) return "null";
+        if(isLong) return String.valueOf(longSum);
+        Double doubleSum = 0.0d;
+        for (Map<String,String> order : orders){
+            String value = order.get(key);
+            if(value == null) continue;
+            try {
+                doubleSum += Double.valueOf(value);
+            }catch (NumberFormatException e){
+                return "null";
+            }
+        }
+        return doubleSum.toString();
+    }
+
+    //参数形如 out=/data/gen orders=1000000 buyers=20000 goods=10000 gb=10 orderFiles=8 seed=42 zipf=1.0 attrs=4 threads=8 cases=1000
+    public static void main(String[] args)throws Exception{
+        Map<String,String> params = new HashMap<String, String>();
+        for (String arg : args){
+            int index = arg.indexOf('=');
+            if(index > 0) params.put(arg.substring(0, index), arg.substring(index + 1));
+        }
+        if(!params.containsKey("out")){
+            System.out.println("usage: DataGenerator out=<dir> [orders=N buyers=N goods=N | gb=N] [orderFiles=N buyerFiles=N goodFiles=N] [seed=N zipf=S attrs=N threads=N cases=N caseMaxOrders=N]");
+            return;
+        }
+        DataGenerator generator = new DataGenerator(params.get("out"));
+        if(params.containsKey("gb")) generator.gigabytes(Double.valueOf(params.get("gb")));
+        if(params.containsKey("orders")) generator.orders(Long.valueOf(params.get("orders")));
+        if(params.containsKey("buyers")) generator.buyers(Integer.valueOf(params.get("buyers")));
+        if(params.containsKey("goods")) generator.goods(Integer.valueOf(params.get("goods")));
+        generator.files(intParam(params, "orderFiles", generator.orderFileNum), intParam(params, "buyerFiles", generator.buyerFileNum),
+                intParam(params, "goodFiles", generator.goodFileNum));
+        if(params.containsKey("seed")) generator.seed(Long.valueOf(params.get("seed")));
+        if(params.containsKey("zipf")) generator.zipf(Double.valueOf(params.get("zipf")));
+        generator.attrs(intParam(params, "attrs", generator.attrNum));
+        generator.threads(intParam(params, "threads", generator.threadNum));
+        generator.cases(intParam(params, "cases", generator.caseNum), intParam(params, "caseMaxOrders", generator.caseMaxOrders));
+        generator.generate();
+    }
+
+    private static int intParam(Map<String,String> params, String key, int defaultValue){
+        return params.containsKey(key) ? Integer.valueOf(params.get(key)) : defaultValue;
+    }
+}
@@ -8,6 +8,7 @@ import java.util.Arrays;
 import java.util.Collection;
 import java.util.HashMap;
 import java.util.Map;
+import java.util.TreeSet;
 
 /**
  * Created by liuzhendong on 16/7/19.
@@ -32,6 +33,16 @@ public class OrderUtil {
         return fields;
     }
 
+    //字段集合规范化: null表示全部字段,其它去重排序后拼起来;结果缓存和投影计划的key都用它
+    public static String canonicalKeys(Collection<String> keys){
+        if(keys == null) return "*";
+        StringBuilder sb = new StringBuilder();
+        for (String key : new TreeSet<String>(keys)){
+            sb.append(key).append(',');
+        }
+        return sb.toString();
+    }
+
     public static String readLine(RandomAccessFile accessFile,long pos,int size)throws IOException{
         byte[] buff = new byte[size];
         accessFile.seek(pos);
@@ -15,6 +15,34 @@ public class RankUtil {
         return 0;
     }
 
+    //key的前len个字节按8字节一组转成long写到dst[off]开始的位置,不够8字节补0,最高位取反后有符号比较等于无符号的字节序比较
+    public static void packWords(byte[] key, int len, long[] dst, int off){
+        int words = (len + 7) / 8;
+        for (int w = 0; w < words; w++) {
+            long v = 0;
+            int base = w * 8;
+            if(base + 8 <= len){
+                for (int b = 0; b < 8; b++) {
+                    v = (v << 8) | (key[base + b] & 0xFF);
+                }
+            }else {
+                for (int b = 0; b < 8; b++) {
+                    v = (v << 8) | (base + b < len ? key[base + b] & 0xFF : 0);
+                }
+            }
+            dst[off + w] = v ^ Long.MIN_VALUE;
+        }
+    }
+
+    //一次比较8个字节,参数是packWords的结果
+    public static int compareWords(long[] key1, int off1, long[] key2, int off2, int words){
+        for (int i = 0; i < words; i++) {
+            long a = key1[off1 + i], b = key2[off2 + i];
+            if(a != b) return a < b ? -1 : 1;
+        }
+        return 0;
+    }
+
     public static int findChildIndex(List<byte[]> keyvalues, byte[] key, int keySize){
         int start = 0,end = keyvalues.size()-1;
         while (true){
@@ -43,4 +43,13 @@ public class TypeUtil {
         return res;
     }
 
+    //直接从数组中间读,避免copyOfRange
+    public static long bytesToLong(byte[] bytes, int offset, int len){
+        long res = 0;
+        for (int i = offset; i < offset + len; i++) {
+            res = (res << 8) | (bytes[i] & 0xffL);
+        }
+        return res;
+    }
+
 }
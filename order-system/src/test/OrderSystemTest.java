@@ -1,12 +1,29 @@
+import com.alibaba.middleware.race.AsyncOrderSystem;
 import com.alibaba.middleware.race.OrderSystem;
 import com.alibaba.middleware.race.OrderSystemImpl;
 import com.alibaba.middleware.race.Tester;
+import com.alibaba.middleware.race.model.AttrPredicate;
+import com.alibaba.middleware.race.net.QueryClient;
+import com.alibaba.middleware.race.net.QueryServer;
+import com.alibaba.middleware.race.util.DataGenerator;
+import com.alibaba.middleware.race.util.OrderUtil;
 import com.sun.org.apache.xpath.internal.operations.Or;
+import org.junit.Assert;
 import org.junit.Test;
 
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.Paths;
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
 import java.util.Iterator;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 
 /**
  * Created by liuzhendong on 16/7/28.
@@ -76,6 +93,173 @@ public class OrderSystemTest {
 
     }
 
+    @Test
+    public void testAsyncOrderSystem()throws Exception{
+        OrderSystemImpl orderSystem = new OrderSystemImpl();
+        orderSystem.construct(orderFiles, buyerFiles, goodFiles, storeFolders);
+        AsyncOrderSystem asyncOrderSystem = new AsyncOrderSystem(orderSystem);
+        //一次提交多个查询,不需要每个查询占一个线程
+        List<Future<OrderSystem.Result>> futures = new ArrayList<Future<OrderSystem.Result>>();
+        futures.add(asyncOrderSystem.queryOrder(626952019, getKeys("done")));
+        futures.add(asyncOrderSystem.queryOrder(612584687, getKeys("contactphone", "good_name")));
+        futures.add(asyncOrderSystem.queryOrder(623324410, null));
+        for (Future<OrderSystem.Result> future : futures){
+            System.out.println(future.get());
+        }
+        Iterator<OrderSystem.Result> resultIterator = asyncOrderSystem.queryOrdersByBuyer(1465354705, 1486160674, "ap-8dd6-4aa77f957edf").get();
+        while (resultIterator.hasNext()){
+            System.out.println(resultIterator.next());
+        }
+        asyncOrderSystem.shutdown();
+    }
+
+    @Test
+    public void testAppend()throws Exception{
+        //先用一部分订单文件构建,剩下的追加,追加和合并之后的结果应该和一次全量构建一样
+        OrderSystemImpl orderSystem = new OrderSystemImpl();
+        orderSystem.construct(orderFiles.subList(0, 2), buyerFiles, goodFiles, storeFolders);
+        orderSystem.append(orderFiles.subList(2, 3), new ArrayList<String>(), new ArrayList<String>());
+        orderSystem.append(orderFiles.subList(3, 4), new ArrayList<String>(), new ArrayList<String>());
+        testQueryOrder(orderSystem);
+        testBuyerTsRange(orderSystem);
+        orderSystem.compact();
+        testQueryOrder(orderSystem);
+        testBuyerTsRange(orderSystem);
+        testSumByGood(orderSystem);
+    }
+
+    @Test
+    public void testGeneratedData()throws Exception{
+        //生成带答案的数据,构建之后跑一遍所有case;两次生成的文件应该一模一样
+        String genDir = storeDir + "/gen";
+        DataGenerator generator = new DataGenerator(genDir).seed(7).orders(200000).buyers(4000).goods(2000)
+                .files(4, 2, 2).threads(4).zipf(1.1).attrs(6).cases(400, 20000);
+        generator.generate();
+        byte[] first = Files.readAllBytes(Paths.get(generator.caseFile()));
+        generator.threads(1).generate();
+        Assert.assertArrayEquals(first, Files.readAllBytes(Paths.get(generator.caseFile())));
+
+        List<String> genFolders = new ArrayList<String>();
+        genFolders.add(storeDir + "/genindex1/");
+        genFolders.add(storeDir + "/genindex2/");
+        OrderSystemImpl orderSystem = new OrderSystemImpl();
+        orderSystem.construct(generator.orderFiles(), generator.buyerFiles(), generator.goodFiles(), genFolders);
+        Assert.assertEquals(0, Tester.test(orderSystem, generator.caseFile()));
+    }
+
+    @Test
+    public void testQueryServer()throws Exception{
+        //同一份生成的数据,经过本机回环的服务端和客户端查,结果要和直接查一样
+        DataGenerator generator = new DataGenerator(storeDir + "/gen").seed(11).orders(100000).buyers(2000).goods(1000)
+                .files(2, 1, 1).zipf(1.2).cases(200, 20000);
+        generator.generate();
+        List<String> genFolders = new ArrayList<String>();
+        genFolders.add(storeDir + "/genindex1/");
+        OrderSystemImpl orderSystem = new OrderSystemImpl();
+        orderSystem.construct(generator.orderFiles(), generator.buyerFiles(), generator.goodFiles(), genFolders);
+        QueryServer server = new QueryServer(orderSystem, 0);
+        QueryClient client = new QueryClient("127.0.0.1", server.getPort());
+        Assert.assertEquals(0, Tester.test(client, generator.caseFile()));
+
+        //先连续发出去再取回复
+        long[] orderIds = new long[2000];
+        List<QueryClient.Call<OrderSystem.Result>> calls = new ArrayList<QueryClient.Call<OrderSystem.Result>>();
+        for (int i = 0; i < orderIds.length; i++) {
+            orderIds[i] = generator.orderId(i * 37) + (i % 10 == 0 ? 1 : 0);
+            calls.add(client.queryOrderAsync(orderIds[i], null));
+        }
+        List<OrderSystem.Result> batch = client.queryOrders(orderIds, getKeys("buyerid", "price"));
+        for (int i = 0; i < orderIds.length; i++) {
+            Assert.assertEquals(orderSystem.queryOrder(orderIds[i], null), calls.get(i).get());
+            Assert.assertEquals(orderSystem.queryOrder(orderIds[i], getKeys("buyerid", "price")), batch.get(i));
+        }
+
+        //最热的买家结果很多,分成很多帧返回
+        Iterator<OrderSystem.Result> expect = orderSystem.queryOrdersByBuyer(0, Long.MAX_VALUE, generator.buyerId(0));
+        Iterator<OrderSystem.Result> real = client.queryOrdersByBuyer(0, Long.MAX_VALUE, generator.buyerId(0));
+        while (expect.hasNext()){
+            Assert.assertEquals(expect.next(), real.next());
+        }
+        Assert.assertFalse(real.hasNext());
+
+        //流式结果只读一条就放着不管,同一个连接上别的请求照样返回
+        Iterator<OrderSystem.Result> abandoned = client.queryOrdersByBuyer(0, Long.MAX_VALUE, generator.buyerId(0));
+        abandoned.next();
+        for (int i = 0; i < 200; i++) {
+            Assert.assertEquals(orderSystem.queryOrder(orderIds[i], null), client.queryOrder(orderIds[i], null));
+        }
+        //回复没收完之前可以取消,取消之后get抛CancellationException,连接照常用
+        QueryClient.Call<Iterator<OrderSystem.Result>> stream = client.queryOrdersByBuyerAsync(0, Long.MAX_VALUE, generator.buyerId(0));
+        Assert.assertTrue(stream.cancel(true));
+        Assert.assertTrue(stream.isCancelled());
+        try {
+            stream.get();
+            Assert.fail();
+        }catch (CancellationException e){
+        }
+        Assert.assertEquals(orderSystem.queryOrder(orderIds[1], null), client.queryOrder(orderIds[1], null));
+        //超时了不影响之后再取
+        QueryClient.Call<OrderSystem.Result> timed = client.queryOrderAsync(orderIds[0], null);
+        try {
+            timed.get(1, TimeUnit.NANOSECONDS);
+        }catch (TimeoutException e){
+        }
+        Assert.assertEquals(orderSystem.queryOrder(orderIds[0], null), timed.get(10, TimeUnit.SECONDS));
+        client.close();
+        server.shutdown();
+    }
+
+    @Test
+    public void testAttrIndex()throws Exception{
+        //属性条件查出来的订单和直接扫订单文件过滤的一样;a_o_0是整数,a_o_2是字符串,a_g_0按商品的属性查
+        DataGenerator generator = new DataGenerator(storeDir + "/gen").seed(5).orders(100000).buyers(3000).goods(1500)
+                .files(2, 1, 1).attrs(6).cases(10, 100);
+        generator.generate();
+        List<String> genFolders = new ArrayList<String>();
+        genFolders.add(storeDir + "/genindex1/");
+        OrderSystemImpl orderSystem = new OrderSystemImpl().indexAttrs("a_o_0:long,a_o_2:string,a_g_0:long");
+        orderSystem.construct(generator.orderFiles(), generator.buyerFiles(), generator.goodFiles(), genFolders);
+
+        Map<String,Map<String,String>> goods = new HashMap<String, Map<String, String>>();
+        for (String line : Files.readAllLines(Paths.get(generator.goodFiles().get(0)), Charset.defaultCharset())){
+            Map<String,String> good = OrderUtil.parse(line);
+            goods.put(good.get("goodid"), good);
+        }
+        List<Long> byLong = new ArrayList<Long>(), byString = new ArrayList<Long>(), byGood = new ArrayList<Long>();
+        for (String file : generator.orderFiles()){
+            for (String line : Files.readAllLines(Paths.get(file), Charset.defaultCharset())){
+                Map<String,String> order = OrderUtil.parse(line);
+                long orderId = Long.valueOf(order.get("orderid"));
+                String longValue = order.get("a_o_0");
+                if(longValue != null && Long.valueOf(longValue) >= 99000) byLong.add(orderId);
+                String stringValue = order.get("a_o_2");
+                if(stringValue != null && stringValue.compareTo("v12") >= 0 && stringValue.compareTo("v13") <= 0) byString.add(orderId);
+                String goodValue = goods.get(order.get("goodid")).get("a_g_0");
+                if(goodValue != null && Long.valueOf(goodValue) < 10000) byGood.add(orderId);
+            }
+        }
+        Collections.sort(byLong);
+        Collections.sort(byString);
+        Collections.sort(byGood);
+        Assert.assertEquals(byLong, orderIds(orderSystem.queryOrdersByAttr(AttrPredicate.ge("a_o_0", "99000"), null, null, getKeys("buyerid"))));
+        Assert.assertEquals(byString, orderIds(orderSystem.queryOrdersByAttr(AttrPredicate.between("a_o_2", "v12", "v13"), null, null, null)));
+        Assert.assertEquals(byGood, orderIds(orderSystem.queryOrdersByAttr(AttrPredicate.lt("a_g_0", "10000"), null, null, getKeys("goodid"))));
+        //没建索引的属性不能查
+        try {
+            orderSystem.queryOrdersByAttr(AttrPredicate.eq("a_o_1", "1.00"), null, null, null);
+            Assert.fail();
+        }catch (IllegalArgumentException e){
+        }
+    }
+
+    private List<Long> orderIds(Iterator<OrderSystem.Result> results){
+        List<Long> orderIds = new ArrayList<Long>();
+        while (results.hasNext()){
+            orderIds.add(results.next().orderId());
+        }
+        return orderIds;
+    }
+
     public void testQueryOrder(OrderSystem orderSystem){
         System.out.println(orderSystem.queryOrder(626952019,getKeys("done")));
 
@@ -1,3 +1,4 @@
+import com.alibaba.middleware.race.store.KeyDir;
 import com.alibaba.middleware.race.util.RankUtil;
 import com.alibaba.middleware.race.util.TypeUtil;
 import org.junit.Test;
@@ -100,4 +101,33 @@ public class RankTest {
         long end = System.currentTimeMillis();
         System.out.println(String.format("size:%d cost:%d ms", keys.length,end - start));
     }
+
+    @Test
+    public void testKeyDir(){
+        //8字节和13字节的key,和逐个比较的结果一致
+        for (int keySize : new int[]{8, 13}) {
+            TreeSet<byte[]> sorted = new TreeSet<byte[]>(new Comparator<byte[]>() {
+                @Override
+                public int compare(byte[] o1, byte[] o2) {
+                    return RankUtil.compare(o1, o2, o1.length);
+                }
+            });
+            for (int i = 0; i < 5000; i++) {
+                byte[] key = new byte[keySize];
+                random.nextBytes(key);
+                sorted.add(key);
+            }
+            List<byte[]> keys = new ArrayList<byte[]>(sorted);
+            KeyDir keyDir = new KeyDir(keys, keySize);
+            for (int i = 0; i < 20000; i++) {
+                byte[] key = i % 2 == 0 ? keys.get(random.nextInt(keys.size())).clone() : new byte[keySize];
+                if(i % 2 != 0) random.nextBytes(key);
+                int expect = 0;
+                while (expect < keys.size() && RankUtil.compare(keys.get(expect), key, keySize) < 0) expect++;
+                if(keyDir.find(key, keySize) != expect){
+                    throw new RuntimeException(String.format("keySize:%d expect:%d actual:%d", keySize, expect, keyDir.find(key, keySize)));
+                }
+            }
+        }
+    }
 }
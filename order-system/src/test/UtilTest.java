@@ -1,11 +1,28 @@
+import com.alibaba.middleware.race.OrderSystem;
+import com.alibaba.middleware.race.OrderSystemImpl;
+import com.alibaba.middleware.race.ResultCodec;
+import com.alibaba.middleware.race.model.OrderKey;
+import com.alibaba.middleware.race.model.ProjectionPlan;
+import com.alibaba.middleware.race.net.Protocol;
+import com.alibaba.middleware.race.store.AccessLog;
+import com.alibaba.middleware.race.store.AsyncFlusher;
+import com.alibaba.middleware.race.store.BuildStats;
+import com.alibaba.middleware.race.store.OriginStore;
+import com.alibaba.middleware.race.store.PostingStore;
+import com.alibaba.middleware.race.store.ResultCache;
+import com.alibaba.middleware.race.store.StoreConfig;
+import com.alibaba.middleware.race.store.WriteBuffPool;
 import com.alibaba.middleware.race.util.OrderUtil;
 import com.alibaba.middleware.race.util.RankUtil;
 import com.alibaba.middleware.race.util.TypeUtil;
 import org.junit.Test;
 
-import java.util.Arrays;
-import java.util.Map;
-import java.util.Random;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.util.*;
 
 /**
  * Created by liuzhendong on 16/7/20.
@@ -41,4 +58,191 @@ public class UtilTest {
         }
     }
 
+    @Test
+    public void testResultCache()throws Exception{
+        System.out.println(OrderUtil.canonicalKeys(Arrays.asList("b", "a", "b")).equals(OrderUtil.canonicalKeys(Arrays.asList("a", "b"))));
+        List<OrderSystem.Result> results = new ArrayList<OrderSystem.Result>();
+        for (int i = 0; i < 100; i++) {
+            Map<String,String> fields = new HashMap<String, String>();
+            fields.put("orderid", i + "");
+            fields.put("createtime", (1000 - i) + "");
+            results.add(new OrderSystemImpl.BaseResult(i, fields));
+        }
+        ResultCache cache = new ResultCache("test", 1024 * 1024, 64 * 1024);
+        cache.put("B|buyer", ResultCodec.encode(results, 0, 2000, "createtime"));
+        byte[] cached = cache.get("B|buyer");
+        //用[0,2000)的缓存回答[950,960)
+        System.out.println(ResultCodec.covers(cached, 950, 960) + " " + ResultCodec.decode(cached, 950, 960, 100).size());
+        //peek不算查询次数
+        System.out.println((cache.peek("B|buyer") == cached) + " " + cache.queryNum.get());
+    }
+
+    @Test
+    public void testProjectionPlan(){
+        List<String> keys = Arrays.asList("buyerid", "good_name", "a_x_unknown");
+        ProjectionPlan plan = ProjectionPlan.of(ProjectionPlan.IndexKind.ORDER_INDEX, keys);
+        //同一个字段集合只分析一次
+        System.out.println((plan == ProjectionPlan.of(ProjectionPlan.IndexKind.ORDER_INDEX, Arrays.asList("a_x_unknown", "good_name", "buyerid"))));
+        OrderKey orderKey = new OrderKey();
+        orderKey.buyerId = "buyer1";
+        Map<String,String> good = new HashMap<String, String>();
+        good.put("good_name", "name1");
+        Map<String,String> buyer = new HashMap<String, String>();
+        buyer.put("a_x_unknown", "x");
+        System.out.println(plan.project(orderKey, new HashMap<String, String>(), good, buyer));
+    }
+
+    @Test
+    public void testAccessLog()throws Exception{
+        String file = "/Users/liuzhendong/Source/middleware-race/data/index1/" + StoreConfig.ACCESS_LOG_FILE;
+        for (int i = 0; i < StoreConfig.ACCESS_LOG_SAMPLE_RATE * 100; i++) {
+            AccessLog.leaf("/tmp/index_orderid.0", 0, 1024 * 33);
+        }
+        for (int i = 0; i < StoreConfig.ACCESS_LOG_SAMPLE_RATE * 100; i++) {
+            AccessLog.region("/tmp/order.0", i % 3 * StoreConfig.ACCESS_LOG_REGION_SIZE + 10);
+        }
+        //采样到的访问会更新最近访问时间
+        if(System.currentTimeMillis() - AccessLog.lastAccessTime() > 1000) throw new RuntimeException("lastAccessTime not updated");
+        AccessLog.save(file);
+        //按次数从多到少,叶子每次都一样,次数最多
+        List<AccessLog.Entry> entries = AccessLog.load(file);
+        System.out.println(entries.size());
+        System.out.println(entries.get(0).kind + " " + entries.get(0).path + " " + entries.get(0).count);
+        if(entries.get(0).kind != AccessLog.LEAF) throw new RuntimeException("leaf should be the most accessed");
+    }
+
+    @Test
+    public void testOriginStoreRead()throws Exception{
+        //间隔很大的位置分开读,挨着的合并读,超长的记录单独往后读
+        WriteBuffPool buffPool = new WriteBuffPool(StoreConfig.ORIGIN_WRITE_BUFF_LEN, 4);
+        AsyncFlusher flusher = new AsyncFlusher("origin-test").start();
+        OriginStore originStore = new OriginStore("/Users/liuzhendong/Source/middleware-race/data/index1/origin.test", buffPool, flusher);
+        StringBuilder longValue = new StringBuilder();
+        for (int i = 0; i < StoreConfig.BATCH_READ_LINE_TAIL * 10; i++) {
+            longValue.append('a');
+        }
+        int num = 2000;
+        long[] posArray = new long[num];
+        for (int i = 0; i < num; i++) {
+            posArray[i] = originStore.write("id:" + i + "\tv:" + (i % 100 == 0 ? longValue.toString() : "b"));
+        }
+        originStore.finishWrite();
+        flusher.awaitFlush();
+        long[] query = new long[]{posArray[1999], posArray[0], posArray[1], posArray[500], posArray[100], posArray[1]};
+        List<Map<String,String>> result = originStore.getObjectsInOrder(query);
+        String[] expect = new String[]{"1999", "0", "1", "500", "100", "1"};
+        for (int i = 0; i < expect.length; i++) {
+            if(!expect[i].equals(result.get(i).get("id"))) throw new RuntimeException("wrong record " + result.get(i));
+        }
+        System.out.println(result.get(1).get("v").length());
+    }
+
+    @Test
+    public void testOriginStoreWriteSorted()throws Exception{
+        //按买家重写之后,同一个买家的记录挨在一起,顺序和给的位置顺序一致
+        WriteBuffPool buffPool = new WriteBuffPool(StoreConfig.ORIGIN_WRITE_BUFF_LEN, 4);
+        AsyncFlusher flusher = new AsyncFlusher("origin-test").start();
+        String path = "/Users/liuzhendong/Source/middleware-race/data/index1/origin.sorted.test";
+        OriginStore originStore = new OriginStore(path, buffPool, flusher);
+        int num = 1000;
+        long[] posArray = new long[num];
+        for (int i = 0; i < num; i++) {
+            posArray[i] = originStore.write("id:" + i + "\tbuyer:" + (i % 10));
+        }
+        originStore.finishWrite();
+        flusher.awaitFlush();
+        long[] sorted = new long[num];
+        int[] ids = new int[num];
+        for (int i = 0; i < num; i++) {
+            ids[i] = (i % 100) * 10 + i / 100;
+            sorted[i] = posArray[ids[i]];
+        }
+        long[] newPosArray = originStore.writeSorted(sorted, path + ".cluster");
+        OriginStore clustered = new OriginStore(path + ".cluster", buffPool, flusher);
+        List<Map<String,String>> result = clustered.getObjectsInOrder(newPosArray);
+        for (int i = 0; i < num; i++) {
+            if(i > 0 && newPosArray[i] <= newPosArray[i-1]) throw new RuntimeException("not contiguous " + i);
+            if(!String.valueOf(ids[i]).equals(result.get(i).get("id"))) throw new RuntimeException("wrong record " + result.get(i));
+        }
+        //改名盖掉原文件之后还是同一个文件,打开的store照常读
+        originStore.close();
+        clustered.moveTo(path);
+        if(new File(path + ".cluster").exists() || !path.equals(clustered.getPath())) throw new RuntimeException("not moved");
+        if(!clustered.getObjectsInOrder(newPosArray).equals(result)) throw new RuntimeException("wrong record after move");
+        clustered.close();
+    }
+
+    @Test
+    public void testPostingStore()throws Exception{
+        //热门商品按块编码,按orderid范围查只读覆盖的块,结果和直接过滤kv一致;订单少的商品不进倒排表
+        List<byte[]> kvs = new ArrayList<byte[]>();
+        Random random = new Random(7);
+        for (int good = 0; good < 3; good++) {
+            long orderId = 1000;
+            for (int i = 0; i < (good == 1 ? 5 : 1000); i++) {
+                orderId += 1 + random.nextInt(100);
+                byte[] kv = new byte[33];
+                System.arraycopy(TypeUtil.intToBytes(good), 0, kv, 0, 4);
+                System.arraycopy(TypeUtil.longToBytes(orderId), 0, kv, 4, 8);
+                System.arraycopy(TypeUtil.longToBytes(1470000000L + random.nextInt(1000000)), 0, kv, 12, 8);
+                kv[20] = (byte) (random.nextInt(100) | (i % 2 == 0 ? 0x80 : 0));
+                System.arraycopy(TypeUtil.intToBytes(random.nextInt(1 << 20)), 0, kv, 21, 4);
+                System.arraycopy(TypeUtil.shortToBytes((short) random.nextInt(1000)), 0, kv, 25, 2);
+                System.arraycopy(TypeUtil.longToBytes(random.nextInt(Integer.MAX_VALUE) * 16L), 2, kv, 27, 6);
+                kvs.add(kv);
+            }
+        }
+        PostingStore store = PostingStore.build("/Users/liuzhendong/Source/middleware-race/data/index1/posting.test", kvs, 100, 64);
+        if(store.goodNum() != 2 || store.contains(1)) throw new RuntimeException("hot goods " + store.goodNum());
+        long[][] ranges = new long[][]{{0, Long.MAX_VALUE}, {5000, 20000}, {0, 1000}, {TypeUtil.bytesToLong(kvs.get(64), 4, 8), TypeUtil.bytesToLong(kvs.get(128), 4, 8)}};
+        for (long[] range : ranges){
+            PostingStore.Postings postings = store.query(0, range[0], range[1]);
+            int n = 0;
+            for (byte[] kv : kvs){
+                long orderId = TypeUtil.bytesToLong(kv, 4, 8);
+                if(TypeUtil.bytesToLong(kv, 0, 4) != 0 || orderId < range[0] || orderId > range[1]) continue;
+                if(postings.orderIds[n] != orderId || postings.ctimes[n] != TypeUtil.bytesToLong(kv, 12, 8)
+                        || postings.amounts[n] != kv[20] || postings.buyerIdxes[n] != TypeUtil.bytesToLong(kv, 21, 4)
+                        || postings.poses[n] != TypeUtil.bytesToLong(kv, 25, 8)) throw new RuntimeException("wrong posting " + orderId);
+                n++;
+            }
+            if(n != postings.size) throw new RuntimeException("posting size " + postings.size + " expect " + n);
+        }
+        store.close(true);
+    }
+
+    @Test
+    public void testBuildStats()throws Exception{
+        BuildStats.reset();
+        BuildStats.Phase phase = BuildStats.begin("order.parse");
+        long startNanos = System.nanoTime();
+        long startCpu = BuildStats.threadCpuNanos();
+        BuildStats.read("/disk1/order.0", 1024);
+        BuildStats.read("/disk1/order.1", 1024);
+        BuildStats.written("/disk2/index_orderid.0", 512);
+        BuildStats.lockWait(10 * 1000 * 1000);
+        BuildStats.thread("order-0", 100, startNanos, startCpu);
+        BuildStats.end(phase);
+        BuildStats.partition("/disk2/index_orderid.0", 100, 1000 * 1000, 2000 * 1000, 4800);
+        //同一个目录的读写合在一起,每类统计一个数组
+        String report = BuildStats.report();
+        System.out.println(report);
+        if(!report.contains("{\"disk\":\"/disk1\",\"readBytes\":2048,\"writtenBytes\":0}")) throw new RuntimeException("disk bytes");
+        if(!report.contains("\"lockWaitMs\":10,")) throw new RuntimeException("lock wait");
+    }
+
+    @Test
+    public void testProtocolLongValue()throws Exception{
+        //超过64K的字段值也要能编码,writeUTF放不下
+        char[] chars = new char[100 * 1000];
+        Arrays.fill(chars, '长');
+        Map<String,String> fields = new HashMap<String, String>();
+        fields.put("orderid", "1");
+        fields.put("remark", new String(chars));
+        OrderSystem.Result result = new OrderSystemImpl.BaseResult(1, fields);
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        Protocol.writeResult(new DataOutputStream(bytes), result);
+        OrderSystem.Result decoded = Protocol.readResult(new DataInputStream(new ByteArrayInputStream(bytes.toByteArray())));
+        if(!decoded.get("remark").valueAsString().equals(fields.get("remark"))) throw new RuntimeException("long value");
+    }
 }
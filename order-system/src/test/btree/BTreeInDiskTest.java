@@ -51,6 +51,32 @@ public class BTreeInDiskTest {
     }
 
 
+    @Test
+    public void testBulkLoad()throws IOException{
+        String file = "/Users/liuzhendong/Source/middleware-race/data/index/bulk.index";
+        int num = 1000*1000;
+        List<byte[]> keyvalues = new ArrayList<byte[]>(num);
+        for (int i = 0; i < num; i++) {
+            keyvalues.add(String.format("key%08dvalue%08d", i, i).getBytes());
+        }
+        long start = System.currentTimeMillis();
+        BTree bTree = BTree.createBTreeWithDisk(file);
+        bTree.bulkLoad(keyvalues.iterator(), (byte) 11, (byte) 13);
+        long end = System.currentTimeMillis();
+        PrintUtil.print("bulk load num:%d cost:%d ms", num, end - start);
+
+        BTree loaded = BTree.loadBTreeFromDisk(file);
+        int testNum = 1000, corrNum = 0;
+        for (int i = 0; i < testNum; i++) {
+            int index = random.nextInt(num);
+            List<byte[]> res = loaded.query(String.format("key%08d", index).getBytes());
+            if(res.size() == 1 && Arrays.equals(res.get(0), keyvalues.get(index))){
+                corrNum++;
+            }
+        }
+        PrintUtil.print("testNum:%d corrNum:%d", testNum, corrNum);
+    }
+
     @Test
     public void testMultiFlushToDisk()throws Exception{
          class  Task implements Runnable{
@@ -9,6 +9,7 @@ import java.io.IOException;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.Random;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * Created by liuzhendong on 16/7/19.
@@ -54,6 +55,52 @@ public class BTreeV2InDiskTest {
 
     }
 
+    @Test
+    public void testConcurrentRead()throws Exception{
+        String file = "/Users/liuzhendong/Source/middleware-race/data/index/concurrent.index";
+        final int num = 1000*1000;
+        List<byte[]> keyvalues = new ArrayList<byte[]>(num);
+        for (int i = 0; i < num; i++) {
+            keyvalues.add(String.format("key%08dvalue%08d", i, i).getBytes());
+        }
+        BTreeV2.createBTreeWithDisk(file).bulkLoad(keyvalues.iterator(), (byte) 11, (byte) 13);
+        final BTreeV2 bTree = BTreeV2.loadBTreeFromDisk(file);
+        bTree.pinForConcurrentRead();
+
+        int tsNum = 8;
+        final int testNum = 100*1000;
+        final AtomicInteger corrNum = new AtomicInteger(0);
+        Thread[] ts = new Thread[tsNum];
+        for (int i = 0; i < tsNum; i++) {
+            ts[i] = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    Random random = new Random();
+                    try {
+                        for (int j = 0; j < testNum; j++) {
+                            int index = random.nextInt(num);
+                            List<byte[]> res = bTree.query(String.format("key%08d", index).getBytes());
+                            if(res.size() == 1 && new String(res.get(0)).endsWith(String.format("value%08d", index))){
+                                corrNum.incrementAndGet();
+                            }
+                        }
+                    }catch (IOException e){
+                        e.printStackTrace();
+                    }
+                }
+            });
+        }
+        long start = System.currentTimeMillis();
+        for (int i = 0; i < tsNum; i++) {
+            ts[i].start();
+        }
+        for (int i = 0; i < tsNum; i++) {
+            ts[i].join();
+        }
+        long end = System.currentTimeMillis();
+        PrintUtil.print("threads:%d testNum:%d corrNum:%d cost:%d ms", tsNum, tsNum * testNum, corrNum.get(), end - start);
+    }
+
     @Test
     public void testSingleFlushDisk()throws Exception{
         testFlushToDisk("/Users/liuzhendong/Source/middleware-race/data/index/test.index");
@@ -15,6 +15,7 @@ public class PageTest {
         PageMgr pageMgr = PageMgr.createNew("/tmp/tmp_page.txt",1024*1024);
         Page page = pageMgr.allocateNewPage();
         page.flushIntoDisk("this is page one".getBytes());
+        pageMgr.sync();
     }
 
     @Test
@@ -26,4 +27,27 @@ public class PageTest {
         page.flushIntoDisk("this is page two".getBytes());
         System.out.println(new String(second.readFromDisk()));
     }
+
+    @Test
+    public void testDirtyPageCopy()throws Exception{
+        //调用方在flush之后改了body,脏页表里的内容不能跟着变
+        PageMgr pageMgr = PageMgr.createNew("/tmp/tmp_dirty_page.txt",1024*1024);
+        pageMgr.syncPolicy = PageMgr.SyncPolicy.BARRIER;
+        Page page = pageMgr.allocateNewPage();
+        byte[] body = "dirty page body".getBytes();
+        page.flushIntoDisk(body);
+        body[0] = 'X';
+        page.readFromDisk()[1] = 'X';
+        if(!new String(page.readFromDisk()).equals("dirty page body")) throw new RuntimeException("dirty page changed by caller");
+        pageMgr.flushFirstPage();
+        pageMgr.sync();
+        //重新加载之后第一个page的修改也要进脏页表
+        PageMgr loaded = PageMgr.load("/tmp/tmp_dirty_page.txt");
+        loaded.syncPolicy = PageMgr.SyncPolicy.BARRIER;
+        loaded.allocateNewPage();
+        loaded.flushFirstPage();
+        if(loaded.getDirtyBody(0) == null) throw new RuntimeException("first page not marked dirty after load");
+        loaded.sync();
+        if(PageMgr.load("/tmp/tmp_dirty_page.txt").allocatedPos != loaded.allocatedPos) throw new RuntimeException("first page lost");
+    }
 }
@@ -1,6 +1,8 @@
 package simpleBtree;
 
+import com.alibaba.middleware.race.store.LeafCache;
 import com.alibaba.middleware.race.store.SimpleBTree;
+import com.alibaba.middleware.race.store.StoreConfig;
 import com.alibaba.middleware.race.util.PrintUtil;
 import com.alibaba.middleware.race.util.RankUtil;
 import com.alibaba.middleware.race.util.TypeUtil;
@@ -100,6 +102,39 @@ public class SimpleBTreeTest {
     }
 
 
+    @Test
+    public void testZoneCount()throws Exception{
+        //key: buyer(8) + ctime(8)
+        final SimpleBTree simpleBTree = new SimpleBTree(baseDir+"test_zone.index",16,8,false).zoneBy(8, 8);
+        int num = 1000* 1000, buyerNum = 10 * 1000;
+        for (int i = 0; i < num; i++) {
+            byte[] node = new byte[24];
+            System.arraycopy(TypeUtil.longToBytes(random.nextInt(buyerNum)),0,node,0,8);
+            System.arraycopy(TypeUtil.longToBytes(random.nextInt(1000 * 1000)),0,node,8,8);
+            System.arraycopy(TypeUtil.longToBytes(i),0,node,16,8);
+            simpleBTree.write(node);
+        }
+        simpleBTree.finishWrite();
+        simpleBTree.reRank();
+
+        int testNum = 1000,succNum = 0;
+        long start = System.currentTimeMillis();
+        for (int i = 0; i < testNum; i++) {
+            long buyer = random.nextInt(buyerNum * 2);
+            long from = random.nextInt(1000 * 1000), to = from + random.nextInt(500 * 1000);
+            byte[] fromKey = new byte[16], toKey = new byte[16];
+            System.arraycopy(TypeUtil.longToBytes(buyer),0,fromKey,0,8);
+            System.arraycopy(TypeUtil.longToBytes(from),0,fromKey,8,8);
+            System.arraycopy(TypeUtil.longToBytes(buyer),0,toKey,0,8);
+            System.arraycopy(TypeUtil.longToBytes(to),0,toKey,8,8);
+            if(simpleBTree.count(fromKey, toKey) == simpleBTree.query(fromKey, toKey).size()){
+                succNum++;
+            }
+        }
+        long end = System.currentTimeMillis();
+        PrintUtil.print("testNum:%d succNum:%d cost:%d ms",testNum, succNum, end - start);
+    }
+
     private String convert(int num){
         String tmp = Integer.toHexString(num);
         if(tmp.length() >= 5) return tmp.substring(0,5);
@@ -115,4 +150,99 @@ public class SimpleBTreeTest {
         }
         return "00000";
     }
+
+    @Test
+    public void testLeafCache()throws Exception{
+        //两棵树共用64K的预算,一个叶子33K,同时最多缓存一个
+        LeafCache leafCache = new LeafCache(64 * 1024, 16 * 1024 * 1024);
+        SimpleBTree hot = new SimpleBTree(baseDir+"hot.index",8,25,true);
+        SimpleBTree cold = new SimpleBTree(baseDir+"cold.index",8,25,true);
+        int leafLen = 1024 * 33;
+        for (int i = 0; i < 4; i++) {
+            SimpleBTree tree = i % 2 == 0 ? hot : cold;
+            LeafCache.Leaf leaf = leafCache.get(tree, i * leafLen, (i + 1) * leafLen);
+            if(leaf == null){
+                leaf = leafCache.allocate(tree, i * leafLen, (i + 1) * leafLen);
+                leaf = leafCache.publish(leaf);
+            }
+            leafCache.release(leaf);
+            System.out.println(leafCache.report());
+        }
+        if(leafCache.getUsedBytes() > 64 * 1024) throw new RuntimeException("leaf cache over budget " + leafCache.getUsedBytes());
+        //pin住的不会被淘汰,腾不出来就返回null
+        LeafCache.Leaf pinned = leafCache.get(cold, 3 * leafLen, 4 * leafLen);
+        System.out.println(leafCache.allocate(hot, 0, leafLen));
+        leafCache.release(pinned);
+    }
+
+    @Test
+    public void testLeafCacheClassEviction()throws Exception{
+        //slab只够切一次,全给了4K的档位;33K的叶子腾不出同档位的块就不缓存,不能把4K的叶子清掉
+        LeafCache leafCache = new LeafCache(64 * 1024 * 1024, StoreConfig.LEAF_SLAB_SIZE);
+        SimpleBTree tree = new SimpleBTree(baseDir+"class.index",8,25,true);
+        int num = StoreConfig.LEAF_SLAB_SIZE / StoreConfig.LEAF_MIN_CLASS_SIZE;
+        int leafLen = StoreConfig.LEAF_MIN_CLASS_SIZE;
+        for (int i = 0; i < num; i++) {
+            leafCache.release(leafCache.publish(leafCache.allocate(tree, i * leafLen, (i + 1) * leafLen)));
+        }
+        long used = leafCache.getUsedBytes();
+        if(leafCache.allocate(tree, 0, 1024 * 33) != null) throw new RuntimeException("no slab left for 33K");
+        if(leafCache.getUsedBytes() != used) throw new RuntimeException("evicted other class " + leafCache.getUsedBytes());
+        //同档位的叶子按LRU淘汰,最久没用的第0个先走
+        LeafCache.Leaf leaf = leafCache.allocate(tree, num * leafLen, (num + 1) * leafLen);
+        leafCache.release(leafCache.publish(leaf));
+        if(leafCache.get(tree, 0, leafLen) != null) throw new RuntimeException("lru leaf not evicted");
+        LeafCache.Leaf second = leafCache.get(tree, leafLen, 2 * leafLen);
+        if(second == null) throw new RuntimeException("wrong leaf evicted");
+        leafCache.release(second);
+    }
+
+    @Test
+    public void testLeafCacheSamePath()throws Exception{
+        //同一个路径先后建两棵带缓存的树,第二棵读到的必须是自己的数据,不能是第一棵缓存的叶子
+        for (int round = 0; round < 2; round++) {
+            SimpleBTree simpleBTree = new SimpleBTree(baseDir+"same_path.index",8,8,true);
+            int num = 10 * 1000;
+            for (int i = 0; i < num; i++) {
+                byte[] node = new byte[16];
+                System.arraycopy(TypeUtil.longToBytes(i), 0, node, 0, 8);
+                System.arraycopy(TypeUtil.longToBytes(i * 10 + round), 0, node, 8, 8);
+                simpleBTree.write(node);
+            }
+            simpleBTree.finishWrite();
+            simpleBTree.reRank();
+            for (int i = 0; i < num; i += 7) {
+                List<byte[]> res = simpleBTree.query(TypeUtil.longToBytes(i));
+                if(res.size() != 1 || TypeUtil.bytesToLong(Arrays.copyOfRange(res.get(0), 8, 16)) != i * 10 + round){
+                    throw new RuntimeException("round " + round + " read stale leaf for key " + i);
+                }
+            }
+        }
+    }
+
+    @Test
+    public void testPageAlignedLeaves()throws Exception{
+        //每个key写3次,叶子不能把相同的key拆开;查询走KeyDir
+        SimpleBTree simpleBTree = new SimpleBTree(baseDir+"page.index",8,8,false);
+        int num = 300 * 1000;
+        for (int i = 0; i < num; i++) {
+            byte[] node = new byte[16];
+            System.arraycopy(TypeUtil.longToBytes(i / 3 * 2), 0, node, 0, 8);
+            System.arraycopy(TypeUtil.longToBytes(i), 0, node, 8, 8);
+            simpleBTree.write(node);
+        }
+        simpleBTree.finishWrite();
+        simpleBTree.reRank();
+        PrintUtil.print("keyNodes size:%d", simpleBTree.keyNodes.size());
+        for (SimpleBTree.Node node : simpleBTree.keyNodes){
+            if(node.getStart() % StoreConfig.STREE_PAGE_SIZE != 0) throw new RuntimeException("leaf not aligned " + node.getStart());
+        }
+        for (int i = 0; i < num / 3; i++) {
+            if(simpleBTree.query(TypeUtil.longToBytes(i * 2)).size() != 3) throw new RuntimeException("lost key " + i * 2);
+            if(simpleBTree.query(TypeUtil.longToBytes(i * 2 + 1)).size() != 0) throw new RuntimeException("wrong key " + (i * 2 + 1));
+        }
+        List<byte[]> kvs = simpleBTree.query(TypeUtil.longToBytes(1000), TypeUtil.longToBytes(100 * 1000));
+        if(kvs.size() != (100 * 1000 - 1000) / 2 * 3) throw new RuntimeException("range size " + kvs.size());
+        if(simpleBTree.readAll().size() != num) throw new RuntimeException("read all size");
+    }
 }
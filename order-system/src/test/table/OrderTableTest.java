@@ -1,12 +1,18 @@
 package table;
 
 import com.alibaba.middleware.race.model.Constant;
+import com.alibaba.middleware.race.model.GoodOrderKey;
+import com.alibaba.middleware.race.store.BuildStats;
+import com.alibaba.middleware.race.store.IdDict;
 import com.alibaba.middleware.race.store.SimpleBTree;
 import com.alibaba.middleware.race.table.OrderTable;
 import com.sun.tools.javac.api.ClientCodeWrapper;
 import org.junit.Test;
 
+import java.io.File;
+import java.io.PrintWriter;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
 import java.util.Map;
 
@@ -18,6 +24,8 @@ public class OrderTableTest {
     public String orderDir = "/Users/liuzhendong/Source/middleware-race/data/prerun_data/";
     public String storeDir = "/Users/liuzhendong/Source/middleware-race/data";
     List<String>  orderFiles = new ArrayList<String>();
+    List<String>  buyerFiles = new ArrayList<String>();
+    List<String>  goodFiles = new ArrayList<String>();
     List<String>  storeFolders = new ArrayList<String>();
     {
         orderFiles.add(orderDir+"order.0.0");
@@ -25,6 +33,13 @@ public class OrderTableTest {
         orderFiles.add(orderDir+"order.1.1");
         orderFiles.add(orderDir+"order.2.2");
 
+        buyerFiles.add(orderDir+"buyer.0.0");
+        buyerFiles.add(orderDir+"buyer.1.1");
+
+        goodFiles.add(orderDir+"good.0.0");
+        goodFiles.add(orderDir+"good.1.1");
+        goodFiles.add(orderDir+"good.2.2");
+
         storeFolders.add(storeDir+"/index1/");
         storeFolders.add(storeDir+"/index2/");
 
@@ -32,7 +47,11 @@ public class OrderTableTest {
 
     @Test
     public void testBuildOrderTable()throws Exception{
-        OrderTable orderTable = new OrderTable(orderFiles, storeFolders);
+        IdDict buyerDict = IdDict.build("buyer", buyerFiles, Constant.BUYER_ID, 20);
+        IdDict goodDict = IdDict.build("good", goodFiles, Constant.GOOD_ID, 21);
+        //编号和字符串互相转换
+        System.out.println(buyerDict.get(buyerDict.indexOf("ap-992a-3341260aa01b")) + " " + buyerDict.indexOf("not-exist"));
+        OrderTable orderTable = new OrderTable(orderFiles, storeFolders, buyerDict, goodDict);
         long start = System.currentTimeMillis();
         orderTable.buildIndex();
         long end = System.currentTimeMillis();
@@ -48,10 +67,66 @@ public class OrderTableTest {
 
         queryOrderByBuyer(orderTable);
 
+        queryOrderByBuyerLimit(orderTable);
+
+        queryOrdersBatch(orderTable);
+
         queryOrderGood(orderTable);
 
     }
 
+    @Test
+    public void testUnknownBuyerSkipped()throws Exception{
+        //买家不在字典里的订单跳过并计数,同一个文件后面的订单照常建索引
+        String dir = storeDir + "/unknown/";
+        new File(dir).mkdirs();
+        PrintWriter writer = new PrintWriter(dir + "buyer.0");
+        writer.println("buyerid:b1\tbuyername:n1");
+        writer.close();
+        writer = new PrintWriter(dir + "good.0");
+        writer.println("goodid:g1\tsalerid:s1\tprice:1.0");
+        writer.close();
+        writer = new PrintWriter(dir + "order.0");
+        for (int i = 0; i < 1000; i++) {
+            writer.println("orderid:" + i + "\tgoodid:g1\tbuyerid:" + (i == 10 ? "b2" : "b1") + "\tcreatetime:" + (1000 + i) + "\tdone:true\tamount:1");
+        }
+        writer.close();
+        BuildStats.reset();
+        IdDict buyerDict = IdDict.build("buyer", Collections.singletonList(dir + "buyer.0"), Constant.BUYER_ID, 20);
+        IdDict goodDict = IdDict.build("good", Collections.singletonList(dir + "good.0"), Constant.GOOD_ID, 21);
+        OrderTable orderTable = new OrderTable(Collections.singletonList(dir + "order.0"), Collections.singletonList(dir), buyerDict, goodDict);
+        orderTable.buildIndex();
+        if(BuildStats.skippedRecords() != 1) throw new RuntimeException("skipped " + BuildStats.skippedRecords());
+        if(orderTable.getOrderById(10) != null || orderTable.getOrderById(999) == null) throw new RuntimeException("wrong orders");
+    }
+
+    @Test
+    public void testGoodKeysInclusiveRange()throws Exception{
+        //冷门商品走B树,热门商品走倒排表,[fromId,toId]两边都要包含toId
+        String dir = storeDir + "/goodrange/";
+        new File(dir).mkdirs();
+        PrintWriter writer = new PrintWriter(dir + "buyer.0");
+        writer.println("buyerid:b1\tbuyername:n1");
+        writer.close();
+        writer = new PrintWriter(dir + "good.0");
+        writer.println("goodid:cold\tsalerid:s1\tprice:1.0");
+        writer.println("goodid:hot\tsalerid:s1\tprice:1.0");
+        writer.close();
+        writer = new PrintWriter(dir + "order.0");
+        for (int i = 0; i < 2000; i++) {
+            writer.println("orderid:" + i + "\tgoodid:" + (i % 10 == 0 ? "cold" : "hot") + "\tbuyerid:b1\tcreatetime:" + (1000 + i) + "\tdone:true\tamount:1");
+        }
+        writer.close();
+        IdDict buyerDict = IdDict.build("buyer", Collections.singletonList(dir + "buyer.0"), Constant.BUYER_ID, 20);
+        IdDict goodDict = IdDict.build("good", Collections.singletonList(dir + "good.0"), Constant.GOOD_ID, 21);
+        OrderTable orderTable = new OrderTable(Collections.singletonList(dir + "order.0"), Collections.singletonList(dir), buyerDict, goodDict);
+        orderTable.buildIndex();
+        List<GoodOrderKey> cold = orderTable.getGoodKeysByGood("cold", 100, 200);
+        if(cold.size() != 11 || cold.get(cold.size() - 1).orderId != 200) throw new RuntimeException("cold range " + cold.size());
+        List<GoodOrderKey> hot = orderTable.getGoodKeysByGood("hot", 101, 199);
+        if(hot.size() != 90 || hot.get(hot.size() - 1).orderId != 199) throw new RuntimeException("hot range " + hot.size());
+        if(orderTable.getGoodKeysByGood("cold").size() != 200) throw new RuntimeException("cold all");
+    }
 
     private void queryOrderById(OrderTable orderTable)throws Exception{
         long start = System.currentTimeMillis();
@@ -78,6 +153,33 @@ public class OrderTableTest {
 
 
 
+    private void queryOrdersBatch(OrderTable orderTable)throws Exception{
+        long start = System.currentTimeMillis();
+        long[] orderIds = {605653189l, 1l, 605653189l, 589700371l, 623324410l};
+        List<Map<String,String>> res = orderTable.getOrdersByKeys(orderTable.getOrderKeys(orderIds));
+        //结果和输入一一对应,不存在的为null
+        boolean succ = res.size() == orderIds.length;
+        for (int i = 0; succ && i < orderIds.length; i++) {
+            Map<String,String> single = orderTable.getOrderById(orderIds[i]);
+            succ = single == null ? res.get(i) == null : single.equals(res.get(i));
+        }
+        long end = System.currentTimeMillis();
+        System.out.println(String.format("queryOrdersBatch size:%d succ:%b cost:%d",res.size(), succ, end-start));
+    }
+
+    private void queryOrderByBuyerLimit(OrderTable orderTable)throws Exception{
+        long start = System.currentTimeMillis();
+        List<Map<String,String>> all = orderTable.getOrdersByBuyer("ap-992a-3341260aa01b", 0, 1468853174);
+        List<Map<String,String>> res = orderTable.getOrdersByBuyer("ap-992a-3341260aa01b", 0, 1468853174, 5);
+        //两个都是从新到旧,limit的结果应该等于全量结果的前几条
+        boolean succ = res.size() == Math.min(5, all.size());
+        for (int i = 0; succ && i < res.size(); i++) {
+            succ = res.get(i).get(Constant.ORDER_ID).equals(all.get(i).get(Constant.ORDER_ID));
+        }
+        long end = System.currentTimeMillis();
+        System.out.println(String.format("queryOrderByBuyerLimit size:%d succ:%b cost:%d",res.size(), succ, end-start));
+    }
+
     private void queryOrderGood(OrderTable orderTable)throws Exception{
         long start = System.currentTimeMillis();
         List<Map<String,String>> res = orderTable.getOrdersByGood("dd-b00a-d67c9f59ce06");